@@ -0,0 +1,1164 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.media.MediaDataSource;
+import android.media.MediaExtractor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.view.View;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays tracks through our own pipeline instead of a {@link android.media.MediaPlayer}, as the
+ * alternative to {@link MediaPlayerHolder} that {@link PlaybackService} can switch to.
+ *
+ * A decoder thread runs {@link MediaExtractor} and {@link android.media.MediaCodec} through a
+ * {@link PcmDecoder.Stream} into a {@link PcmRing}. An audio thread at urgent audio priority
+ * renders from the ring through a {@link DspChain}, which does the speed change and any other
+ * {@link DspStage}s such as the {@link EqualizerStage} and {@link MetronomeStage}, and writes
+ * to an {@link AudioTrack}.
+ * The ring is the only thing the two threads share, and the audio thread never locks or
+ * allocates while playing.
+ *
+ * Loops are done by the decoder: at the loop end it seeks back to the loop start and marks the
+ * jump in the ring, so the wrap is exact to the sample whatever the loop's length. Seeks flush
+ * the ring and the track, so they are heard as soon as the decoder has the first block.
+ *
+ * Songs of a {@link PracticeQueue} follow each other with a short gap, since each may have its
+ * own sample rate and gets its own track.
+ *
+ * Like {@link MediaPlayerHolder}, it is confined to the thread of the {@link Looper} it is
+ * given, where {@link PlaybackEngine} calls it.
+ */
+final class AudioTrackPlayer implements PlayerAdapter {
+
+    // How much decoded audio the ring holds, which covers the decoder seeking back for a loop
+    // or stalling briefly.
+    private static final int RING_MS = 500;
+    private static final int BLOCK_FRAMES = 512;
+    // How long either thread sleeps while the ring is full or empty.
+    private static final long WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private static final int MIN_SPEED_PERCENT = MediaPlayerHolder.MIN_SPEED_PERCENT;
+    private static final int MAX_SPEED_PERCENT = MediaPlayerHolder.MAX_SPEED_PERCENT;
+
+    private final Context mContext;
+    private final PlaybackClock mClock;
+    private final Handler mHandler;
+    private final ExecutorService mLoadExecutor = Executors.newSingleThreadExecutor();
+    private final EqualizerStage mEqualizer = new EqualizerStage();
+    private final MetronomeStage mMetronome = new MetronomeStage();
+    private PlaybackInfoListener mPlaybackInfoListener;
+
+    // The loaded track's threads and output, or null. Read by the clock's thread.
+    private volatile Pipeline mPipeline;
+    // Bumped by every load and cancel; a load whose generation is stale gives up.
+    private volatile int mLoadGeneration = 0;
+    private boolean mLoading;
+
+    private PracticeQueue mQueue;
+    private int mQueueIndex;
+    private PracticeState mPendingState;
+    private PcmFile mPcmFile;
+    private boolean mScrubbing;
+    private ScrubPreview mScrub;
+    private boolean mScrubResume;
+    private BeatGrid mBeatGrid;
+    private int mLoopSnap = BeatGrid.SNAP_BEAT;
+
+    // The loop as start << 32 | end in milliseconds, or 0 for none. The decoder thread reads
+    // it, and moves it on from region to region of a chain.
+    private final AtomicLong mLoop = new AtomicLong();
+    private volatile LoopRegions mRegions;
+    private volatile int mChainRepeats;
+
+    private int speedPercent = 100;
+    private float speed = 1.00f;
+
+    private int loopStart = 0;
+    private int loopEnd = 0;
+    private int songLength = 0;
+
+    // Read on the main thread by visualize.
+    private volatile int color;
+
+    AudioTrackPlayer(Context context, Looper looper) {
+        mContext = context.getApplicationContext();
+        mHandler = new Handler(looper);
+        mClock = new PlaybackClock(new PlaybackClock.PositionSource() {
+            @Override
+            public int getCurrentPosition() {
+                Pipeline pipeline = mPipeline;
+                return pipeline == null ? -1 : pipeline.getPosition();
+            }
+        });
+    }
+
+    @Override
+    public void setPlaybackInfoListener(PlaybackInfoListener listener) {
+        if (mPlaybackInfoListener != null) {
+            mClock.unsubscribe(mPlaybackInfoListener);
+        }
+        mPlaybackInfoListener = listener;
+        if (listener != null) {
+            mClock.subscribe(listener);
+        }
+    }
+
+    @Override
+    public PlaybackClock getPlaybackClock() {
+        return mClock;
+    }
+
+    @Override
+    public float getSpeed() {
+        return speed;
+    }
+
+    @Override
+    public PlayerState getState() {
+        return new PlayerState(isInitialized(), isPlaying(), songLength, mLoop.get() != 0,
+                loopStart, loopEnd, speedPercent, mQueue == null ? 0 : mQueueIndex,
+                mQueue == null ? 0 : mQueue.size(), true);
+    }
+
+    @Override
+    public int getLoopStart() {
+        return loopStart;
+    }
+
+    @Override
+    public int getLoopEnd() {
+        return loopEnd;
+    }
+
+    @Override
+    public int getSongLength() {
+        return songLength;
+    }
+
+    @Override
+    public void loadMedia(Uri uri) {
+        load(PcmDecoder.fromUri(mContext, uri), false);
+    }
+
+    @Override
+    public void loadMedia(FileDescriptor fd) {
+        load(PcmDecoder.fromFileDescriptor(fd), false);
+    }
+
+    @Override
+    public void loadMedia(File file) {
+        load(PcmDecoder.fromFile(file), false);
+    }
+
+    /**
+     * Loads a source that may still be downloading. The decoder reads it as it arrives, and
+     * playback starts as soon as the first block is decoded.
+     */
+    @Override
+    public void loadMedia(final MediaDataSource source) {
+        load(new PcmDecoder.Source() {
+            @Override
+            public void setDataSource(MediaExtractor extractor) throws IOException {
+                extractor.setDataSource(source);
+            }
+        }, true);
+    }
+
+    /**
+     * Starts loading a track, superseding any load still in progress. The track is opened and
+     * decoded up to its first block on {@link #mLoadExecutor}, which settles its output format.
+     */
+    private void load(final PcmDecoder.Source source, final boolean autoPlay) {
+        saveQueueEntry();
+        resetTrack();
+        mQueue = null;
+        final int generation = mLoadGeneration;
+        mLoading = true;
+        reportLoad(PlaybackInfoListener.Load.OPENING);
+        mLoadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != mLoadGeneration) {
+                    return;
+                }
+                long openStart = System.nanoTime();
+                PcmDecoder decoder = new PcmDecoder(source);
+                PcmDecoder.Stream stream = null;
+                Exception error = null;
+                try {
+                    stream = decoder.openStream();
+                    int frames;
+                    do {
+                        frames = stream.next();
+                    } while (frames == 0 && generation == mLoadGeneration);
+                    if (frames < 0) {
+                        throw new IOException("No audio decoded");
+                    }
+                    stream.seekTo(0);
+                    Telemetry.get().prepare.recordSince(openStart);
+                } catch (IOException | RuntimeException e) {
+                    if (stream != null) {
+                        stream.close();
+                        stream = null;
+                    }
+                    error = e;
+                }
+                final PcmDecoder opened = decoder;
+                final PcmDecoder.Stream ready = stream;
+                final Exception failure = error;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mLoadGeneration) {
+                            if (ready != null) {
+                                ready.close();
+                            }
+                        } else if (failure != null) {
+                            failLoad(Telemetry.get().loadErrors, failure);
+                        } else {
+                            Pipeline pipeline;
+                            try {
+                                pipeline = new Pipeline(opened, ready);
+                            } catch (UnsupportedOperationException
+                                    | IllegalArgumentException e) {
+                                // No AudioTrack for it, e.g. when no output can be had.
+                                ready.close();
+                                failLoad(Telemetry.get().loadErrors, e);
+                                return;
+                            }
+                            mLoading = false;
+                            install(pipeline);
+                            reportLoad(PlaybackInfoListener.Load.READY);
+                            if (autoPlay && !isPlaying()) {
+                                play();
+                            }
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Clears everything that belongs to the current track and releases its pipeline.
+     */
+    private void resetTrack() {
+        int[] colors = mContext.getResources().getIntArray(R.array.colors);
+        color = colors[new Random().nextInt(colors.length)];
+        discardScrub();
+        mRegions = null;
+        mLoop.set(0);
+        setHeardLoop(0, 0);
+        mPcmFile = null;
+        mBeatGrid = null;
+        mMetronome.setBeats(null);
+        mPendingState = null;
+        Telemetry.get().loads.increment();
+        cancelPendingLoad();
+        if (mPipeline != null) {
+            mPipeline.release();
+            mPipeline = null;
+            mClock.stop(0);
+            if (mPlaybackInfoListener != null) {
+                mPlaybackInfoListener.onStateChanged(PlaybackInfoListener.State.PAUSED);
+            }
+        }
+    }
+
+    private void install(Pipeline pipeline) {
+        mPipeline = pipeline;
+        pipeline.mChain.setSpeed(speed);
+        pipeline.mChain.add(mEqualizer);
+        pipeline.mChain.add(mMetronome);
+        pipeline.start();
+        initializeProgressCallback();
+        if (mQueue != null) {
+            enterQueueEntry();
+        }
+        if (mPendingState != null) {
+            applyPracticeState(mPendingState);
+            mPendingState = null;
+        }
+    }
+
+    @Override
+    public void cancelLoad() {
+        if (cancelPendingLoad()) {
+            reportLoad(PlaybackInfoListener.Load.CANCELLED);
+        }
+    }
+
+    private boolean cancelPendingLoad() {
+        mLoadGeneration++;
+        boolean wasLoading = mLoading;
+        mLoading = false;
+        return wasLoading;
+    }
+
+    private void failLoad(Telemetry.Counter counter, Exception e) {
+        Telemetry.get().error(counter, e);
+        mLoading = false;
+        if (mPlaybackInfoListener != null) {
+            mPlaybackInfoListener.onLoadFailed(e);
+        }
+    }
+
+    private void reportLoad(@PlaybackInfoListener.Load int stage) {
+        if (mPlaybackInfoListener != null) {
+            mPlaybackInfoListener.onLoadProgress(stage);
+        }
+    }
+
+    @Override
+    public void restorePracticeState(PracticeState state) {
+        if (mPipeline == null) {
+            mPendingState = state;
+        } else {
+            applyPracticeState(state);
+        }
+    }
+
+    private void applyPracticeState(PracticeState state) {
+        adjustSpeed(state.getSpeedPercent() - speedPercent);
+        if (state.hasLoop() && state.getLoopEnd() <= songLength) {
+            mRegions = null;
+            switchLoop(state.getLoopStart(), state.getLoopEnd());
+        }
+        if (state.getPosition() > 0 && state.getPosition() < songLength) {
+            seekTo(state.getPosition());
+        }
+        if (mPlaybackInfoListener != null) {
+            mPlaybackInfoListener.onPracticeStateRestored(state);
+        }
+    }
+
+    @Override
+    public void savePracticeState(PracticeStore store, String hash, PracticeState state) {
+        capturePracticeState(state);
+        store.put(hash, state);
+    }
+
+    private void capturePracticeState(PracticeState state) {
+        if (mPipeline == null) {
+            return;
+        }
+        state.setSpeedPercent(speedPercent);
+        state.setPosition(mClock.getPosition());
+        if (mLoop.get() != 0) {
+            state.setLoop(loopStart, loopEnd);
+        } else {
+            state.setLoop(0, 0);
+        }
+    }
+
+    @Override
+    public void playQueue(PracticeQueue queue, int index) {
+        load(PcmDecoder.fromUri(mContext, queue.get(index).getUri()), true);
+        mQueue = queue;
+        mQueueIndex = index;
+    }
+
+    @Override
+    public boolean nextTrack() {
+        if (mQueue == null || mQueueIndex + 1 >= mQueue.size()) {
+            return false;
+        }
+        playQueue(mQueue, mQueueIndex + 1);
+        return true;
+    }
+
+    @Override
+    public boolean previousTrack() {
+        if (mQueue == null || mQueueIndex == 0) {
+            return false;
+        }
+        playQueue(mQueue, mQueueIndex - 1);
+        return true;
+    }
+
+    private void enterQueueEntry() {
+        PracticeQueue.Entry entry = mQueue.get(mQueueIndex);
+        adjustSpeed(entry.getSpeedPercent() - speedPercent);
+        if (entry.hasLoop()) {
+            switchLoop(entry.getLoopStart(), entry.getLoopEnd());
+        }
+        mPipeline.mEndsQueue = mQueueIndex + 1 < mQueue.size();
+        if (mPlaybackInfoListener != null) {
+            mPlaybackInfoListener.onTrackChanged(mQueueIndex);
+        }
+    }
+
+    private void saveQueueEntry() {
+        if (mQueue != null) {
+            PracticeQueue.Entry entry = mQueue.get(mQueueIndex);
+            entry.setSpeedPercent(speedPercent);
+            if (mLoop.get() != 0) {
+                entry.setLoop(loopStart, loopEnd);
+            } else {
+                entry.setLoop(0, 0);
+            }
+        }
+    }
+
+    /**
+     * Called once a queued song has played to its end.
+     */
+    private void onTrackEnded(Pipeline pipeline) {
+        if (pipeline == mPipeline && mQueue != null && !nextTrack()) {
+            pause();
+        }
+    }
+
+    @Override
+    public void release() {
+        cancelPendingLoad();
+        discardScrub();
+        if (mPipeline != null) {
+            mPipeline.release();
+            mPipeline = null;
+        }
+        mClock.stop(0);
+        // The player lives as long as the PlaybackService; this is the end of it.
+        mClock.release();
+        mLoadExecutor.shutdownNow();
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return mPipeline != null && mPipeline.mPlaying;
+    }
+
+    @Override
+    public boolean isInitialized() {
+        return mPipeline != null;
+    }
+
+    @Override
+    public int play() {
+        if (mPipeline == null) {
+            return 3;
+        }
+        if (mPipeline.mPlaying) {
+            pause();
+            return 1;
+        }
+        mPipeline.setPlaying(true);
+        mClock.start(mPipeline.getPosition(), speed);
+        if (mPlaybackInfoListener != null) {
+            mPlaybackInfoListener.onStateChanged(PlaybackInfoListener.State.PLAYING);
+        }
+        return 2;
+    }
+
+    private void pause() {
+        mPipeline.setPlaying(false);
+        mClock.stop(mPipeline.getPosition());
+        if (mPlaybackInfoListener != null) {
+            mPlaybackInfoListener.onStateChanged(PlaybackInfoListener.State.PAUSED);
+        }
+    }
+
+    @Override
+    public void startScrub() {
+        if (mPipeline == null || mScrubbing) {
+            return;
+        }
+        mScrubbing = true;
+        mScrubResume = mPipeline.mPlaying;
+        if (mScrubResume) {
+            mPipeline.setPlaying(false);
+            mClock.stop(mPipeline.getPosition());
+        }
+        if (mPcmFile != null) {
+            mScrub = new ScrubPreview(mPcmFile, mPipeline.mTrack.getAudioSessionId());
+        }
+    }
+
+    @Override
+    public void scrubTo(int position) {
+        if (mScrub != null) {
+            mScrub.scrubTo(position);
+        }
+    }
+
+    @Override
+    public void endScrub(int position) {
+        boolean resume = mScrubResume;
+        discardScrub();
+        seekTo(position);
+        if (resume && mPipeline != null) {
+            mPipeline.setPlaying(true);
+            mClock.start(mPipeline.getPosition(), speed);
+        }
+    }
+
+    private void discardScrub() {
+        mScrubbing = false;
+        mScrubResume = false;
+        if (mScrub != null) {
+            mScrub.release();
+            mScrub = null;
+        }
+    }
+
+    @Override
+    public void visualize(SpectrumView visualizer) {
+        visualizer.setColor(color);
+        visualizer.setClock(mClock);
+        visualizer.setVisibility(View.VISIBLE);
+    }
+
+    @Override
+    public void stopVisualize(SpectrumView visualizer) {
+        visualizer.setVisibility(View.GONE);
+    }
+
+    /**
+     * Sets, completes or clears the A/B loop as {@link MediaPlayerHolder#setLoop} does.
+     */
+    @Override
+    public void setLoop(int loopMode) {
+        if (mPipeline == null) {
+            return;
+        }
+        loopMode = loopMode % 3;
+        if (loopMode == -1) {
+            return;
+        } else if (loopMode == 0) {
+            loopStart = snapToBeat(mPipeline.getPosition());
+            notifyLoopChanged(loopStart, -1);
+        } else if (loopMode == 1) {
+            int start = loopStart;
+            int end = snapToBeat(mPipeline.getPosition());
+            if (start > end) {
+                int temp = start;
+                start = end;
+                end = temp;
+            }
+            if (start == end && mBeatGrid != null) {
+                end = mBeatGrid.next(start, mLoopSnap);
+            }
+            mRegions = null;
+            switchLoop(start, end);
+            notifyLoopChanged(loopStart, loopEnd);
+        } else {
+            mRegions = null;
+            mLoop.set(0);
+            setHeardLoop(0, 0);
+            notifyLoopChanged(-1, -1);
+        }
+    }
+
+    @Override
+    public void playRegion(LoopRegion region) {
+        if (mPipeline == null || region.getEnd() > songLength) {
+            return;
+        }
+        mRegions = null;
+        switchLoop(region.getStart(), region.getEnd());
+        notifyLoopRegion(region);
+    }
+
+    /**
+     * Plays {@code regions} one after another, each {@code repeats} times, as
+     * {@link MediaPlayerHolder#chainRegions} does. The decoder moves on from one region to the
+     * next at the exact loop end.
+     */
+    @Override
+    public void chainRegions(LoopRegions regions, int repeats) {
+        if (mPipeline == null || regions.isEmpty()) {
+            return;
+        }
+        mChainRepeats = Math.max(1, repeats);
+        mRegions = regions;
+        int index = regions.indexAt(mClock.getPosition());
+        LoopRegion region = regions.get(index >= 0 ? index : 0);
+        switchLoop(region.getStart(), region.getEnd());
+        notifyLoopRegion(region);
+    }
+
+    /**
+     * Loops {@code start} to {@code end} in place of whatever loop was on, seeking to the start
+     * unless playback is inside it already.
+     */
+    private void switchLoop(int start, int end) {
+        if (end <= start) {
+            return;
+        }
+        loopStart = start;
+        loopEnd = end;
+        mLoop.set(packLoop(start, end));
+        setHeardLoop(start, end);
+        int position = mPipeline.getPosition();
+        if (position < start || position >= end) {
+            seekTo(start);
+        }
+    }
+
+    /**
+     * Tells the clock and the metronome about a loop as it starts being heard, which for the
+     * decoder's {@link #mLoop} may be a little later.
+     */
+    private void setHeardLoop(int start, int end) {
+        mClock.setLoop(start, end);
+        mMetronome.setLoop(start, end);
+    }
+
+    private void notifyLoopRegion(LoopRegion region) {
+        if (mPlaybackInfoListener != null) {
+            mPlaybackInfoListener.onLoopRegionChanged(region);
+        }
+    }
+
+    private static long packLoop(int start, int end) {
+        return (long) start << 32 | end;
+    }
+
+    private static int loopStartOf(long loop) {
+        return (int) (loop >>> 32);
+    }
+
+    private static int loopEndOf(long loop) {
+        return (int) loop;
+    }
+
+    private void notifyLoopChanged(int start, int end) {
+        if (mPlaybackInfoListener != null) {
+            mPlaybackInfoListener.onLoopChanged(start, end);
+        }
+    }
+
+    @Override
+    public void skipForward() {
+        if (isInitialized()) {
+            seekTo(mClock.getPosition() + 5000);
+        }
+    }
+
+    @Override
+    public void skipBackward() {
+        if (isInitialized()) {
+            seekTo(Math.max(0, mClock.getPosition() - 5000));
+        }
+    }
+
+    @Override
+    public float adjustSpeed(int crease) {
+        int percent = Math.max(MIN_SPEED_PERCENT,
+                Math.min(MAX_SPEED_PERCENT, speedPercent + crease));
+        if (percent != speedPercent) {
+            speedPercent = percent;
+            speed = percent / 100f;
+            if (mPipeline != null) {
+                mPipeline.mChain.setSpeed(speed);
+                if (mPipeline.mPlaying) {
+                    mClock.setSpeed(speed);
+                }
+            }
+        }
+        return speed;
+    }
+
+    @Override
+    public void seekTo(int position) {
+        if (mPipeline == null) {
+            return;
+        }
+        Telemetry.get().seeks.increment();
+        position = Math.max(0, Math.min(position, songLength));
+        LoopRegions chain = mRegions;
+        if (chain != null) {
+            // A seek into another chained region carries on the chain from there.
+            int index = chain.indexAt(position);
+            if (index >= 0 && chain.get(index).getStart() != loopStart) {
+                LoopRegion region = chain.get(index);
+                loopStart = region.getStart();
+                loopEnd = region.getEnd();
+                mLoop.set(packLoop(loopStart, loopEnd));
+                setHeardLoop(loopStart, loopEnd);
+                notifyLoopRegion(region);
+            }
+        }
+        if (mLoop.get() != 0 && (position < loopStart || position >= loopEnd)) {
+            // Seeks stay inside the loop, as they do in a gapless one.
+            position = loopStart;
+        }
+        mPipeline.seek(position);
+        mClock.seek(position);
+    }
+
+    @Override
+    public double[] getTime() {
+        return TimeFormat.minutesAndSeconds(mClock.getPosition());
+    }
+
+    @Override
+    public void setBeatGrid(BeatGrid beats) {
+        mBeatGrid = beats;
+        mMetronome.setBeats(beats);
+    }
+
+    private int snapToBeat(int position) {
+        return mBeatGrid == null ? position : mBeatGrid.snap(position, mLoopSnap);
+    }
+
+    /**
+     * Keeps the decoded track for previews while scrubbing; playback itself decodes as it goes.
+     */
+    @Override
+    public void setPcm(PcmFile pcm) {
+        if (pcm != null && Math.abs(pcm.getDurationMs() - songLength) > 1000) {
+            return;
+        }
+        mPcmFile = pcm;
+    }
+
+    @Override
+    public boolean setEqualizer(float lowDb, float midDb, float highDb) {
+        mEqualizer.setGain(EqualizerStage.LOW, lowDb);
+        mEqualizer.setGain(EqualizerStage.MID, midDb);
+        mEqualizer.setGain(EqualizerStage.HIGH, highDb);
+        return true;
+    }
+
+    /**
+     * Clicks on the beats of the grid set by {@link #setBeatGrid}, so nothing is heard until
+     * the track has been analyzed.
+     */
+    @Override
+    public boolean setMetronome(boolean clicks, int countInBeats) {
+        mMetronome.setClicks(clicks);
+        mMetronome.setCountIn(countInBeats);
+        return true;
+    }
+
+    @Override
+    public void initializeProgressCallback() {
+        songLength = mPipeline.mDurationMs;
+        mClock.setDuration(songLength);
+        if (mPlaybackInfoListener != null) {
+            mPlaybackInfoListener.onDurationChanged(songLength);
+            mPlaybackInfoListener.onPositionChanged(0);
+        }
+    }
+
+    @Override
+    public void setDuration() {
+        if (mPipeline != null && mPipeline.mDurationMs != songLength) {
+            initializeProgressCallback();
+        }
+    }
+
+    /**
+     * One loaded track: its decoder and audio threads, the ring between them and its
+     * {@link AudioTrack}.
+     */
+    private final class Pipeline {
+        final int mSampleRate;
+        final int mChannels;
+        final int mDurationMs;
+        final PcmRing mRing;
+        final DspChain mChain;
+        final AudioTrack mTrack;
+        // Whether a queued song follows, in which case the decoder stops at the end.
+        volatile boolean mEndsQueue;
+        volatile boolean mPlaying;
+
+        private final PcmDecoder mDecoder;
+        private final PcmDecoder.Stream mStream;
+        private final Thread mDecodeThread;
+        private final Thread mRenderThread;
+        // Guards the track's play state against the audio thread flushing it.
+        private final Object mTrackLock = new Object();
+        private volatile boolean mAlive = true;
+        private final AtomicLong mSeekFrame = new AtomicLong(-1);
+        // Position of a seek the audio thread hasn't played from yet, or -1, and when it was
+        // asked for.
+        private volatile int mSeekTarget = -1;
+        private volatile long mSeekNanos;
+        private volatile boolean mAwaitingAudio;
+
+        // What the audio thread last wrote, as a seqlock: mSequence is odd while it changes.
+        private volatile int mSequence;
+        private volatile long mPublishedSource;
+        private volatile long mPublishedWritten;
+        private volatile float mPublishedSpeed = 1.0f;
+        // The audio thread's count of frames written since the track was last flushed.
+        private long mWritten;
+
+        Pipeline(PcmDecoder decoder, PcmDecoder.Stream stream) {
+            mDecoder = decoder;
+            mStream = stream;
+            mSampleRate = decoder.getSampleRate();
+            mChannels = decoder.getChannelCount();
+            mDurationMs = (int) (decoder.getDurationUs() / 1000);
+            mRing = new PcmRing(mSampleRate * RING_MS / 1000, mChannels);
+            mChain = new DspChain(mSampleRate, mChannels);
+            mTrack = GaplessLoopPlayer.buildTrack(mChannels, mSampleRate,
+                    AudioManager.AUDIO_SESSION_ID_GENERATE);
+            mDecodeThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+                    decode();
+                }
+            }, "PcmDecode");
+            mRenderThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                    render();
+                }
+            }, "PcmRender");
+        }
+
+        void start() {
+            mDecodeThread.start();
+            mRenderThread.start();
+        }
+
+        void setPlaying(boolean playing) {
+            synchronized (mTrackLock) {
+                mPlaying = playing;
+                if (playing) {
+                    mTrack.play();
+                } else {
+                    mTrack.pause();
+                }
+            }
+            if (playing) {
+                mAwaitingAudio = true;
+                LockSupport.unpark(mRenderThread);
+            }
+        }
+
+        void seek(int position) {
+            mSeekNanos = System.nanoTime();
+            mSeekTarget = position;
+            synchronized (mTrackLock) {
+                if (!mPlaying) {
+                    // Wakes an audio thread blocked writing into the paused track.
+                    mTrack.flush();
+                }
+            }
+            mSeekFrame.set((long) position * mSampleRate / 1000);
+            LockSupport.unpark(mDecodeThread);
+        }
+
+        /**
+         * Returns the position being heard right now, from any thread.
+         */
+        int getPosition() {
+            int target = mSeekTarget;
+            if (target >= 0) {
+                return target;
+            }
+            int sequence;
+            long source;
+            long written;
+            float speed;
+            do {
+                sequence = mSequence;
+                source = mPublishedSource;
+                written = mPublishedWritten;
+                speed = mPublishedSpeed;
+            } while ((sequence & 1) != 0 || sequence != mSequence);
+            long pending = Math.max(0,
+                    written - (mTrack.getPlaybackHeadPosition() & 0xffffffffL));
+            long frame = source - (long) (pending * speed);
+            long loop = mLoop.get();
+            if (loop != 0) {
+                // Audio still queued from before the last wrap.
+                long start = (long) loopStartOf(loop) * mSampleRate / 1000;
+                long end = (long) loopEndOf(loop) * mSampleRate / 1000;
+                if (frame < start && source >= start) {
+                    frame += end - start;
+                }
+            }
+            return (int) (Math.max(0, frame) * 1000 / mSampleRate);
+        }
+
+        /**
+         * Stops both threads and releases the track. The decoder thread winds down on its own,
+         * so a stalled download never holds up the caller.
+         */
+        void release() {
+            mAlive = false;
+            synchronized (mTrackLock) {
+                mPlaying = false;
+                // Stopping also wakes a blocked write.
+                mTrack.stop();
+            }
+            LockSupport.unpark(mDecodeThread);
+            LockSupport.unpark(mRenderThread);
+            try {
+                mRenderThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mTrack.release();
+        }
+
+        private void decode() {
+            PcmDecoder.Stream stream = mStream;
+            long frame = 0;
+            boolean reposition = false;
+            boolean flush = false;
+            long region = 0;
+            int passes = 0;
+            try {
+                while (mAlive) {
+                    long seek = mSeekFrame.getAndSet(-1);
+                    long loop = mLoop.get();
+                    long loopStartFrame = (long) loopStartOf(loop) * mSampleRate / 1000;
+                    long loopEndFrame = (long) loopEndOf(loop) * mSampleRate / 1000;
+                    if (seek >= 0) {
+                        frame = seek;
+                        reposition = true;
+                        flush = true;
+                    } else if (loop != region && loop != 0 && frame > loopEndFrame) {
+                        // Decoded past the end of a loop set just now; start over from what
+                        // is being heard.
+                        frame = Math.max(loopStartFrame, Math.min(loopEndFrame - 1,
+                                (long) getPosition() * mSampleRate / 1000));
+                        reposition = true;
+                        flush = true;
+                    }
+                    if (loop != region) {
+                        region = loop;
+                        passes = 0;
+                    }
+                    if (loop != 0 && frame >= loopEndFrame) {
+                        Telemetry.get().loopWraps.increment();
+                        long next = nextRegion(loop, ++passes);
+                        if (next != loop && mLoop.compareAndSet(loop, next)) {
+                            region = next;
+                            passes = 0;
+                            loopStartFrame = (long) loopStartOf(next) * mSampleRate / 1000;
+                            loopEndFrame = (long) loopEndOf(next) * mSampleRate / 1000;
+                        }
+                        frame = loopStartFrame;
+                        reposition = true;
+                    }
+                    if (reposition) {
+                        stream.seekTo(frame);
+                        while (!mRing.mark(frame, flush) && mAlive) {
+                            LockSupport.parkNanos(WAIT_NANOS);
+                        }
+                        if (flush) {
+                            LockSupport.unpark(mRenderThread);
+                        }
+                        reposition = false;
+                        flush = false;
+                    }
+
+                    int frames = stream.next();
+                    if (frames < 0) {
+                        if (loop != 0) {
+                            // A loop end past the last frame wraps here.
+                            frame = Long.MAX_VALUE;
+                        } else if (mEndsQueue) {
+                            endQueuedTrack();
+                        } else {
+                            // Repeats from the top, like a looping MediaPlayer.
+                            frame = 0;
+                            reposition = true;
+                        }
+                        continue;
+                    }
+                    if (frames > 0 && decodedFormatChanged()) {
+                        throw new IOException("Output format changed while decoding");
+                    }
+                    long end = loop != 0 ? loopEndFrame : Long.MAX_VALUE;
+                    int count = (int) Math.max(0,
+                            Math.min(frames, end - stream.getBlockFrame()));
+                    int written = write(stream.getBlock(), count);
+                    frame = stream.getBlockFrame() + written;
+                    if (count < frames) {
+                        frame = Math.max(frame, end);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                Telemetry.get().error(Telemetry.get().decodeErrors, e);
+            } finally {
+                stream.close();
+            }
+        }
+
+        private boolean decodedFormatChanged() {
+            return mDecoder.getSampleRate() != mSampleRate
+                    || mDecoder.getChannelCount() != mChannels;
+        }
+
+        /**
+         * Writes a block into the ring, waiting while it is full.
+         *
+         * @return the frames written, fewer if a seek or release cut in
+         */
+        private int write(short[] block, int frames) {
+            int written = 0;
+            while (written < frames && mAlive && mSeekFrame.get() < 0) {
+                int count = mRing.write(block, written * mChannels, frames - written);
+                written += count;
+                if (count == 0) {
+                    LockSupport.parkNanos(WAIT_NANOS);
+                }
+            }
+            return written;
+        }
+
+        /**
+         * Returns the loop to play after {@code loop} has played {@code passes} times: the next
+         * region once a chain has repeated this one enough, else {@code loop} itself.
+         */
+        private long nextRegion(long loop, int passes) {
+            final LoopRegions chain = mRegions;
+            if (chain == null || passes < mChainRepeats) {
+                return loop;
+            }
+            int index = chain.indexAt(loopStartOf(loop));
+            final LoopRegion region = chain.get((index + 1) % chain.size());
+            final long next = packLoop(region.getStart(), region.getEnd());
+            // Shown when it is heard, after what is buffered ahead of it.
+            mHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    if (mPipeline == Pipeline.this && mLoop.get() == next) {
+                        loopStart = region.getStart();
+                        loopEnd = region.getEnd();
+                        setHeardLoop(loopStart, loopEnd);
+                        notifyLoopRegion(region);
+                    }
+                }
+            }, bufferedMs());
+            return next;
+        }
+
+        /**
+         * Lets the rest of the song play out, then moves the queue on, and waits to be
+         * released or sent back by a seek.
+         */
+        private void endQueuedTrack() {
+            mHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    onTrackEnded(Pipeline.this);
+                }
+            }, bufferedMs());
+            while (mAlive && mSeekFrame.get() < 0) {
+                LockSupport.parkNanos(WAIT_NANOS);
+            }
+        }
+
+        /**
+         * Returns roughly how long the audio buffered ahead of what is heard lasts.
+         */
+        private long bufferedMs() {
+            long frames = mRing.getAvailableFrames() + mSampleRate * RING_MS / 1000 / 4;
+            return (long) (frames * 1000 / mSampleRate / mChain.getSpeed());
+        }
+
+        private void render() {
+            short[] block = new short[BLOCK_FRAMES * mChannels];
+            boolean restarted = false;
+            while (mAlive) {
+                if (!mPlaying) {
+                    if (mRing.skipFlushed()) {
+                        flushTrack();
+                        publish(mRing.getSourceFrame(), 1.0f);
+                        mSeekTarget = -1;
+                    }
+                    LockSupport.park(this);
+                    continue;
+                }
+                int frames = mChain.render(mRing, block, BLOCK_FRAMES);
+                if (mChain.pollFlushed()) {
+                    flushTrack();
+                    restarted = true;
+                }
+                if (frames == 0) {
+                    // Underrun: the decoder is starting up or seeking.
+                    LockSupport.parkNanos(WAIT_NANOS);
+                    continue;
+                }
+                int written = mTrack.write(block, 0, frames * mChannels,
+                        AudioTrack.WRITE_BLOCKING);
+                if (written < 0) {
+                    Telemetry.get().error(Telemetry.get().playbackErrors,
+                            new IOException("AudioTrack write error " + written));
+                    break;
+                }
+                mWritten += written / mChannels;
+                publish((long) mChain.getSourceFrame(), mChain.getSpeed());
+                if (restarted) {
+                    restarted = false;
+                    mSeekTarget = -1;
+                    long seekNanos = mSeekNanos;
+                    if (seekNanos != 0) {
+                        mSeekNanos = 0;
+                        Telemetry.get().seekToAudible.recordSince(seekNanos);
+                    }
+                }
+                if (mAwaitingAudio) {
+                    mAwaitingAudio = false;
+                    Telemetry.get().firstAudioPlayed();
+                }
+            }
+        }
+
+        /**
+         * Drops what the track still holds from before a seek.
+         */
+        private void flushTrack() {
+            synchronized (mTrackLock) {
+                if (mPlaying) {
+                    mTrack.pause();
+                    mTrack.flush();
+                    mTrack.play();
+                } else {
+                    mTrack.flush();
+                }
+                mWritten = mTrack.getPlaybackHeadPosition() & 0xffffffffL;
+            }
+        }
+
+        private void publish(long source, float speed) {
+            mSequence++;
+            mPublishedSource = source;
+            mPublishedWritten = mWritten;
+            mPublishedSpeed = speed;
+            mSequence++;
+        }
+    }
+}
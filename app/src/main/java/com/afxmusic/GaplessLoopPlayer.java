@@ -0,0 +1,450 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioTrack;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Process;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Plays a decoded A/B region over and over through an {@link AudioTrack}.
+ *
+ * The region is held as PCM, so the wrap from B back to A is exact to the sample and needs no
+ * seek. An optional crossfade is baked into the tail of the buffer once, when the region is
+ * built: the last frames of the region fade into the audio just before A, so the loop period
+ * stays exactly B - A.
+ *
+ * Another region can be queued to follow after a number of passes, see {@link #queueRegion}.
+ * The audio thread moves on to it at the wrap, so chained regions follow each other to the
+ * sample as well.
+ *
+ * Speeds other than 1.0 go through our own {@link TimeStretcher} on the audio thread rather than
+ * the platform's playback params, so slowed-down loops sound the same on every device.
+ *
+ * It can also play a whole {@link PcmFile} the same way, the region then being the full track.
+ * Seeking is then just moving the read cursor within the mapped file.
+ */
+final class GaplessLoopPlayer {
+
+    private static final int WRITE_CHUNK_FRAMES = 1024;
+
+    /**
+     * A decoded region, ready to be played or queued.
+     */
+    static final class Region {
+        final ShortBuffer pcm;
+        final int frames;
+        final int channels;
+        final int sampleRate;
+
+        /**
+         * @param pcm         interleaved samples: {@code prerollFrames} before A, then A to B
+         * @param preroll     frames before A available for the crossfade
+         * @param crossfade   frames to crossfade at the wrap, at most {@code preroll}
+         */
+        Region(short[] pcm, int totalFrames, int preroll, int crossfade,
+               int channels, int sampleRate) {
+            this.channels = channels;
+            this.sampleRate = sampleRate;
+            frames = totalFrames - preroll;
+            short[] region = new short[frames * channels];
+            System.arraycopy(pcm, preroll * channels, region, 0, frames * channels);
+
+            crossfade = Math.min(Math.min(crossfade, preroll), frames);
+            for (int i = 0; i < crossfade; i++) {
+                float in = (float) (i + 1) / (crossfade + 1);
+                int tail = (frames - crossfade + i) * channels;
+                int before = (preroll - crossfade + i) * channels;
+                for (int c = 0; c < channels; c++) {
+                    region[tail + c] =
+                            (short) (region[tail + c] * (1 - in) + pcm[before + c] * in);
+                }
+            }
+            this.pcm = ShortBuffer.wrap(region);
+        }
+
+        Region(PcmFile pcm) {
+            this.pcm = pcm.samples();
+            frames = pcm.getFrameCount();
+            channels = pcm.getChannelCount();
+            sampleRate = pcm.getSampleRate();
+        }
+    }
+
+    private final int mChannels;
+    private final int mSampleRate;
+    private final AudioTrack mTrack;
+    private final TimeStretcher mStretcher;
+    private final short[] mChunk;
+    private final short[] mStretched;
+    private final Object mLock = new Object();
+    private final AudioTrack.OnPlaybackPositionUpdateListener mMarkerListener =
+            new AudioTrack.OnPlaybackPositionUpdateListener() {
+                @Override
+                public void onMarkerReached(AudioTrack track) {
+                    Runnable started;
+                    synchronized (mLock) {
+                        if (mRunning) {
+                            catchUp(mTrack.getPlaybackHeadPosition() & 0xffffffffL);
+                        }
+                        started = mHeardRunnable;
+                        mHeardRunnable = null;
+                    }
+                    if (started != null) {
+                        started.run();
+                    }
+                }
+
+                @Override
+                public void onPeriodicNotification(AudioTrack track) {
+                }
+            };
+
+    private Thread mThread;
+    private volatile boolean mRunning;
+    private volatile float mSpeed = 1.0f;
+    private int mCursor;
+    private int mStartFrame;
+    // Region frame and track head position at the last start, speed change or region change.
+    private double mSourceBase;
+    private long mHeadBase;
+    // The region the audio thread reads and the one being heard, which differ from when the
+    // audio thread moves on to a queued region until the track plays its first frame.
+    private Region mRegion;
+    private Region mHeard;
+    // Wraps of mRegion so far, and the region to move on to once there are mNextPasses.
+    private int mPasses;
+    private Region mNext;
+    private int mNextPasses;
+    private Runnable mOnNext;
+    // Track head position where the audio thread moved on to mRegion, or -1 once heard.
+    private long mSwitchHead = -1;
+    private Runnable mSwitchRunnable;
+    private Runnable mHeardRunnable;
+
+    GaplessLoopPlayer(Region region, int audioSessionId) {
+        mChannels = region.channels;
+        mSampleRate = region.sampleRate;
+        mRegion = region;
+        mHeard = region;
+        mTrack = buildTrack(mChannels, mSampleRate, audioSessionId);
+        mStretcher = new TimeStretcher(mSampleRate, mChannels, WRITE_CHUNK_FRAMES);
+        mChunk = new short[WRITE_CHUNK_FRAMES * mChannels];
+        mStretched = new short[WRITE_CHUNK_FRAMES * mChannels];
+    }
+
+    /**
+     * Plays a whole decoded track, repeating it at the end like a looping
+     * {@link android.media.MediaPlayer}.
+     */
+    GaplessLoopPlayer(PcmFile pcm, int audioSessionId) {
+        this(new Region(pcm), audioSessionId);
+    }
+
+    static AudioTrack buildTrack(int channels, int sampleRate, int audioSessionId) {
+        int channelMask = channels == 1
+                ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+        int minBuffer = AudioTrack.getMinBufferSize(
+                sampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT);
+        AudioTrack.Builder builder = new AudioTrack.Builder()
+                .setAudioAttributes(new AudioAttributes.Builder()
+                        .setUsage(AudioAttributes.USAGE_MEDIA)
+                        .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                        .build())
+                .setAudioFormat(new AudioFormat.Builder()
+                        .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                        .setSampleRate(sampleRate)
+                        .setChannelMask(channelMask)
+                        .build())
+                .setBufferSizeInBytes(minBuffer)
+                .setTransferMode(AudioTrack.MODE_STREAM)
+                .setSessionId(audioSessionId);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            builder.setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY);
+        }
+        return builder.build();
+    }
+
+    int getFrameCount() {
+        synchronized (mLock) {
+            return mHeard.frames;
+        }
+    }
+
+    int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * Starts playing {@code frame} frames into the region.
+     */
+    void start(int frame) {
+        synchronized (mLock) {
+            if (mRunning) {
+                return;
+            }
+            mCursor = clamp(frame);
+            mStartFrame = mCursor;
+            mSourceBase = mCursor;
+            mHeadBase = 0;
+            mRunning = true;
+            mTrack.play();
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                    writeLoop();
+                }
+            }, "GaplessLoop");
+            mThread.start();
+        }
+    }
+
+    void pause() {
+        Thread thread;
+        synchronized (mLock) {
+            if (!mRunning) {
+                return;
+            }
+            mStartFrame = getFramePosition();
+            mRunning = false;
+            thread = mThread;
+            mThread = null;
+            mTrack.pause();
+            mTrack.flush();
+        }
+        join(thread);
+        synchronized (mLock) {
+            if (mSwitchHead >= 0) {
+                // The audio thread moved on but the track never played it; go back, and move
+                // on again at the next wrap unless the queued region was taken back meanwhile.
+                if (mSwitchRunnable != null && mNext == null) {
+                    mNext = mRegion;
+                    mNextPasses = 0;
+                    mOnNext = mSwitchRunnable;
+                }
+                mRegion = mHeard;
+                mSwitchHead = -1;
+                mSwitchRunnable = null;
+                mTrack.setNotificationMarkerPosition(0);
+            }
+        }
+    }
+
+    boolean isPlaying() {
+        return mRunning;
+    }
+
+    /**
+     * Moves playback to {@code frame} frames into the region.
+     */
+    void seek(int frame) {
+        boolean wasRunning = mRunning;
+        pause();
+        synchronized (mLock) {
+            mStartFrame = clamp(frame);
+        }
+        if (wasRunning) {
+            start(mStartFrame);
+        }
+    }
+
+    /**
+     * Queues {@code region} to follow the current one once it has wrapped {@code passes} times
+     * in all, counting the wraps before this call, or takes back what was queued if
+     * {@code region} is null. {@code onStarted} runs on {@code handler} when the first frame of
+     * the new region is played; from then on frame positions count from its start.
+     */
+    void queueRegion(Region region, int passes, Runnable onStarted, Handler handler) {
+        synchronized (mLock) {
+            mNext = region;
+            mNextPasses = passes;
+            mOnNext = region == null ? null : onStarted;
+            if (region == null) {
+                mSwitchRunnable = null;
+            } else {
+                mTrack.setPlaybackPositionUpdateListener(mMarkerListener, handler);
+            }
+        }
+    }
+
+    /**
+     * Returns the frame being heard right now, counted from A.
+     */
+    int getFramePosition() {
+        synchronized (mLock) {
+            if (!mRunning) {
+                return mStartFrame;
+            }
+            long head = mTrack.getPlaybackHeadPosition() & 0xffffffffL;
+            catchUp(head);
+            long played = head - mHeadBase;
+            return (int) ((long) (mSourceBase + played * mSpeed) % mHeard.frames);
+        }
+    }
+
+    void setSpeed(float speed) {
+        synchronized (mLock) {
+            if (mRunning) {
+                mSourceBase = getFramePosition();
+                mHeadBase = mTrack.getPlaybackHeadPosition() & 0xffffffffL;
+            }
+            mSpeed = Math.max(TimeStretcher.MIN_SPEED, Math.min(TimeStretcher.MAX_SPEED, speed));
+        }
+    }
+
+    void release() {
+        pause();
+        mTrack.release();
+    }
+
+    private void writeLoop() {
+        Region region;
+        int cursor;
+        synchronized (mLock) {
+            region = mRegion;
+            cursor = mCursor;
+        }
+        // The audio thread's own view of the samples, so its position is never shared.
+        ShortBuffer reader = region.pcm.duplicate();
+        // Frames handed to the track since start, which is where its head will be when the
+        // next frame written is played.
+        long written = 0;
+        float applied = 1.0f;
+        mStretcher.clear();
+        while (mRunning) {
+            float speed = mSpeed;
+            if (speed != applied) {
+                if (applied == 1.0f) {
+                    // Coming from the direct path; the stretcher holds stale audio.
+                    mStretcher.clear();
+                }
+                mStretcher.setSpeed(speed);
+                applied = speed;
+            }
+
+            int frames;
+            if (speed == 1.0f) {
+                frames = read(reader, cursor, Math.min(WRITE_CHUNK_FRAMES, region.frames - cursor));
+                int result = mTrack.write(mChunk, 0, frames * mChannels,
+                        AudioTrack.WRITE_BLOCKING);
+                if (result < 0) {
+                    break;
+                }
+                cursor += result / mChannels;
+                written += result / mChannels;
+                if (cursor >= region.frames) {
+                    cursor = 0;
+                    Region next = wrap(written);
+                    if (next != null) {
+                        region = next;
+                        reader = next.pcm.duplicate();
+                    }
+                }
+            } else {
+                while (mStretcher.getAvailableFrames() < WRITE_CHUNK_FRAMES) {
+                    frames = read(reader, cursor,
+                            Math.min(WRITE_CHUNK_FRAMES, region.frames - cursor));
+                    mStretcher.putSamples(mChunk, 0, frames);
+                    cursor += frames;
+                    if (cursor >= region.frames) {
+                        cursor = 0;
+                        // Off by the stretcher's latency, a few milliseconds.
+                        Region next = wrap(written + mStretcher.getAvailableFrames());
+                        if (next != null) {
+                            region = next;
+                            reader = next.pcm.duplicate();
+                        }
+                    }
+                }
+                frames = mStretcher.receiveSamples(mStretched, 0, WRITE_CHUNK_FRAMES);
+                int result = mTrack.write(mStretched, 0, frames * mChannels,
+                        AudioTrack.WRITE_BLOCKING);
+                if (result < 0) {
+                    break;
+                }
+                written += result / mChannels;
+            }
+        }
+    }
+
+    /**
+     * Counts a wrap of the region on the audio thread, and returns the queued region if it is
+     * time to move on to it, marking {@code head} as where it will be heard.
+     */
+    private Region wrap(long head) {
+        synchronized (mLock) {
+            mPasses++;
+            Region next = mNext;
+            if (next == null || mPasses < mNextPasses || mSwitchHead >= 0) {
+                return null;
+            }
+            mNext = null;
+            mPasses = 0;
+            mRegion = next;
+            mSwitchHead = head;
+            mSwitchRunnable = mOnNext;
+            mOnNext = null;
+            mTrack.setNotificationMarkerPosition((int) head);
+            return next;
+        }
+    }
+
+    /**
+     * Switches frame positions over to the region the audio thread moved on to once the track
+     * has played up to it. Holding mLock.
+     */
+    private void catchUp(long head) {
+        if (mSwitchHead < 0 || head < mSwitchHead) {
+            return;
+        }
+        mHeard = mRegion;
+        mSourceBase = 0;
+        mHeadBase = mSwitchHead;
+        mSwitchHead = -1;
+        if (mSwitchRunnable != null) {
+            mHeardRunnable = mSwitchRunnable;
+            mSwitchRunnable = null;
+        }
+    }
+
+    private int read(ShortBuffer reader, int frame, int frames) {
+        reader.position(frame * mChannels);
+        reader.get(mChunk, 0, frames * mChannels);
+        return frames;
+    }
+
+    private int clamp(int frame) {
+        return frame < 0 || frame >= mHeard.frames ? 0 : frame;
+    }
+
+    private static void join(Thread thread) {
+        if (thread == null) {
+            return;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
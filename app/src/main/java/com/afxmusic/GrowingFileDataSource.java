@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import android.media.MediaDataSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A {@link MediaDataSource} over a file that is still being downloaded, reading through a
+ * {@link GrowingFile}.
+ *
+ * The download writes through {@link #track(OutputStream)}; the player reads through
+ * {@link #readAt}, which blocks until the requested bytes are on disk. This lets
+ * {@link MediaPlayerHolder} prepare and start playback once the first few seconds of a shared
+ * song have arrived while the rest keeps streaming in underneath.
+ */
+public final class GrowingFileDataSource extends MediaDataSource {
+
+    private final GrowingFile mFile;
+
+    /**
+     * @param file       the file the download writes into; must already exist
+     * @param readyBytes how many bytes must be on disk before the player is worth preparing
+     */
+    public GrowingFileDataSource(File file, long readyBytes) throws IOException {
+        mFile = new GrowingFile(file, readyBytes);
+    }
+
+    /**
+     * Sets a callback run on the downloading thread once enough data is on disk to prepare.
+     */
+    public void setOnReadyListener(Runnable onReady) {
+        mFile.setOnReadyListener(onReady);
+    }
+
+    /**
+     * @see GrowingFile#track
+     */
+    public OutputStream track(OutputStream out) {
+        return mFile.track(out);
+    }
+
+    public void onComplete() {
+        mFile.onComplete();
+    }
+
+    public void onFailed() {
+        mFile.onFailed();
+    }
+
+    public boolean isComplete() {
+        return mFile.isComplete();
+    }
+
+    @Override
+    public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        return mFile.readAt(position, buffer, offset, size);
+    }
+
+    @Override
+    public long getSize() {
+        return mFile.getSize();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+}
@@ -16,49 +16,52 @@
 
 package com.afxmusic;
 
-import android.Manifest;
-import android.app.Activity;
-import android.content.Context;
+import android.content.ClipData;
+import android.content.ComponentName;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.pm.PackageManager;
+import android.content.ServiceConnection;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
-import android.support.v4.app.ActivityCompat;
-import android.support.v4.content.ContextCompat;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
-import android.util.Base64;
 import android.view.Gravity;
 import android.view.View;
+import android.view.ViewStub;
+import android.view.ViewTreeObserver;
 import android.widget.Button;
+import android.widget.EditText;
 import android.widget.ImageButton;
 import android.widget.LinearLayout;
 import android.widget.SeekBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import com.chibde.visualizer.LineBarVisualizer;
-
 import android.view.View.OnTouchListener;
 import android.view.MotionEvent;
 
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * Allows playback of a single MP3 file via the UI. It contains a {@link MediaPlayerHolder}
- * which implements the {@link PlayerAdapter} interface that the activity uses to control
- * audio playback.
+ * Allows playback of a single MP3 file via the UI. It binds to the {@link PlaybackService},
+ * whose {@link MediaPlayerHolder} implements the {@link PlayerAdapter} interface that the
+ * activity uses to control audio playback.
  */
 public final class MainActivity extends AppCompatActivity {
 
@@ -66,103 +69,322 @@ public final class MainActivity extends AppCompatActivity {
     public static final String TAG2 = "SHARING";
 
     public static final int UPLOAD_REQUEST_CODE = 1;
+    public static final int QUEUE_REQUEST_CODE = 2;
+
+    public static final int SPEED_STEP_PERCENT = 5;
+
+    // Times each region loops before a chain of regions moves on to the next.
+    public static final int CHAIN_REPEATS = 2;
+
+    // About four seconds of a 128 kbps MP3, enough for the player to prepare and start.
+    public static final long PROGRESSIVE_START_BYTES = 64 * 1024;
 
 
+    // Startup is measured once per process, not again after a rotation.
+    private static boolean sStartupMeasured = false;
+
     private SeekBar mSeekbarAudio;
+    // Set once bound to the PlaybackService; work that needs it before then waits in
+    // mWhenConnected.
+    private PlaybackService mService;
     private PlayerAdapter mPlayerAdapter;
+    private final List<Runnable> mWhenConnected = new ArrayList<>();
+    // The shared song being downloaded, if any.
+    private GetMusicFromIntent mDownload;
+    // Everything that talks to mPlayerAdapter, disabled until there is one.
+    private View[] mPlayerControls;
     private boolean mUserIsSeeking = false;
 
     private Uri uri;
 
 
-    private AlertDialog.Builder mBuilder;
-    private final int MY_PERMISSIONS_REQUEST_RECORD_AUDIO = 1;
-    private Context mContext = this;
-    private Activity mActivity = this;
-    private LineBarVisualizer mBarVisualizer;
-    private boolean enableVisualize = false;
+    // Inflated the first time the visualizer is turned on.
+    private SpectrumView mSpectrumView;
+    private Spectrogram mSpectrogram;
+    private PracticeQueue mQueue;
+    private Button mSetLoopButton;
+    private TextView mLoopStartText;
+    private TextView mLoopEndText;
+    private View mStartMarker;
+    private View mBeforeLoopBlank;
+    private View mBetweenLoopBlank;
+    private View mEndMarker;
+    private View mAfterLoopBlank;
     private boolean isVisualizing = false;
     private TextView curr_speed;
     private TextView curr_time;
     private TextView total_time;
+    // Reused label texts; curr_time is only redrawn when its second changes.
+    private final LabelText mCurrentTimeText = new LabelText("", "/");
+    private final LabelText mTotalTimeText = new LabelText("", "");
+    private final LabelText mSpeedText = new LabelText("Current Speed: ", "%");
+    private final LabelText mLoopStartLabel = new LabelText("Loop Start: ", "");
+    private final LabelText mLoopEndLabel = new LabelText("Loop End: ", "");
+
+    // Position ticks arrive on the clock's thread. The newest one is carried to the main thread
+    // by a single reusable runnable, posted at most once at a time.
+    private final Handler mMainHandler = new Handler();
+    private volatile int mTickPosition;
+    private final AtomicBoolean mTickPosted = new AtomicBoolean();
+    private final Runnable mTickUpdate = new Runnable() {
+        @Override
+        public void run() {
+            mTickPosted.set(false);
+            if (!mUserIsSeeking) {
+                // Not animated: at one tick a second it would allocate an animator per tick
+                // to move the thumb a pixel or two.
+                mSeekbarAudio.setProgress(mTickPosition);
+            }
+        }
+    };
 
     private int loopMode = -1;
+    // Metronome click on every beat, and a bar of count-in before each loop wrap.
+    private final boolean[] mMetronome = {false, false};
+
+    // Content hash of the track being practiced, once known, and its named loop regions.
+    private String mTrackHash;
+    private LoopRegions mLoopRegions = LoopRegions.EMPTY;
+    private WaveformView mWaveformView;
+
+    /**
+     * Downloads a shared song and streams its audio straight into the {@link TrackCache} on a
+     * background thread, so neither the JSON nor the decoded MP3 is ever held in memory. Links
+     * that were opened before are served from the cache without waiting for the network, and
+     * checked for changes afterwards by a {@link RevalidateLink}. The transfer itself, with its
+     * retries and resumes, is up to the {@link ShareLinkResolver}. A server that speaks the
+     * binary payload sends the loop, speed and title along, see {@link #decodeShare}.
+     *
+     * Playback starts progressively: once the first {@link #PROGRESSIVE_START_BYTES} of audio
+     * are on disk the player is handed a {@link GrowingFileDataSource} over the partial file,
+     * and the rest of the song keeps downloading underneath it.
+     *
+     * Only a weak reference to the activity is kept. A rotation hands the download on to the
+     * next activity through the service's {@link PlaybackService.ClientState}, see
+     * {@link #attach}; leaving the app cancels it.
+     */
+    static class GetMusicFromIntent extends AsyncTask<String, GrowingFileDataSource, File> {
+        private final PlaybackService mService;
+        private WeakReference<MainActivity> mActivity;
+        private boolean mStartedPlayback = false;
+        private String mLink;
+        private boolean mFromCache = false;
+        private ShareHeader mHeader;
+        // What arrived while no activity was attached, e.g. during a rotation.
+        private GrowingFileDataSource mReady;
+        private File mResult;
+        private boolean mFinished;
+
+        GetMusicFromIntent(MainActivity activity) {
+            mService = activity.mService;
+            mActivity = new WeakReference<>(activity);
+        }
+
+        /**
+         * Shows the download in {@code activity} from now on, and hands it what arrived while
+         * there was none.
+         */
+        void attach(MainActivity activity) {
+            mActivity = new WeakReference<>(activity);
+            if (mReady != null) {
+                onProgressUpdate(mReady);
+            }
+            if (mFinished) {
+                onPostExecute(mResult);
+            }
+        }
+
+        private MainActivity getActivity() {
+            MainActivity activity = mActivity.get();
+            return activity == null || activity.isDestroyed() ? null : activity;
+        }
 
-    private class GetMusicFromIntent extends AsyncTask<String, Integer, String> {
         @Override
-        protected String doInBackground(String ... params) {
+        protected File doInBackground(String ... params) {
             String decodedData = params[0];
-            String jsonText = "";
+            mLink = decodedData;
+            File cached = mService.getTrackCache().get(decodedData);
+            if (cached != null) {
+                Telemetry.get().cacheHits.increment();
+                mFromCache = true;
+                return cached;
+            }
+            File download = null;
+            GrowingFileDataSource source = null;
+            long downloadStart = System.nanoTime();
             try
             {
-                // Log.d(TAG2, decodedData);
-                URL url = new URL(decodedData);
-                // Log.d(TAG2, url.toString());
-
-                HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
-                int code = urlConnection.getResponseCode();
-                String codetostring = String.valueOf(code);
-                codetostring += ": connection secured!";
-                // Log.d(TAG2, codetostring);
-                BufferedReader in = new BufferedReader(new InputStreamReader(urlConnection.getInputStream()));
-
-                String inputLine;
-                StringBuilder jsonTextBuilder = new StringBuilder();
-                while ((inputLine = in.readLine()) != null) {
-                    jsonTextBuilder.append(inputLine);
+                MessageDigest digest = TrackCache.newDigest();
+                ShareLinkResolver.Body in = mService.getLinkResolver().open(decodedData, false);
+                try {
+                    // hash the decoded mp3 on its way to disk so the cache can key on its content
+                    download = mService.getTrackCache().createTempFile();
+                    final GrowingFileDataSource readySource =
+                            new GrowingFileDataSource(download, PROGRESSIVE_START_BYTES);
+                    source = readySource;
+                    readySource.setOnReadyListener(new Runnable() {
+                        @Override
+                        public void run() {
+                            publishProgress(readySource);
+                        }
+                    });
+                    OutputStream out = source.track(
+                            new DigestOutputStream(new FileOutputStream(download), digest));
+                    try {
+                        mHeader = decodeShare(in, out);
+                    } finally {
+                        out.close();
+                    }
+                } finally {
+                    in.close();
                 }
-                in.close();
-                jsonText = jsonTextBuilder.toString();
-
-
+                if (isCancelled()) {
+                    throw new IOException("Download cancelled");
+                }
+                source.onComplete();
+                Telemetry.get().downloads.increment();
+                Telemetry.get().download.recordSince(downloadStart);
+                String hash = TrackCache.toHex(digest.digest());
+                seedPracticeState(mService.getPracticeStore(), hash, mHeader);
+                return mService.getTrackCache().put(decodedData, download, hash);
             }
             catch (Exception e)
             {
-                // Log.d(TAG2, e.toString());
+                Telemetry.get().error(Telemetry.get().downloadErrors, e);
+                if (source != null) {
+                    source.onFailed();
+                }
+                if (download != null) {
+                    download.delete();
+                }
             }
-            return jsonText;
+            return null;
         }
 
         @Override
-        protected void onPostExecute(String result) {
-            // Log.d(TAG2, result);
-            try {
-                JSONObject obj = new JSONObject(result);
-
-                String music = obj.getString("music");
-
-                // Log.d(TAG2, "music string is this: " + music);
-                String prebase64 = "data:audio/mp3;base64,";
-                String base64stuff = music.substring(prebase64.length());
-                // Log.d(TAG2, "decoded base64 stuff: " + base64stuff);
-
-                byte[] decodedString = Base64.decode(base64stuff, Base64.DEFAULT);
-
-                // create temp file that will hold byte array
-                File tempMp3 = File.createTempFile("kurchina", "mp3", getCacheDir());
-                tempMp3.deleteOnExit();
-                FileOutputStream fos = new FileOutputStream(tempMp3);
-                fos.write(decodedString);
-                fos.close();
+        protected void onProgressUpdate(GrowingFileDataSource... sources) {
+            MainActivity activity = getActivity();
+            if (activity == null) {
+                mReady = sources[0];
+                return;
+            }
+            mReady = null;
+            mService.getTrackAnalyzer().cancel();
+            activity.mWaveformView.setWaveform(null);
+            activity.leaveTrack();
+            activity.mPlayerAdapter.loadMedia(sources[0]);
+            mStartedPlayback = true;
+            activity.loopMode = 0;
+        }
 
-                // In case you run into issues with threading consider new instance like:
-                // MediaPlayer mediaPlayer = new MediaPlayer();
+        @Override
+        protected void onPostExecute(File mp3) {
+            MainActivity activity = getActivity();
+            if (activity == null) {
+                mResult = mp3;
+                mFinished = true;
+                return;
+            }
+            mFinished = false;
+            if (mp3 == null) {
+                return;
+            }
+            activity.analyzeTrack(PcmDecoder.fromFile(mp3), TrackCache.hashOf(mp3));
+            if (mFromCache) {
+                new RevalidateLink(mService.getLinkResolver(), mService.getTrackCache(),
+                        mService.getPracticeStore()).execute(mLink);
+            }
+            if (mHeader != null && !mHeader.getTitle().isEmpty()) {
+                activity.setTitle(mHeader.getTitle());
+            }
+            if (mStartedPlayback) {
+                // Already playing from the partial file; the length is final now.
+                activity.mPlayerAdapter.setDuration();
+                return;
+            }
+            activity.leaveTrack();
+            activity.mPlayerAdapter.loadMedia(mp3);
+            activity.loopMode = 0;
+        }
+    }
 
-                // Tried passing path directly, but kept getting
-                // "Prepare failed.: status=0x1"
-                // so using file descriptor instead
-                FileInputStream fis = new FileInputStream(tempMp3);
+    /**
+     * Asks the server whether a link just played from the cache has changed. If it has, the
+     * new version is downloaded into the {@link TrackCache} for the next time the link is
+     * opened; the song playing now is left alone. Costs a single 304 when nothing changed,
+     * and nothing but a logged error when offline.
+     */
+    private static class RevalidateLink extends AsyncTask<String, Void, Void> {
+        private final ShareLinkResolver mResolver;
+        private final TrackCache mCache;
+        private final PracticeStore mStore;
+
+        RevalidateLink(ShareLinkResolver resolver, TrackCache cache, PracticeStore store) {
+            mResolver = resolver;
+            mCache = cache;
+            mStore = store;
+        }
 
-                mPlayerAdapter.loadMedia(fis.getFD());
-                loopMode = 0;
-                
-            }
-            catch (Exception e)
-            {
-                // Log.d(TAG, e.toString());
+        @Override
+        protected Void doInBackground(String... params) {
+            String link = params[0];
+            File download = null;
+            try {
+                ShareLinkResolver.Body in = mResolver.open(link, true);
+                if (in == null) {
+                    return null;
+                }
+                MessageDigest digest = TrackCache.newDigest();
+                OutputStream out = null;
+                ShareHeader header;
+                try {
+                    download = mCache.createTempFile();
+                    out = new DigestOutputStream(new FileOutputStream(download), digest);
+                    header = decodeShare(in, out);
+                } finally {
+                    if (out != null) {
+                        out.close();
+                    }
+                    in.close();
+                }
+                Telemetry.get().downloads.increment();
+                String hash = TrackCache.toHex(digest.digest());
+                seedPracticeState(mStore, hash, header);
+                mCache.put(link, download, hash);
+            } catch (IOException e) {
+                Telemetry.get().error(Telemetry.get().downloadErrors, e);
+                if (download != null) {
+                    download.delete();
+                }
             }
+            return null;
+        }
+    }
 
+    /**
+     * Writes the audio of a share response to {@code out}, in whichever format the server
+     * chose: the binary payload, copied as is, or JSON with the audio in base64.
+     *
+     * @return the binary payload's header, or null for JSON, which has none
+     */
+    private static ShareHeader decodeShare(ShareLinkResolver.Body in, OutputStream out)
+            throws IOException {
+        if (in.isBinaryPayload()) {
+            SharePayloadDecoder decoder = new SharePayloadDecoder();
+            decoder.decode(in, out);
+            return decoder.getHeader();
+        }
+        new SharedMusicDecoder().decode(in, out);
+        return null;
+    }
 
+    /**
+     * Starts a shared song at the loop and speed it was shared with, unless it has been
+     * practiced here before.
+     */
+    private static void seedPracticeState(PracticeStore store, String hash, ShareHeader header) {
+        if (header != null && store.get(hash) == null) {
+            store.put(hash, header.toPracticeState());
         }
     }
 
@@ -171,115 +393,177 @@ public final class MainActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
 
         setContentView(R.layout.activity_main);
-        checkPermission();
+        measureStartup();
+        initializeUI();
+        initializeSeekbar();
+        // Started as well as bound, so the service outlives this activity across a rotation.
+        Intent service = new Intent(this, PlaybackService.class);
+        startService(service);
+        bindService(service, mConnection, BIND_AUTO_CREATE);
 
         //String action = intent.getAction();
         Uri uri = this.getIntent().getData();
-        if (uri != null) {
+        // After a rotation the shared song is still loaded in the service.
+        if (uri != null && savedInstanceState == null) {
             String encodedData = uri.getEncodedQuery();
             String decodedData = Uri.decode(encodedData);
-            decodedData = decodedData.substring(9);
-            new GetMusicFromIntent().execute(decodedData);
+            final String link = decodedData.substring(9);
+            Telemetry.get().markRequest();
+            whenConnected(new Runnable() {
+                @Override
+                public void run() {
+                    mDownload = new GetMusicFromIntent(MainActivity.this);
+                    mDownload.execute(link);
+                }
+            });
         }
-
-        initializeUI();
-        initializeSeekbar();
-        initializePlaybackController();
         // Log.d(TAG2, "UWU");
         // Log.d(TAG, "onCreate: finished");
-
-        checkPermission();
     }
 
-    private void checkPermission() {
-        if (ContextCompat.checkSelfPermission(this, Manifest.permission.RECORD_AUDIO)
-                != PackageManager.PERMISSION_GRANTED) {
-            askPermission();
-            initializeUI();
-        } else {
-            // Permission has already been granted
-            enableVisualize = true;
-            initializeUI();
-        }
-
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // Log.d(TAG, "onStart: create MediaPlayer");
     }
 
-    public void askPermission() {
-
-        mBuilder = new AlertDialog.Builder(this);
-        mBuilder.setTitle("Music Visualizer");
-        mBuilder.setMessage("Audio Recording is required for our visualizer to function properly. Please allow this permission. Thank you!");
-        mBuilder.setPositiveButton("OK", new DialogInterface.OnClickListener() {
-            @Override
-            public void onClick(DialogInterface dialogInterface, int i) {
-                dialogInterface.dismiss();
-                // Permission is not granted
-                // Here, thisActivity is the current activity
-
-                ActivityCompat.requestPermissions(mActivity,
-                        new String[]{Manifest.permission.RECORD_AUDIO},
-                        MY_PERMISSIONS_REQUEST_RECORD_AUDIO);
-
-                // MY_PERMISSIONS_REQUEST_RECORD_AUDIO is an
-                // app-defined int constant. The callback method gets the
-                // result of the request.
-
+    @Override
+    protected void onStop() {
+        super.onStop();
+        savePracticeState();
+    }
 
+    @Override
+    protected void onDestroy() {
+        if (mService != null) {
+            PlaybackService.ClientState client = mService.getClientState();
+            client.trackHash = mTrackHash;
+            client.queue = mQueue;
+            client.loopRegions = mLoopRegions;
+            client.waveform = mWaveformView.getWaveform();
+            client.spectrogram = mSpectrogram;
+            client.visualizing = isVisualizing;
+            mService.setClient(null);
+            if (mDownload != null && isFinishing()) {
+                mDownload.cancel(true);
+            } else {
+                client.download = mDownload;
             }
-        });
-        mBuilder.create();
-        mBuilder.show();
-
+            // Leaving for good while paused ends the service; playing carries on in it.
+            if (isFinishing() && !mPlayerAdapter.isPlaying()) {
+                stopService(new Intent(this, PlaybackService.class));
+            }
+        }
+        unbindService(mConnection);
+        super.onDestroy();
     }
 
-    @Override
-    public void onRequestPermissionsResult(int requestCode,
-                                           String[] permissions, int[] grantResults) {
-        switch (requestCode) {
-            case MY_PERMISSIONS_REQUEST_RECORD_AUDIO: {
-                // If request is cancelled, the result arrays are empty.
-                if (grantResults.length > 0
-                        && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
-                    // permission was granted, yay! Do the
-                    // contacts-related task you need to do.
-                    enableVisualize = true;
-                    checkTurnOnVisualize();
-                }
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mService = ((PlaybackService.LocalBinder) binder).getService();
+            mPlayerAdapter = mService.getPlayer();
+            setPlayerControlsEnabled(true);
+            restoreClientState();
+            mService.setClient(new PlaybackListener());
+            if (mDownload != null) {
+                mDownload.attach(MainActivity.this);
             }
+            for (Runnable runnable : mWhenConnected) {
+                runnable.run();
+            }
+            mWhenConnected.clear();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            // The service runs in this process, so this never happens.
+        }
+    };
+
+    /**
+     * Runs {@code runnable} once the activity is bound to the {@link PlaybackService}.
+     */
+    private void whenConnected(Runnable runnable) {
+        if (mService != null) {
+            runnable.run();
+        } else {
+            mWhenConnected.add(runnable);
         }
     }
 
-    @Override
-    protected void onStart() {
-        super.onStart();
-        // Log.d(TAG, "onStart: create MediaPlayer");
+    /**
+     * Shows the track that is already loaded in the service, e.g. after a rotation, as it was.
+     */
+    private void restoreClientState() {
+        PlaybackService.ClientState client = mService.getClientState();
+        mTrackHash = client.trackHash;
+        mQueue = client.queue;
+        mLoopRegions = client.loopRegions;
+        mDownload = client.download;
+        client.download = null;
+        mWaveformView.setWaveform(client.waveform);
+        showSpectrogram(client.spectrogram);
+        if (!mPlayerAdapter.isInitialized()) {
+            return;
+        }
+        PlayerState state = mPlayerAdapter.getState();
+        showSpeed(state.getSpeed());
+        showLoop(state.isLooping(), state.getLoopStart(), state.getLoopEnd());
+        if (client.visualizing) {
+            checkTurnOnVisualize();
+        }
     }
 
-    @Override
-    protected void onStop() {
-        super.onStop();
-        if (isChangingConfigurations() && mPlayerAdapter.isPlaying()) {
-            // Log.d(TAG, "onStop: don't release MediaPlayer as screen is rotating & playing");
-        } else {
-            //mPlayerAdapter.release();
-            // Log.d(TAG, "onStop: release MediaPlayer");
+    /**
+     * Records the time from process start to the first frame of this screen as
+     * {@link Telemetry#coldStart}, for a cold start only.
+     */
+    private void measureStartup() {
+        if (sStartupMeasured) {
+            return;
         }
+        sStartupMeasured = true;
+        final View content = findViewById(android.R.id.content);
+        content.getViewTreeObserver().addOnPreDrawListener(
+                new ViewTreeObserver.OnPreDrawListener() {
+                    @Override
+                    public boolean onPreDraw() {
+                        content.getViewTreeObserver().removeOnPreDrawListener(this);
+                        long millis = SystemClock.elapsedRealtime()
+                                - Process.getStartElapsedRealtime();
+                        Telemetry.get().coldStart.record(millis * 1000);
+                        reportFullyDrawn();
+                        return true;
+                    }
+                });
     }
 
     private void initializeUI() {
-        setContentView(R.layout.activity_main);
         curr_speed = (TextView) findViewById(R.id.speed);
         curr_time = (TextView) findViewById(R.id.curr_time);
         total_time = (TextView) findViewById(R.id.total_time);
+        // Long-press the track length for playback telemetry.
+        total_time.setOnLongClickListener(
+                new TelemetryOverlay((TextView) findViewById(R.id.telemetry_overlay)));
+        // And the speed for the metronome, which is what slowed-down practice needs it for.
+        curr_speed.setOnLongClickListener(
+                new View.OnLongClickListener() {
+                    @Override
+                    public boolean onLongClick(View view) {
+                        showMetronomeOptions();
+                        return true;
+                    }
+                });
 
         Toast mToast = Toast.makeText(this, "Welcome to the slow.afx.dance mobile app!", Toast.LENGTH_LONG);
         mToast.setGravity(Gravity.TOP, 0, 150);
         mToast.show();
         final ImageButton mPlayButton = (ImageButton) findViewById(R.id.button_play);
         Button mUploadButton = (Button) findViewById(R.id.button_upload);
-        final Button mSetLoopButton = (Button) findViewById(R.id.button_set_loop);
-        final TextView mLoopStartText = (TextView) findViewById(R.id.text_loop_start);
-        final TextView mLoopEndText = (TextView) findViewById(R.id.text_loop_end);
+        mSetLoopButton = (Button) findViewById(R.id.button_set_loop);
+        mLoopStartText = (TextView) findViewById(R.id.text_loop_start);
+        mLoopEndText = (TextView) findViewById(R.id.text_loop_end);
         ImageButton mIncreaseSpeedButton = (ImageButton) findViewById(R.id.button_increase_speed);
         ImageButton mDecreaseSpeedButton = (ImageButton) findViewById(R.id.button_decrease_speed);
         ImageButton mSkipForwardButton = (ImageButton) findViewById(R.id.button_skip_forward);
@@ -287,29 +571,39 @@ public final class MainActivity extends AppCompatActivity {
         final ImageButton mVisualizeButton = (ImageButton) findViewById(R.id.button_visualize);
         mSeekbarAudio = (SeekBar) findViewById(R.id.seekbar_audio);
 
-        final View mStartMarker = findViewById(R.id.loop_start_marker);
-        final View mBeforeLoopBlank = findViewById(R.id.before_loop_blank);
-        final View mBetweenLoopBlank = findViewById(R.id.in_between_loop_blank);
-        final View mEndMarker = findViewById(R.id.loop_end_marker);
-        final View mAfterLoopBlank = findViewById(R.id.after_loop_blank);
-        mBarVisualizer = (LineBarVisualizer) findViewById(R.id.barvisualizer);
-
-        initializeSeekbar();
-        initializePlaybackController();
+        mStartMarker = findViewById(R.id.loop_start_marker);
+        mBeforeLoopBlank = findViewById(R.id.before_loop_blank);
+        mBetweenLoopBlank = findViewById(R.id.in_between_loop_blank);
+        mEndMarker = findViewById(R.id.loop_end_marker);
+        mAfterLoopBlank = findViewById(R.id.after_loop_blank);
+        mWaveformView = (WaveformView) findViewById(R.id.waveform);
 
         mPlayButton.setOnClickListener(
                 new View.OnClickListener() {
                     @Override
                     public void onClick(View view) {
+                        if (!mPlayerAdapter.isPlaying()) {
+                            Telemetry.get().markRequest();
+                        }
                         int state = mPlayerAdapter.play();
                         if (state == 1) {
                             mPlayButton.setBackgroundResource(R.drawable.play);
+                            savePracticeState();
                         } else if (state == 2) {
                             mPlayButton.setBackgroundResource(R.drawable.pause);
                         }
 
                     }
                 });
+        // A long press switches between the MediaPlayer and AudioTrack engines.
+        mPlayButton.setOnLongClickListener(
+                new View.OnLongClickListener() {
+                    @Override
+                    public boolean onLongClick(View view) {
+                        switchEngine();
+                        return true;
+                    }
+                });
         mUploadButton.setOnClickListener(
                 new View.OnClickListener() {
                     @Override
@@ -319,19 +613,33 @@ public final class MainActivity extends AppCompatActivity {
 
                     }
                 });
+        // A long press picks several songs to practice in a row.
+        mUploadButton.setOnLongClickListener(
+                new View.OnLongClickListener() {
+                    @Override
+                    public boolean onLongClick(View view) {
+                        onPickQueue();
+                        startSeekbar();
+                        return true;
+                    }
+                });
 
         mVisualizeButton.setOnClickListener(
                 new View.OnClickListener() {
                     @Override
                     public void onClick(View view) {
-                        if (!enableVisualize) {
-                            askPermission();
-                        } else {
-                            checkTurnOnVisualize();
-                        }
+                        checkTurnOnVisualize();
                     }
                 }
         );
+        mVisualizeButton.setOnLongClickListener(
+                new View.OnLongClickListener() {
+                    @Override
+                    public boolean onLongClick(View view) {
+                        showEqualizerPresets();
+                        return true;
+                    }
+                });
         mSetLoopButton.setOnClickListener(
                 new View.OnClickListener() {
                     @Override
@@ -340,89 +648,52 @@ public final class MainActivity extends AppCompatActivity {
                             return;
                         }
 
-                        //start text and end text get handled in MediaPlayerHolder
-                        mPlayerAdapter.setLoop(loopMode, mLoopStartText, mLoopEndText);
-
-                        float songLength = (float) mPlayerAdapter.getSongLength();
-                        float loopStart = (float) mPlayerAdapter.getLoopStart();
-                        float loopEnd = (float) mPlayerAdapter.getLoopEnd();
-                        int markerWidth = 10;
-
-                        // Total weight of before, between and end sum to 1
-                        // Individual weights are calculated considering a margin on both sides
-                        // of the seekBar.
-                        // TODO - Different displays may have different margin sizes relative to SeekBar
-                        float margin = 0.04F;   // I think this is percentage of screen width?
-                        float seekBarWeight = 1 - (2 * margin);     // seekBar's % of screen width
-                        float beforeWeight = margin + (loopStart / songLength) * seekBarWeight;
+                        // The labels and markers follow with onLoopChanged.
+                        mPlayerAdapter.setLoop(loopMode);
 
                         loopMode++;     // switch to next mode
 
-                        int mode = loopMode % 3;
-                        if (mode == 0) {
-                            mStartMarker.setVisibility(View.INVISIBLE);
-                            mEndMarker.setVisibility(View.INVISIBLE);
-                            LinearLayout.LayoutParams beforeBlankParams = new LinearLayout.LayoutParams(0, 0, 0);
-                            mBeforeLoopBlank.setLayoutParams(beforeBlankParams);
-
-                            LinearLayout.LayoutParams params = new LinearLayout.LayoutParams(markerWidth, 100, 0);
-                            mStartMarker.setLayoutParams(params);
-
-                            LinearLayout.LayoutParams betweenBlankParams = new LinearLayout.LayoutParams(0, 0, 0);
-                            mBetweenLoopBlank.setLayoutParams(betweenBlankParams);
-
-                            LinearLayout.LayoutParams afterEndBlankParams = new LinearLayout.LayoutParams(0, 0, 0);
-                            mAfterLoopBlank.setLayoutParams(afterEndBlankParams);
-
-                            mSetLoopButton.setText("Set loop start");
-                        } else if (mode == 1) {
-                            LinearLayout.LayoutParams beforeBlankParams = new LinearLayout.LayoutParams(0, 0, beforeWeight);
-                            mBeforeLoopBlank.setLayoutParams(beforeBlankParams);
-                            LinearLayout.LayoutParams params = new LinearLayout.LayoutParams(markerWidth, 100, 0);
-                            mStartMarker.setLayoutParams(params);
-                            LinearLayout.LayoutParams afterEndBlankParams = new LinearLayout.LayoutParams(0, 0, 1 - beforeWeight);
-                            mAfterLoopBlank.setLayoutParams(afterEndBlankParams);
-
-                            mStartMarker.setVisibility(View.VISIBLE);
-                            mSetLoopButton.setText("Set loop end");
-                        } else if (mode == 2) {
-
-                            LinearLayout.LayoutParams beforeBlankParams = new LinearLayout.LayoutParams(0, 0, beforeWeight);
-                            mBeforeLoopBlank.setLayoutParams(beforeBlankParams);
-
-                            LinearLayout.LayoutParams params = new LinearLayout.LayoutParams(markerWidth, 100, 0);
-                            mStartMarker.setLayoutParams(params);
-
-                            float betweenWeight = ((loopEnd - loopStart)/songLength) * seekBarWeight;
-                            LinearLayout.LayoutParams betweenBlankParams = new LinearLayout.LayoutParams(0, 100, betweenWeight);
-                            mBetweenLoopBlank.setLayoutParams(betweenBlankParams);
-
-                            LinearLayout.LayoutParams afterEndBlankParams = new LinearLayout.LayoutParams(0, 0, 1 - beforeWeight - betweenWeight);
-                            mAfterLoopBlank.setLayoutParams(afterEndBlankParams);
-
-                            LinearLayout.LayoutParams endMarkerParams = new LinearLayout.LayoutParams(markerWidth, 100, 0);
-                            mEndMarker.setLayoutParams(endMarkerParams);
-                            mEndMarker.setVisibility(View.VISIBLE);
-
-                            mSetLoopButton.setText("Clear loop");
-                        }
+                        savePracticeState();
                     }
                 });
+        mSetLoopButton.setOnLongClickListener(
+                new View.OnLongClickListener() {
+                    @Override
+                    public boolean onLongClick(View view) {
+                        showLoopRegions();
+                        return true;
+                    }
+                });
+        // A tap changes the speed by SPEED_STEP_PERCENT, a long press fine-tunes by 1%.
         mIncreaseSpeedButton.setOnClickListener(
                 new View.OnClickListener() {
                     @Override
                     public void onClick(View view) {
-                        int new_speed = Math.round(100 * mPlayerAdapter.adjustSpeed(1));
-                        curr_speed.setText("Current Speed: " + ((Integer) new_speed).toString() + "%");
+                        onSpeedChanged(mPlayerAdapter.adjustSpeed(SPEED_STEP_PERCENT));
 
                     }
                 });
+        mIncreaseSpeedButton.setOnLongClickListener(
+                new View.OnLongClickListener() {
+                    @Override
+                    public boolean onLongClick(View view) {
+                        onSpeedChanged(mPlayerAdapter.adjustSpeed(1));
+                        return true;
+                    }
+                });
         mDecreaseSpeedButton.setOnClickListener(
                 new View.OnClickListener() {
                     @Override
                     public void onClick(View view) {
-                        int new_speed = Math.round(100 * mPlayerAdapter.adjustSpeed(-1));
-                        curr_speed.setText("Current Speed: " + ((Integer) new_speed).toString() + "%");
+                        onSpeedChanged(mPlayerAdapter.adjustSpeed(-SPEED_STEP_PERCENT));
+                    }
+                });
+        mDecreaseSpeedButton.setOnLongClickListener(
+                new View.OnLongClickListener() {
+                    @Override
+                    public boolean onLongClick(View view) {
+                        onSpeedChanged(mPlayerAdapter.adjustSpeed(-1));
+                        return true;
                     }
                 });
         mSkipForwardButton.setOnClickListener(
@@ -432,6 +703,14 @@ public final class MainActivity extends AppCompatActivity {
                         mPlayerAdapter.skipForward();
                     }
                 });
+        // In a practice queue, a long press skips a whole song.
+        mSkipForwardButton.setOnLongClickListener(
+                new View.OnLongClickListener() {
+                    @Override
+                    public boolean onLongClick(View view) {
+                        return mPlayerAdapter.nextTrack();
+                    }
+                });
         mSkipBackwardButton.setOnClickListener(
                 new View.OnClickListener() {
                     @Override
@@ -439,52 +718,453 @@ public final class MainActivity extends AppCompatActivity {
                         mPlayerAdapter.skipBackward();
                     }
                 });
+        mSkipBackwardButton.setOnLongClickListener(
+                new View.OnLongClickListener() {
+                    @Override
+                    public boolean onLongClick(View view) {
+                        return mPlayerAdapter.previousTrack();
+                    }
+                });
+        mPlayerControls = new View[] {mPlayButton, mSetLoopButton, mIncreaseSpeedButton,
+                mDecreaseSpeedButton, mSkipForwardButton, mSkipBackwardButton, mVisualizeButton,
+                mSeekbarAudio, curr_speed};
+        setPlayerControlsEnabled(false);
+    }
+
+    private void setPlayerControlsEnabled(boolean enabled) {
+        for (View control : mPlayerControls) {
+            control.setEnabled(enabled);
+        }
+    }
+
+    /**
+     * Lays out the loop markers over the seek bar for a loop from {@code start} to {@code end}:
+     * none if {@code start} is negative, only the start marker if {@code end} is, and both
+     * otherwise. Sets the loop button up for its next mode to match.
+     */
+    private void showLoopMarkers(int start, int end) {
+        int mode = start < 0 ? 0 : end < 0 ? 1 : 2;
+        float songLength = (float) mSeekbarAudio.getMax();
+        float loopStart = (float) start;
+        float loopEnd = (float) end;
+        int markerWidth = 10;
+
+        // Total weight of before, between and end sum to 1
+        // Individual weights are calculated considering a margin on both sides
+        // of the seekBar.
+        // TODO - Different displays may have different margin sizes relative to SeekBar
+        float margin = 0.04F;   // I think this is percentage of screen width?
+        float seekBarWeight = 1 - (2 * margin);     // seekBar's % of screen width
+        float beforeWeight = margin + (loopStart / songLength) * seekBarWeight;
+
+        if (mode == 0) {
+            mStartMarker.setVisibility(View.INVISIBLE);
+            mEndMarker.setVisibility(View.INVISIBLE);
+            LinearLayout.LayoutParams beforeBlankParams = new LinearLayout.LayoutParams(0, 0, 0);
+            mBeforeLoopBlank.setLayoutParams(beforeBlankParams);
+
+            LinearLayout.LayoutParams params = new LinearLayout.LayoutParams(markerWidth, 100, 0);
+            mStartMarker.setLayoutParams(params);
+
+            LinearLayout.LayoutParams betweenBlankParams = new LinearLayout.LayoutParams(0, 0, 0);
+            mBetweenLoopBlank.setLayoutParams(betweenBlankParams);
+
+            LinearLayout.LayoutParams afterEndBlankParams = new LinearLayout.LayoutParams(0, 0, 0);
+            mAfterLoopBlank.setLayoutParams(afterEndBlankParams);
+
+            mSetLoopButton.setText("Set loop start");
+        } else if (mode == 1) {
+            LinearLayout.LayoutParams beforeBlankParams = new LinearLayout.LayoutParams(0, 0, beforeWeight);
+            mBeforeLoopBlank.setLayoutParams(beforeBlankParams);
+            LinearLayout.LayoutParams params = new LinearLayout.LayoutParams(markerWidth, 100, 0);
+            mStartMarker.setLayoutParams(params);
+            LinearLayout.LayoutParams afterEndBlankParams = new LinearLayout.LayoutParams(0, 0, 1 - beforeWeight);
+            mAfterLoopBlank.setLayoutParams(afterEndBlankParams);
+
+            mStartMarker.setVisibility(View.VISIBLE);
+            mSetLoopButton.setText("Set loop end");
+        } else if (mode == 2) {
+
+            LinearLayout.LayoutParams beforeBlankParams = new LinearLayout.LayoutParams(0, 0, beforeWeight);
+            mBeforeLoopBlank.setLayoutParams(beforeBlankParams);
+
+            LinearLayout.LayoutParams params = new LinearLayout.LayoutParams(markerWidth, 100, 0);
+            mStartMarker.setLayoutParams(params);
+
+            float betweenWeight = ((loopEnd - loopStart)/songLength) * seekBarWeight;
+            LinearLayout.LayoutParams betweenBlankParams = new LinearLayout.LayoutParams(0, 100, betweenWeight);
+            mBetweenLoopBlank.setLayoutParams(betweenBlankParams);
+
+            LinearLayout.LayoutParams afterEndBlankParams = new LinearLayout.LayoutParams(0, 0, 1 - beforeWeight - betweenWeight);
+            mAfterLoopBlank.setLayoutParams(afterEndBlankParams);
+
+            LinearLayout.LayoutParams endMarkerParams = new LinearLayout.LayoutParams(markerWidth, 100, 0);
+            mEndMarker.setLayoutParams(endMarkerParams);
+            mEndMarker.setVisibility(View.VISIBLE);
+
+            mSetLoopButton.setText("Clear loop");
+        }
+    }
+
+    /**
+     * Shows a loop the player switched to by itself, e.g. a restored or queued one, and sets the
+     * loop button up to clear it.
+     */
+    private void showLoop(boolean on, int start, int end) {
+        if (on) {
+            mLoopStartLabel.setTime(start);
+            mLoopEndLabel.setTime(end);
+            show(mLoopStartText, mLoopStartLabel);
+            show(mLoopEndText, mLoopEndLabel);
+            loopMode = 2;
+        } else {
+            mLoopStartText.setText("Loop Start: N/A");
+            mLoopEndText.setText("Loop End: N/A");
+            loopMode = 0;
+        }
+        showLoopMarkers(on ? start : -1, on ? end : -1);
+    }
+
+    /**
+     * Lists the track's named loop regions to switch to, with options to save the current loop
+     * as one and to play them all in order.
+     */
+    private void showLoopRegions() {
+        if (mTrackHash == null || !mPlayerAdapter.isInitialized()) {
+            Toast.makeText(this, "Loop regions are available once the song is analyzed",
+                    Toast.LENGTH_SHORT).show();
+            return;
+        }
+        final LoopRegions regions = mLoopRegions;
+        final boolean loopOn = loopMode % 3 == 2;
+        final boolean canChain = regions.size() > 1;
+        List<String> items = new ArrayList<>();
+        for (LoopRegion region : regions.asList()) {
+            items.add(region.toString());
+        }
+        if (loopOn) {
+            items.add("Save current loop...");
+        }
+        if (canChain) {
+            items.add("Play all in order");
+        }
+        LoopRegion current = regions.regionAt(mSeekbarAudio.getProgress());
+        new AlertDialog.Builder(this)
+                .setTitle(current == null ? "Loop regions" : "Now in " + current.getName())
+                .setItems(items.toArray(new String[items.size()]),
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                if (which < regions.size()) {
+                                    mPlayerAdapter.playRegion(regions.get(which));
+                                } else if (loopOn && which == regions.size()) {
+                                    saveLoopRegion();
+                                } else {
+                                    mPlayerAdapter.chainRegions(regions, CHAIN_REPEATS);
+                                }
+                            }
+                        })
+                .show();
+    }
+
+    /**
+     * Asks for a name and saves the current A/B loop under it, replacing a region with the
+     * same name.
+     */
+    private void saveLoopRegion() {
+        final int start = mPlayerAdapter.getLoopStart();
+        final int end = mPlayerAdapter.getLoopEnd();
+        final EditText name = new EditText(this);
+        name.setText("Section " + (mLoopRegions.size() + 1));
+        name.selectAll();
+        new AlertDialog.Builder(this)
+                .setTitle("Name this loop")
+                .setView(name)
+                .setPositiveButton("Save", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        String label = name.getText().toString().trim();
+                        if (label.isEmpty() || end <= start) {
+                            return;
+                        }
+                        mLoopRegions = mLoopRegions.with(new LoopRegion(label, start, end));
+                        savePracticeState();
+                    }
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    /**
+     * Moves playback to the other engine and loads the current song into it again, where it
+     * left off.
+     */
+    private void switchEngine() {
+        if (mService == null) {
+            return;
+        }
+        savePracticeState();
+        boolean audioTrack = mService.getEngine() != PlaybackService.ENGINE_AUDIO_TRACK;
+        mPlayerAdapter = mService.setEngine(audioTrack
+                ? PlaybackService.ENGINE_AUDIO_TRACK : PlaybackService.ENGINE_MEDIA_PLAYER);
+        ImageButton mPlayButton = (ImageButton) findViewById(R.id.button_play);
+        mPlayButton.setBackgroundResource(R.drawable.play);
+        hideVisualizer();
+        loopMode = 0;
+        File file = mTrackHash == null || mQueue != null
+                ? null : mService.getTrackCache().getByHash(mTrackHash);
+        if (file != null) {
+            String hash = mTrackHash;
+            mPlayerAdapter.loadMedia(file);
+            analyzeTrack(PcmDecoder.fromFile(file), hash);
+        } else if (mTrackHash != null) {
+            Toast.makeText(this, "Load the song again to play it here", Toast.LENGTH_SHORT)
+                    .show();
+        }
+        Toast.makeText(this, audioTrack ? "AudioTrack engine" : "MediaPlayer engine",
+                Toast.LENGTH_SHORT).show();
+    }
+
+    /**
+     * Offers a few equalizer settings, which only the AudioTrack engine has.
+     */
+    private void showEqualizerPresets() {
+        final String[] names = {"Flat", "Bass boost", "Vocals", "Bright"};
+        final float[][] gains = {{0, 0, 0}, {6, 0, -1}, {-2, 4, 1}, {-1, 0, 5}};
+        new AlertDialog.Builder(this)
+                .setTitle("Equalizer")
+                .setItems(names, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        float[] gain = gains[which];
+                        if (!mPlayerAdapter.setEqualizer(gain[0], gain[1], gain[2])) {
+                            Toast.makeText(MainActivity.this,
+                                    "The equalizer needs the AudioTrack engine",
+                                    Toast.LENGTH_SHORT).show();
+                        }
+                    }
+                })
+                .show();
+    }
+
+    /**
+     * Offers a click on every beat and a count-in before each loop wrap, which only the
+     * AudioTrack engine has. Both follow the beats found when the track was analyzed.
+     */
+    private void showMetronomeOptions() {
+        final String[] names = {"Click on every beat", "Count in before the loop"};
+        new AlertDialog.Builder(this)
+                .setTitle("Metronome")
+                .setMultiChoiceItems(names, mMetronome,
+                        new DialogInterface.OnMultiChoiceClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which,
+                                                boolean isChecked) {
+                                mMetronome[which] = isChecked;
+                                if (!mPlayerAdapter.setMetronome(mMetronome[0],
+                                        mMetronome[1] ? BeatGrid.BEATS_PER_BAR : 0)) {
+                                    Toast.makeText(MainActivity.this,
+                                            "The metronome needs the AudioTrack engine",
+                                            Toast.LENGTH_SHORT).show();
+                                }
+                            }
+                        })
+                .setPositiveButton(android.R.string.ok, null)
+                .show();
+    }
+
+    private void onSpeedChanged(float speed) {
+        showSpeed(speed);
+        savePracticeState();
+    }
+
+    /**
+     * Saves the current track's speed, position, loop and named loop regions.
+     */
+    private void savePracticeState() {
+        if (mTrackHash == null) {
+            return;
+        }
+        PracticeState state = mService.getPracticeStore().get(mTrackHash);
+        if (state == null) {
+            state = new PracticeState();
+        }
+        state.setRegions(mLoopRegions.asList());
+        mPlayerAdapter.savePracticeState(mService.getPracticeStore(), mTrackHash, state);
+    }
+
+    /**
+     * Saves the practice state of the track being left, before another one is loaded.
+     */
+    private void leaveTrack() {
+        savePracticeState();
+        mTrackHash = null;
+        mLoopRegions = LoopRegions.EMPTY;
+    }
+
+    private void showSpeed(float speed) {
+        mSpeedText.setNumber(Math.round(100 * speed));
+        show(curr_speed, mSpeedText);
+    }
+
+    private static void show(TextView view, LabelText text) {
+        view.setText(text.getChars(), 0, text.length());
     }
 
     private void checkTurnOnVisualize() {
             if (mPlayerAdapter.isInitialized()) {
-                mBarVisualizer = (LineBarVisualizer) findViewById(R.id.barvisualizer);
                 if (!isVisualizing) {
-                    mPlayerAdapter.visualize(mBarVisualizer);
+                    mPlayerAdapter.visualize(getSpectrumView());
                     isVisualizing = true;
                 } else {
-                    mPlayerAdapter.stopVisualize(mBarVisualizer);
-                    isVisualizing = false;
+                    hideVisualizer();
                 }
             }
     }
+
+    private SpectrumView getSpectrumView() {
+        if (mSpectrumView == null) {
+            mSpectrumView = (SpectrumView) ((ViewStub) findViewById(R.id.spectrum_stub)).inflate();
+            mSpectrumView.setSpectrogram(mSpectrogram);
+        }
+        return mSpectrumView;
+    }
+
+    private void hideVisualizer() {
+        if (mSpectrumView != null) {
+            mPlayerAdapter.stopVisualize(mSpectrumView);
+        }
+        isVisualizing = false;
+    }
+
+    private void showSpectrogram(Spectrogram spectrogram) {
+        mSpectrogram = spectrogram;
+        if (mSpectrumView != null) {
+            mSpectrumView.setSpectrogram(spectrogram);
+        }
+    }
     private void onUpload() {
         Intent myIntent = new Intent(Intent.ACTION_GET_CONTENT, null);
         myIntent.setType("audio/*");
         startActivityForResult(myIntent, UPLOAD_REQUEST_CODE);
     }
 
+    private void onPickQueue() {
+        Intent myIntent = new Intent(Intent.ACTION_GET_CONTENT, null);
+        myIntent.setType("audio/*");
+        myIntent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
+        startActivityForResult(myIntent, QUEUE_REQUEST_CODE);
+    }
+
     @Override
-    protected void onActivityResult(int requestCode, int resultCode, Intent intent) {
+    protected void onActivityResult(final int requestCode, final int resultCode,
+                                    final Intent intent) {
+        super.onActivityResult(requestCode, resultCode, intent);
+        // After a rotation while picking, the result arrives before the service is bound.
+        whenConnected(new Runnable() {
+            @Override
+            public void run() {
+                onPicked(requestCode, resultCode, intent);
+            }
+        });
+    }
+
+    private void onPicked(int requestCode, int resultCode, Intent intent) {
         if (requestCode == UPLOAD_REQUEST_CODE) {
             if (resultCode == RESULT_OK) {
                 final ImageButton mPlayButton = (ImageButton) findViewById(R.id.button_play);
                 mPlayButton.setBackgroundResource(R.drawable.play);
-                Uri uploadedMusic = intent.getData();
+                final Uri uploadedMusic = intent.getData();
+                mQueue = null;
+                leaveTrack();
                 mPlayerAdapter.loadMedia(uploadedMusic);
-//                mBarVisualizer = new LineBarVisualizer();
-                mPlayerAdapter.stopVisualize(mBarVisualizer);
-                isVisualizing = false;
+                analyzeTrack(uploadedMusic);
+                hideVisualizer();
 //                checkTurnOnVisualize();
 //                initializeUI();
                 loopMode = 0;
             }
         }
-        super.onActivityResult(requestCode, resultCode, intent);
+        if (requestCode == QUEUE_REQUEST_CODE && resultCode == RESULT_OK) {
+            PracticeQueue queue = new PracticeQueue();
+            ClipData clip = intent.getClipData();
+            if (clip != null) {
+                for (int i = 0; i < clip.getItemCount(); i++) {
+                    queue.add(clip.getItemAt(i).getUri());
+                }
+            } else if (intent.getData() != null) {
+                queue.add(intent.getData());
+            }
+            if (queue.size() > 0) {
+                // The first song's settings and analysis arrive with onTrackChanged.
+                mQueue = queue;
+                leaveTrack();
+                mPlayerAdapter.playQueue(queue, 0);
+                hideVisualizer();
+            }
+        }
+    }
+
+    private void analyzeTrack(final Uri uri) {
+        analyzeTrack(PcmDecoder.fromUri(this, uri), new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return TrackCache.hash(getContentResolver().openInputStream(uri));
+            }
+        });
+    }
 
+    private void analyzeTrack(PcmDecoder.Source source, final String hash) {
+        analyzeTrack(source, new Callable<String>() {
+            @Override
+            public String call() {
+                return hash;
+            }
+        });
     }
 
-    private void initializePlaybackController() {
-        MediaPlayerHolder mMediaPlayerHolder = new MediaPlayerHolder(this);
-        // Log.d(TAG, "initializePlaybackController: created MediaPlayerHolder");
-        mMediaPlayerHolder.setPlaybackInfoListener(new PlaybackListener());
-        mPlayerAdapter = mMediaPlayerHolder;
-        // Log.d(TAG, "initializePlaybackController: MediaPlayerHolder progress callback set");
+    /**
+     * Starts the background pass that draws the waveform behind the seek bar, finds the beats
+     * that loop points snap to and prepares the spectrum for the visualizer.
+     */
+    private void analyzeTrack(PcmDecoder.Source source, Callable<String> hash) {
+        mWaveformView.setWaveform(null);
+        showSpectrogram(null);
+        mPlayerAdapter.setBeatGrid(null);
+        mService.getTrackAnalyzer().analyze(source, hash, new TrackAnalyzer.Listener() {
+            @Override
+            public void onTrackIdentified(String hash) {
+                mTrackHash = hash;
+                // Songs in a practice queue keep the settings of their queue entry.
+                PracticeState state = mService.getPracticeStore().get(hash);
+                if (state != null) {
+                    mLoopRegions = new LoopRegions(state.getRegions());
+                }
+                if (state != null && mQueue == null) {
+                    mPlayerAdapter.restorePracticeState(state);
+                }
+            }
+
+            @Override
+            public void onWaveformReady(WaveformOverview waveform) {
+                mWaveformView.setWaveform(waveform);
+            }
+
+            @Override
+            public void onBeatsReady(BeatGrid beats) {
+                mPlayerAdapter.setBeatGrid(beats);
+            }
+
+            @Override
+            public void onSpectrogramReady(Spectrogram spectrogram) {
+                showSpectrogram(spectrogram);
+            }
+
+            @Override
+            public void onPcmReady(PcmFile pcm) {
+                mPlayerAdapter.setPcm(pcm);
+            }
+        });
     }
 
     private void initializeSeekbar() {
@@ -496,25 +1176,26 @@ public final class MainActivity extends AppCompatActivity {
         });
         mSeekbarAudio.setOnSeekBarChangeListener(
                 new SeekBar.OnSeekBarChangeListener() {
-                    int userSelectedPosition = 0;
-
                     @Override
                     public void onStartTrackingTouch(SeekBar seekBar) {
                         mUserIsSeeking = true;
+                        mPlayerAdapter.startScrub();
                     }
 
                     @Override
                     public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
                         if (fromUser) {
-                            userSelectedPosition = progress;
+                            mPlayerAdapter.scrubTo(progress);
+                        }
+                        if (mCurrentTimeText.setTime(progress)) {
+                            show(curr_time, mCurrentTimeText);
                         }
-                        curr_time.setText("" + MediaPlayerHolder.convertToTime(progress) + "/");
                     }
 
                     @Override
                     public void onStopTrackingTouch(SeekBar seekBar) {
                         mUserIsSeeking = false;
-                        mPlayerAdapter.seekTo(userSelectedPosition);
+                        mPlayerAdapter.endScrub(seekBar.getProgress());
                     }
                 });
     }
@@ -528,20 +1209,83 @@ public final class MainActivity extends AppCompatActivity {
         @Override
         public void onDurationChanged(int duration) {
             mSeekbarAudio.setMax(duration);
-            total_time.setText("" + MediaPlayerHolder.convertToTime(duration));
+            mTotalTimeText.setTime(duration);
+            show(total_time, mTotalTimeText);
             // Log.d(TAG, String.format("setPlaybackDuration: setMax(%d)", duration));
         }
 
         @Override
         public void onPositionChanged(int position) {
-            if (!mUserIsSeeking) {
-                mSeekbarAudio.setProgress(position, true);
-                // Log.d(TAG, String.format("setPlaybackPosition: setProgress(%d)", position));
+            mTickPosition = position;
+            if (!mTickPosted.getAndSet(true)) {
+                mMainHandler.post(mTickUpdate);
+            }
+        }
+
+        @Override
+        public void onLoadProgress(@Load int stage) {
+            if (stage == Load.OPENING || stage == Load.PREPARING) {
+                total_time.setText("Loading...");
+            }
+        }
+
+        @Override
+        public void onLoadFailed(Exception error) {
+            total_time.setText("");
+            Toast.makeText(MainActivity.this, "Couldn't open this song", Toast.LENGTH_SHORT)
+                    .show();
+        }
+
+        @Override
+        public void onTrackChanged(int index) {
+            PracticeQueue.Entry entry = mQueue.get(index);
+            analyzeTrack(entry.getUri());
+            showSpeed(entry.getSpeedPercent() / 100f);
+            showLoop(entry.hasLoop(), entry.getLoopStart(), entry.getLoopEnd());
+            Toast.makeText(MainActivity.this, "Song " + (index + 1) + " of " + mQueue.size(),
+                    Toast.LENGTH_SHORT).show();
+        }
+
+        @Override
+        public void onPracticeStateRestored(PracticeState state) {
+            showSpeed(mPlayerAdapter.adjustSpeed(0));
+            if (state.hasLoop()) {
+                showLoop(true, state.getLoopStart(), state.getLoopEnd());
+            }
+        }
+
+        @Override
+        public void onLoopRegionChanged(LoopRegion region) {
+            showLoop(true, region.getStart(), region.getEnd());
+            Toast.makeText(MainActivity.this, region.getName(), Toast.LENGTH_SHORT).show();
+            savePracticeState();
+        }
+
+        @Override
+        public void onLoopChanged(int start, int end) {
+            showLoopMarkers(start, end);
+            if (start < 0) {
+                mLoopStartText.setText("Loop Start: N/A");
+                mLoopEndText.setText("Loop End: N/A");
+                return;
+            }
+            mLoopStartLabel.setTime(start);
+            show(mLoopStartText, mLoopStartLabel);
+            if (end >= 0) {
+                mLoopEndLabel.setTime(end);
+                show(mLoopEndText, mLoopEndLabel);
             }
         }
 
         @Override
         public void onStateChanged(@State int state) {
+            // Playback may start on its own, e.g. once a shared song has buffered.
+            ImageButton mPlayButton = (ImageButton) findViewById(R.id.button_play);
+            if (state == State.PLAYING) {
+                mPlayButton.setBackgroundResource(R.drawable.pause);
+            } else if (state == State.PAUSED) {
+                mPlayButton.setBackgroundResource(R.drawable.play);
+            }
         }
 
     }
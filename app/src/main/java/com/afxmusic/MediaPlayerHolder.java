@@ -17,85 +17,215 @@
 package com.afxmusic;
 
 import android.content.Context;
+import android.media.MediaDataSource;
 import android.media.MediaPlayer;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.View;
 
-import com.chibde.visualizer.LineBarVisualizer;
+import java.io.File;
 import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
-
-import android.widget.TextView;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Exposes the functionality of the {@link MediaPlayer} and implements the {@link PlayerAdapter}
  * so that {@link MainActivity} can control music playback.
+ *
+ * Confined to the thread of the {@link Looper} it is given: {@link PlaybackEngine} calls every
+ * method but those that only touch a view and the clock there, and its player callbacks and
+ * listener calls arrive there too. The clock's thread only reads the position and the loop,
+ * and hands any change back to that thread.
  */
 public final class MediaPlayerHolder implements PlayerAdapter {
     public static final String TAG = "MediaPlayerHolder";
     public static final String TAG2 = "SHARING";
 
-    public static final int PLAYBACK_POSITION_REFRESH_INTERVAL_MS = 1000;
+    // Longer loops fall back to seeking; gaplessness matters less and the PCM gets big.
+    public static final int MAX_GAPLESS_LOOP_MS = 60000;
+    public static final int DEFAULT_LOOP_CROSSFADE_MS = 10;
+
+    public static final int MIN_SPEED_PERCENT = Math.round(TimeStretcher.MIN_SPEED * 100);
+    public static final int MAX_SPEED_PERCENT = Math.round(TimeStretcher.MAX_SPEED * 100);
+
+    // How often and how long to watch for audio after a start or seek, for telemetry.
+    private static final int AUDIBLE_POLL_MS = 5;
+    private static final int AUDIBLE_TIMEOUT_MS = 3000;
 
     private final Context mContext;
-    private MediaPlayer mMediaPlayer;
+    private final PlaybackClock mClock;
+    private final Handler mHandler;
+    private final ExecutorService mDecodeExecutor = Executors.newSingleThreadExecutor();
+    private final ExecutorService mLoadExecutor = Executors.newSingleThreadExecutor();
+    private final PlaybackClock.PositionSource mPositionSource;
+    private final AudibleProbe mAudibleProbe = new AudibleProbe();
+    private final LoopEnforcer mLoopEnforcer = new LoopEnforcer();
+    // Read by the clock's thread for the position.
+    private volatile MediaPlayer mMediaPlayer;
     private PlaybackInfoListener mPlaybackInfoListener;
-    private ScheduledExecutorService mExecutor;
-    private Runnable mSeekbarPositionUpdateTask;
 
+    // Bumped by every load and cancel; a load whose generation is stale gives up.
+    private volatile int mLoadGeneration = 0;
+    private MediaPlayer mPreparingPlayer;
+    private boolean mLoading;
+
+    // The practice queue being played, if any, and its next song prepared in the background.
+    private PracticeQueue mQueue;
+    private int mQueueIndex;
+    private volatile int mNextGeneration = 0;
+    private MediaPlayer mNextPlayer;
+    private PcmDecoder.Source mNextPcmSource;
+    // Whether mNextPlayer is prepared and set to follow the current player.
+    private boolean mNextAttached;
+
+    // How to decode the current track again, or null if it can't be (still downloading).
+    private PcmDecoder.Source mPcmSource;
+    private volatile GaplessLoopPlayer mLoopPlayer;
+    // The region mLoopPlayer plays, which lags loopStart and loopEnd while switching regions.
+    private volatile int mLoopPlayerStart;
+    private int mLoopPlayerEnd;
+    // The current track decoded to PCM, once available, and the player that plays all of it in
+    // place of the MediaPlayer when PCM playback is on.
+    private PcmFile mPcmFile;
+    private volatile GaplessLoopPlayer mTrackPlayer;
+    private boolean mPcmPlayback;
+    // A seek bar drag in progress, its audio preview, and whether to play on after it.
+    private boolean mScrubbing;
+    private ScrubPreview mScrub;
+    private boolean mScrubResume;
+    // Saved practice state that arrived while the track was still loading.
+    private PracticeState mPendingState;
+    private int mLoopGeneration = 0;
+    // Regions being played one after another, each mChainRepeats times, or null.
+    private volatile LoopRegions mChain;
+    private int mChainRepeats;
+    private int mChainIndex;
+    private int mChainPasses;
+    private int mLoopCrossfadeMs = DEFAULT_LOOP_CROSSFADE_MS;
+    // Beats of the current track once analyzed; loop points snap to them.
+    private BeatGrid mBeatGrid;
+    private int mLoopSnap = BeatGrid.SNAP_BEAT;
+
+    // Kept in whole percent so repeated steps don't accumulate float error.
+    private int speedPercent = 100;
     private float speed = 1.00f;
 
-    private int loopStart = 0;
-    private int loopEnd = 0;
+    // The clock's thread reads these to wrap the loop; only the player's thread writes them.
+    private volatile int loopStart = 0;
+    private volatile int loopEnd = 0;
+    private volatile boolean looping;
     private int songLength = 0;
 
-
     private int[] colors;
-    private int color;
-
-    private boolean looping;
+    // Read on the main thread by visualize.
+    private volatile int color;
 
-    public MediaPlayerHolder(Context context) {
+    public MediaPlayerHolder(Context context, Looper looper) {
         mContext = context.getApplicationContext();
+        mHandler = new Handler(looper);
+        mPositionSource = new PlaybackClock.PositionSource() {
+            @Override
+            public int getCurrentPosition() {
+                GaplessLoopPlayer loopPlayer = mLoopPlayer;
+                if (loopPlayer != null) {
+                    return mLoopPlayerStart
+                            + framesToMs(loopPlayer, loopPlayer.getFramePosition());
+                }
+                GaplessLoopPlayer trackPlayer = mTrackPlayer;
+                if (trackPlayer != null) {
+                    return framesToMs(trackPlayer, trackPlayer.getFramePosition());
+                }
+                MediaPlayer player = mMediaPlayer;
+                return player == null ? -1 : player.getCurrentPosition();
+            }
+        };
+        mClock = new PlaybackClock(mPositionSource);
+        mClock.subscribe(mLoopEnforcer);
     }
 
     /**
-     * Once the {@link MediaPlayer} is released, it can't be used again, and another one has to be
-     * created. In the onStop() method of the {@link MainActivity} the {@link MediaPlayer} is
-     * released. Then in the onStart() of the {@link MainActivity} a new {@link MediaPlayer}
-     * object has to be created. That's why this method is private, and called by load(int) and
-     * not the constructor.
+     * Clears everything that belongs to the current track and releases its player. Each load
+     * gets a fresh {@link MediaPlayer}, prepared off the main thread, that replaces the old one
+     * once it is ready.
      */
     private void initializeMediaPlayer() {
         colors = mContext.getResources().getIntArray(R.array.colors);
         color = colors[new Random().nextInt(colors.length)];
-        if (mMediaPlayer == null) {
-            mMediaPlayer = new MediaPlayer();
-            mMediaPlayer.setLooping(true);
-        } else {
-//            mMediaPlayer.pause();
-            mMediaPlayer.reset();
-//            mMediaPlayer.setAudioSessionId(mMediaPlayer.getAudioSessionId() + 1);
-            mPlaybackInfoListener.onStateChanged(PlaybackInfoListener.State.PAUSED);
-//            mMediaPlayer = new MediaPlayer();
-//            mMediaPlayer.setLooping(true);
+        // A loop belongs to the track it was set on.
+        looping = false;
+        mChain = null;
+        discardScrub();
+        discardGaplessLoop();
+        discardTrackPlayer();
+        mPcmSource = null;
+        mBeatGrid = null;
+        mPendingState = null;
+        mAudibleProbe.cancel();
+        Telemetry.get().loads.increment();
+        cancelPendingLoad();
+        discardNextTrack();
+        if (mMediaPlayer != null) {
+            mMediaPlayer.release();
+            mMediaPlayer = null;
+            mClock.stop(0);
+            if (mPlaybackInfoListener != null) {
+                mPlaybackInfoListener.onStateChanged(PlaybackInfoListener.State.PAUSED);
+            }
         }
     }
 
+    @Override
     public void setPlaybackInfoListener(PlaybackInfoListener listener) {
+        if (mPlaybackInfoListener != null) {
+            mClock.unsubscribe(mPlaybackInfoListener);
+        }
         mPlaybackInfoListener = listener;
+        if (listener != null) {
+            mClock.subscribe(listener);
+        }
+    }
+
+    /**
+     * Returns the clock that drives position updates. Extra {@link PlaybackInfoListener}s can
+     * subscribe to it to get {@link PlaybackInfoListener#onPositionChanged} while playing.
+     */
+    @Override
+    public PlaybackClock getPlaybackClock() {
+        return mClock;
     }
 
     @Override
     public void setDuration() {
         if (mMediaPlayer != null) {
-            songLength = mMediaPlayer.getDuration();
+            int duration = mMediaPlayer.getDuration();
+            if (duration != songLength && mPlaybackInfoListener != null) {
+                mPlaybackInfoListener.onDurationChanged(duration);
+            }
+            songLength = duration;
+            mClock.setDuration(duration);
         }
     }
 
+    /**
+     * Returns the playback speed, 1 for normal.
+     */
+    @Override
+    public float getSpeed() {
+        return speed;
+    }
+
+    @Override
+    public PlayerState getState() {
+        return new PlayerState(isInitialized(), isPlaying(), songLength, looping, loopStart,
+                loopEnd, speedPercent, mQueue == null ? 0 : mQueueIndex,
+                mQueue == null ? 0 : mQueue.size(), false);
+    }
+
     @Override
     public int getLoopStart() {
         return loopStart;
@@ -114,69 +244,544 @@ public final class MediaPlayerHolder implements PlayerAdapter {
     // Implements PlaybackControl.
     @Override
     public void loadMedia(Uri uri) {
+        load(fromUri(uri), false);
+    }
 
+    /**
+     * Loads a file from local storage. The file is opened on the load thread.
+     */
+    @Override
+    public void loadMedia(final File file) {
+        load(new DataSourceSetter() {
+            @Override
+            public PcmDecoder.Source setDataSource(MediaPlayer player) throws IOException {
+                // Tried passing path directly, but kept getting
+                // "Prepare failed.: status=0x1"
+                // so using file descriptor instead
+                FileInputStream in = new FileInputStream(file);
+                try {
+                    player.setDataSource(in.getFD());
+                    // Log.d(TAG2, "mp3 loaded");
+                } finally {
+                    in.close();
+                }
+                return PcmDecoder.fromFile(file);
+            }
+        }, false);
+    }
+
+    /**
+     * Loads from a descriptor, which must stay open for as long as the track is loaded.
+     */
+    public void loadMedia(final FileDescriptor fd) {
+        load(new DataSourceSetter() {
+            @Override
+            public PcmDecoder.Source setDataSource(MediaPlayer player) throws IOException {
+                player.setDataSource(fd);
+                return PcmDecoder.fromFileDescriptor(fd);
+            }
+        }, false);
+    }
+
+    /**
+     * Loads a source that may still be downloading, such as a {@link GrowingFileDataSource}.
+     * The player may have to wait for data to prepare, and playback starts as soon as it is done.
+     */
+    @Override
+    public void loadMedia(final MediaDataSource source) {
+        load(new DataSourceSetter() {
+            @Override
+            public PcmDecoder.Source setDataSource(MediaPlayer player) throws IOException {
+                player.setDataSource(source);
+                // Can't be decoded again until the download is complete.
+                return null;
+            }
+        }, true);
+    }
+
+    /**
+     * Points a new player at a track. Runs on the load thread, so it may block.
+     */
+    private interface DataSourceSetter {
+        /**
+         * @return how to decode the same track again, or null if it can't be
+         */
+        PcmDecoder.Source setDataSource(MediaPlayer player) throws IOException;
+    }
+
+    private DataSourceSetter fromUri(final Uri uri) {
+        return new DataSourceSetter() {
+            @Override
+            public PcmDecoder.Source setDataSource(MediaPlayer player) throws IOException {
+                player.setDataSource(mContext, uri);
+                return PcmDecoder.fromUri(mContext, uri);
+            }
+        };
+    }
+
+    /**
+     * Starts loading a track, superseding any load still in progress. The data source is set on
+     * {@link #mLoadExecutor} and the player prepared with {@link MediaPlayer#prepareAsync}, so
+     * nothing here blocks the caller. Only the newest load ever replaces the current player;
+     * older ones release their player as soon as they notice they are stale.
+     */
+    private void load(final DataSourceSetter setter, final boolean autoPlay) {
+        saveQueueEntry();
         initializeMediaPlayer();
+        mQueue = null;
+        final int generation = mLoadGeneration;
+        // Created here so its callbacks arrive on this thread.
+        final MediaPlayer player = new MediaPlayer();
+        mLoading = true;
+        reportLoad(PlaybackInfoListener.Load.OPENING);
+        mLoadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                PcmDecoder.Source pcmSource = null;
+                Exception error = null;
+                if (generation == mLoadGeneration) {
+                    try {
+                        pcmSource = setter.setDataSource(player);
+                    } catch (IOException | RuntimeException e) {
+                        // Log.d(TAG, "loadMedia error");
+                        // Log.d(TAG, "data source error" + e.toString());
+                        error = e;
+                    }
+                }
+                final PcmDecoder.Source source = pcmSource;
+                final Exception failure = error;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mLoadGeneration) {
+                            player.release();
+                        } else if (failure != null) {
+                            player.release();
+                            failLoad(Telemetry.get().loadErrors, failure);
+                        } else {
+                            prepare(player, source, generation, autoPlay);
+                        }
+                    }
+                });
+            }
+        });
+    }
 
+    private void prepare(final MediaPlayer player, final PcmDecoder.Source source,
+                         final int generation, final boolean autoPlay) {
+        final long prepareStart = System.nanoTime();
+        mPreparingPlayer = player;
+        player.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
+            @Override
+            public void onPrepared(MediaPlayer mp) {
+                if (generation != mLoadGeneration) {
+                    return;
+                }
+                Telemetry.get().prepare.recordSince(prepareStart);
+                mPreparingPlayer = null;
+                mLoading = false;
+                install(player, source);
+                reportLoad(PlaybackInfoListener.Load.READY);
+                if (autoPlay && !isPlaying()) {
+                    play();
+                }
+            }
+        });
+        player.setOnErrorListener(new MediaPlayer.OnErrorListener() {
+            @Override
+            public boolean onError(MediaPlayer mp, int what, int extra) {
+                if (generation == mLoadGeneration) {
+                    mPreparingPlayer = null;
+                    player.release();
+                    failLoad(Telemetry.get().prepareErrors,
+                            new IOException("Prepare failed: " + what + "/" + extra));
+                }
+                return true;
+            }
+        });
+        reportLoad(PlaybackInfoListener.Load.PREPARING);
         try {
-            mMediaPlayer.setDataSource(mContext, uri);
-        } catch (Exception e) {
-            // Log.d(TAG, "loadMedia error");
-            // Log.d(TAG, "data source error" + e.toString());
+            player.prepareAsync();
+        } catch (IllegalStateException e) {
+            mPreparingPlayer = null;
+            player.release();
+            failLoad(Telemetry.get().prepareErrors, e);
         }
+    }
 
-        try {
-            mMediaPlayer.prepare();
-        } catch (Exception e) {
-            // Log.d(TAG, "loadMedia error");
-            // Log.d(TAG, "prepare error" + e.toString());
+    /**
+     * Makes a freshly prepared player the current one.
+     */
+    private void install(MediaPlayer player, PcmDecoder.Source source) {
+        mMediaPlayer = player;
+        mPcmSource = source;
+        player.setLooping(true);
+        player.setOnSeekCompleteListener(mAudibleProbe);
+        player.setOnErrorListener(new MediaPlayer.OnErrorListener() {
+            @Override
+            public boolean onError(MediaPlayer mp, int what, int extra) {
+                Telemetry.get().error(Telemetry.get().playbackErrors,
+                        new IOException("MediaPlayer error " + what + "/" + extra));
+                return false;
+            }
+        });
+        setDuration();
+        initializeProgressCallback();
+        if (mQueue != null) {
+            enterQueueEntry();
+        }
+        if (mPendingState != null) {
+            applyPracticeState(mPendingState);
+            mPendingState = null;
+        }
+    }
 
+    /**
+     * Applies a track's saved speed, loop and position, now or as soon as it has loaded.
+     */
+    @Override
+    public void restorePracticeState(PracticeState state) {
+        if (mMediaPlayer == null) {
+            mPendingState = state;
+        } else {
+            applyPracticeState(state);
         }
+    }
 
-        initializeProgressCallback();
+    private void applyPracticeState(PracticeState state) {
+        adjustSpeed(state.getSpeedPercent() - speedPercent);
+        if (state.hasLoop() && state.getLoopEnd() <= songLength) {
+            mChain = null;
+            switchLoop(state.getLoopStart(), state.getLoopEnd());
+        }
+        if (state.getPosition() > 0 && state.getPosition() < songLength) {
+            seekTo(state.getPosition());
+        }
+        if (mPlaybackInfoListener != null) {
+            mPlaybackInfoListener.onPracticeStateRestored(state);
+        }
     }
 
-    public void loadMedia(FileDescriptor fd) {
+    /**
+     * Adds the current speed, position and loop to {@code state} and saves it. Saves it as it
+     * is while nothing is loaded.
+     */
+    @Override
+    public void savePracticeState(PracticeStore store, String hash, PracticeState state) {
+        capturePracticeState(state);
+        store.put(hash, state);
+    }
 
-        initializeMediaPlayer();
+    private void capturePracticeState(PracticeState state) {
+        if (mMediaPlayer == null) {
+            return;
+        }
+        state.setSpeedPercent(speedPercent);
+        state.setPosition(mClock.getPosition());
+        if (looping) {
+            state.setLoop(loopStart, loopEnd);
+        } else {
+            state.setLoop(0, 0);
+        }
+    }
 
-        try {
-            mMediaPlayer.setDataSource(fd);
-            // Log.d(TAG2, "mp3 loaded");
+    /**
+     * Plays {@code queue} from the song at {@code index}, applying that song's speed and loop.
+     * Songs after it are prepared one at a time while the one before them plays, and follow on
+     * without a gap.
+     */
+    @Override
+    public void playQueue(PracticeQueue queue, int index) {
+        load(fromUri(queue.get(index).getUri()), true);
+        mQueue = queue;
+        mQueueIndex = index;
+    }
 
-        } catch (Exception e) {
-            // Log.d(TAG, "loadMedia error");
-            // Log.d(TAG, "data source error" + e.toString());
+    /**
+     * Moves on to the next song of the queue, immediately if it is already prepared.
+     *
+     * @return false if there is no next song
+     */
+    @Override
+    public boolean nextTrack() {
+        if (mQueue == null || mQueueIndex + 1 >= mQueue.size()) {
+            return false;
         }
+        if (mNextAttached) {
+            boolean playing = isPlaying();
+            mMediaPlayer.setNextMediaPlayer(null);
+            if (mLoopPlayer != null) {
+                mLoopPlayer.pause();
+            }
+            pauseBase();
+            if (playing) {
+                mNextPlayer.start();
+            }
+            advanceQueue();
+        } else {
+            playQueue(mQueue, mQueueIndex + 1);
+        }
+        return true;
+    }
 
-        try {
-            mMediaPlayer.prepare();
-        } catch (Exception e) {
-            // Log.d(TAG, "loadMedia error");
-            // Log.d(TAG, "prepare error" + e.toString());
+    /**
+     * Goes back to the previous song of the queue.
+     *
+     * @return false if there is no previous song
+     */
+    @Override
+    public boolean previousTrack() {
+        if (mQueue == null || mQueueIndex == 0) {
+            return false;
         }
+        playQueue(mQueue, mQueueIndex - 1);
+        return true;
+    }
 
+    /**
+     * Applies the current queue entry's settings to the freshly installed player and starts
+     * preparing the song after it.
+     */
+    private void enterQueueEntry() {
+        PracticeQueue.Entry entry = mQueue.get(mQueueIndex);
+        speedPercent = entry.getSpeedPercent();
+        speed = speedPercent / 100f;
+        boolean playing = mMediaPlayer.isPlaying();
+        if (playing) {
+            mMediaPlayer.setPlaybackParams(mMediaPlayer.getPlaybackParams().setSpeed(speed));
+            mClock.start(mMediaPlayer.getCurrentPosition(), speed);
+        }
+        if (entry.hasLoop()) {
+            loopStart = entry.getLoopStart();
+            loopEnd = entry.getLoopEnd();
+            looping = true;
+            mChain = null;
+            if (!playing) {
+                mMediaPlayer.seekTo(loopStart);
+                mClock.seek(loopStart);
+            }
+            prepareGaplessLoop();
+        }
+        // The last song repeats like a single track; the others end so the next can follow.
+        boolean hasNext = mQueueIndex + 1 < mQueue.size();
+        mMediaPlayer.setLooping(!hasNext);
+        mMediaPlayer.setOnCompletionListener(hasNext ? mTrackCompletion : null);
+        if (hasNext) {
+            prepareNextTrack();
+        }
+        if (mPlaybackInfoListener != null) {
+            mPlaybackInfoListener.onTrackChanged(mQueueIndex);
+        }
+    }
+
+    /**
+     * Remembers the current speed and loop in the queue entry being left.
+     */
+    private void saveQueueEntry() {
+        if (mQueue != null) {
+            PracticeQueue.Entry entry = mQueue.get(mQueueIndex);
+            entry.setSpeedPercent(speedPercent);
+            if (looping) {
+                entry.setLoop(loopStart, loopEnd);
+            } else {
+                entry.setLoop(0, 0);
+            }
+        }
+    }
+
+    private void prepareNextTrack() {
+        final int generation = ++mNextGeneration;
+        final DataSourceSetter setter = fromUri(mQueue.get(mQueueIndex + 1).getUri());
+        final MediaPlayer player = new MediaPlayer();
+        mNextPlayer = player;
+        mLoadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                PcmDecoder.Source pcmSource = null;
+                boolean ready = false;
+                if (generation == mNextGeneration) {
+                    try {
+                        pcmSource = setter.setDataSource(player);
+                        ready = true;
+                    } catch (IOException | RuntimeException e) {
+                        Telemetry.get().error(Telemetry.get().loadErrors, e);
+                    }
+                }
+                final PcmDecoder.Source source = pcmSource;
+                final boolean prepare = ready;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mNextGeneration) {
+                            player.release();
+                        } else if (!prepare) {
+                            discardNextTrack();
+                        } else {
+                            prepareNext(player, source, generation);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void prepareNext(final MediaPlayer player, final PcmDecoder.Source source,
+                             final int generation) {
+        final long prepareStart = System.nanoTime();
+        mNextPcmSource = source;
+        player.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
+            @Override
+            public void onPrepared(MediaPlayer mp) {
+                if (generation != mNextGeneration || mMediaPlayer == null) {
+                    return;
+                }
+                Telemetry.get().prepare.recordSince(prepareStart);
+                mMediaPlayer.setNextMediaPlayer(player);
+                mNextAttached = true;
+            }
+        });
+        player.setOnErrorListener(new MediaPlayer.OnErrorListener() {
+            @Override
+            public boolean onError(MediaPlayer mp, int what, int extra) {
+                if (generation == mNextGeneration) {
+                    Telemetry.get().error(Telemetry.get().prepareErrors,
+                            new IOException("Prepare failed: " + what + "/" + extra));
+                    discardNextTrack();
+                }
+                return true;
+            }
+        });
         try {
-            initializeProgressCallback();
-        } catch (Exception e) {
-            // Log.d(TAG, "progress callback error" + e.toString());
+            player.prepareAsync();
+        } catch (IllegalStateException e) {
+            Telemetry.get().error(Telemetry.get().prepareErrors, e);
+            discardNextTrack();
+        }
+    }
+
+    private void discardNextTrack() {
+        mNextGeneration++;
+        if (mNextAttached && mMediaPlayer != null) {
+            mMediaPlayer.setNextMediaPlayer(null);
+        }
+        if (mNextPlayer != null) {
+            mNextPlayer.release();
+            mNextPlayer = null;
+        }
+        mNextPcmSource = null;
+        mNextAttached = false;
+    }
+
+    /**
+     * Makes the prepared next song current once it has taken over, by itself at the end of
+     * the song before or because the user skipped to it.
+     */
+    private void advanceQueue() {
+        saveQueueEntry();
+        MediaPlayer finished = mMediaPlayer;
+        MediaPlayer next = mNextPlayer;
+        PcmDecoder.Source source = mNextPcmSource;
+        mNextGeneration++;
+        mNextPlayer = null;
+        mNextPcmSource = null;
+        mNextAttached = false;
+
+        looping = false;
+        mChain = null;
+        discardScrub();
+        discardGaplessLoop();
+        discardTrackPlayer();
+        mBeatGrid = null;
+        mAudibleProbe.cancel();
+        Telemetry.get().loads.increment();
+        finished.release();
+        mQueueIndex++;
+        install(next, source);
+        if (!next.isPlaying()) {
+            mClock.stop(next.getCurrentPosition());
+            if (mPlaybackInfoListener != null) {
+                mPlaybackInfoListener.onStateChanged(PlaybackInfoListener.State.PAUSED);
+            }
         }
     }
 
+    private final MediaPlayer.OnCompletionListener mTrackCompletion =
+            new MediaPlayer.OnCompletionListener() {
+        @Override
+        public void onCompletion(MediaPlayer mp) {
+            if (mp != mMediaPlayer || mQueue == null) {
+                return;
+            }
+            if (mNextAttached) {
+                // The next player has already started.
+                advanceQueue();
+            } else {
+                playQueue(mQueue, mQueueIndex + 1);
+            }
+        }
+    };
+
+    /**
+     * Abandons the load in progress, if any. The current track, if there is one, was already
+     * released when the load started.
+     */
+    @Override
+    public void cancelLoad() {
+        if (cancelPendingLoad()) {
+            reportLoad(PlaybackInfoListener.Load.CANCELLED);
+        }
+    }
+
+    private boolean cancelPendingLoad() {
+        mLoadGeneration++;
+        if (mPreparingPlayer != null) {
+            mPreparingPlayer.release();
+            mPreparingPlayer = null;
+        }
+        boolean wasLoading = mLoading;
+        mLoading = false;
+        return wasLoading;
+    }
+
+    private void failLoad(Telemetry.Counter counter, Exception e) {
+        Telemetry.get().error(counter, e);
+        mLoading = false;
+        if (mPlaybackInfoListener != null) {
+            mPlaybackInfoListener.onLoadFailed(e);
+        }
+    }
+
+    private void reportLoad(@PlaybackInfoListener.Load int stage) {
+        if (mPlaybackInfoListener != null) {
+            mPlaybackInfoListener.onLoadProgress(stage);
+        }
+    }
 
     @Override
     public void release() {
+        cancelPendingLoad();
+        discardNextTrack();
+        mAudibleProbe.cancel();
+        discardScrub();
+        discardGaplessLoop();
+        discardTrackPlayer();
+        mClock.stop(0);
         if (mMediaPlayer != null) {
             mMediaPlayer.release();
             mMediaPlayer = null;
         }
+        // The holder lives as long as the PlaybackService; this is the end of it.
+        mClock.release();
+        mLoadExecutor.shutdownNow();
+        mDecodeExecutor.shutdownNow();
     }
 
     @Override
     public boolean isPlaying() {
-        if (mMediaPlayer != null) {
-            return mMediaPlayer.isPlaying();
+        if (mLoopPlayer != null) {
+            return mLoopPlayer.isPlaying();
         }
-        return false;
+        return mMediaPlayer != null && isBasePlaying();
     }
 
     @Override
@@ -187,16 +792,16 @@ public final class MediaPlayerHolder implements PlayerAdapter {
     @Override
     public int play() {
         if (mMediaPlayer != null) {
-            startUpdatingCallbackWithPosition();
-            if(mMediaPlayer.isPlaying()) {
-                mMediaPlayer.pause();
+            if(isPlaying()) {
+                pauseOutput();
+                mAudibleProbe.cancel();
                 if (mPlaybackInfoListener != null) {
                     mPlaybackInfoListener.onStateChanged(PlaybackInfoListener.State.PAUSED);
                 }
                 return 1;
             }else {
-                mMediaPlayer.start();
-                mMediaPlayer.setPlaybackParams(mMediaPlayer.getPlaybackParams().setSpeed(speed));
+                resumeOutput();
+                mAudibleProbe.start(null, mPositionSource.getCurrentPosition(), false);
                 if (mPlaybackInfoListener != null) {
                     mPlaybackInfoListener.onStateChanged(PlaybackInfoListener.State.PLAYING);
                 }
@@ -206,32 +811,96 @@ public final class MediaPlayerHolder implements PlayerAdapter {
         return 3;
     }
 
-    @Override
-    public void visualize(LineBarVisualizer visualizer){
+    private void pauseOutput() {
+        if (mLoopPlayer != null) {
+            mLoopPlayer.pause();
+            mClock.stop(getLoopPlayerPosition());
+        } else {
+            pauseBase();
+            mClock.stop(getBasePosition());
+        }
+    }
 
-        if (visualizer.getVisibility() == View.INVISIBLE){
-            visualizer.setVisibility(View.VISIBLE);
+    private void resumeOutput() {
+        if (mLoopPlayer != null) {
+            mLoopPlayer.setSpeed(speed);
+            mLoopPlayer.start(mLoopPlayer.getFramePosition());
+            mClock.start(getLoopPlayerPosition(), speed);
         } else {
-            //visualizer.setColor(ContextCompat.getColor(mContext, R.color.lightblue)); // define custom number of bars you want in the visualizer between (10 - 256).
-//            visualizer.setColor(ContextCompat.getColor(mContext, R.color.colorPrimaryDark));
-//            visualizer.setColor(ContextCompat.getColor(mContext, color));
-            visualizer.setColor(color);
-//            visualizer.setColor
+            startBase();
+            mClock.start(getBasePosition(), speed);
+        }
+    }
 
-//            visualizer.setDensity(60); // Set your media player to the visualizer.
-            visualizer.setDensity(100);
-            visualizer.setPlayer(mMediaPlayer.getAudioSessionId());
-            visualizer.setVisibility(View.VISIBLE);
+    /**
+     * Starts a drag of the seek bar. Playback holds still until {@link #endScrub}; meanwhile
+     * {@link #scrubTo} plays short grains of the decoded track, once there is one.
+     */
+    @Override
+    public void startScrub() {
+        if (mMediaPlayer == null || mScrubbing) {
+            return;
+        }
+        mScrubbing = true;
+        mScrubResume = isPlaying();
+        if (mScrubResume) {
+            pauseOutput();
+            mAudibleProbe.cancel();
+        }
+        if (mPcmFile != null) {
+            mScrub = new ScrubPreview(mPcmFile, mMediaPlayer.getAudioSessionId());
         }
+    }
 
+    @Override
+    public void scrubTo(int position) {
+        if (mScrub != null) {
+            mScrub.scrubTo(position);
+        }
     }
 
-    public void stopVisualize(LineBarVisualizer visualizer) {
+    /**
+     * Ends a drag with a seek to exactly {@code position}, then carries on playing if it was.
+     */
+    @Override
+    public void endScrub(int position) {
+        if (!mScrubbing) {
+            seekTo(position);
+            return;
+        }
+        boolean resume = mScrubResume;
+        discardScrub();
+        seekTo(position);
+        if (resume && mMediaPlayer != null) {
+            resumeOutput();
+            mAudibleProbe.start(Telemetry.get().seekToAudible,
+                    mPositionSource.getCurrentPosition(),
+                    mLoopPlayer == null && mTrackPlayer == null);
+        }
+    }
+
+    private void discardScrub() {
+        mScrubbing = false;
+        mScrubResume = false;
+        if (mScrub != null) {
+            mScrub.release();
+            mScrub = null;
+        }
+    }
+
+    @Override
+    public void visualize(SpectrumView visualizer) {
+        visualizer.setColor(color);
+        visualizer.setClock(mClock);
+        visualizer.setVisibility(View.VISIBLE);
+    }
+
+    public void stopVisualize(SpectrumView visualizer) {
         visualizer.setVisibility(View.GONE);
     }
 
     @Override
-    public void setLoop(int loopMode, TextView startText, TextView endText) {
+    public void setLoop(int loopMode) {
         /**
          * When loop button is clicked, calls this based on current stage of loop creation.
          *
@@ -245,51 +914,128 @@ public final class MediaPlayerHolder implements PlayerAdapter {
          * https://github.com/afxdance/music/blob/master/audio.js
          */
 
+        if (mMediaPlayer == null) {
+            return;
+        }
         setDuration();
         loopMode = loopMode % 3;    // Keep loopMode within the 3 possible valid inputs
         if (loopMode == -1) {
             return;
         } else if (loopMode == 0) {
-            loopStart = mMediaPlayer.getCurrentPosition();
-            startText.setText("Loop Start: " + convertToTime(loopStart));
+            loopStart = snapToBeat(mPositionSource.getCurrentPosition());
+            notifyLoopChanged(loopStart, -1);
         } else if (loopMode == 1) {
-            loopEnd = mMediaPlayer.getCurrentPosition();
+            loopEnd = snapToBeat(mPositionSource.getCurrentPosition());
             // Log.d(TAG, "Set loop end: " + loopEnd);
             if (loopStart > loopEnd) {  // Flip start/end if loop is inverted
                 int temp = loopStart;
                 loopStart = loopEnd;
                 loopEnd = temp;
             }
-
-            startText.setText("Loop Start: " + convertToTime(loopStart));
-            endText.setText("Loop End: " + convertToTime(loopEnd));
+            if (loopStart == loopEnd && mBeatGrid != null) {  // Both snapped to the same beat
+                loopEnd = mBeatGrid.next(loopStart, mLoopSnap);
+            }
 
             looping = true;
+            notifyLoopChanged(loopStart, loopEnd);
+            mChain = null;
+            prepareGaplessLoop();
+            mLoopEnforcer.schedule();
         } else {    // Clear loop
             looping = false;
+            mChain = null;
+            leaveGaplessLoop();
+            notifyLoopChanged(-1, -1);
+        }
+    }
 
-            startText.setText("Loop Start: N/A");
-            endText.setText("Loop End: N/A");
+    /**
+     * Loops {@code region} in place of the current loop or chain.
+     */
+    @Override
+    public void playRegion(LoopRegion region) {
+        if (mMediaPlayer == null || region.getEnd() > songLength) {
+            return;
         }
+        mChain = null;
+        switchLoop(region.getStart(), region.getEnd());
+        notifyLoopRegion(region);
     }
 
-    public static String convertToTime(int milliseconds) {
-        long minutes = milliseconds / 60000;
-        long seconds = (milliseconds - minutes * 60000) / 1000;
+    /**
+     * Plays {@code regions} one after another in their sorted order, looping each
+     * {@code repeats} times before moving on and going back to the first after the last.
+     * Starts with the region at the current position, if any. Once decoded, the regions play
+     * through one gapless loop player, each queued on it to follow the one before at the exact
+     * frame it ends. Until then, or if a region is too long for it, they are played from the
+     * base, which moves on by seeking, so going from one to the next never re-prepares it.
+     */
+    @Override
+    public void chainRegions(LoopRegions regions, int repeats) {
+        if (mMediaPlayer == null || regions.isEmpty()) {
+            return;
+        }
+        mChain = regions;
+        mChainRepeats = Math.max(1, repeats);
+        int index = regions.indexAt(mClock.getPosition());
+        enterChainRegion(index >= 0 ? index : 0);
+    }
 
-        if (seconds < 10) {
-            return minutes + ":0" + seconds;
-        } else {
-            return minutes + ":" + seconds;
+    private void enterChainRegion(int index) {
+        LoopRegion region = mChain.get(index);
+        mChainIndex = index;
+        mChainPasses = 0;
+        switchLoop(region.getStart(), region.getEnd());
+        notifyLoopRegion(region);
+    }
+
+    /**
+     * Loops {@code start} to {@code end} in place of whatever loop was on. A gapless loop
+     * keeps playing until the new one is ready and then hands over to it directly, so the
+     * switch neither re-prepares the MediaPlayer nor drops back to it in between.
+     */
+    private void switchLoop(int start, int end) {
+        loopStart = start;
+        loopEnd = end;
+        looping = true;
+        if (!canLoopGaplessly(start, end)) {
+            leaveGaplessLoop();
+        }
+        int position = mClock.getPosition();
+        if (mLoopPlayer == null && (position < start || position >= end)) {
+            seekBase(start);
+            mClock.seek(start);
+        }
+        prepareGaplessLoop();
+        mLoopEnforcer.schedule();
+    }
+
+    private void notifyLoopRegion(final LoopRegion region) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mPlaybackInfoListener != null) {
+                    mPlaybackInfoListener.onLoopRegionChanged(region);
+                }
+            }
+        });
+    }
+
+    private void notifyLoopChanged(int start, int end) {
+        if (mPlaybackInfoListener != null) {
+            mPlaybackInfoListener.onLoopChanged(start, end);
         }
     }
 
+    public static String convertToTime(int milliseconds) {
+        return TimeFormat.convertToTime(milliseconds);
+    }
+
     @Override
     public void skipForward() {
         //Skips position forwards 5 seconds.
         if(isInitialized()) {
-            mMediaPlayer.seekTo(mMediaPlayer.getCurrentPosition() + 5000);
-            updateProgressCallbackTask();
+            seekTo(mClock.getPosition() + 5000);
         }
     }
 
@@ -297,22 +1043,47 @@ public final class MediaPlayerHolder implements PlayerAdapter {
     public void skipBackward() {
         //Skips position backwards 5 seconds.
         if(isInitialized()) {
-            mMediaPlayer.seekTo(mMediaPlayer.getCurrentPosition() - 5000);
-            updateProgressCallbackTask();
+            seekTo(Math.max(0, mClock.getPosition() - 5000));
         }
     }
 
+    /**
+     * The MediaPlayer engine has no equalizer.
+     */
+    @Override
+    public boolean setEqualizer(float lowDb, float midDb, float highDb) {
+        return false;
+    }
+
+    /**
+     * Nor a metronome; clicks can't be mixed into a MediaPlayer's output.
+     */
+    @Override
+    public boolean setMetronome(boolean clicks, int countInBeats) {
+        return false;
+    }
 
     @Override
     public float adjustSpeed(int crease) {
-        //Increases playback speed by 5%
-        if((speed > .25 && crease == -1) || (speed < 2.45 && crease == 1)) {
-            speed += crease * 0.05f;
+        //Changes playback speed by crease percent, within what the time-stretcher supports
+        int percent = Math.max(MIN_SPEED_PERCENT,
+                Math.min(MAX_SPEED_PERCENT, speedPercent + crease));
+        if (percent != speedPercent) {
+            speedPercent = percent;
+            speed = percent / 100f;
             if(mMediaPlayer == null){
                 return speed;
             }
-            if (mMediaPlayer.isPlaying()) {
+            if (mLoopPlayer != null) {
+                mLoopPlayer.setSpeed(speed);
+                mClock.setSpeed(speed);
+            } else if (mTrackPlayer != null) {
+                mTrackPlayer.setSpeed(speed);
+                mClock.setSpeed(speed);
+            } else if (mMediaPlayer.isPlaying()) {
                 mMediaPlayer.setPlaybackParams(mMediaPlayer.getPlaybackParams().setSpeed(speed));
+                mClock.setSpeed(speed);
+                mLoopEnforcer.schedule();
             }
         }
         return speed;
@@ -320,56 +1091,565 @@ public final class MediaPlayerHolder implements PlayerAdapter {
 
     @Override
     public void seekTo(int position) {
-        if (mMediaPlayer != null) {
-            mMediaPlayer.seekTo(position);
+        Telemetry.get().seeks.increment();
+        if (mLoopPlayer != null && mChain != null && mChain.indexAt(position) >= 0
+                && mChain.indexAt(position) != mChainIndex) {
+            // A seek into another chained region carries on the chain from there, once that
+            // region's loop player is ready; the clock runs on from the new position meanwhile.
+            enterChainRegion(mChain.indexAt(position));
+            mClock.setLoop(0, 0);
+            mClock.seek(position);
+        } else if (mLoopPlayer != null) {
+            // Seeks stay inside the loop while it plays gaplessly.
+            if (position < mLoopPlayerStart || position >= mLoopPlayerEnd) {
+                position = mLoopPlayerStart;
+            }
+            mLoopPlayer.seek(msToFrames(mLoopPlayer, position - mLoopPlayerStart));
+            mClock.seek(position);
+            if (mLoopPlayer.isPlaying()) {
+                mAudibleProbe.start(Telemetry.get().seekToAudible, position, false);
+            }
+        } else if (mMediaPlayer != null) {
+            if (mChain != null) {
+                // A seek into another chained region carries on the chain from there.
+                int index = mChain.indexAt(position);
+                if (index >= 0 && index != mChainIndex) {
+                    enterChainRegion(index);
+                }
+            }
+            seekBase(position);
+            mClock.seek(position);
+            if (isBasePlaying()) {
+                mAudibleProbe.start(Telemetry.get().seekToAudible, position,
+                        mTrackPlayer == null);
+            }
         }
     }
 
     @Override
-    public double[] getTime(){
-        double[] time = new double[2];
-        time[0] = mMediaPlayer.getCurrentPosition() * Math.floorDiv(1000, 60);
-        time[1] = mMediaPlayer.getCurrentPosition() * Math.round(Math.floorMod(1000, 60));
-        return time;
+    public double[] getTime() {
+        return TimeFormat.minutesAndSeconds(mClock.getPosition());
+    }
+
+    @Override
+    public void setBeatGrid(BeatGrid beats) {
+        mBeatGrid = beats;
     }
 
     /**
-     * Syncs the mMediaPlayer position with mPlaybackProgressCallback via recurring task.
+     * Sets what loop points snap to: {@link BeatGrid#SNAP_NONE}, {@link BeatGrid#SNAP_BEAT} or
+     * {@link BeatGrid#SNAP_BAR}. Has no effect until the track's beats are known.
      */
-    private void startUpdatingCallbackWithPosition() {
-        if (mExecutor == null) {
-            mExecutor = Executors.newSingleThreadScheduledExecutor();
+    public void setLoopSnap(int snap) {
+        mLoopSnap = snap;
+    }
+
+    private int snapToBeat(int position) {
+        return mBeatGrid == null ? position : mBeatGrid.snap(position, mLoopSnap);
+    }
+
+    /**
+     * Sets how long the wrap from loop end to loop start is crossfaded; 0 for a hard cut.
+     * Takes effect the next time a loop is set.
+     */
+    public void setLoopCrossfade(int milliseconds) {
+        mLoopCrossfadeMs = Math.max(0, milliseconds);
+    }
+
+    /**
+     * Decodes the A/B region in the background, or copies it out of the {@link PcmFile} if the
+     * track was decoded already, and once it is ready hands playback over to a
+     * {@link GaplessLoopPlayer}. Until then, or if the region can't be decoded, the
+     * {@link LoopEnforcer} keeps looping by seeking.
+     */
+    private void prepareGaplessLoop() {
+        final PcmDecoder.Source source = mPcmSource;
+        final PcmFile pcmFile = mPcmFile;
+        final int start = loopStart;
+        final int end = loopEnd;
+        if (mLoopPlayer != null) {
+            // Whatever chained region it was to move on to no longer follows.
+            mLoopPlayer.queueRegion(null, 0, null, null);
         }
-        if (mSeekbarPositionUpdateTask == null) {
-            mSeekbarPositionUpdateTask = new Runnable() {
-                @Override
-                public void run() {
-                    updateProgressCallbackTask();
-                    // Looping
-                    if (looping) {
-                        int curr = mMediaPlayer.getCurrentPosition();
-                        if (curr > loopEnd) {
-                            // Log.d(TAG, "Looping back from " + loopEnd + " to " + loopStart);
-                            mMediaPlayer.seekTo(loopStart);
+        if (!canLoopGaplessly(start, end)) {
+            return;
+        }
+        final int generation = ++mLoopGeneration;
+        final int crossfadeMs = mLoopCrossfadeMs;
+        final int sessionId = mMediaPlayer.getAudioSessionId();
+        mDecodeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                GaplessLoopPlayer.Region region = pcmFile != null
+                        ? buildLoopRegion(pcmFile, start, end, crossfadeMs)
+                        : buildLoopRegion(source, start, end, crossfadeMs);
+                final GaplessLoopPlayer player =
+                        region == null ? null : new GaplessLoopPlayer(region, sessionId);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mLoopGeneration || !looping || player == null) {
+                            if (player != null) {
+                                player.release();
+                            }
+                            return;
                         }
+                        enterGaplessLoop(player);
                     }
+                });
+            }
+        });
+    }
+
+    private boolean canLoopGaplessly(int start, int end) {
+        if ((mPcmSource == null && mPcmFile == null) || mMediaPlayer == null) {
+            return false;
+        }
+        LoopRegions chain = mChain;
+        if (chain != null) {
+            // A chain moves from region to region inside the loop player, so all must fit.
+            for (int i = 0; i < chain.size(); i++) {
+                LoopRegion region = chain.get(i);
+                if (region.getEnd() - region.getStart() > MAX_GAPLESS_LOOP_MS) {
+                    return false;
                 }
-            };
+            }
         }
-        mExecutor.scheduleAtFixedRate(
-                mSeekbarPositionUpdateTask,
-                0,
-                PLAYBACK_POSITION_REFRESH_INTERVAL_MS,
-                TimeUnit.MILLISECONDS
-        );
+        return end > start && end - start <= MAX_GAPLESS_LOOP_MS;
     }
 
-    private void updateProgressCallbackTask() {
-        if (mMediaPlayer != null) { //&& mMediaPlayer.isPlaying()) {
-            int currentPosition = mMediaPlayer.getCurrentPosition();
+    /**
+     * Decodes the chained region after the current one in the background and queues it on
+     * {@code player} to follow once the current one has played {@link #mChainRepeats} times.
+     * When it starts playing the chain moves on to it and queues the next one in turn.
+     */
+    private void queueNextChainRegion(final GaplessLoopPlayer player) {
+        final LoopRegions chain = mChain;
+        final int index = (mChainIndex + 1) % chain.size();
+        final LoopRegion next = chain.get(index);
+        final PcmDecoder.Source source = mPcmSource;
+        final PcmFile pcmFile = mPcmFile;
+        final int generation = mLoopGeneration;
+        final int crossfadeMs = mLoopCrossfadeMs;
+        final int repeats = mChainRepeats;
+        mDecodeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final GaplessLoopPlayer.Region region = pcmFile != null
+                        ? buildLoopRegion(pcmFile, next.getStart(), next.getEnd(), crossfadeMs)
+                        : buildLoopRegion(source, next.getStart(), next.getEnd(), crossfadeMs);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (region == null || generation != mLoopGeneration
+                                || player != mLoopPlayer || chain != mChain) {
+                            return;
+                        }
+                        player.queueRegion(region, repeats, new Runnable() {
+                            @Override
+                            public void run() {
+                                if (generation == mLoopGeneration && player == mLoopPlayer
+                                        && chain == mChain) {
+                                    enterQueuedChainRegion(index);
+                                }
+                            }
+                        }, mHandler);
+                    }
+                });
+            }
+        });
+    }
 
-            if (mPlaybackInfoListener != null) {
-                mPlaybackInfoListener.onPositionChanged(currentPosition);
+    /**
+     * Catches up with the loop player, which has just started playing chained region
+     * {@code index} by itself.
+     */
+    private void enterQueuedChainRegion(int index) {
+        LoopRegion region = mChain.get(index);
+        mChainIndex = index;
+        mChainPasses = 0;
+        loopStart = region.getStart();
+        loopEnd = region.getEnd();
+        mLoopPlayerStart = loopStart;
+        mLoopPlayerEnd = loopEnd;
+        mClock.setLoop(loopStart, loopEnd);
+        if (mLoopPlayer.isPlaying()) {
+            mClock.start(getLoopPlayerPosition(), speed);
+        }
+        notifyLoopRegion(region);
+        queueNextChainRegion(mLoopPlayer);
+    }
+
+    private static GaplessLoopPlayer.Region buildLoopRegion(PcmDecoder.Source source, int start,
+                                                            int end, int crossfadeMs) {
+        int prerollStart = Math.max(0, start - crossfadeMs);
+        final PcmDecoder decoder = new PcmDecoder(source);
+        long decodeStart = System.nanoTime();
+        try {
+            decoder.readFormat();
+            final int channels = decoder.getChannelCount();
+            long expectedFrames = (long) (end - prerollStart) * decoder.getSampleRate() / 1000;
+            final short[][] pcm = {new short[(int) (expectedFrames + 1024) * channels]};
+            final int[] frames = {0};
+            decoder.decode(prerollStart * 1000L, end * 1000L, new PcmSink() {
+                @Override
+                public boolean onPcm(short[] block, int blockFrames) {
+                    int needed = (frames[0] + blockFrames) * channels;
+                    if (needed > pcm[0].length) {
+                        short[] grown = new short[Math.max(needed, pcm[0].length * 2)];
+                        System.arraycopy(pcm[0], 0, grown, 0, frames[0] * channels);
+                        pcm[0] = grown;
+                    }
+                    System.arraycopy(block, 0, pcm[0], frames[0] * channels,
+                            blockFrames * channels);
+                    frames[0] += blockFrames;
+                    return true;
+                }
+            });
+            int rate = decoder.getSampleRate();
+            int preroll = Math.min(frames[0], (start - prerollStart) * rate / 1000);
+            int crossfade = crossfadeMs * rate / 1000;
+            if (frames[0] <= preroll) {
+                return null;
+            }
+            Telemetry.get().loopDecode.recordSince(decodeStart);
+            return new GaplessLoopPlayer.Region(pcm[0], frames[0], preroll, crossfade,
+                    channels, rate);
+        } catch (IOException | RuntimeException e) {
+            Telemetry.get().error(Telemetry.get().decodeErrors, e);
+            return null;
+        }
+    }
+
+    private static GaplessLoopPlayer.Region buildLoopRegion(PcmFile pcmFile, int start, int end,
+                                                            int crossfadeMs) {
+        long copyStart = System.nanoTime();
+        int rate = pcmFile.getSampleRate();
+        int channels = pcmFile.getChannelCount();
+        int prerollFrame = (int) ((long) Math.max(0, start - crossfadeMs) * rate / 1000);
+        int startFrame = (int) ((long) start * rate / 1000);
+        int endFrame = (int) ((long) end * rate / 1000);
+        short[] pcm = new short[(endFrame - prerollFrame) * channels];
+        int frames = pcmFile.read(prerollFrame, pcm, endFrame - prerollFrame);
+        int preroll = Math.min(frames, startFrame - prerollFrame);
+        if (frames <= preroll) {
+            return null;
+        }
+        Telemetry.get().loopDecode.recordSince(copyStart);
+        return new GaplessLoopPlayer.Region(pcm, frames, preroll, crossfadeMs * rate / 1000,
+                channels, rate);
+    }
+
+    /**
+     * Hands playback over to {@code player} for the current loop, from the base or straight
+     * from the loop player of the region being switched away from.
+     */
+    private void enterGaplessLoop(GaplessLoopPlayer player) {
+        int position = mClock.getPosition();
+        if (position < loopStart || position >= loopEnd) {
+            position = loopStart;
+        }
+        GaplessLoopPlayer previous = mLoopPlayer;
+        boolean playing = previous != null ? previous.isPlaying() : isBasePlaying();
+        player.seek(msToFrames(player, position - loopStart));
+        if (playing) {
+            player.setSpeed(speed);
+            player.start(player.getFramePosition());
+        }
+        if (previous != null) {
+            previous.release();
+        } else if (playing) {
+            pauseBase();
+        }
+        mLoopPlayerStart = loopStart;
+        mLoopPlayerEnd = loopEnd;
+        mLoopPlayer = player;
+        mClock.setLoop(loopStart, loopEnd);
+        if (playing) {
+            mClock.start(getLoopPlayerPosition(), speed);
+        } else {
+            mClock.seek(getLoopPlayerPosition());
+        }
+        if (mChain != null) {
+            queueNextChainRegion(player);
+        }
+    }
+
+    /**
+     * Hands playback back to the whole track where the loop left off.
+     */
+    private void leaveGaplessLoop() {
+        mLoopGeneration++;
+        GaplessLoopPlayer player = mLoopPlayer;
+        mClock.setLoop(0, 0);
+        if (player == null) {
+            return;
+        }
+        int position = getLoopPlayerPosition();
+        boolean playing = player.isPlaying();
+        player.release();
+        mLoopPlayer = null;
+        seekBase(position);
+        if (playing) {
+            startBase();
+            mClock.start(position, speed);
+        } else {
+            mClock.seek(position);
+        }
+    }
+
+    private void discardGaplessLoop() {
+        mLoopGeneration++;
+        mClock.setLoop(0, 0);
+        if (mLoopPlayer != null) {
+            mLoopPlayer.release();
+            mLoopPlayer = null;
+        }
+    }
+
+    /**
+     * Turns playing the whole track from its {@link PcmFile} on or off. While on, seeks, loops
+     * and speed changes work on the decoded PCM as soon as it is available, instead of going
+     * through the MediaPlayer.
+     */
+    public void setPcmPlayback(boolean enabled) {
+        mPcmPlayback = enabled;
+        if (enabled) {
+            enterTrackPlayer();
+        } else {
+            leaveTrackPlayer();
+        }
+    }
+
+    /**
+     * Hands over the current track decoded to PCM, or null to drop it.
+     */
+    @Override
+    public void setPcm(PcmFile pcm) {
+        // A decode of another track, e.g. one finished just after switching songs, is ignored.
+        if (pcm != null && Math.abs(pcm.getDurationMs() - songLength) > 1000) {
+            return;
+        }
+        mPcmFile = pcm;
+        if (pcm == null) {
+            leaveTrackPlayer();
+        } else if (mPcmPlayback) {
+            enterTrackPlayer();
+        }
+    }
+
+    /**
+     * Moves playback of the whole track from the MediaPlayer to a {@link GaplessLoopPlayer} over
+     * the {@link PcmFile}, where it is playing or paused. Not done for a queued song with
+     * another after it, since that one follows through the MediaPlayer.
+     */
+    private void enterTrackPlayer() {
+        if (mTrackPlayer != null || mPcmFile == null || mMediaPlayer == null
+                || (mQueue != null && mQueueIndex + 1 < mQueue.size())) {
+            return;
+        }
+        GaplessLoopPlayer player = new GaplessLoopPlayer(mPcmFile,
+                mMediaPlayer.getAudioSessionId());
+        boolean playing = mLoopPlayer == null && mMediaPlayer.isPlaying();
+        int position = mMediaPlayer.getCurrentPosition();
+        if (playing) {
+            mMediaPlayer.pause();
+        }
+        player.seek(msToFrames(player, position));
+        mTrackPlayer = player;
+        if (playing) {
+            startBase();
+            mClock.start(getBasePosition(), speed);
+        }
+    }
+
+    /**
+     * Moves playback of the whole track back to the MediaPlayer.
+     */
+    private void leaveTrackPlayer() {
+        GaplessLoopPlayer player = mTrackPlayer;
+        if (player == null) {
+            return;
+        }
+        boolean playing = player.isPlaying();
+        int position = getBasePosition();
+        player.release();
+        mTrackPlayer = null;
+        seekBase(position);
+        if (playing) {
+            startBase();
+            mClock.start(position, speed);
+        }
+    }
+
+    private void discardTrackPlayer() {
+        mPcmFile = null;
+        if (mTrackPlayer != null) {
+            mTrackPlayer.release();
+            mTrackPlayer = null;
+        }
+    }
+
+    // The "base" is what plays the track outside a gapless loop: the PCM track player once it
+    // took over, else the MediaPlayer.
+
+    private boolean isBasePlaying() {
+        return mTrackPlayer != null ? mTrackPlayer.isPlaying() : mMediaPlayer.isPlaying();
+    }
+
+    private int getBasePosition() {
+        if (mTrackPlayer != null) {
+            return framesToMs(mTrackPlayer, mTrackPlayer.getFramePosition());
+        }
+        return mMediaPlayer.getCurrentPosition();
+    }
+
+    private void startBase() {
+        if (mTrackPlayer != null) {
+            mTrackPlayer.setSpeed(speed);
+            mTrackPlayer.start(mTrackPlayer.getFramePosition());
+        } else {
+            mMediaPlayer.start();
+            mMediaPlayer.setPlaybackParams(mMediaPlayer.getPlaybackParams().setSpeed(speed));
+        }
+    }
+
+    private void pauseBase() {
+        if (mTrackPlayer != null) {
+            mTrackPlayer.pause();
+        } else {
+            mMediaPlayer.pause();
+        }
+    }
+
+    private void seekBase(int position) {
+        if (mTrackPlayer != null) {
+            mTrackPlayer.seek(msToFrames(mTrackPlayer, position));
+        } else {
+            mMediaPlayer.seekTo(position);
+        }
+    }
+
+    private int getLoopPlayerPosition() {
+        return mLoopPlayerStart + framesToMs(mLoopPlayer, mLoopPlayer.getFramePosition());
+    }
+
+    private static int framesToMs(GaplessLoopPlayer player, int frames) {
+        return (int) ((long) frames * 1000 / player.getSampleRate());
+    }
+
+    private static int msToFrames(GaplessLoopPlayer player, int milliseconds) {
+        return (int) ((long) milliseconds * player.getSampleRate() / 1000);
+    }
+
+    /**
+     * Seeks back to the loop start when the clock reaches the loop end, for loops that aren't
+     * played gaplessly, or on to the next region of a chain. The wrap is timed from the clock's
+     * projection to the loop end rather than waiting for a tick, which could be up to a tick
+     * late; every position the clock reports (each tick, start, seek and stop) re-times it, and
+     * so must a speed or loop change, which report none. Timing and wrap run on the player's
+     * thread, which owns the loop.
+     */
+    private final class LoopEnforcer extends PlaybackInfoListener implements Runnable {
+        private final AtomicBoolean mSchedulePending = new AtomicBoolean();
+        private final Runnable mSchedule = new Runnable() {
+            @Override
+            public void run() {
+                mSchedulePending.set(false);
+                schedule();
+            }
+        };
+
+        @Override
+        void onPositionChanged(int position) {
+            if (looping && mLoopPlayer == null && mMediaPlayer != null
+                    && !mSchedulePending.getAndSet(true)) {
+                mHandler.post(mSchedule);
+            }
+        }
+
+        /**
+         * Times the wrap for when the clock reaches the loop end, or cancels it if the loop
+         * isn't the base's to enforce or the clock is stopped.
+         */
+        void schedule() {
+            mHandler.removeCallbacks(this);
+            if (!looping || mLoopPlayer != null || mMediaPlayer == null || !mClock.isRunning()) {
+                return;
+            }
+            int remaining = loopEnd - mClock.getPosition();
+            mHandler.postDelayed(this, Math.max(0, (long) (remaining / speed)));
+        }
+
+        @Override
+        public void run() {
+            int position = mClock.getPosition();
+            if (!looping || mLoopPlayer != null || mMediaPlayer == null) {
+                return;
+            }
+            if (position < loopEnd) {
+                // Ran a little early; the delay was rounded down.
+                schedule();
+                return;
+            }
+            Telemetry.get().loopWraps.increment();
+            Telemetry.get().loopOvershoot.record((position - loopEnd) * 1000L);
+            LoopRegions chain = mChain;
+            if (chain != null && ++mChainPasses >= mChainRepeats) {
+                mChainIndex = (mChainIndex + 1) % chain.size();
+                mChainPasses = 0;
+                LoopRegion region = chain.get(mChainIndex);
+                loopStart = region.getStart();
+                loopEnd = region.getEnd();
+                notifyLoopRegion(region);
+            }
+            seekBase(loopStart);
+            mClock.seek(loopStart);
+            schedule();
+        }
+    }
+
+    /**
+     * Watches the player after a start or seek until its position moves past where it started,
+     * which is as close to "audible" as the player lets us see, and records how long that took.
+     * Runs on the player's thread; one probe at a time, a newer start replaces an older one.
+     */
+    private final class AudibleProbe implements Runnable, MediaPlayer.OnSeekCompleteListener {
+        // Null for a start, which records time to first audio instead.
+        private LatencyHistogram mHistogram;
+        private long mStartNanos;
+        private int mFrom;
+        private boolean mSeekPending;
+
+        void start(LatencyHistogram histogram, int from, boolean seekPending) {
+            mHandler.removeCallbacks(this);
+            mHistogram = histogram;
+            mStartNanos = System.nanoTime();
+            mFrom = from;
+            mSeekPending = seekPending;
+            mHandler.postDelayed(this, AUDIBLE_POLL_MS);
+        }
+
+        void cancel() {
+            mHandler.removeCallbacks(this);
+        }
+
+        @Override
+        public void onSeekComplete(MediaPlayer mp) {
+            mSeekPending = false;
+        }
+
+        @Override
+        public void run() {
+            if (System.nanoTime() - mStartNanos > AUDIBLE_TIMEOUT_MS * 1000000L) {
+                return;
+            }
+            if (mSeekPending || mPositionSource.getCurrentPosition() <= mFrom) {
+                mHandler.postDelayed(this, AUDIBLE_POLL_MS);
+            } else if (mHistogram != null) {
+                mHistogram.recordSince(mStartNanos);
+            } else {
+                Telemetry.get().firstAudioPlayed();
             }
         }
     }
@@ -377,6 +1657,7 @@ public final class MediaPlayerHolder implements PlayerAdapter {
     @Override
     public void initializeProgressCallback() {
         final int duration = mMediaPlayer.getDuration();
+        mClock.setDuration(duration);
         if (mPlaybackInfoListener != null) {
             mPlaybackInfoListener.onDurationChanged(duration);
             mPlaybackInfoListener.onPositionChanged(0);
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.net.Uri;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Decodes the audio track of a file to interleaved 16-bit PCM with {@link MediaExtractor} and
+ * {@link MediaCodec}, handing it to a {@link PcmSink} block by block so callers never need the
+ * whole track in memory.
+ *
+ * Decoding is blocking; run it on a background thread.
+ */
+public final class PcmDecoder {
+
+    private static final long TIMEOUT_US = 10000;
+
+    /**
+     * Points a fresh {@link MediaExtractor} at the track to decode. Kept by
+     * {@link MediaPlayerHolder} so the current track can be decoded again later.
+     */
+    public interface Source {
+        void setDataSource(MediaExtractor extractor) throws IOException;
+    }
+
+    public static Source fromUri(final Context context, final Uri uri) {
+        final Context appContext = context.getApplicationContext();
+        return new Source() {
+            @Override
+            public void setDataSource(MediaExtractor extractor) throws IOException {
+                extractor.setDataSource(appContext, uri, null);
+            }
+        };
+    }
+
+    public static Source fromFile(final File file) {
+        return new Source() {
+            @Override
+            public void setDataSource(MediaExtractor extractor) throws IOException {
+                extractor.setDataSource(file.getPath());
+            }
+        };
+    }
+
+    public static Source fromFileDescriptor(final FileDescriptor fd) {
+        return new Source() {
+            @Override
+            public void setDataSource(MediaExtractor extractor) throws IOException {
+                extractor.setDataSource(fd);
+            }
+        };
+    }
+
+    private final Source mSource;
+    private short[] mPcm = new short[0];
+    private int mSampleRate;
+    private int mChannelCount;
+    private long mDurationUs;
+
+    public PcmDecoder(Source source) {
+        mSource = source;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    public long getDurationUs() {
+        return mDurationUs;
+    }
+
+    /**
+     * Reads the track's format without decoding anything.
+     */
+    public void readFormat() throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            selectAudioTrack(extractor);
+        } finally {
+            extractor.release();
+        }
+    }
+
+    /**
+     * Decodes the whole track.
+     */
+    public void decode(PcmSink sink) throws IOException {
+        decode(0, Long.MAX_VALUE, sink);
+    }
+
+    /**
+     * Decodes the frames between {@code startUs} (inclusive) and {@code endUs} (exclusive).
+     * The first block starts exactly at {@code startUs}, cut by presentation time, so repeated
+     * decodes of the same region line up sample for sample.
+     */
+    public void decode(long startUs, long endUs, PcmSink sink) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        try {
+            MediaFormat format = selectAudioTrack(extractor);
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+            if (startUs > 0) {
+                extractor.seekTo(startUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            }
+
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            boolean inputDone = false;
+            while (true) {
+                if (!inputDone) {
+                    int inIndex = codec.dequeueInputBuffer(TIMEOUT_US);
+                    if (inIndex >= 0) {
+                        ByteBuffer input = codec.getInputBuffer(inIndex);
+                        int size = extractor.readSampleData(input, 0);
+                        if (size < 0 || extractor.getSampleTime() >= endUs) {
+                            codec.queueInputBuffer(inIndex, 0, 0, 0,
+                                    MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            codec.queueInputBuffer(inIndex, 0, size, extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+
+                int outIndex = codec.dequeueOutputBuffer(info, TIMEOUT_US);
+                if (outIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    MediaFormat output = codec.getOutputFormat();
+                    mSampleRate = output.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                    mChannelCount = output.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                } else if (outIndex >= 0) {
+                    boolean keepGoing = true;
+                    if (info.size > 0) {
+                        ByteBuffer output = codec.getOutputBuffer(outIndex);
+                        output.position(info.offset);
+                        output.limit(info.offset + info.size);
+                        keepGoing = deliver(output, info.presentationTimeUs, startUs, endUs, sink);
+                    }
+                    codec.releaseOutputBuffer(outIndex, false);
+                    if (!keepGoing || (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        break;
+                    }
+                }
+            }
+        } finally {
+            if (codec != null) {
+                codec.stop();
+                codec.release();
+            }
+            extractor.release();
+        }
+    }
+
+    /**
+     * Opens the track for decoding block by block with {@link Stream#next}, e.g. to play it as
+     * it decodes.
+     */
+    public Stream openStream() throws IOException {
+        return new Stream();
+    }
+
+    /**
+     * Decodes a track block by block, seeking on request. One extractor and codec stay open
+     * for the whole track, so it also works on a source that can be read only once at a time,
+     * such as a download still in progress. Not thread safe.
+     */
+    public final class Stream implements Closeable {
+        private final MediaExtractor mExtractor = new MediaExtractor();
+        private final MediaCodec mCodec;
+        private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+        private boolean mInputDone;
+        private boolean mEnded;
+        // Frames before this are dropped, so a seek lands exactly on its frame.
+        private long mSkipTo;
+        private short[] mBlock = new short[0];
+        private long mBlockFrame;
+
+        private Stream() throws IOException {
+            MediaCodec codec = null;
+            try {
+                MediaFormat format = selectAudioTrack(mExtractor);
+                codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+                codec.configure(format, null, null, 0);
+                codec.start();
+            } catch (IOException | RuntimeException e) {
+                if (codec != null) {
+                    codec.release();
+                }
+                mExtractor.release();
+                throw e;
+            }
+            mCodec = codec;
+        }
+
+        /**
+         * Makes the next block start exactly at {@code frame}.
+         */
+        public void seekTo(long frame) {
+            mExtractor.seekTo(frame * 1000000L / mSampleRate,
+                    MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            mCodec.flush();
+            mInputDone = false;
+            mEnded = false;
+            mSkipTo = frame;
+        }
+
+        /**
+         * Feeds the codec and takes at most one decoded block, waiting briefly for it.
+         *
+         * @return the frames in {@link #getBlock}, 0 if no block was ready yet, or -1 at the
+         *         end of the track
+         */
+        public int next() {
+            if (mEnded) {
+                return -1;
+            }
+            if (!mInputDone) {
+                int inIndex = mCodec.dequeueInputBuffer(TIMEOUT_US);
+                if (inIndex >= 0) {
+                    ByteBuffer input = mCodec.getInputBuffer(inIndex);
+                    int size = mExtractor.readSampleData(input, 0);
+                    if (size < 0) {
+                        mCodec.queueInputBuffer(inIndex, 0, 0, 0,
+                                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        mInputDone = true;
+                    } else {
+                        mCodec.queueInputBuffer(inIndex, 0, size, mExtractor.getSampleTime(), 0);
+                        mExtractor.advance();
+                    }
+                }
+            }
+
+            int outIndex = mCodec.dequeueOutputBuffer(mInfo, TIMEOUT_US);
+            if (outIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                MediaFormat output = mCodec.getOutputFormat();
+                mSampleRate = output.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                mChannelCount = output.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                return 0;
+            } else if (outIndex < 0) {
+                return 0;
+            }
+            int frames = 0;
+            if (mInfo.size > 0) {
+                ByteBuffer output = mCodec.getOutputBuffer(outIndex);
+                output.position(mInfo.offset);
+                output.limit(mInfo.offset + mInfo.size);
+                ShortBuffer samples = output.order(ByteOrder.nativeOrder()).asShortBuffer();
+                int channels = mChannelCount;
+                long frame = Math.round(mInfo.presentationTimeUs * mSampleRate / 1000000.0);
+                int skip = (int) Math.max(0, Math.min(samples.remaining() / channels,
+                        mSkipTo - frame));
+                frames = samples.remaining() / channels - skip;
+                if (mBlock.length < frames * channels) {
+                    mBlock = new short[frames * channels];
+                }
+                samples.position(skip * channels);
+                samples.get(mBlock, 0, frames * channels);
+                mBlockFrame = frame + skip;
+            }
+            mCodec.releaseOutputBuffer(outIndex, false);
+            if ((mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                mEnded = true;
+                return frames > 0 ? frames : -1;
+            }
+            return frames;
+        }
+
+        /**
+         * Returns the samples of the last block, interleaved. Reused by every block.
+         */
+        public short[] getBlock() {
+            return mBlock;
+        }
+
+        /**
+         * Returns the track frame the last block starts at.
+         */
+        public long getBlockFrame() {
+            return mBlockFrame;
+        }
+
+        @Override
+        public void close() {
+            mCodec.stop();
+            mCodec.release();
+            mExtractor.release();
+        }
+    }
+
+    private boolean deliver(ByteBuffer output, long ptsUs, long startUs, long endUs,
+                            PcmSink sink) {
+        ShortBuffer samples = output.order(ByteOrder.nativeOrder()).asShortBuffer();
+        int channels = mChannelCount;
+        int frames = samples.remaining() / channels;
+
+        // Trim to [startUs, endUs) by presentation time.
+        int skip = 0;
+        if (ptsUs < startUs) {
+            skip = (int) Math.min(frames, (startUs - ptsUs) * mSampleRate / 1000000L);
+        }
+        int keep = frames - skip;
+        long blockEndUs = ptsUs + frames * 1000000L / mSampleRate;
+        if (blockEndUs > endUs) {
+            keep -= (int) Math.min(keep, (blockEndUs - endUs) * mSampleRate / 1000000L);
+        }
+        if (keep <= 0) {
+            return ptsUs < endUs;
+        }
+
+        if (mPcm.length < keep * channels) {
+            mPcm = new short[keep * channels];
+        }
+        samples.position(skip * channels);
+        samples.get(mPcm, 0, keep * channels);
+        return sink.onPcm(mPcm, keep) && blockEndUs < endUs;
+    }
+
+    private MediaFormat selectAudioTrack(MediaExtractor extractor) throws IOException {
+        mSource.setDataSource(extractor);
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat format = extractor.getTrackFormat(i);
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("audio/")) {
+                extractor.selectTrack(i);
+                mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                mChannelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                mDurationUs = format.containsKey(MediaFormat.KEY_DURATION)
+                        ? format.getLong(MediaFormat.KEY_DURATION) : 0;
+                return format;
+            }
+        }
+        throw new IOException("No audio track found");
+    }
+}
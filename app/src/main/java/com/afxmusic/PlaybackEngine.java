@@ -0,0 +1,646 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import android.media.MediaDataSource;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a player on a thread of its own, so nothing the activity or the media session does ever
+ * waits for the native player. Every call that changes the player becomes a command for a
+ * {@link CommandRunner}, carried out in order on the engine's thread, which is the only thread
+ * that ever changes the player. Calls that read the player answer from the last
+ * {@link PlayerState} that thread published, so the loop, speed and play state they see always
+ * belong together.
+ *
+ * Calls that return what a command will do, such as {@link #play()} and
+ * {@link #adjustSpeed(int)}, work it out from that state and the commands of theirs still
+ * waiting to run, so quick taps in a row each get their own answer. The listener hears what
+ * actually happened, on the main thread, after the state has been published.
+ */
+final class PlaybackEngine implements PlayerAdapter {
+
+    // Far more than anyone can press in the time the engine takes for one command.
+    static final int QUEUE_CAPACITY = 64;
+
+    private abstract static class Command extends CommandRunner.Command<PlayerAdapter> {
+    }
+
+    private final PlayerAdapter mPlayer;
+    private final PlaybackClock mClock;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final CommandRunner<PlayerAdapter> mCommands;
+    private volatile PlayerState mState = PlayerState.EMPTY;
+    private volatile PlaybackInfoListener mListener;
+    private volatile boolean mReleased;
+
+    // Play toggles and speed changes submitted but not yet in a published state, and what
+    // they come to. Only ever changed on the thread calling play() and adjustSpeed(), and
+    // counted down by publish().
+    private final AtomicInteger mPendingPlays = new AtomicInteger();
+    private final AtomicInteger mPendingSpeeds = new AtomicInteger();
+    private boolean mIntendedPlaying;
+    private int mIntendedSpeedPercent;
+    // Those of them run since the last publish; only touched on the engine's thread.
+    private int mRanPlays;
+    private int mRanSpeeds;
+
+    private final CommandRunner.Latest<PlayerAdapter> mScrub =
+            new CommandRunner.Latest<PlayerAdapter>() {
+                @Override
+                void run(PlayerAdapter player, int position) {
+                    player.scrubTo(position);
+                }
+            };
+
+    /**
+     * @param player a player confined to {@code looper}'s thread, which from now on belongs to
+     *     this engine
+     */
+    PlaybackEngine(PlayerAdapter player, Looper looper) {
+        mPlayer = player;
+        mClock = player.getPlaybackClock();
+        final Handler handler = new Handler(looper);
+        mCommands = new CommandRunner<>(player, QUEUE_CAPACITY, new Executor() {
+            @Override
+            public void execute(Runnable drain) {
+                handler.post(drain);
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                publish();
+            }
+        });
+        submit(new Command() {
+            @Override
+            void run(PlayerAdapter player) {
+                player.setPlaybackInfoListener(mForwarder);
+            }
+        });
+    }
+
+    /**
+     * Queues {@code command} for the engine's thread. Safe from any thread.
+     */
+    private void submit(Command command) {
+        if (!mReleased) {
+            mCommands.submit(command);
+        }
+    }
+
+    /**
+     * Takes a new snapshot of the player. Only ever called on the engine's thread.
+     */
+    private void publish() {
+        mState = mPlayer.getState();
+        // Only now that the state shows them do they stop counting as pending.
+        if (mRanPlays > 0) {
+            mPendingPlays.addAndGet(-mRanPlays);
+            mRanPlays = 0;
+        }
+        if (mRanSpeeds > 0) {
+            mPendingSpeeds.addAndGet(-mRanSpeeds);
+            mRanSpeeds = 0;
+        }
+    }
+
+    // Called by the player on the engine's thread, except for positions from the clock's.
+    private final PlaybackInfoListener mForwarder = new PlaybackInfoListener() {
+        @Override
+        void onPositionChanged(int position) {
+            PlaybackInfoListener listener = mListener;
+            if (listener != null) {
+                listener.onPositionChanged(position);
+            }
+        }
+
+        @Override
+        void onDurationChanged(final int duration) {
+            publish();
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    PlaybackInfoListener listener = mListener;
+                    if (listener != null) {
+                        listener.onDurationChanged(duration);
+                    }
+                }
+            });
+        }
+
+        @Override
+        void onStateChanged(@State final int state) {
+            publish();
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    PlaybackInfoListener listener = mListener;
+                    if (listener != null) {
+                        listener.onStateChanged(state);
+                    }
+                }
+            });
+        }
+
+        @Override
+        void onLoadProgress(@Load final int stage) {
+            publish();
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    PlaybackInfoListener listener = mListener;
+                    if (listener != null) {
+                        listener.onLoadProgress(stage);
+                    }
+                }
+            });
+        }
+
+        @Override
+        void onLoadFailed(final Exception error) {
+            publish();
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    PlaybackInfoListener listener = mListener;
+                    if (listener != null) {
+                        listener.onLoadFailed(error);
+                    }
+                }
+            });
+        }
+
+        @Override
+        void onTrackChanged(final int index) {
+            publish();
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    PlaybackInfoListener listener = mListener;
+                    if (listener != null) {
+                        listener.onTrackChanged(index);
+                    }
+                }
+            });
+        }
+
+        @Override
+        void onPracticeStateRestored(final PracticeState state) {
+            publish();
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    PlaybackInfoListener listener = mListener;
+                    if (listener != null) {
+                        listener.onPracticeStateRestored(state);
+                    }
+                }
+            });
+        }
+
+        @Override
+        void onLoopRegionChanged(final LoopRegion region) {
+            publish();
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    PlaybackInfoListener listener = mListener;
+                    if (listener != null) {
+                        listener.onLoopRegionChanged(region);
+                    }
+                }
+            });
+        }
+
+        @Override
+        void onLoopChanged(final int start, final int end) {
+            publish();
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    PlaybackInfoListener listener = mListener;
+                    if (listener != null) {
+                        listener.onLoopChanged(start, end);
+                    }
+                }
+            });
+        }
+    };
+
+    @Override
+    public void setPlaybackInfoListener(PlaybackInfoListener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public PlaybackClock getPlaybackClock() {
+        return mClock;
+    }
+
+    @Override
+    public PlayerState getState() {
+        return mState;
+    }
+
+    @Override
+    public float getSpeed() {
+        return mState.getSpeed();
+    }
+
+    @Override
+    public int getLoopStart() {
+        return mState.getLoopStart();
+    }
+
+    @Override
+    public int getLoopEnd() {
+        return mState.getLoopEnd();
+    }
+
+    @Override
+    public int getSongLength() {
+        return mState.getSongLength();
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return mState.isPlaying();
+    }
+
+    @Override
+    public boolean isInitialized() {
+        return mState.isInitialized();
+    }
+
+    @Override
+    public void loadMedia(final Uri uri) {
+        submit(new Command() {
+            @Override
+            void run(PlayerAdapter player) {
+                player.loadMedia(uri);
+            }
+        });
+    }
+
+    @Override
+    public void loadMedia(final FileDescriptor fd) {
+        submit(new Command() {
+            @Override
+            void run(PlayerAdapter player) {
+                player.loadMedia(fd);
+            }
+        });
+    }
+
+    @Override
+    public void loadMedia(final File file) {
+        submit(new Command() {
+            @Override
+            void run(PlayerAdapter player) {
+                player.loadMedia(file);
+            }
+        });
+    }
+
+    @Override
+    public void loadMedia(final MediaDataSource source) {
+        submit(new Command() {
+            @Override
+            void run(PlayerAdapter player) {
+                player.loadMedia(source);
+            }
+        });
+    }
+
+    @Override
+    public void cancelLoad() {
+        submit(new Command() {
+            @Override
+            void run(PlayerAdapter player) {
+                player.cancelLoad();
+            }
+        });
+    }
+
+    @Override
+    public void playQueue(final PracticeQueue queue, final int index) {
+        submit(new Command() {
+            @Override
+            void run(PlayerAdapter player) {
+                player.playQueue(queue, index);
+            }
+        });
+    }
+
+    @Override
+    public boolean nextTrack() {
+        if (!mState.hasNextTrack()) {
+            return false;
+        }
+        submit(new Command() {
+            @Override
+            void run(PlayerAdapter player) {
+                player.nextTrack();
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean previousTrack() {
+        if (!mState.hasPreviousTrack()) {
+            return false;
+        }
+        submit(new Command() {
+            @Override
+            void run(PlayerAdapter player) {
+                player.previousTrack();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Releases the player after any commands before this one. Later ones are ignored.
+     */
+    @Override
+    public void release() {
+        submit(new Command() {
+            @Override
+            void run(PlayerAdapter player) {
+                player.release();
+            }
+        });
+        mReleased = true;
+        mListener = null;
+    }
+
+    /**
+     * Toggles between playing and paused.
+     *
+     * @return 1 if it is pausing, 2 if it is starting and 3 if nothing is loaded, as
+     *     {@link MediaPlayerHolder#play()}, counting toggles that haven't run yet
+     */
+    @Override
+    public synchronized int play() {
+        // Read in this order, so a state without some toggle still counts it as pending.
+        boolean pending = mPendingPlays.get() > 0;
+        PlayerState state = mState;
+        if (!state.isInitialized()) {
+            return 3;
+        }
+        mIntendedPlaying = !(pending ? mIntendedPlaying : state.isPlaying());
+        mPendingPlays.incrementAndGet();
+        submit(new Command() {
+            @Override
+            void run(PlayerAdapter player) {
+                player.play();
+                mRanPlays++;
+            }
+        });
+        return mIntendedPlaying ? 2 : 1;
+    }
+
+    @Override
+    public void setLoop(final int loopMode) {
+        submit(new Command() {
+            @Override
+            void run(PlayerAdapter player) {
+                player.setLoop(loopMode);
+            }
+        });
+    }
+
+    @Override
+    public void playRegion(final LoopRegion region) {
+        submit(new Command() {
+            @Override
+            void run(PlayerAdapter player) {
+                player.playRegion(region);
+            }
+        });
+    }
+
+    @Override
+    public void chainRegions(final LoopRegions regions, final int repeats) {
+        submit(new Command() {
+            @Override
+            void run(PlayerAdapter player) {
+                player.chainRegions(regions, repeats);
+            }
+        });
+    }
+
+    @Override
+    public void setBeatGrid(final BeatGrid beats) {
+        submit(new Command() {
+            @Override
+            void run(PlayerAdapter player) {
+                player.setBeatGrid(beats);
+            }
+        });
+    }
+
+    @Override
+    public void setPcm(final PcmFile pcm) {
+        submit(new Command() {
+            @Override
+            void run(PlayerAdapter player) {
+                player.setPcm(pcm);
+            }
+        });
+    }
+
+    @Override
+    public void restorePracticeState(final PracticeState state) {
+        submit(new Command() {
+            @Override
+            void run(PlayerAdapter player) {
+                player.restorePracticeState(state);
+            }
+        });
+    }
+
+    @Override
+    public void savePracticeState(final PracticeStore store, final String hash,
+                                  final PracticeState state) {
+        submit(new Command() {
+            @Override
+            void run(PlayerAdapter player) {
+                player.savePracticeState(store, hash, state);
+            }
+        });
+    }
+
+    /**
+     * @return the speed it changes to, counting changes that haven't run yet
+     */
+    @Override
+    public synchronized float adjustSpeed(final int crease) {
+        boolean pending = mPendingSpeeds.get() > 0;
+        int percent = pending ? mIntendedSpeedPercent : mState.getSpeedPercent();
+        if (crease != 0) {
+            percent = Math.max(MediaPlayerHolder.MIN_SPEED_PERCENT,
+                    Math.min(MediaPlayerHolder.MAX_SPEED_PERCENT, percent + crease));
+            mIntendedSpeedPercent = percent;
+            mPendingSpeeds.incrementAndGet();
+            submit(new Command() {
+                @Override
+                void run(PlayerAdapter player) {
+                    player.adjustSpeed(crease);
+                    mRanSpeeds++;
+                }
+            });
+        }
+        return percent / 100f;
+    }
+
+    /**
+     * @return whether the player has an equalizer, going by the last published state
+     */
+    @Override
+    public boolean setEqualizer(final float lowDb, final float midDb, final float highDb) {
+        submit(new Command() {
+            @Override
+            void run(PlayerAdapter player) {
+                player.setEqualizer(lowDb, midDb, highDb);
+            }
+        });
+        return mState.hasDsp();
+    }
+
+    /**
+     * @return whether the player has a metronome, going by the last published state
+     */
+    @Override
+    public boolean setMetronome(final boolean clicks, final int countInBeats) {
+        submit(new Command() {
+            @Override
+            void run(PlayerAdapter player) {
+                player.setMetronome(clicks, countInBeats);
+            }
+        });
+        return mState.hasDsp();
+    }
+
+    @Override
+    public void skipForward() {
+        submit(new Command() {
+            @Override
+            void run(PlayerAdapter player) {
+                player.skipForward();
+            }
+        });
+    }
+
+    @Override
+    public void skipBackward() {
+        submit(new Command() {
+            @Override
+            void run(PlayerAdapter player) {
+                player.skipBackward();
+            }
+        });
+    }
+
+    /**
+     * Shows {@code visualizer} straight away; it only needs the view and the clock.
+     */
+    @Override
+    public void visualize(SpectrumView visualizer) {
+        mPlayer.visualize(visualizer);
+    }
+
+    @Override
+    public void stopVisualize(SpectrumView visualizer) {
+        mPlayer.stopVisualize(visualizer);
+    }
+
+    @Override
+    public void initializeProgressCallback() {
+        submit(new Command() {
+            @Override
+            void run(PlayerAdapter player) {
+                player.initializeProgressCallback();
+            }
+        });
+    }
+
+    @Override
+    public void setDuration() {
+        submit(new Command() {
+            @Override
+            void run(PlayerAdapter player) {
+                player.setDuration();
+            }
+        });
+    }
+
+    @Override
+    public void seekTo(final int position) {
+        submit(new Command() {
+            @Override
+            void run(PlayerAdapter player) {
+                player.seekTo(position);
+            }
+        });
+    }
+
+    @Override
+    public void startScrub() {
+        submit(new Command() {
+            @Override
+            void run(PlayerAdapter player) {
+                player.startScrub();
+            }
+        });
+    }
+
+    /**
+     * Moves the scrub to {@code position}. A drag sends far more positions than the engine
+     * needs, so only the latest one waiting is carried out.
+     */
+    @Override
+    public void scrubTo(int position) {
+        if (!mReleased) {
+            mCommands.submitLatest(mScrub, position);
+        }
+    }
+
+    @Override
+    public void endScrub(final int position) {
+        submit(new Command() {
+            @Override
+            void run(PlayerAdapter player) {
+                player.endScrub(position);
+            }
+        });
+    }
+
+    @Override
+    public double[] getTime() {
+        return TimeFormat.minutesAndSeconds(mClock.getPosition());
+    }
+}
@@ -0,0 +1,615 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.afxmusic;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.graphics.drawable.Icon;
+import android.media.AudioAttributes;
+import android.media.AudioFocusRequest;
+import android.media.AudioManager;
+import android.media.MediaMetadata;
+import android.media.session.MediaSession;
+import android.media.session.PlaybackState;
+import android.os.Binder;
+import android.os.Build;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Process;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Owns the app's one player and its storage, so a track with its loop and speed outlives the
+ * activity, e.g. across a rotation, without being loaded again. The activity binds to it and
+ * drives the player through {@link #getPlayer()}.
+ *
+ * The player is a {@link MediaPlayerHolder} or an {@link AudioTrackPlayer}, as chosen with
+ * {@link #setEngine} and remembered across launches. Either runs on the service's engine
+ * thread behind a {@link PlaybackEngine}.
+ *
+ * While a track plays the service runs in the foreground with a media notification. Its
+ * {@link MediaSession} takes play, pause, skip and seek from headsets, the lock screen and the
+ * notification.
+ *
+ * Playing takes the audio focus. Losing it for good pauses the track, losing it for a moment,
+ * e.g. to a notification sound or a call, pauses it until the focus comes back.
+ */
+public final class PlaybackService extends Service {
+
+    public static final String TAG = "PlaybackService";
+
+    public static final long TRACK_CACHE_MAX_BYTES = 200L * 1024 * 1024;
+
+    // Decoded tracks, about 10 MB per stereo minute; enough for a practice session's songs.
+    public static final boolean PCM_PLAYBACK = true;
+    public static final long PCM_CACHE_MAX_BYTES = 512L * 1024 * 1024;
+
+    public static final int ENGINE_MEDIA_PLAYER = 0;
+    public static final int ENGINE_AUDIO_TRACK = 1;
+
+    private static final String PREFS = "playback";
+    private static final String PREF_ENGINE = "engine";
+
+    static final String ACTION_PLAY_PAUSE = "com.afxmusic.action.PLAY_PAUSE";
+    static final String ACTION_NEXT = "com.afxmusic.action.NEXT";
+    static final String ACTION_PREVIOUS = "com.afxmusic.action.PREVIOUS";
+    static final String ACTION_STOP = "com.afxmusic.action.STOP";
+
+    private static final String CHANNEL_ID = "playback";
+    private static final int NOTIFICATION_ID = 1;
+    private static final long SESSION_ACTIONS = PlaybackState.ACTION_PLAY
+            | PlaybackState.ACTION_PAUSE | PlaybackState.ACTION_PLAY_PAUSE
+            | PlaybackState.ACTION_SKIP_TO_NEXT | PlaybackState.ACTION_SKIP_TO_PREVIOUS
+            | PlaybackState.ACTION_SEEK_TO | PlaybackState.ACTION_STOP;
+
+    /**
+     * What the activity showed for the current track, kept here so the next activity, e.g.
+     * after a rotation, can show it again without analyzing the track again.
+     */
+    static final class ClientState {
+        String trackHash;
+        PracticeQueue queue;
+        LoopRegions loopRegions = LoopRegions.EMPTY;
+        WaveformOverview waveform;
+        Spectrogram spectrogram;
+        boolean visualizing;
+        MainActivity.GetMusicFromIntent download;
+    }
+
+    final class LocalBinder extends Binder {
+        PlaybackService getService() {
+            return PlaybackService.this;
+        }
+    }
+
+    private final IBinder mBinder = new LocalBinder();
+    private final ClientState mClientState = new ClientState();
+    // The thread every player lives on, for as long as the service.
+    private final HandlerThread mEngineThread =
+            new HandlerThread("PlaybackEngine", Process.THREAD_PRIORITY_AUDIO);
+    private PlayerAdapter mPlayer;
+    private int mEngine;
+    private MediaSession mSession;
+    // Positions arrive on the clock's thread, while the client changes on the main thread.
+    private volatile PlaybackInfoListener mClient;
+    private boolean mForeground;
+    private boolean mNoisyRegistered;
+    private AudioManager mAudioManager;
+    private AudioFocusRequest mFocusRequest;
+    private boolean mHasFocus;
+    private boolean mResumeOnFocusGain;
+
+    // Opening these reads their directories or log, so it happens in the background. The same
+    // thread then writes practice state.
+    private final ExecutorService mStorageExecutor = Executors.newSingleThreadExecutor();
+    private Future<TrackCache> mTrackCache;
+    private Future<ShareLinkResolver> mLinkResolver;
+    private Future<TrackAnalyzer> mTrackAnalyzer;
+    private Future<PracticeStore> mPracticeStore;
+
+    // Unplugging headphones pauses rather than playing out of the speaker.
+    private final BroadcastReceiver mNoisyReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (mPlayer.isPlaying()) {
+                mPlayer.play();
+            }
+        }
+    };
+
+    private final AudioManager.OnAudioFocusChangeListener mFocusListener =
+            new AudioManager.OnAudioFocusChangeListener() {
+                @Override
+                public void onAudioFocusChange(int focusChange) {
+                    switch (focusChange) {
+                        case AudioManager.AUDIOFOCUS_GAIN:
+                            if (mResumeOnFocusGain && !mPlayer.isPlaying()) {
+                                mPlayer.play();
+                            }
+                            mResumeOnFocusGain = false;
+                            break;
+                        case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
+                        case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
+                            // Ducked practice audio is no use; pause until it is ours again.
+                            if (mPlayer.isPlaying()) {
+                                mResumeOnFocusGain = true;
+                                mPlayer.play();
+                            }
+                            break;
+                        case AudioManager.AUDIOFOCUS_LOSS:
+                            mResumeOnFocusGain = false;
+                            abandonAudioFocus();
+                            if (mPlayer.isPlaying()) {
+                                mPlayer.play();
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            };
+
+    private final MediaSession.Callback mSessionCallback = new MediaSession.Callback() {
+        @Override
+        public void onPlay() {
+            if (!mPlayer.isPlaying()) {
+                Telemetry.get().markRequest();
+                mPlayer.play();
+            }
+        }
+
+        @Override
+        public void onPause() {
+            if (mPlayer.isPlaying()) {
+                mPlayer.play();
+            }
+        }
+
+        @Override
+        public void onSkipToNext() {
+            if (!mPlayer.nextTrack()) {
+                mPlayer.skipForward();
+            }
+        }
+
+        @Override
+        public void onSkipToPrevious() {
+            if (!mPlayer.previousTrack()) {
+                mPlayer.skipBackward();
+            }
+        }
+
+        @Override
+        public void onSeekTo(long position) {
+            mPlayer.seekTo((int) position);
+            updateSession(mPlayer.isPlaying());
+        }
+
+        @Override
+        public void onStop() {
+            onPause();
+            stopSelf();
+        }
+    };
+
+    // Keeps the session in step with the player and passes everything on to the activity.
+    private final PlaybackInfoListener mPlayerListener = new PlaybackInfoListener() {
+        @Override
+        void onDurationChanged(int duration) {
+            mSession.setMetadata(new MediaMetadata.Builder()
+                    .putString(MediaMetadata.METADATA_KEY_TITLE, getString(R.string.app_name))
+                    .putLong(MediaMetadata.METADATA_KEY_DURATION, duration)
+                    .build());
+            PlaybackInfoListener client = mClient;
+            if (client != null) {
+                client.onDurationChanged(duration);
+            }
+        }
+
+        @Override
+        void onPositionChanged(int position) {
+            PlaybackInfoListener client = mClient;
+            if (client != null) {
+                client.onPositionChanged(position);
+            }
+        }
+
+        @Override
+        void onStateChanged(@State int state) {
+            updateSession(state == State.PLAYING);
+            PlaybackInfoListener client = mClient;
+            if (client != null) {
+                client.onStateChanged(state);
+            }
+        }
+
+        @Override
+        void onLoadProgress(@Load int stage) {
+            PlaybackInfoListener client = mClient;
+            if (client != null) {
+                client.onLoadProgress(stage);
+            }
+        }
+
+        @Override
+        void onLoadFailed(Exception error) {
+            PlaybackInfoListener client = mClient;
+            if (client != null) {
+                client.onLoadFailed(error);
+            }
+        }
+
+        @Override
+        void onTrackChanged(int index) {
+            PlaybackInfoListener client = mClient;
+            if (client != null) {
+                client.onTrackChanged(index);
+            }
+        }
+
+        @Override
+        void onPracticeStateRestored(PracticeState state) {
+            PlaybackInfoListener client = mClient;
+            if (client != null) {
+                client.onPracticeStateRestored(state);
+            }
+        }
+
+        @Override
+        void onLoopRegionChanged(LoopRegion region) {
+            PlaybackInfoListener client = mClient;
+            if (client != null) {
+                client.onLoopRegionChanged(region);
+            }
+        }
+
+        @Override
+        void onLoopChanged(int start, int end) {
+            PlaybackInfoListener client = mClient;
+            if (client != null) {
+                client.onLoopChanged(start, end);
+            }
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        openStorage();
+        mEngineThread.start();
+        mEngine = getSharedPreferences(PREFS, MODE_PRIVATE)
+                .getInt(PREF_ENGINE, ENGINE_MEDIA_PLAYER);
+        mPlayer = createPlayer(mEngine);
+        mAudioManager = getSystemService(AudioManager.class);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            mFocusRequest = new AudioFocusRequest.Builder(AudioManager.AUDIOFOCUS_GAIN)
+                    .setAudioAttributes(new AudioAttributes.Builder()
+                            .setUsage(AudioAttributes.USAGE_MEDIA)
+                            .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                            .build())
+                    .setWillPauseWhenDucked(true)
+                    .setOnAudioFocusChangeListener(mFocusListener)
+                    .build();
+        }
+        mSession = new MediaSession(this, TAG);
+        mSession.setCallback(mSessionCallback);
+        mSession.setActive(true);
+        updateSession(false);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(CHANNEL_ID,
+                    getString(R.string.app_name), NotificationManager.IMPORTANCE_LOW);
+            getSystemService(NotificationManager.class).createNotificationChannel(channel);
+        }
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        String action = intent == null ? null : intent.getAction();
+        if (ACTION_PLAY_PAUSE.equals(action)) {
+            if (mPlayer.isPlaying()) {
+                mSessionCallback.onPause();
+            } else {
+                mSessionCallback.onPlay();
+            }
+        } else if (ACTION_NEXT.equals(action)) {
+            mSessionCallback.onSkipToNext();
+        } else if (ACTION_PREVIOUS.equals(action)) {
+            mSessionCallback.onSkipToPrevious();
+        } else if (ACTION_STOP.equals(action)) {
+            mSessionCallback.onStop();
+        }
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        setNoisyReceiver(false);
+        abandonAudioFocus();
+        stopForeground(true);
+        getSystemService(NotificationManager.class).cancel(NOTIFICATION_ID);
+        mSession.release();
+        mPlayer.release();
+        // Runs the release first.
+        mEngineThread.quitSafely();
+        // Pending practice state writes still finish.
+        mStorageExecutor.shutdown();
+        super.onDestroy();
+    }
+
+    public PlayerAdapter getPlayer() {
+        return mPlayer;
+    }
+
+    public int getEngine() {
+        return mEngine;
+    }
+
+    /**
+     * Replaces the player with one running {@code engine}, and remembers the choice. The current
+     * track is released with the old player, so the caller loads it again.
+     *
+     * @return the new player
+     */
+    public PlayerAdapter setEngine(int engine) {
+        if (engine == mEngine) {
+            return mPlayer;
+        }
+        mEngine = engine;
+        getSharedPreferences(PREFS, MODE_PRIVATE).edit().putInt(PREF_ENGINE, engine).apply();
+        mPlayer.setPlaybackInfoListener(null);
+        mPlayer.release();
+        mPlayer = createPlayer(engine);
+        mPlayerListener.onStateChanged(PlaybackInfoListener.State.PAUSED);
+        return mPlayer;
+    }
+
+    private PlayerAdapter createPlayer(int engine) {
+        PlayerAdapter player;
+        if (engine == ENGINE_AUDIO_TRACK) {
+            player = new AudioTrackPlayer(this, mEngineThread.getLooper());
+        } else {
+            MediaPlayerHolder holder = new MediaPlayerHolder(this, mEngineThread.getLooper());
+            holder.setPcmPlayback(PCM_PLAYBACK);
+            player = holder;
+        }
+        PlaybackEngine playbackEngine = new PlaybackEngine(player, mEngineThread.getLooper());
+        playbackEngine.setPlaybackInfoListener(mPlayerListener);
+        return playbackEngine;
+    }
+
+    ClientState getClientState() {
+        return mClientState;
+    }
+
+    /**
+     * Sends the player's callbacks to {@code client}, or to nobody if it is null. A new client
+     * is brought up to date with the current track's duration, state and position.
+     */
+    public void setClient(PlaybackInfoListener client) {
+        mClient = client;
+        if (client != null && mPlayer.isInitialized()) {
+            client.onDurationChanged(mPlayer.getSongLength());
+            client.onStateChanged(mPlayer.isPlaying()
+                    ? PlaybackInfoListener.State.PLAYING : PlaybackInfoListener.State.PAUSED);
+            client.onPositionChanged(mPlayer.getPlaybackClock().getPosition());
+        }
+    }
+
+    /**
+     * Opens the track cache, the link resolver, the practice store and the analyzer on the
+     * storage thread.
+     */
+    private void openStorage() {
+        final File cacheDir = getCacheDir();
+        final File filesDir = getFilesDir();
+        mTrackCache = mStorageExecutor.submit(new Callable<TrackCache>() {
+            @Override
+            public TrackCache call() {
+                return new TrackCache(new File(cacheDir, "tracks"), TRACK_CACHE_MAX_BYTES);
+            }
+        });
+        mLinkResolver = mStorageExecutor.submit(new Callable<ShareLinkResolver>() {
+            @Override
+            public ShareLinkResolver call() {
+                return new ShareLinkResolver(new File(cacheDir, "links"));
+            }
+        });
+        mPracticeStore = mStorageExecutor.submit(new Callable<PracticeStore>() {
+            @Override
+            public PracticeStore call() {
+                return new PracticeStore(new File(filesDir, "practice.log"), mStorageExecutor);
+            }
+        });
+        mTrackAnalyzer = mStorageExecutor.submit(new Callable<TrackAnalyzer>() {
+            @Override
+            public TrackAnalyzer call() throws Exception {
+                return new TrackAnalyzer(mTrackCache.get(), PCM_PLAYBACK
+                        ? new PcmCache(new File(cacheDir, "pcm"), PCM_CACHE_MAX_BYTES) : null);
+            }
+        });
+    }
+
+    public TrackCache getTrackCache() {
+        return await(mTrackCache);
+    }
+
+    public ShareLinkResolver getLinkResolver() {
+        return await(mLinkResolver);
+    }
+
+    public TrackAnalyzer getTrackAnalyzer() {
+        return await(mTrackAnalyzer);
+    }
+
+    public PracticeStore getPracticeStore() {
+        return await(mPracticeStore);
+    }
+
+    /**
+     * Returns what {@code future} opened, waiting for it in the rare case it is needed before
+     * it is ready.
+     */
+    private static <T> T await(Future<T> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Couldn't open app storage", e.getCause());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Publishes whether the player is playing to the session and the notification, and goes
+     * into the foreground while it is, so playback goes on after the activity is gone.
+     */
+    private void updateSession(boolean playing) {
+        int position = mPlayer.isInitialized() ? mPlayer.getPlaybackClock().getPosition() : 0;
+        float speed = playing ? mPlayer.getSpeed() : 0;
+        mSession.setPlaybackState(new PlaybackState.Builder()
+                .setActions(SESSION_ACTIONS)
+                .setState(playing ? PlaybackState.STATE_PLAYING : PlaybackState.STATE_PAUSED,
+                        position, speed)
+                .build());
+        if (!mPlayer.isInitialized()) {
+            return;
+        }
+        if (playing && !requestAudioFocus()) {
+            // Something else, e.g. a call, holds on to the audio; the pause comes back here.
+            mPlayer.play();
+            return;
+        }
+        setNoisyReceiver(playing);
+        Notification notification = buildNotification(playing);
+        if (playing) {
+            if (!mForeground) {
+                // Started as well as bound, so unbinding doesn't end playback.
+                startService(new Intent(this, PlaybackService.class));
+            }
+            startForeground(NOTIFICATION_ID, notification);
+            mForeground = true;
+        } else {
+            if (mForeground) {
+                stopForeground(false);
+                mForeground = false;
+            }
+            getSystemService(NotificationManager.class).notify(NOTIFICATION_ID, notification);
+        }
+    }
+
+    private Notification buildNotification(boolean playing) {
+        Notification.Builder builder = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                ? new Notification.Builder(this, CHANNEL_ID)
+                : new Notification.Builder(this);
+        Intent open = getPackageManager().getLaunchIntentForPackage(getPackageName());
+        return builder
+                .setSmallIcon(R.drawable.music)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText("Speed " + Math.round(mPlayer.getSpeed() * 100) + "%")
+                .setContentIntent(PendingIntent.getActivity(this, 0, open, 0))
+                .setDeleteIntent(action(ACTION_STOP))
+                .setVisibility(Notification.VISIBILITY_PUBLIC)
+                .setShowWhen(false)
+                .addAction(action(R.drawable.rewind, "Previous", ACTION_PREVIOUS))
+                .addAction(playing
+                        ? action(R.drawable.pause, "Pause", ACTION_PLAY_PAUSE)
+                        : action(R.drawable.play, "Play", ACTION_PLAY_PAUSE))
+                .addAction(action(R.drawable.fastforward, "Next", ACTION_NEXT))
+                .setStyle(new Notification.MediaStyle()
+                        .setMediaSession(mSession.getSessionToken())
+                        .setShowActionsInCompactView(0, 1, 2))
+                .build();
+    }
+
+    private Notification.Action action(int icon, String title, String action) {
+        return new Notification.Action.Builder(Icon.createWithResource(this, icon), title,
+                action(action)).build();
+    }
+
+    private PendingIntent action(String action) {
+        Intent intent = new Intent(this, PlaybackService.class).setAction(action);
+        return PendingIntent.getService(this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * Takes the audio focus if playback doesn't hold it yet.
+     *
+     * @return whether playback holds it now
+     */
+    private boolean requestAudioFocus() {
+        if (mHasFocus) {
+            return true;
+        }
+        int result = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                ? mAudioManager.requestAudioFocus(mFocusRequest)
+                : mAudioManager.requestAudioFocus(mFocusListener, AudioManager.STREAM_MUSIC,
+                        AudioManager.AUDIOFOCUS_GAIN);
+        mHasFocus = result == AudioManager.AUDIOFOCUS_REQUEST_GRANTED;
+        return mHasFocus;
+    }
+
+    private void abandonAudioFocus() {
+        if (!mHasFocus) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            mAudioManager.abandonAudioFocusRequest(mFocusRequest);
+        } else {
+            mAudioManager.abandonAudioFocus(mFocusListener);
+        }
+        mHasFocus = false;
+    }
+
+    private void setNoisyReceiver(boolean registered) {
+        if (registered == mNoisyRegistered) {
+            return;
+        }
+        if (registered) {
+            registerReceiver(mNoisyReceiver,
+                    new IntentFilter(AudioManager.ACTION_AUDIO_BECOMING_NOISY));
+        } else {
+            unregisterReceiver(mNoisyReceiver);
+        }
+        mNoisyRegistered = registered;
+    }
+}
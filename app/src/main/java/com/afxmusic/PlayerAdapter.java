@@ -16,17 +16,26 @@
 
 package com.afxmusic;
 
+import android.media.MediaDataSource;
 import android.net.Uri;
-import android.widget.TextView;
+import java.io.File;
 import java.io.FileDescriptor;
 
-import com.chibde.visualizer.LineBarVisualizer;
-
 /**
- * Allows {@link MainActivity} to control media playback of {@link MediaPlayerHolder}.
+ * Allows {@link MainActivity} to control media playback of {@link MediaPlayerHolder} or
+ * {@link AudioTrackPlayer}, whichever engine {@link PlaybackService} runs. The activity and
+ * the service only ever see them through a {@link PlaybackEngine}.
  */
 public interface PlayerAdapter {
 
+    void setPlaybackInfoListener(PlaybackInfoListener listener);
+
+    PlaybackClock getPlaybackClock();
+
+    float getSpeed();
+
+    PlayerState getState();
+
     int getLoopStart();
 
     int getLoopEnd();
@@ -37,6 +46,18 @@ public interface PlayerAdapter {
 
     void loadMedia(FileDescriptor fd);
 
+    void loadMedia(File file);
+
+    void loadMedia(MediaDataSource source);
+
+    void cancelLoad();
+
+    void playQueue(PracticeQueue queue, int index);
+
+    boolean nextTrack();
+
+    boolean previousTrack();
+
     void release();
 
     boolean isPlaying();
@@ -45,17 +66,48 @@ public interface PlayerAdapter {
 
     int play();
 
-    void setLoop(int loopMode, TextView text_start, TextView text_end);
+    void setLoop(int loopMode);
+
+    void playRegion(LoopRegion region);
+
+    void chainRegions(LoopRegions regions, int repeats);
+
+    void setBeatGrid(BeatGrid beats);
+
+    void setPcm(PcmFile pcm);
+
+    void restorePracticeState(PracticeState state);
+
+    /**
+     * Adds the speed, position and loop to {@code state} and saves it in {@code store} under
+     * {@code hash}, once everything asked for before has taken effect.
+     */
+    void savePracticeState(PracticeStore store, String hash, PracticeState state);
 
     float adjustSpeed(int crease);
 
+    /**
+     * Sets the low, mid and high equalizer gains in dB.
+     *
+     * @return false if this engine has no equalizer
+     */
+    boolean setEqualizer(float lowDb, float midDb, float highDb);
+
+    /**
+     * Turns the click on every beat of the track's {@link BeatGrid} on or off, and sets how
+     * many beats before each loop wrap count back in to the loop start, 0 for none.
+     *
+     * @return false if this engine has no metronome
+     */
+    boolean setMetronome(boolean clicks, int countInBeats);
+
     void skipForward();
 
     void skipBackward();
 
-    void visualize(LineBarVisualizer visualizer);
+    void visualize(SpectrumView visualizer);
 
-    void stopVisualize(LineBarVisualizer visualizer);
+    void stopVisualize(SpectrumView visualizer);
 
     void initializeProgressCallback();
 
@@ -63,5 +115,15 @@ public interface PlayerAdapter {
 
     void seekTo(int position);
 
+    void startScrub();
+
+    void scrubTo(int position);
+
+    void endScrub(int position);
+
+    /**
+     * Returns the playback position as {minutes, seconds into the minute}, see
+     * {@link TimeFormat#minutesAndSeconds}.
+     */
     double[] getTime();
 }
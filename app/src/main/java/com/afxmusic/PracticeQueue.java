@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An ordered list of songs to practice in a row, each remembering its own speed and loop.
+ * {@link MediaPlayerHolder} plays through it, preparing the next song while the current one
+ * plays so that moving on is gapless.
+ */
+public final class PracticeQueue {
+
+    /**
+     * One song in the queue and the settings it was last practiced with.
+     */
+    public static final class Entry {
+        private final Uri mUri;
+        private int mSpeedPercent = 100;
+        private int mLoopStart = 0;
+        private int mLoopEnd = 0;
+
+        public Entry(Uri uri) {
+            mUri = uri;
+        }
+
+        public Uri getUri() {
+            return mUri;
+        }
+
+        public int getSpeedPercent() {
+            return mSpeedPercent;
+        }
+
+        public void setSpeedPercent(int speedPercent) {
+            mSpeedPercent = speedPercent;
+        }
+
+        public boolean hasLoop() {
+            return mLoopEnd > mLoopStart;
+        }
+
+        public int getLoopStart() {
+            return mLoopStart;
+        }
+
+        public int getLoopEnd() {
+            return mLoopEnd;
+        }
+
+        /**
+         * Sets the A/B loop in milliseconds; an empty range means no loop.
+         */
+        public void setLoop(int start, int end) {
+            mLoopStart = start;
+            mLoopEnd = end;
+        }
+    }
+
+    private final List<Entry> mEntries = new ArrayList<>();
+
+    public void add(Uri uri) {
+        mEntries.add(new Entry(uri));
+    }
+
+    public Entry get(int index) {
+        return mEntries.get(index);
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import android.media.AudioTrack;
+import android.os.Process;
+
+/**
+ * Plays short grains of a decoded track at the seek bar's position while it is being dragged.
+ *
+ * Targets go through a {@link SeekCoalescer}, so however fast the finger moves, only the
+ * newest position is played, one grain at a time. Each grain is read straight from the
+ * {@link PcmFile} and faded in and out so the jumps between them don't click.
+ */
+final class ScrubPreview implements Runnable {
+
+    static final int GRAIN_MS = 60;
+    private static final int FADE_MS = 5;
+
+    private final PcmFile mPcm;
+    private final AudioTrack mTrack;
+    private final SeekCoalescer mTargets = new SeekCoalescer(GRAIN_MS);
+    private final short[] mGrain;
+    private final int mGrainFrames;
+    private final int mFadeFrames;
+    private final Thread mThread;
+
+    ScrubPreview(PcmFile pcm, int audioSessionId) {
+        mPcm = pcm;
+        int channels = pcm.getChannelCount();
+        int sampleRate = pcm.getSampleRate();
+        mTrack = GaplessLoopPlayer.buildTrack(channels, sampleRate, audioSessionId);
+        mGrainFrames = sampleRate * GRAIN_MS / 1000;
+        mFadeFrames = sampleRate * FADE_MS / 1000;
+        mGrain = new short[mGrainFrames * channels];
+        mThread = new Thread(this, "ScrubPreview");
+        mTrack.play();
+        mThread.start();
+    }
+
+    /**
+     * Plays a grain at {@code position} ms as soon as the last one is done, unless a newer
+     * position comes first.
+     */
+    void scrubTo(int position) {
+        mTargets.offer(position);
+    }
+
+    /**
+     * Stops the preview once what is already in the track's buffer has played.
+     */
+    void release() {
+        mTargets.close();
+        // Stopping also wakes a blocked write.
+        mTrack.stop();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mTrack.release();
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        int channels = mPcm.getChannelCount();
+        try {
+            while (true) {
+                int position = mTargets.take();
+                if (position == SeekCoalescer.CLOSED) {
+                    return;
+                }
+                int frame = (int) ((long) position * mPcm.getSampleRate() / 1000);
+                int frames = mPcm.read(Math.min(frame, mPcm.getFrameCount()), mGrain,
+                        mGrainFrames);
+                if (frames == 0) {
+                    continue;
+                }
+                fade(frames, channels);
+                mTrack.write(mGrain, 0, frames * channels, AudioTrack.WRITE_BLOCKING);
+                Telemetry.get().scrubToAudible.recordSince(mTargets.getTakenOfferNanos());
+            }
+        } catch (InterruptedException e) {
+            // Interrupted; let the thread end.
+        }
+    }
+
+    private void fade(int frames, int channels) {
+        int fade = Math.min(mFadeFrames, frames / 2);
+        for (int i = 0; i < fade; i++) {
+            float gain = (float) i / fade;
+            int head = i * channels;
+            int tail = (frames - 1 - i) * channels;
+            for (int c = 0; c < channels; c++) {
+                mGrain[head + c] = (short) (mGrain[head + c] * gain);
+                mGrain[tail + c] = (short) (mGrain[tail + c] * gain);
+            }
+        }
+    }
+}
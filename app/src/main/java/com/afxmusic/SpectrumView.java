@@ -0,0 +1,195 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.Choreographer;
+import android.view.View;
+
+/**
+ * Spectrum bars for the current playback position, read from the track's {@link Spectrogram}
+ * at the {@link PlaybackClock}'s position on every display frame. Bars jump up to new levels
+ * and fall back at {@link #DECAY_PER_SECOND}; a thin peak marker above each bar falls slower.
+ *
+ * Animates only while it is shown and either the clock is running or the bars are still
+ * falling, and allocates nothing per frame.
+ */
+public final class SpectrumView extends View {
+
+    static final float DECAY_PER_SECOND = 1.5f;
+    static final float PEAK_DECAY_PER_SECOND = 0.4f;
+    private static final float BAR_GAP = 0.2f;
+
+    private final Paint mBarPaint = new Paint();
+    private final Paint mPeakPaint = new Paint();
+    private final float[] mTargets = new float[SpectrumAnalyzer.BANDS];
+    private final float[] mLevels = new float[SpectrumAnalyzer.BANDS];
+    private final float[] mPeaks = new float[SpectrumAnalyzer.BANDS];
+
+    private Spectrogram mSpectrogram;
+    private PlaybackClock mClock;
+    private boolean mAnimating;
+    private long mLastFrameNanos;
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mAnimating = false;
+            if (step(frameTimeNanos)) {
+                mAnimating = true;
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+            invalidate();
+        }
+    };
+
+    private final Runnable mStartAnimating = new Runnable() {
+        @Override
+        public void run() {
+            startAnimating();
+        }
+    };
+
+    // Seeks, pauses and ticks arrive on the clock's thread.
+    private final PlaybackInfoListener mClockListener = new PlaybackInfoListener() {
+        @Override
+        void onPositionChanged(int position) {
+            post(mStartAnimating);
+        }
+    };
+
+    public SpectrumView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        setColor(Color.rgb(0x3F, 0x51, 0xB5));
+    }
+
+    public void setColor(int color) {
+        mBarPaint.setColor(color);
+        mPeakPaint.setColor(color);
+        mPeakPaint.setAlpha(0xA0);
+        invalidate();
+    }
+
+    /**
+     * Shows the spectrum of a new track, or nothing when {@code spectrogram} is null.
+     */
+    public void setSpectrogram(Spectrogram spectrogram) {
+        mSpectrogram = spectrogram;
+        startAnimating();
+    }
+
+    /**
+     * Follows {@code clock} for the playback position.
+     */
+    public void setClock(PlaybackClock clock) {
+        if (mClock != null) {
+            mClock.unsubscribe(mClockListener);
+        }
+        mClock = clock;
+        if (clock != null && isAttachedToWindow()) {
+            clock.subscribe(mClockListener);
+        }
+        startAnimating();
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (mClock != null) {
+            mClock.subscribe(mClockListener);
+        }
+        startAnimating();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        if (mClock != null) {
+            mClock.unsubscribe(mClockListener);
+        }
+        Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+        mAnimating = false;
+        super.onDetachedFromWindow();
+    }
+
+    @Override
+    protected void onVisibilityChanged(View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        startAnimating();
+    }
+
+    private void startAnimating() {
+        if (!mAnimating && isShown()) {
+            mAnimating = true;
+            mLastFrameNanos = 0;
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        }
+    }
+
+    /**
+     * Moves the bars one frame on.
+     *
+     * @return whether another frame is needed
+     */
+    private boolean step(long frameTimeNanos) {
+        float seconds = mLastFrameNanos == 0 ? 0 : (frameTimeNanos - mLastFrameNanos) / 1e9f;
+        mLastFrameNanos = frameTimeNanos;
+
+        Spectrogram spectrogram = mSpectrogram;
+        PlaybackClock clock = mClock;
+        if (spectrogram != null && clock != null) {
+            spectrogram.getLevels(clock.getPosition(), mTargets);
+        } else {
+            for (int band = 0; band < mTargets.length; band++) {
+                mTargets[band] = 0;
+            }
+        }
+
+        boolean settled = true;
+        float decay = DECAY_PER_SECOND * seconds;
+        float peakDecay = PEAK_DECAY_PER_SECOND * seconds;
+        for (int band = 0; band < mLevels.length; band++) {
+            mLevels[band] = Math.max(mTargets[band], mLevels[band] - decay);
+            mPeaks[band] = Math.max(mLevels[band], mPeaks[band] - peakDecay);
+            if (mLevels[band] != mTargets[band] || mPeaks[band] != mLevels[band]) {
+                settled = false;
+            }
+        }
+        return isShown() && (!settled || (clock != null && clock.isRunning()));
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        int bands = mLevels.length;
+        float left = getPaddingLeft();
+        float bottom = getHeight() - getPaddingBottom();
+        float width = (getWidth() - getPaddingLeft() - getPaddingRight()) / (float) bands;
+        float height = getHeight() - getPaddingTop() - getPaddingBottom();
+        float gap = width * BAR_GAP / 2;
+        float peakHeight = Math.max(2, height / 64);
+        for (int band = 0; band < bands; band++) {
+            float x = left + band * width;
+            canvas.drawRect(x + gap, bottom - mLevels[band] * height, x + width - gap, bottom,
+                    mBarPaint);
+            float peak = bottom - mPeaks[band] * height;
+            canvas.drawRect(x + gap, peak - peakHeight, x + width - gap, peak, mPeakPaint);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import android.view.View;
+import android.widget.TextView;
+
+/**
+ * Shows the {@link Telemetry} dump in a text view, refreshed while it is visible. Long-pressing
+ * the view it is attached to toggles it.
+ */
+public final class TelemetryOverlay implements View.OnLongClickListener, Runnable {
+
+    private static final int REFRESH_MS = 500;
+
+    private final TextView mText;
+
+    public TelemetryOverlay(TextView text) {
+        mText = text;
+    }
+
+    @Override
+    public boolean onLongClick(View view) {
+        if (mText.getVisibility() == View.VISIBLE) {
+            mText.removeCallbacks(this);
+            mText.setVisibility(View.GONE);
+        } else {
+            mText.setVisibility(View.VISIBLE);
+            run();
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        if (mText.getVisibility() != View.VISIBLE) {
+            return;
+        }
+        mText.setText(Telemetry.get().snapshot().toString());
+        mText.postDelayed(this, REFRESH_MS);
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the one-off background pass over a loaded track: decodes it once and derives what the
+ * UI needs from the PCM: the {@link WaveformOverview}, the {@link BeatGrid} and the
+ * {@link Spectrogram}. Results are saved as sidecars in the {@link TrackCache}, keyed by the
+ * track's content hash, so opening the same track again skips decoding entirely.
+ *
+ * Given a {@link PcmCache}, the same pass also keeps the decoded track itself as a
+ * {@link PcmFile}, for playback that seeks without decoding.
+ *
+ * Only the newest track is analyzed; starting another analysis abandons the previous one.
+ * Listeners are called on the main thread.
+ */
+public final class TrackAnalyzer {
+
+    public static final String WAVEFORM_SUFFIX = ".wave";
+    public static final String BEATS_SUFFIX = ".beats";
+    public static final String SPECTRUM_SUFFIX = ".spec";
+
+    public interface Listener {
+        /**
+         * Called first, as soon as the track's content hash is known.
+         */
+        void onTrackIdentified(String hash);
+
+        void onWaveformReady(WaveformOverview waveform);
+
+        void onBeatsReady(BeatGrid beats);
+
+        void onSpectrogramReady(Spectrogram spectrogram);
+
+        /**
+         * @param pcm the decoded track, or null without a {@link PcmCache}
+         */
+        void onPcmReady(PcmFile pcm);
+    }
+
+    private final TrackCache mCache;
+    private final PcmCache mPcmCache;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    public TrackAnalyzer(TrackCache cache) {
+        this(cache, null);
+    }
+
+    /**
+     * @param pcmCache where to keep decoded tracks, or null not to
+     */
+    public TrackAnalyzer(TrackCache cache, PcmCache pcmCache) {
+        mCache = cache;
+        mPcmCache = pcmCache;
+    }
+
+    /**
+     * @param source where to decode the track from
+     * @param hash   computes the track's content hash; called on the background thread
+     */
+    public void analyze(final PcmDecoder.Source source, final Callable<String> hash,
+                        final Listener listener) {
+        final int generation = mGeneration.incrementAndGet();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                PcmFile.Writer pcmWriter = null;
+                try {
+                    final String trackHash = hash.call();
+                    if (generation != mGeneration.get()) {
+                        return;
+                    }
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (generation == mGeneration.get()) {
+                                listener.onTrackIdentified(trackHash);
+                            }
+                        }
+                    });
+                    File waveformFile = mCache.getSidecar(trackHash, WAVEFORM_SUFFIX);
+                    File beatsFile = mCache.getSidecar(trackHash, BEATS_SUFFIX);
+                    WaveformOverview waveform = WaveformOverview.load(waveformFile);
+                    File spectrumFile = mCache.getSidecar(trackHash, SPECTRUM_SUFFIX);
+                    BeatGrid beats = BeatGrid.load(beatsFile);
+                    Spectrogram spectrogram = Spectrogram.load(spectrumFile);
+                    PcmFile pcm = mPcmCache == null ? null : mPcmCache.get(trackHash);
+                    boolean needPcm = mPcmCache != null && pcm == null;
+                    if (waveform == null || beats == null || spectrogram == null || needPcm) {
+                        PcmDecoder decoder = new PcmDecoder(source);
+                        decoder.readFormat();
+                        long expectedFrames =
+                                decoder.getDurationUs() * decoder.getSampleRate() / 1000000L;
+                        WaveformOverview.Builder waveformBuilder = null;
+                        BeatTracker beatTracker = null;
+                        SpectrumAnalyzer spectrumAnalyzer = null;
+                        List<PcmSink> sinks = new ArrayList<>();
+                        if (waveform == null) {
+                            waveformBuilder = new WaveformOverview.Builder(
+                                    decoder.getSampleRate(), decoder.getChannelCount(),
+                                    expectedFrames);
+                            sinks.add(waveformBuilder);
+                        }
+                        if (beats == null) {
+                            beatTracker = new BeatTracker(decoder.getSampleRate(),
+                                    decoder.getChannelCount(), expectedFrames);
+                            sinks.add(beatTracker);
+                        }
+                        if (spectrogram == null) {
+                            spectrumAnalyzer = new SpectrumAnalyzer(decoder.getSampleRate(),
+                                    decoder.getChannelCount(), expectedFrames);
+                            sinks.add(spectrumAnalyzer);
+                        }
+                        if (needPcm) {
+                            pcmWriter = mPcmCache.newWriter(trackHash,
+                                    decoder.getSampleRate(), decoder.getChannelCount());
+                            sinks.add(pcmWriter);
+                        }
+                        long decodeStart = System.nanoTime();
+                        if (!decode(decoder, sinks, generation)) {
+                            if (pcmWriter != null) {
+                                pcmWriter.abort();
+                            }
+                            return;
+                        }
+                        Telemetry.get().decode.recordSince(decodeStart);
+                        if (waveformBuilder != null) {
+                            waveform = waveformBuilder.build();
+                            waveform.save(waveformFile);
+                        }
+                        if (beatTracker != null) {
+                            beats = beatTracker.finish();
+                            beats.save(beatsFile);
+                        }
+                        if (spectrumAnalyzer != null) {
+                            spectrogram = spectrumAnalyzer.finish();
+                            spectrogram.save(spectrumFile);
+                        }
+                        if (pcmWriter != null) {
+                            pcm = mPcmCache.put(trackHash, pcmWriter);
+                            pcmWriter = null;
+                        }
+                    }
+                    deliver(generation, listener, waveform, beats, spectrogram, pcm);
+                } catch (Exception e) {
+                    if (pcmWriter != null) {
+                        pcmWriter.abort();
+                    }
+                    Telemetry.get().error(Telemetry.get().decodeErrors, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Abandons any analysis in progress.
+     */
+    public void cancel() {
+        mGeneration.incrementAndGet();
+    }
+
+    /**
+     * Decodes the whole track once, feeding every sink.
+     *
+     * @return false if the analysis was abandoned on the way
+     */
+    private boolean decode(PcmDecoder decoder, final List<PcmSink> sinks,
+                           final int generation) throws Exception {
+        decoder.decode(new PcmSink() {
+            @Override
+            public boolean onPcm(short[] pcm, int frames) {
+                for (int i = 0; i < sinks.size(); i++) {
+                    sinks.get(i).onPcm(pcm, frames);
+                }
+                return generation == mGeneration.get();
+            }
+        });
+        return generation == mGeneration.get();
+    }
+
+    private void deliver(final int generation, final Listener listener,
+                         final WaveformOverview waveform, final BeatGrid beats,
+                         final Spectrogram spectrogram, final PcmFile pcm) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (generation == mGeneration.get()) {
+                    listener.onWaveformReady(waveform);
+                    listener.onBeatsReady(beats);
+                    listener.onSpectrogramReady(spectrogram);
+                    listener.onPcmReady(pcm);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * Draws a {@link WaveformOverview} behind the seek bar: one vertical line per pixel from the
+ * min to the max peak, with the RMS level drawn darker on top.
+ *
+ * The line coordinates are computed once per waveform and size, not on every draw.
+ */
+public final class WaveformView extends View {
+
+    private final Paint mPeakPaint = new Paint();
+    private final Paint mRmsPaint = new Paint();
+
+    private WaveformOverview mWaveform;
+    private float[] mPeakLines = new float[0];
+    private float[] mRmsLines = new float[0];
+    private int mLineCount;
+
+    public WaveformView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        mPeakPaint.setColor(Color.argb(0x40, 0x3F, 0x51, 0xB5));
+        mRmsPaint.setColor(Color.argb(0x80, 0x3F, 0x51, 0xB5));
+    }
+
+    /**
+     * Shows a new waveform, or clears the view when {@code waveform} is null.
+     */
+    public void setWaveform(WaveformOverview waveform) {
+        mWaveform = waveform;
+        computeLines();
+        invalidate();
+    }
+
+    public WaveformOverview getWaveform() {
+        return mWaveform;
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        computeLines();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (mLineCount > 0) {
+            canvas.drawLines(mPeakLines, 0, mLineCount * 4, mPeakPaint);
+            canvas.drawLines(mRmsLines, 0, mLineCount * 4, mRmsPaint);
+        }
+    }
+
+    private void computeLines() {
+        mLineCount = 0;
+        int width = getWidth() - getPaddingLeft() - getPaddingRight();
+        int height = getHeight() - getPaddingTop() - getPaddingBottom();
+        WaveformOverview waveform = mWaveform;
+        if (waveform == null || width <= 0 || height <= 0) {
+            return;
+        }
+        if (mPeakLines.length < width * 4) {
+            mPeakLines = new float[width * 4];
+            mRmsLines = new float[width * 4];
+        }
+
+        int level = waveform.levelFor(width);
+        int buckets = waveform.getBucketCount(level);
+        if (buckets == 0) {
+            return;
+        }
+        float middle = getPaddingTop() + height / 2f;
+        float scale = height / 2f / Short.MAX_VALUE;
+        for (int x = 0; x < width; x++) {
+            int from = (int) ((long) x * buckets / width);
+            int to = Math.max(from + 1, (int) ((long) (x + 1) * buckets / width));
+            int min = 0;
+            int max = 0;
+            int rms = 0;
+            for (int bucket = from; bucket < to && bucket < buckets; bucket++) {
+                min = Math.min(min, waveform.getMin(level, bucket));
+                max = Math.max(max, waveform.getMax(level, bucket));
+                rms = Math.max(rms, waveform.getRms(level, bucket));
+            }
+            float px = getPaddingLeft() + x + 0.5f;
+            int i = x * 4;
+            mPeakLines[i] = px;
+            mPeakLines[i + 1] = middle - max * scale;
+            mPeakLines[i + 2] = px;
+            mPeakLines[i + 3] = middle - min * scale;
+            mRmsLines[i] = px;
+            mRmsLines[i + 1] = middle - rms * scale;
+            mRmsLines[i + 2] = px;
+            mRmsLines[i + 3] = middle + rms * scale;
+        }
+        mLineCount = width;
+    }
+}
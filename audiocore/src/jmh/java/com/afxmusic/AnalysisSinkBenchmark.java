@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-block cost of each consumer in the track analysis pass, fed the same 4096-frame
+ * blocks {@code PcmDecoder} hands out. Throughput is in blocks per second; one block is 93 ms
+ * of audio.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AnalysisSinkBenchmark {
+
+    private static final int BLOCK_FRAMES = 4096;
+    private static final int SECONDS = 30;
+
+    private short[] mTrack;
+    private short[] mBlock;
+    private int mBlocks;
+    private int mNext;
+
+    private WaveformOverview.Builder mWaveform;
+    private BeatTracker mBeats;
+    private SpectrumAnalyzer mSpectrum;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        mTrack = TestSignals.music(SECONDS, 128);
+        mBlock = new short[BLOCK_FRAMES * TestSignals.CHANNELS];
+        mBlocks = mTrack.length / mBlock.length;
+    }
+
+    // Fresh sinks each iteration so their output arrays don't grow without bound.
+    @Setup(Level.Iteration)
+    public void setUpIteration() {
+        long expectedFrames = 10L * 60 * TestSignals.SAMPLE_RATE;
+        mWaveform = new WaveformOverview.Builder(TestSignals.SAMPLE_RATE, TestSignals.CHANNELS,
+                expectedFrames);
+        mBeats = new BeatTracker(TestSignals.SAMPLE_RATE, TestSignals.CHANNELS, expectedFrames);
+        mSpectrum = new SpectrumAnalyzer(TestSignals.SAMPLE_RATE, TestSignals.CHANNELS,
+                expectedFrames);
+        mNext = 0;
+    }
+
+    private short[] nextBlock() {
+        System.arraycopy(mTrack, mNext * mBlock.length, mBlock, 0, mBlock.length);
+        mNext = (mNext + 1) % mBlocks;
+        return mBlock;
+    }
+
+    @Benchmark
+    public boolean waveform() {
+        return mWaveform.onPcm(nextBlock(), BLOCK_FRAMES);
+    }
+
+    @Benchmark
+    public boolean beats() {
+        return mBeats.onPcm(nextBlock(), BLOCK_FRAMES);
+    }
+
+    @Benchmark
+    public boolean spectrum() {
+        return mSpectrum.onPcm(nextBlock(), BLOCK_FRAMES);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hammers a {@link CommandQueue} the way the playback engine uses it: three threads offering
+ * commands as fast as they can, one engine thread polling them, applying each to its own state
+ * and publishing a {@link PlayerState}, and one more thread reading those snapshots.
+ *
+ * This only measures: {@code rejected} counts offers that found the queue full and
+ * {@code outOfOrder} is reported for a look, but nothing fails on them. Ordering, lost
+ * commands and snapshot consistency are asserted by {@code CommandRunnerTest}.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CommandQueueBenchmark {
+
+    private static final int PRODUCERS = 3;
+    private static final int LOOP_LENGTH = 4000;
+
+    static final class Command {
+        final int mProducer;
+        final long mSequence;
+
+        Command(int producer, long sequence) {
+            mProducer = producer;
+            mSequence = sequence;
+        }
+    }
+
+    private final AtomicInteger mNextProducer = new AtomicInteger();
+    private CommandQueue<Command> mQueue;
+    // The engine thread's own state: the last sequence seen from each producer.
+    private long[] mLastSequence;
+    private volatile PlayerState mState;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mQueue = new CommandQueue<>(64);
+        mLastSequence = new long[PRODUCERS];
+        Arrays.fill(mLastSequence, -1);
+        mState = PlayerState.EMPTY;
+    }
+
+    /**
+     * A producer's identity and the sequence number of its next command.
+     */
+    @State(Scope.Thread)
+    public static class Producer {
+        int id = -1;
+        long next;
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Checks {
+        public long offered;
+        public long rejected;
+        public long polled;
+        public long outOfOrder;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            offered = 0;
+            rejected = 0;
+            polled = 0;
+            outOfOrder = 0;
+        }
+    }
+
+    @Benchmark
+    @Group("engine")
+    @GroupThreads(PRODUCERS)
+    public boolean offer(Producer producer, Checks checks) {
+        if (producer.id < 0) {
+            producer.id = mNextProducer.getAndIncrement();
+        }
+        if (mQueue.offer(new Command(producer.id, producer.next))) {
+            producer.next++;
+            checks.offered++;
+            return true;
+        }
+        checks.rejected++;
+        return false;
+    }
+
+    @Benchmark
+    @Group("engine")
+    @GroupThreads(1)
+    public PlayerState drain(Checks checks) {
+        Command command = mQueue.poll();
+        if (command == null) {
+            return null;
+        }
+        checks.polled++;
+        if (command.mSequence != mLastSequence[command.mProducer] + 1) {
+            checks.outOfOrder++;
+        }
+        mLastSequence[command.mProducer] = command.mSequence;
+        int start = (int) (command.mSequence % 100000);
+        PlayerState state = new PlayerState(true, true, 200000, true, start,
+                start + LOOP_LENGTH, 100, command.mProducer, PRODUCERS, false);
+        mState = state;
+        return state;
+    }
+
+    @Benchmark
+    @Group("engine")
+    @GroupThreads(1)
+    public int read() {
+        return mState.getLoopStart();
+    }
+}
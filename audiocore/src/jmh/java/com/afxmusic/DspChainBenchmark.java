@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One block of the AudioTrack engine's audio thread: {@link DspChain#render} out of a
+ * {@link PcmRing} the decoder keeps topped up, with the decoder's side done inline. At 44.1 kHz
+ * a block lasts 11.6 ms, which is the budget this has to stay far below, and it must not
+ * allocate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DspChainBenchmark {
+
+    private static final int BLOCK_FRAMES = 512;
+    private static final int RING_FRAMES = 32768;
+    private static final int MUSIC_SECONDS = 10;
+    private static final float MUSIC_BPM = 128;
+
+    @Param({"1.0", "0.6"})
+    public float speed;
+
+    @Param({"none", "eq", "click"})
+    public String stages;
+
+    private short[] mMusic;
+    private int mMusicFrames;
+    private short[] mOut;
+    private PcmRing mRing;
+    private DspChain mChain;
+    private int mCursor;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        mMusic = TestSignals.music(MUSIC_SECONDS, MUSIC_BPM);
+        mMusicFrames = mMusic.length / TestSignals.CHANNELS;
+        mOut = new short[BLOCK_FRAMES * TestSignals.CHANNELS];
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() {
+        mRing = new PcmRing(RING_FRAMES, TestSignals.CHANNELS);
+        mChain = new DspChain(TestSignals.SAMPLE_RATE, TestSignals.CHANNELS);
+        mChain.setSpeed(speed);
+        if (stages.equals("eq")) {
+            EqualizerStage eq = new EqualizerStage();
+            eq.setGain(EqualizerStage.LOW, 6);
+            eq.setGain(EqualizerStage.MID, -3);
+            eq.setGain(EqualizerStage.HIGH, 4);
+            mChain.add(eq);
+        } else if (stages.equals("click")) {
+            // A click on every beat of the music, with a bar of count-in before it wraps.
+            int[] beats = new int[(int) (MUSIC_SECONDS * MUSIC_BPM / 60)];
+            for (int i = 0; i < beats.length; i++) {
+                beats[i] = (int) (i * 60000 / MUSIC_BPM);
+            }
+            MetronomeStage metronome = new MetronomeStage();
+            metronome.setBeats(new BeatGrid(MUSIC_BPM, beats, 0));
+            metronome.setClicks(true);
+            metronome.setCountIn(BeatGrid.BEATS_PER_BAR);
+            metronome.setLoop(0, MUSIC_SECONDS * 1000);
+            mChain.add(metronome);
+        }
+        mCursor = 0;
+    }
+
+    @Benchmark
+    public int renderBlock() {
+        while (mRing.getFreeFrames() >= BLOCK_FRAMES) {
+            int frames = Math.min(BLOCK_FRAMES, mMusicFrames - mCursor);
+            mRing.write(mMusic, mCursor * TestSignals.CHANNELS, frames);
+            mCursor += frames;
+            if (mCursor >= mMusicFrames) {
+                // Wraps like a loop, so the chain also follows a jump now and then.
+                mRing.mark(0, false);
+                mCursor = 0;
+            }
+        }
+        return mChain.render(mRing, mOut, BLOCK_FRAMES);
+    }
+}
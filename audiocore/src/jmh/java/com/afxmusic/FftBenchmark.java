@@ -0,0 +1,70 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One windowed transform, as done per frame by the beat tracker (512) and the spectrum
+ * analyzer (2048).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FftBenchmark {
+
+    @Param({"512", "2048"})
+    public int size;
+
+    private Fft mFft;
+    private float[] mInput;
+    private float[] mRe;
+    private float[] mIm;
+    private float[] mMagnitudes;
+
+    @Setup
+    public void setUp() {
+        mFft = new Fft(size);
+        mInput = new float[size];
+        Random random = new Random(TestSignals.SEED);
+        for (int i = 0; i < size; i++) {
+            mInput[i] = (float) random.nextGaussian();
+        }
+        mRe = new float[size];
+        mIm = new float[size];
+        mMagnitudes = new float[size / 2];
+    }
+
+    @Benchmark
+    public float[] transform() {
+        System.arraycopy(mInput, 0, mRe, 0, size);
+        mFft.window(mRe, mIm);
+        mFft.transform(mRe, mIm);
+        mFft.magnitudes(mRe, mIm, mMagnitudes);
+        return mMagnitudes;
+    }
+}
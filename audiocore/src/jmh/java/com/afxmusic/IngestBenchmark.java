@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared-link ingest: streaming the audio out of a share response, as base64 JSON or as a
+ * binary {@link ShareHeader} payload, and hashing the result for the track cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class IngestBenchmark {
+
+    // 256 KB and 4 MB of audio, about 15 seconds and 4 minutes of a 128 kbps MP3.
+    @Param({"262144", "4194304"})
+    public int audioBytes;
+
+    private final SharedMusicDecoder mDecoder = new SharedMusicDecoder();
+    private final SharePayloadDecoder mPayloadDecoder = new SharePayloadDecoder();
+    private final DiscardingOutputStream mSink = new DiscardingOutputStream();
+    private byte[] mAudio;
+    private byte[] mResponse;
+    private byte[] mPayload;
+
+    @Setup
+    public void setUp() {
+        mAudio = TestSignals.bytes(audioBytes);
+        String json = "{\"title\":\"Benchmark\",\"artist\":\"AFX\",\"music\":"
+                + "\"data:audio/mp3;base64," + Base64.getEncoder().encodeToString(mAudio) + "\"}";
+        mResponse = json.getBytes(Charset.forName("US-ASCII"));
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        try {
+            new ShareHeader("Benchmark", 30000, 45000, 75, mAudio.length).write(payload);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        payload.write(mAudio, 0, mAudio.length);
+        mPayload = payload.toByteArray();
+    }
+
+    @Benchmark
+    public long decodeSharedResponse() throws IOException {
+        return mDecoder.decode(new ByteArrayInputStream(mResponse), mSink);
+    }
+
+    @Benchmark
+    public long decodeBinaryPayload() throws IOException {
+        return mPayloadDecoder.decode(new ByteArrayInputStream(mPayload), mSink);
+    }
+
+    @Benchmark
+    public String hashTrack() throws IOException {
+        return TrackCache.hash(new ByteArrayInputStream(mAudio));
+    }
+
+    private static final class DiscardingOutputStream extends OutputStream {
+        long mCount;
+
+        @Override
+        public void write(int b) {
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mCount += len;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A stand-in for the share server on the loopback interface, serving one song with what
+ * {@link ShareLinkResolver} relies on: a binary {@link ShareHeader} payload to clients that
+ * accept it, else JSON, gzipped if asked, a strong {@code ETag} per representation,
+ * {@code If-None-Match} and {@code Range} with {@code If-Range}. Like a real server, it
+ * doesn't gzip the binary payload, which is nearly all MP3.
+ *
+ * {@link #dropNext} makes the next response stop halfway, like a connection lost on a train.
+ */
+final class LocalLinkServer {
+
+    private final HttpServer mServer;
+    private final byte[] mJson;
+    private final byte[] mGzip;
+    private final byte[] mBinary;
+    private final String mEtag;
+    private final AtomicLong mBytesSent = new AtomicLong();
+    private volatile boolean mDropNext;
+
+    /**
+     * @param json   the JSON response
+     * @param binary the same song as a binary payload, or null to serve JSON only
+     */
+    LocalLinkServer(byte[] json, byte[] binary) throws IOException {
+        mJson = json;
+        mBinary = binary;
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(gzipped);
+        out.write(json);
+        out.close();
+        mGzip = gzipped.toByteArray();
+        mEtag = TrackCache.hash(new ByteArrayInputStream(json));
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        mServer.start();
+    }
+
+    String getUrl() {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + "/share?id=benchmark";
+    }
+
+    long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    void dropNext() {
+        mDropNext = true;
+    }
+
+    void stop() {
+        mServer.stop(0);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String accept = exchange.getRequestHeaders().getFirst("Accept");
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        boolean binary = mBinary != null && accept != null
+                && accept.contains(ShareHeader.CONTENT_TYPE);
+        boolean gzip = !binary && acceptEncoding != null && acceptEncoding.contains("gzip");
+        byte[] body = binary ? mBinary : gzip ? mGzip : mJson;
+        String etag = "\"" + mEtag + (binary ? "-bin" : gzip ? "-gz" : "") + "\"";
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        exchange.getResponseHeaders().set("Vary", "Accept, Accept-Encoding");
+        exchange.getResponseHeaders().set("Content-Type",
+                binary ? ShareHeader.CONTENT_TYPE : "application/json");
+        if (gzip) {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+        int from = 0;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        if (range != null && range.startsWith("bytes=") && range.endsWith("-")
+                && (ifRange == null || ifRange.equals(etag))) {
+            from = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+            if (from >= body.length) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + body.length);
+                exchange.sendResponseHeaders(416, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Range",
+                    "bytes " + from + "-" + (body.length - 1) + "/" + body.length);
+            exchange.sendResponseHeaders(206, body.length - from);
+        } else {
+            exchange.sendResponseHeaders(200, body.length);
+        }
+        int end = body.length;
+        if (mDropNext) {
+            mDropNext = false;
+            end = from + (body.length - from) / 2;
+        }
+        OutputStream out = exchange.getResponseBody();
+        out.write(body, from, end - from);
+        mBytesSent.addAndGet(end - from);
+        out.flush();
+    }
+}
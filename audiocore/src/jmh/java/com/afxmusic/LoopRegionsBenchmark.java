@@ -0,0 +1,72 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.afxmusic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finding the {@link LoopRegion} at a position among many overlapping ones, which a seek during
+ * a chain of regions does, and building the index, which every added region does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LoopRegionsBenchmark {
+
+    private static final int TRACK_MS = 5 * 60 * 1000;
+
+    @Param({"16", "1024"})
+    public int regions;
+
+    private List<LoopRegion> mList;
+    private LoopRegions mRegions;
+    private int mPosition;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        mList = new ArrayList<>();
+        for (int i = 0; i < regions; i++) {
+            int start = random.nextInt(TRACK_MS);
+            mList.add(new LoopRegion("region " + i, start, start + 1 + random.nextInt(30000)));
+        }
+        mRegions = new LoopRegions(mList);
+    }
+
+    @Benchmark
+    public int indexAt() {
+        mPosition = (mPosition + 7919) % TRACK_MS;
+        return mRegions.indexAt(mPosition);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public LoopRegions build() {
+        return new LoopRegions(mList);
+    }
+}
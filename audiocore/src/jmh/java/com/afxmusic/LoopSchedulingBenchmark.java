@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The position and loop bookkeeping done on every tick and every loop edit: extrapolating the
+ * {@link PlaybackClock} inside an A/B loop, re-anchoring it after a seek, and snapping loop
+ * points to a {@link BeatGrid}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LoopSchedulingBenchmark {
+
+    private static final int TRACK_MS = 5 * 60 * 1000;
+    private static final int POSITIONS = 1024;
+
+    private final int[] mPositions = new int[POSITIONS];
+    private int mIndex;
+    private PlaybackClock mClock;
+    private BeatGrid mBeats;
+
+    @Setup
+    public void setUp() {
+        mClock = new PlaybackClock(new PlaybackClock.PositionSource() {
+            @Override
+            public int getCurrentPosition() {
+                return -1;
+            }
+        });
+        mClock.setDuration(TRACK_MS);
+        mClock.start(30000, 1.25f);
+        mClock.setLoop(30000, 45000);
+
+        // 128 BPM for the whole track.
+        int[] beats = new int[TRACK_MS * 128 / 60000];
+        for (int i = 0; i < beats.length; i++) {
+            beats[i] = i * 60000 / 128;
+        }
+        mBeats = new BeatGrid(128, beats, 0);
+
+        Random random = new Random(TestSignals.SEED);
+        for (int i = 0; i < POSITIONS; i++) {
+            mPositions[i] = random.nextInt(TRACK_MS);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mClock.release();
+    }
+
+    @Benchmark
+    public int clockPosition() {
+        return mClock.getPosition();
+    }
+
+    @Benchmark
+    public void clockSeek() {
+        mIndex = (mIndex + 1) & (POSITIONS - 1);
+        mClock.seek(30000 + mPositions[mIndex] % 15000);
+    }
+
+    @Benchmark
+    public int snapToBeat() {
+        mIndex = (mIndex + 1) & (POSITIONS - 1);
+        return mBeats.snap(mPositions[mIndex], BeatGrid.SNAP_BEAT);
+    }
+
+    @Benchmark
+    public int snapToBar() {
+        mIndex = (mIndex + 1) & (POSITIONS - 1);
+        return mBeats.snap(mPositions[mIndex], BeatGrid.SNAP_BAR);
+    }
+}
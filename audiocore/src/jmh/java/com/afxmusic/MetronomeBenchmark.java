@@ -0,0 +1,232 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How far {@link MetronomeStage}'s clicks land from the beats they mark, measured on rendered
+ * PCM. Two {@link DspChain}s play the same looped track in lockstep, one with the metronome and
+ * one without; the second shows where each beat's transient comes out of the time stretcher,
+ * and the difference between the two shows where each click starts.
+ *
+ * {@code clicks} counts the clicks found, {@code driftFrames} adds up how far each was from
+ * its beat, so driftFrames / clicks is the mean drift in output frames, and {@code drifted}
+ * counts clicks more than {@link #MAX_DRIFT_MS} off. That must stay 0 at 1x and faster.
+ * Slowed down, a beat right at the middle of one of the stretcher's crossfades is heard twice,
+ * fading out and then in full, and the click goes with the first, one stretcher step early;
+ * that happens a few times in a thousand, never more than 90 ms off. {@code missed} counts
+ * beats that got no click and must stay 0; {@code unheard} counts clicks on beats the
+ * stretcher skipped altogether. {@code MetronomeStageTest} asserts the same on every build.
+ * The time is that of rendering one block through both chains.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MetronomeBenchmark {
+
+    static final int MAX_DRIFT_MS = 2;
+
+    private static final int BLOCK_FRAMES = 512;
+    private static final int RING_FRAMES = 32768;
+    private static final int BEAT_MS = 500;
+    private static final int LOOP_START_MS = 1000;
+    private static final int LOOP_END_MS = 5000;
+    private static final int TRACK_MS = 6000;
+    private static final int BURST_LEVEL = 20000;
+    // A transient or click is a new one after this much quiet. A transient counts from where
+    // it is half as loud as the track has it, as it may first come fading in or out of one of
+    // the time stretcher's crossfades.
+    private static final int GAP_MS = 100;
+    private static final int ONSET_LEVEL = BURST_LEVEL / 2;
+
+    @Param({"1.0", "0.6", "1.5"})
+    public float speed;
+
+    private short[] mTrack;
+    private BeatGrid mBeats;
+    private int mGapFrames;
+    private int mMaxDriftFrames;
+    private short[] mPlainOut;
+    private short[] mClickOut;
+    private PcmRing mPlainRing;
+    private PcmRing mClickRing;
+    private DspChain mPlain;
+    private DspChain mClicked;
+    private int mCursor;
+    private int mLoopStart;
+    private int mLoopEnd;
+
+    // The onset detector's state, carried from block to block.
+    private long mFrame;
+    private long mLastLoud;
+    private long mLastClick;
+    private long mTransient;
+    private long mClick;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        int rate = TestSignals.SAMPLE_RATE;
+        int frames = TRACK_MS * rate / 1000;
+        mTrack = new short[frames * TestSignals.CHANNELS];
+        int[] beats = new int[TRACK_MS / BEAT_MS];
+        int burst = rate * 3 / 2000;
+        for (int i = 0; i < beats.length; i++) {
+            beats[i] = i * BEAT_MS;
+            // A short 3 kHz burst right on the beat.
+            int start = (int) ((long) beats[i] * rate / 1000);
+            for (int k = 0; k < burst; k++) {
+                short sample = (short) (BURST_LEVEL * Math.sin(2 * Math.PI * 3000 * k / rate));
+                for (int c = 0; c < TestSignals.CHANNELS; c++) {
+                    mTrack[(start + k) * TestSignals.CHANNELS + c] = sample;
+                }
+            }
+        }
+        mBeats = new BeatGrid(60000f / BEAT_MS, beats, 0);
+        mGapFrames = GAP_MS * rate / 1000;
+        mMaxDriftFrames = MAX_DRIFT_MS * rate / 1000;
+        mLoopStart = LOOP_START_MS * rate / 1000;
+        mLoopEnd = LOOP_END_MS * rate / 1000;
+        mPlainOut = new short[BLOCK_FRAMES * TestSignals.CHANNELS];
+        mClickOut = new short[BLOCK_FRAMES * TestSignals.CHANNELS];
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() {
+        mPlainRing = new PcmRing(RING_FRAMES, TestSignals.CHANNELS);
+        mClickRing = new PcmRing(RING_FRAMES, TestSignals.CHANNELS);
+        mPlain = new DspChain(TestSignals.SAMPLE_RATE, TestSignals.CHANNELS);
+        mClicked = new DspChain(TestSignals.SAMPLE_RATE, TestSignals.CHANNELS);
+        mPlain.setSpeed(speed);
+        mClicked.setSpeed(speed);
+        MetronomeStage metronome = new MetronomeStage();
+        metronome.setBeats(mBeats);
+        metronome.setClicks(true);
+        metronome.setCountIn(BeatGrid.BEATS_PER_BAR);
+        metronome.setLoop(LOOP_START_MS, LOOP_END_MS);
+        mClicked.add(metronome);
+        mPlainRing.mark(mLoopStart, false);
+        mClickRing.mark(mLoopStart, false);
+        mCursor = mLoopStart;
+        mFrame = 0;
+        mLastLoud = -mGapFrames;
+        mLastClick = -mGapFrames;
+        mTransient = -1;
+        mClick = -1;
+    }
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Drift {
+        public long clicks;
+        public long missed;
+        public long drifted;
+        public long driftFrames;
+        public long unheard;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            clicks = 0;
+            missed = 0;
+            drifted = 0;
+            driftFrames = 0;
+            unheard = 0;
+        }
+    }
+
+    @Benchmark
+    public int renderBlock(Drift drift) {
+        // The decoder's side: loop the track into both rings alike.
+        while (mPlainRing.getFreeFrames() >= BLOCK_FRAMES) {
+            int frames = Math.min(BLOCK_FRAMES, mLoopEnd - mCursor);
+            mPlainRing.write(mTrack, mCursor * TestSignals.CHANNELS, frames);
+            mClickRing.write(mTrack, mCursor * TestSignals.CHANNELS, frames);
+            mCursor += frames;
+            if (mCursor >= mLoopEnd) {
+                mPlainRing.mark(mLoopStart, false);
+                mClickRing.mark(mLoopStart, false);
+                mCursor = mLoopStart;
+            }
+        }
+        int frames = mPlain.render(mPlainRing, mPlainOut, BLOCK_FRAMES);
+        if (mClicked.render(mClickRing, mClickOut, BLOCK_FRAMES) != frames) {
+            throw new IllegalStateException("The chains fell out of step");
+        }
+        for (int i = 0; i < frames; i++, mFrame++) {
+            int plain = mPlainOut[i * TestSignals.CHANNELS];
+            int click = mClickOut[i * TestSignals.CHANNELS] - plain;
+            if (Math.abs(plain) >= ONSET_LEVEL) {
+                if (mFrame - mLastLoud >= mGapFrames) {
+                    if (mTransient >= 0) {
+                        drift.missed++;
+                    }
+                    mTransient = mFrame;
+                    match(drift);
+                }
+                mLastLoud = mFrame;
+            }
+            if (click != 0) {
+                if (mFrame - mLastClick >= mGapFrames) {
+                    if (mClick >= 0) {
+                        drift.unheard++;
+                    }
+                    mClick = mFrame;
+                    match(drift);
+                }
+                mLastClick = mFrame;
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * Pairs the newest transient and click once both have been seen, or gives up on the older
+     * of the two. One left unpaired when another of its kind comes is counted there.
+     */
+    private void match(Drift drift) {
+        if (mTransient < 0 || mClick < 0) {
+            return;
+        }
+        long distance = Math.abs(mClick - mTransient);
+        if (distance < mGapFrames) {
+            drift.clicks++;
+            drift.driftFrames += distance;
+            if (distance > mMaxDriftFrames) {
+                drift.drifted++;
+            }
+            mTransient = -1;
+            mClick = -1;
+        } else if (mTransient < mClick) {
+            drift.missed++;
+            mTransient = -1;
+        } else {
+            drift.unheard++;
+            mClick = -1;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A decoder thread and an audio thread passing blocks through a {@link PcmRing} at full
+ * speed, each side counting its own calls, including the ones that found the ring full or
+ * empty. Shows what the handover costs without any locking.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PcmRingBenchmark {
+
+    private static final int BLOCK_FRAMES = 512;
+
+    private PcmRing mRing;
+    private short[] mBlock;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        mRing = new PcmRing(16384, TestSignals.CHANNELS);
+        mBlock = TestSignals.music(1, 128);
+    }
+
+    /**
+     * Each thread's own output buffer.
+     */
+    @State(Scope.Thread)
+    public static class Out {
+        final short[] pcm = new short[BLOCK_FRAMES * TestSignals.CHANNELS];
+    }
+
+    @Benchmark
+    @Group("spsc")
+    @GroupThreads(1)
+    public int write() {
+        return mRing.write(mBlock, 0, BLOCK_FRAMES);
+    }
+
+    @Benchmark
+    @Group("spsc")
+    @GroupThreads(1)
+    public int read(Out out) {
+        return mRing.read(out.pcm, 0, BLOCK_FRAMES);
+    }
+}
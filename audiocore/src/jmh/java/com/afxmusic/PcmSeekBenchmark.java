@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.afxmusic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Random access into a five-minute {@link PcmFile}: what a seek or skip costs once the track
+ * is decoded, i.e. reading the first chunk of audio at a new position. Also the one-off cost of
+ * writing the file during analysis.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PcmSeekBenchmark {
+
+    private static final int SECONDS = 5 * 60;
+    private static final int CHUNK_FRAMES = 1024;
+    private static final int BLOCK_FRAMES = 4096;
+
+    private File mDir;
+    private short[] mTrack;
+    private PcmFile mPcm;
+    private short[] mChunk;
+    private int[] mPositions;
+    private int mNext;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("pcm", "bench");
+        mDir.delete();
+        mTrack = TestSignals.music(SECONDS, 120);
+        PcmCache cache = new PcmCache(mDir, Long.MAX_VALUE);
+        mPcm = cache.put("track", write(cache, "track"));
+        mChunk = new short[CHUNK_FRAMES * TestSignals.CHANNELS];
+        Random random = new Random(TestSignals.SEED);
+        mPositions = new int[4096];
+        for (int i = 0; i < mPositions.length; i++) {
+            mPositions[i] = random.nextInt(mPcm.getFrameCount() - CHUNK_FRAMES);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    private PcmFile.Writer write(PcmCache cache, String hash) throws IOException {
+        PcmFile.Writer writer = cache.newWriter(hash, TestSignals.SAMPLE_RATE,
+                TestSignals.CHANNELS);
+        short[] block = new short[BLOCK_FRAMES * TestSignals.CHANNELS];
+        for (int offset = 0; offset < mTrack.length; offset += block.length) {
+            int samples = Math.min(block.length, mTrack.length - offset);
+            System.arraycopy(mTrack, offset, block, 0, samples);
+            writer.onPcm(block, samples / TestSignals.CHANNELS);
+        }
+        return writer;
+    }
+
+    @Benchmark
+    public short seekAndRead() {
+        int position = mPositions[mNext++ & (mPositions.length - 1)];
+        mPcm.read(position, mChunk, CHUNK_FRAMES);
+        return mChunk[0];
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public File writeTrack() throws IOException {
+        return write(new PcmCache(mDir, Long.MAX_VALUE), "write").finish();
+    }
+}
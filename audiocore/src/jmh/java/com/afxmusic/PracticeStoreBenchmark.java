@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.afxmusic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link PracticeStore} with a heavy user's history, {@link #TRACKS} tracks each saved
+ * {@link #SAVES_PER_TRACK} times: reading the log at startup, and restoring one track's state
+ * when it is loaded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PracticeStoreBenchmark {
+
+    private static final int TRACKS = 500;
+    private static final int SAVES_PER_TRACK = 20;
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private File mFile;
+    private PracticeStore mStore;
+    private int mNext;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("practice", ".log");
+        mFile.delete();
+        PracticeStore store = new PracticeStore(mFile, DIRECT);
+        for (int save = 0; save < SAVES_PER_TRACK; save++) {
+            for (int track = 0; track < TRACKS; track++) {
+                PracticeState state = new PracticeState();
+                state.setSpeedPercent(60 + save);
+                state.setPosition(save * 1000);
+                state.setLoop(30000, 45000);
+                state.setRegions(Arrays.asList(
+                        new LoopRegion("intro", 0, 16000),
+                        new LoopRegion("chorus 8-count", 30000, 45000),
+                        new LoopRegion("bridge", 90000, 105000)));
+                store.put(hash(track), state);
+            }
+        }
+        mStore = new PracticeStore(mFile, DIRECT);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private static String hash(int track) {
+        return String.format("%040x", track * 2654435761L);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public PracticeStore open() {
+        return new PracticeStore(mFile, DIRECT);
+    }
+
+    @Benchmark
+    public PracticeState restore() {
+        return mStore.get(hash(mNext++ % TRACKS));
+    }
+}
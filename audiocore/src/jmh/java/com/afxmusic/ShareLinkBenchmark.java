@@ -0,0 +1,252 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opening a shared link through the {@link ShareLinkResolver} against a {@link LocalLinkServer}
+ * on loopback, with a 4 MB track served as gzipped JSON or as a binary {@link ShareHeader}
+ * payload:
+ *
+ * <ul>
+ * <li>{@code cold}: first open, the whole gzipped response.
+ * <li>{@code warm}: reopen while the track is cached, a 304.
+ * <li>{@code resumed}: reopen after the app died halfway, the second half only.
+ * <li>{@code dropped}: first open with the connection lost halfway and resumed in place.
+ * </ul>
+ *
+ * Besides the time, the {@code bytes} and {@code opens} counters report what crossed the
+ * network, so a change that costs bytes shows up even though loopback is too fast for it to
+ * cost time.
+ * Every open also checks that the decoded audio is complete.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ShareLinkBenchmark {
+
+    private static final int AUDIO_BYTES = 4194304;
+
+    /**
+     * Network bytes and opens over the iteration; JMH sums these over iterations too, so
+     * bytes / opens is what one open costs.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Transferred {
+        public long bytes;
+        public long opens;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            bytes = 0;
+            opens = 0;
+        }
+
+        void add(long transferred) {
+            bytes += transferred;
+            opens++;
+        }
+    }
+
+    /**
+     * The server and a resolver with its own directory. Each case below extends it with what
+     * to do before every open.
+     */
+    @State(Scope.Thread)
+    public abstract static class Link {
+        // What the server offers; the resolver asks for binary first.
+        @Param({"json", "binary"})
+        public String format;
+
+        final SharedMusicDecoder mDecoder = new SharedMusicDecoder();
+        final SharePayloadDecoder mPayloadDecoder = new SharePayloadDecoder();
+        final CountingOutputStream mSink = new CountingOutputStream();
+        LocalLinkServer mServer;
+        File mDir;
+        ShareLinkResolver mResolver;
+        String mUrl;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            byte[] audio = TestSignals.bytes(AUDIO_BYTES);
+            String json = "{\"title\":\"Benchmark\",\"artist\":\"AFX\",\"music\":"
+                    + "\"data:audio/mp3;base64," + Base64.getEncoder().encodeToString(audio)
+                    + "\"}";
+            byte[] binary = null;
+            if (format.equals("binary")) {
+                ByteArrayOutputStream payload = new ByteArrayOutputStream();
+                new ShareHeader("Benchmark", 30000, 45000, 75, audio.length).write(payload);
+                payload.write(audio);
+                binary = payload.toByteArray();
+            }
+            mServer = new LocalLinkServer(json.getBytes(Charset.forName("US-ASCII")), binary);
+            mUrl = mServer.getUrl();
+            mDir = File.createTempFile("links", "");
+            mDir.delete();
+            // No backoff, so a resume measures the transfer rather than the wait.
+            mResolver = new ShareLinkResolver(mDir, ShareLinkResolver.CONNECT_TIMEOUT_MS,
+                    ShareLinkResolver.READ_TIMEOUT_MS, ShareLinkResolver.MAX_ATTEMPTS, 0);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            mServer.stop();
+            File[] files = mDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            mDir.delete();
+        }
+
+        /**
+         * Opens the link and decodes the audio out of it until it ends or {@code limit} bytes
+         * of audio were written.
+         */
+        long open(boolean revalidate, long limit) throws IOException {
+            ShareLinkResolver.Body body = mResolver.open(mUrl, revalidate);
+            mSink.mCount = 0;
+            mSink.mLimit = limit;
+            try {
+                if (body.isBinaryPayload() != format.equals("binary")) {
+                    throw new IllegalStateException("Served " + body.getContentType());
+                }
+                return body.isBinaryPayload()
+                        ? mPayloadDecoder.decode(body, mSink) : mDecoder.decode(body, mSink);
+            } catch (LimitReachedException e) {
+                return mSink.mCount;
+            } finally {
+                body.close();
+            }
+        }
+
+        long openAll(Transferred transferred) throws IOException {
+            long before = mResolver.getBytesTransferred();
+            long decoded = open(false, Long.MAX_VALUE);
+            if (decoded != AUDIO_BYTES) {
+                throw new IllegalStateException("Decoded " + decoded + " of " + AUDIO_BYTES);
+            }
+            transferred.add(mResolver.getBytesTransferred() - before);
+            return decoded;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cold extends Link {
+        @Setup(Level.Invocation)
+        public void forget() {
+            mResolver.forget(mUrl);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Warm extends Link {
+        @Setup(Level.Invocation)
+        public void download() throws IOException {
+            mResolver.forget(mUrl);
+            open(false, Long.MAX_VALUE);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Interrupted extends Link {
+        @Setup(Level.Invocation)
+        public void downloadHalf() throws IOException {
+            mResolver.forget(mUrl);
+            open(false, AUDIO_BYTES / 2);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Dropped extends Link {
+        @Setup(Level.Invocation)
+        public void forgetAndDrop() {
+            mResolver.forget(mUrl);
+            mServer.dropNext();
+        }
+    }
+
+    @Benchmark
+    public long cold(Cold link, Transferred transferred) throws IOException {
+        return link.openAll(transferred);
+    }
+
+    @Benchmark
+    public long warm(Warm link, Transferred transferred) throws IOException {
+        long before = link.mResolver.getBytesTransferred();
+        InputStream body = link.mResolver.open(link.mUrl, true);
+        if (body != null) {
+            body.close();
+            throw new IllegalStateException("Expected 304");
+        }
+        transferred.add(link.mResolver.getBytesTransferred() - before);
+        return 0;
+    }
+
+    @Benchmark
+    public long resumed(Interrupted link, Transferred transferred) throws IOException {
+        return link.openAll(transferred);
+    }
+
+    @Benchmark
+    public long dropped(Dropped link, Transferred transferred) throws IOException {
+        return link.openAll(transferred);
+    }
+
+    private static final class LimitReachedException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        long mCount;
+        long mLimit;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            mCount += len;
+            if (mCount >= mLimit) {
+                throw new LimitReachedException();
+            }
+        }
+    }
+}
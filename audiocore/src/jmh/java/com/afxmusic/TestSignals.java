@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import java.util.Random;
+
+/**
+ * Deterministic inputs for the benchmarks, so every run and every commit measures the same
+ * data.
+ */
+final class TestSignals {
+
+    static final int SAMPLE_RATE = 44100;
+    static final int CHANNELS = 2;
+    static final long SEED = 20171017L;
+
+    private TestSignals() {
+    }
+
+    /**
+     * A rough stand-in for dance music: a kick on every beat at {@code bpm}, a hi-hat between
+     * beats, a chord that changes every bar and a little noise, as interleaved stereo.
+     */
+    static short[] music(int seconds, float bpm) {
+        Random random = new Random(SEED);
+        int frames = seconds * SAMPLE_RATE;
+        short[] pcm = new short[frames * CHANNELS];
+        double beat = 60.0 / bpm;
+        double[] chord = {220, 277.18, 329.63};
+        for (int frame = 0; frame < frames; frame++) {
+            double t = (double) frame / SAMPLE_RATE;
+            double inBeat = t % beat;
+            double inOffbeat = (t + beat / 2) % beat;
+            int bar = (int) (t / (beat * 4));
+            double v = 0.02 * random.nextGaussian();
+            v += 0.5 * Math.exp(-inBeat * 30) * Math.sin(2 * Math.PI * 60 * inBeat);
+            v += 0.15 * Math.exp(-inOffbeat * 200) * random.nextGaussian();
+            for (double note : chord) {
+                v += 0.08 * Math.sin(2 * Math.PI * note * (1 + (bar % 4) / 12.0) * t);
+            }
+            short sample = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, v * 20000));
+            for (int c = 0; c < CHANNELS; c++) {
+                pcm[frame * CHANNELS + c] = sample;
+            }
+        }
+        return pcm;
+    }
+
+    /**
+     * Random bytes standing in for an MP3.
+     */
+    static byte[] bytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(SEED).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formatting playback positions, which happens on every position update. {@link #labelTick}
+ * is the path a tick takes to the time label and must stay at 0 bytes allocated per
+ * operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TimeFormatBenchmark {
+
+    private static final int POSITIONS = 1024;
+
+    private final int[] mPositions = new int[POSITIONS];
+    private final char[] mChars = new char[TimeFormat.MAX_TIME_CHARS];
+    private final LabelText mLabel = new LabelText("", "/");
+    private int mIndex;
+    private int mTickPosition;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(TestSignals.SEED);
+        for (int i = 0; i < POSITIONS; i++) {
+            mPositions[i] = random.nextInt(10 * 60 * 1000);
+        }
+    }
+
+    @Benchmark
+    public String convertToTime() {
+        mIndex = (mIndex + 1) & (POSITIONS - 1);
+        return TimeFormat.convertToTime(mPositions[mIndex]);
+    }
+
+    @Benchmark
+    public int formatTime() {
+        mIndex = (mIndex + 1) & (POSITIONS - 1);
+        return TimeFormat.formatTime(mPositions[mIndex], mChars, 0);
+    }
+
+    /**
+     * One position tick a second apart, as the playback clock sends them.
+     */
+    @Benchmark
+    public boolean labelTick() {
+        mTickPosition = (mTickPosition + PlaybackClock.TICK_INTERVAL_MS) % (10 * 60 * 1000);
+        return mLabel.setTime(mTickPosition);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Producing one {@code GaplessLoopPlayer} write chunk of stretched audio, the work done per
+ * AudioTrack write at any speed other than 1x. At 44.1 kHz a chunk lasts 23 ms, which is the
+ * budget this has to stay far below.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TimeStretcherBenchmark {
+
+    private static final int CHUNK_FRAMES = 1024;
+
+    @Param({"0.5", "0.75", "1.25", "2.0"})
+    public float speed;
+
+    private short[] mLoop;
+    private int mLoopFrames;
+    private short[] mOut;
+    private TimeStretcher mStretcher;
+    private int mCursor;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        mLoop = TestSignals.music(10, 128);
+        mLoopFrames = mLoop.length / TestSignals.CHANNELS;
+        mOut = new short[CHUNK_FRAMES * TestSignals.CHANNELS];
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() {
+        mStretcher = new TimeStretcher(TestSignals.SAMPLE_RATE, TestSignals.CHANNELS,
+                CHUNK_FRAMES);
+        mStretcher.setSpeed(speed);
+        mCursor = 0;
+    }
+
+    @Benchmark
+    public int stretchChunk() {
+        while (mStretcher.getAvailableFrames() < CHUNK_FRAMES) {
+            int frames = Math.min(CHUNK_FRAMES, mLoopFrames - mCursor);
+            mStretcher.putSamples(mLoop, mCursor * TestSignals.CHANNELS, frames);
+            mCursor += frames;
+            if (mCursor >= mLoopFrames) {
+                mCursor = 0;
+            }
+        }
+        return mStretcher.receiveSamples(mOut, 0, CHUNK_FRAMES);
+    }
+}
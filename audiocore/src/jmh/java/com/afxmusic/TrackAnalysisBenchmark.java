@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The whole analysis pass over a five-minute track, minus the decoding itself: what a user
+ * waits for between opening a track and seeing its waveform and beats.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TrackAnalysisBenchmark {
+
+    private static final int SECONDS = 5 * 60;
+    private static final int BLOCK_FRAMES = 4096;
+    private static final float BPM = 128;
+
+    private short[] mTrack;
+    private short[] mBlock;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mTrack = TestSignals.music(SECONDS, BPM);
+        mBlock = new short[BLOCK_FRAMES * TestSignals.CHANNELS];
+    }
+
+    private void feed(PcmSink sink) {
+        for (int offset = 0; offset < mTrack.length; offset += mBlock.length) {
+            int samples = Math.min(mBlock.length, mTrack.length - offset);
+            System.arraycopy(mTrack, offset, mBlock, 0, samples);
+            sink.onPcm(mBlock, samples / TestSignals.CHANNELS);
+        }
+    }
+
+    private long expectedFrames() {
+        return mTrack.length / TestSignals.CHANNELS;
+    }
+
+    @Benchmark
+    public WaveformOverview waveform() {
+        WaveformOverview.Builder builder = new WaveformOverview.Builder(
+                TestSignals.SAMPLE_RATE, TestSignals.CHANNELS, expectedFrames());
+        feed(builder);
+        return builder.build();
+    }
+
+    @Benchmark
+    public BeatGrid beats() {
+        BeatTracker tracker = new BeatTracker(TestSignals.SAMPLE_RATE, TestSignals.CHANNELS,
+                expectedFrames());
+        feed(tracker);
+        return tracker.finish();
+    }
+
+    @Benchmark
+    public Spectrogram spectrum() {
+        SpectrumAnalyzer analyzer = new SpectrumAnalyzer(TestSignals.SAMPLE_RATE,
+                TestSignals.CHANNELS, expectedFrames());
+        feed(analyzer);
+        return analyzer.finish();
+    }
+}
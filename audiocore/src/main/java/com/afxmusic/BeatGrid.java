@@ -0,0 +1,188 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * The beats found in a track by {@link BeatTracker}: the estimated tempo, the time of every
+ * beat, and which beat starts the first bar. Bars are assumed to be {@link #BEATS_PER_BAR}
+ * beats long, which holds for nearly everything we dance to.
+ */
+public final class BeatGrid {
+
+    public static final int BEATS_PER_BAR = 4;
+
+    public static final int SNAP_NONE = 0;
+    public static final int SNAP_BEAT = 1;
+    public static final int SNAP_BAR = 2;
+
+    private static final int MAGIC = 0x41465842; // "AFXB"
+    private static final int VERSION = 1;
+
+    private final float mBpm;
+    private final int[] mBeats;
+    private final int mDownbeat;
+
+    /**
+     * @param bpm      estimated tempo, or 0 if none was found
+     * @param beats    beat times in milliseconds, ascending
+     * @param downbeat index of the first beat that starts a bar
+     */
+    public BeatGrid(float bpm, int[] beats, int downbeat) {
+        mBpm = bpm;
+        mBeats = beats;
+        mDownbeat = downbeat;
+    }
+
+    public float getBpm() {
+        return mBpm;
+    }
+
+    public int getBeatCount() {
+        return mBeats.length;
+    }
+
+    public int getBeat(int index) {
+        return mBeats[index];
+    }
+
+    public int getDownbeat() {
+        return mDownbeat;
+    }
+
+    public boolean isBar(int index) {
+        return (index - mDownbeat) % BEATS_PER_BAR == 0;
+    }
+
+    /**
+     * Moves {@code milliseconds} to the nearest beat or bar line.
+     *
+     * @param snap one of {@link #SNAP_NONE}, {@link #SNAP_BEAT} or {@link #SNAP_BAR}
+     */
+    public int snap(int milliseconds, int snap) {
+        if (snap == SNAP_NONE || mBeats.length == 0) {
+            return milliseconds;
+        }
+        int index = nearestBeat(milliseconds);
+        if (snap == SNAP_BAR) {
+            int offset = ((index - mDownbeat) % BEATS_PER_BAR + BEATS_PER_BAR) % BEATS_PER_BAR;
+            int before = index - offset;
+            int after = before + BEATS_PER_BAR;
+            if (before >= 0 && (after >= mBeats.length
+                    || milliseconds - mBeats[before] <= mBeats[after] - milliseconds)) {
+                index = before;
+            } else if (after < mBeats.length) {
+                index = after;
+            }
+        }
+        return mBeats[index];
+    }
+
+    /**
+     * Returns the first beat or bar line after {@code milliseconds}, or {@code milliseconds}
+     * itself if there is none.
+     */
+    public int next(int milliseconds, int snap) {
+        if (snap == SNAP_NONE) {
+            return milliseconds;
+        }
+        for (int i = firstBeatAfter(milliseconds); i < mBeats.length; i++) {
+            if (snap == SNAP_BEAT || isBar(i)) {
+                return mBeats[i];
+            }
+        }
+        return milliseconds;
+    }
+
+    private int nearestBeat(int milliseconds) {
+        int after = firstBeatAfter(milliseconds);
+        if (after == 0) {
+            return 0;
+        }
+        if (after == mBeats.length
+                || milliseconds - mBeats[after - 1] <= mBeats[after] - milliseconds) {
+            return after - 1;
+        }
+        return after;
+    }
+
+    private int firstBeatAfter(int milliseconds) {
+        int index = Arrays.binarySearch(mBeats, milliseconds);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    /**
+     * Writes the grid to {@code file}, replacing it atomically.
+     */
+    public void save(File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * (5 + mBeats.length))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putFloat(mBpm).putInt(mDownbeat)
+                .putInt(mBeats.length);
+        buffer.asIntBuffer().put(mBeats);
+
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(buffer.array());
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not save beats to " + file);
+        }
+    }
+
+    /**
+     * Reads a file written by {@link #save}.
+     *
+     * @return the grid, or null if the file is missing or not a grid we understand
+     */
+    public static BeatGrid load(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.remaining() < 20 || buffer.getInt() != MAGIC
+                    || buffer.getInt() != VERSION) {
+                return null;
+            }
+            float bpm = buffer.getFloat();
+            int downbeat = buffer.getInt();
+            int[] beats = new int[buffer.getInt()];
+            buffer.asIntBuffer().get(beats);
+            return new BeatGrid(bpm, beats, downbeat);
+        } catch (RuntimeException e) {
+            // Truncated or corrupt; it will be rebuilt.
+            return null;
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+/**
+ * Finds the beats of a track from its decoded PCM.
+ *
+ * While decoding, the audio is downmixed, decimated to roughly {@link #ANALYSIS_RATE} and
+ * turned into an onset strength envelope (log-magnitude spectral flux), one value per
+ * {@link #HOP} samples. That envelope is all that is kept; {@link #finish} then estimates the
+ * tempo from its autocorrelation and places the beats with dynamic programming, which follows
+ * small tempo drifts instead of laying a rigid grid over the track.
+ */
+public final class BeatTracker implements PcmSink {
+
+    public static final int ANALYSIS_RATE = 11025;
+    public static final int FFT_SIZE = 512;
+    public static final int HOP = 128;
+
+    static final float MIN_BPM = 60;
+    static final float MAX_BPM = 200;
+    // Tempo estimates are weighted towards this, an octave either side counting about half.
+    static final float PRIOR_BPM = 120;
+    static final float PRIOR_WIDTH_OCTAVES = 1.2f;
+    // How strongly beat placement resists deviating from the estimated period.
+    static final float TIGHTNESS = 100;
+    // Compression applied to magnitudes before taking the flux.
+    private static final float LOG_GAIN = 1000;
+
+    private final int mChannels;
+    private final int mDecimation;
+    private final float mAnalysisRate;
+    private final float mFrameRate;
+
+    private final Fft mFft = new Fft(FFT_SIZE);
+    private final float[] mRing = new float[FFT_SIZE];
+    private final float[] mRe = new float[FFT_SIZE];
+    private final float[] mIm = new float[FFT_SIZE];
+    private float[] mSpectrum = new float[FFT_SIZE / 2];
+    private float[] mPreviousSpectrum = new float[FFT_SIZE / 2];
+    private int mRingPosition;
+    private int mHopFill;
+    private float mDecimationSum;
+    private int mDecimationCount;
+
+    private float[] mEnvelope;
+    private int mFrames;
+
+    /**
+     * @param expectedFrames a guess at the track length, to size the envelope up front
+     */
+    public BeatTracker(int sampleRate, int channels, long expectedFrames) {
+        mChannels = channels;
+        mDecimation = Math.max(1, Math.round((float) sampleRate / ANALYSIS_RATE));
+        mAnalysisRate = (float) sampleRate / mDecimation;
+        mFrameRate = mAnalysisRate / HOP;
+        mEnvelope = new float[(int) Math.max(256, expectedFrames / mDecimation / HOP + 1)];
+    }
+
+    @Override
+    public boolean onPcm(short[] pcm, int frames) {
+        int channels = mChannels;
+        float scale = 1f / (channels * mDecimation * Short.MAX_VALUE);
+        for (int frame = 0; frame < frames; frame++) {
+            int sum = 0;
+            for (int c = 0; c < channels; c++) {
+                sum += pcm[frame * channels + c];
+            }
+            mDecimationSum += sum;
+            if (++mDecimationCount == mDecimation) {
+                push(mDecimationSum * scale);
+                mDecimationSum = 0;
+                mDecimationCount = 0;
+            }
+        }
+        return true;
+    }
+
+    private void push(float sample) {
+        mRing[mRingPosition] = sample;
+        mRingPosition = (mRingPosition + 1) & (FFT_SIZE - 1);
+        if (++mHopFill == HOP) {
+            mHopFill = 0;
+            analyzeFrame();
+        }
+    }
+
+    private void analyzeFrame() {
+        // Oldest sample first.
+        int head = FFT_SIZE - mRingPosition;
+        System.arraycopy(mRing, mRingPosition, mRe, 0, head);
+        System.arraycopy(mRing, 0, mRe, head, mRingPosition);
+        mFft.window(mRe, mIm);
+        mFft.transform(mRe, mIm);
+        mFft.magnitudes(mRe, mIm, mSpectrum);
+
+        float[] spectrum = mSpectrum;
+        float[] previous = mPreviousSpectrum;
+        float flux = 0;
+        for (int bin = 1; bin < spectrum.length; bin++) {
+            float value = fastLog(1 + LOG_GAIN * spectrum[bin]);
+            spectrum[bin] = value;
+            if (value > previous[bin]) {
+                flux += value - previous[bin];
+            }
+        }
+        mSpectrum = previous;
+        mPreviousSpectrum = spectrum;
+
+        if (mFrames == mEnvelope.length) {
+            float[] grown = new float[mEnvelope.length * 2];
+            System.arraycopy(mEnvelope, 0, grown, 0, mFrames);
+            mEnvelope = grown;
+        }
+        // The first frame is measured against silence.
+        mEnvelope[mFrames] = mFrames == 0 ? 0 : flux;
+        mFrames++;
+    }
+
+    /**
+     * Natural log to about two decimal places, which is plenty for compressing magnitudes and
+     * several times cheaper than {@link Math#log} in this loop. {@code x} must be positive.
+     */
+    static float fastLog(float x) {
+        int bits = Float.floatToRawIntBits(x);
+        float exponent = ((bits >>> 23) & 0xff) - 127;
+        float mantissa = Float.intBitsToFloat((bits & 0x7fffff) | 0x3f800000);
+        float log2 = exponent + (-0.34484843f * mantissa + 2.02466578f) * mantissa - 0.67487759f;
+        return log2 * 0.6931472f;
+    }
+
+    /**
+     * Estimates the tempo and beats from everything received so far.
+     *
+     * @return the beats; empty if the track is too short or has no discernible pulse
+     */
+    public BeatGrid finish() {
+        int n = mFrames;
+        int maxLag = (int) Math.ceil(mFrameRate * 60 / MIN_BPM);
+        if (n < maxLag * 4) {
+            return new BeatGrid(0, new int[0], 0);
+        }
+        float[] envelope = normalize(mEnvelope, n, Math.round(mFrameRate / 4));
+        float period = estimatePeriod(envelope, n);
+        if (period <= 0) {
+            return new BeatGrid(0, new int[0], 0);
+        }
+        int[] frames = trackBeats(envelope, n, period);
+
+        int[] beats = new int[frames.length];
+        float[] strength = new float[BeatGrid.BEATS_PER_BAR];
+        for (int i = 0; i < frames.length; i++) {
+            // Each envelope value describes the window centred half an FFT before its hop.
+            float sample = (frames[i] + 1) * HOP - FFT_SIZE / 2;
+            beats[i] = Math.max(0, Math.round(sample * 1000 / mAnalysisRate));
+            strength[i % BeatGrid.BEATS_PER_BAR] += envelope[frames[i]];
+        }
+        // Bar lines tend to carry the strongest onsets.
+        int downbeat = 0;
+        for (int i = 1; i < strength.length; i++) {
+            if (strength[i] > strength[downbeat]) {
+                downbeat = i;
+            }
+        }
+        return new BeatGrid(mFrameRate * 60 / period, beats, downbeat);
+    }
+
+    /**
+     * Removes the local mean, keeps only rises and scales to unit deviation.
+     */
+    private static float[] normalize(float[] raw, int n, int radius) {
+        double[] prefix = new double[n + 1];
+        for (int i = 0; i < n; i++) {
+            prefix[i + 1] = prefix[i] + raw[i];
+        }
+        float[] out = new float[n];
+        double squares = 0;
+        for (int i = 0; i < n; i++) {
+            int from = Math.max(0, i - radius);
+            int to = Math.min(n, i + radius + 1);
+            float value = raw[i] - (float) ((prefix[to] - prefix[from]) / (to - from));
+            out[i] = value > 0 ? value : 0;
+            squares += out[i] * out[i];
+        }
+        float deviation = (float) Math.sqrt(squares / n);
+        if (deviation > 0) {
+            for (int i = 0; i < n; i++) {
+                out[i] /= deviation;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Returns the beat period in envelope frames, from the autocorrelation peak weighted
+     * towards {@link #PRIOR_BPM}, or 0 if there is no pulse.
+     */
+    private float estimatePeriod(float[] envelope, int n) {
+        int minLag = Math.max(2, (int) Math.floor(mFrameRate * 60 / MAX_BPM));
+        int maxLag = (int) Math.ceil(mFrameRate * 60 / MIN_BPM);
+        float priorLag = mFrameRate * 60 / PRIOR_BPM;
+        double[] correlation = new double[maxLag + 3];
+        for (int lag = minLag - 2; lag <= maxLag + 2; lag++) {
+            double sum = 0;
+            for (int i = lag; i < n; i++) {
+                sum += envelope[i] * envelope[i - lag];
+            }
+            correlation[lag] = sum / (n - lag);
+        }
+        float[] score = new float[maxLag + 2];
+        for (int lag = minLag - 1; lag <= maxLag + 1; lag++) {
+            // A period between two lags splits its peak over both; smoothing puts it back
+            // together, so it can't lose to a multiple of itself that happens to land on one.
+            double smoothed = (correlation[lag - 1] + 2 * correlation[lag]
+                    + correlation[lag + 1]) / 4;
+            double octaves = Math.log(lag / priorLag) / Math.log(2) / PRIOR_WIDTH_OCTAVES;
+            score[lag] = (float) (smoothed * Math.exp(-0.5 * octaves * octaves));
+        }
+        int best = minLag;
+        for (int lag = minLag + 1; lag <= maxLag; lag++) {
+            if (score[lag] > score[best]) {
+                best = lag;
+            }
+        }
+        if (score[best] <= 0) {
+            return 0;
+        }
+        // Parabolic interpolation between neighbouring lags.
+        float left = score[best - 1];
+        float right = score[best + 1];
+        float denominator = left - 2 * score[best] + right;
+        float shift = denominator < 0 ? 0.5f * (left - right) / denominator : 0;
+        return best + Math.max(-0.5f, Math.min(0.5f, shift));
+    }
+
+    /**
+     * Picks beat frames maximizing onset strength at the beats minus a penalty for intervals
+     * that stray from {@code period}, as in Ellis, "Beat Tracking by Dynamic Programming".
+     */
+    private static int[] trackBeats(float[] envelope, int n, float period) {
+        int nearest = Math.max(1, Math.round(period / 2));
+        int farthest = Math.round(period * 2);
+        float[] penalty = new float[farthest + 1];
+        for (int gap = nearest; gap <= farthest; gap++) {
+            double log = Math.log(gap / period);
+            penalty[gap] = (float) (TIGHTNESS * log * log);
+        }
+
+        float[] score = new float[n];
+        int[] previous = new int[n];
+        for (int i = 0; i < n; i++) {
+            float best = 0;
+            int link = -1;
+            for (int gap = nearest; gap <= farthest && gap <= i; gap++) {
+                float candidate = score[i - gap] - penalty[gap];
+                if (link < 0 || candidate > best) {
+                    best = candidate;
+                    link = i - gap;
+                }
+            }
+            score[i] = envelope[i] + (link < 0 ? 0 : best);
+            previous[i] = link;
+        }
+
+        int last = n - 1;
+        for (int i = Math.max(0, n - Math.round(period)); i < n; i++) {
+            if (score[i] > score[last]) {
+                last = i;
+            }
+        }
+        int count = 0;
+        for (int i = last; i >= 0; i = previous[i]) {
+            count++;
+        }
+        int[] beats = new int[count];
+        for (int i = last; i >= 0; i = previous[i]) {
+            beats[--count] = i;
+        }
+        return beats;
+    }
+}
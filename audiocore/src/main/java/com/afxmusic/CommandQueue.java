@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded queue that any number of threads offer to and one thread polls, without locks.
+ * Offering never blocks or allocates: when the queue is full it fails, and the caller decides
+ * what to drop.
+ *
+ * Each slot carries a sequence number that says whose turn it is, so a producer claims a slot
+ * with one compare-and-set on the tail and the consumer needs none at all. Elements come out
+ * in the order their producers claimed slots, so commands from any one thread keep their
+ * order.
+ */
+public final class CommandQueue<E> {
+
+    private final int mMask;
+    private final AtomicReferenceArray<E> mElements;
+    // For slot i, equal to the next tail index that may write it, or that index + 1 once it
+    // holds an element for the consumer.
+    private final AtomicLongArray mSequences;
+    private final AtomicLong mTail = new AtomicLong();
+    // Only the consumer moves the head; it is atomic so size() can read it from anywhere.
+    private final AtomicLong mHead = new AtomicLong();
+
+    /**
+     * @param capacity the most elements held at once, rounded up to a power of two
+     */
+    public CommandQueue(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mMask = size - 1;
+        mElements = new AtomicReferenceArray<>(size);
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+    }
+
+    public int getCapacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * Adds {@code element} at the tail. Safe from any thread.
+     *
+     * @return false if the queue was full
+     */
+    public boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        while (true) {
+            long tail = mTail.get();
+            int slot = (int) tail & mMask;
+            long sequence = mSequences.get(slot);
+            if (sequence == tail) {
+                if (mTail.compareAndSet(tail, tail + 1)) {
+                    mElements.lazySet(slot, element);
+                    // Publishes the element to the consumer.
+                    mSequences.set(slot, tail + 1);
+                    return true;
+                }
+            } else if (sequence < tail) {
+                // The consumer hasn't freed this slot since the last lap.
+                return false;
+            }
+            // Another producer claimed the slot first; try the next one.
+        }
+    }
+
+    /**
+     * Takes the element at the head. Only ever call this from the one consumer thread.
+     *
+     * @return the element, or null if there is none yet. An element still being offered counts
+     *     as none; its producer has not returned from {@link #offer} yet.
+     */
+    public E poll() {
+        long head = mHead.get();
+        int slot = (int) head & mMask;
+        if (mSequences.get(slot) != head + 1) {
+            return null;
+        }
+        E element = mElements.get(slot);
+        mElements.lazySet(slot, null);
+        // Hands the slot back to producers for the next lap.
+        mSequences.set(slot, head + mMask + 1);
+        mHead.lazySet(head + 1);
+        return element;
+    }
+
+    /**
+     * Returns roughly how many elements are waiting; exact only when no thread is offering
+     * or polling.
+     */
+    public int size() {
+        long size = mTail.get() - mHead.get();
+        return (int) Math.max(0, Math.min(size, mMask + 1));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+}
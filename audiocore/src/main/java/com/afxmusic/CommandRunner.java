@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.afxmusic;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Carries out commands on a target that belongs to one thread, for callers on any thread. The
+ * commands go through a {@link CommandQueue} and are run in order by a drain task on the
+ * target's thread, one drain at a time however many commands arrive.
+ *
+ * No command is ever dropped. Should the queue fill up, which only happens while the target's
+ * thread is stuck, commands wait in an unbounded overflow queue behind it and are counted in
+ * {@link Telemetry#commandsOverflowed}. Each caller's commands still run in the order it
+ * submitted them. Commands that only matter for their latest value, such as seek bar
+ * positions, are a {@link Latest} and take up at most one place in the queue.
+ */
+public final class CommandRunner<T> {
+
+    /**
+     * Something to do to the target, on its thread.
+     */
+    public abstract static class Command<T> {
+        long mQueuedNanos;
+
+        abstract void run(T target);
+    }
+
+    /**
+     * A command that only carries out the latest value it was submitted with: submitting it
+     * again while it waits replaces the value instead of queuing it twice.
+     */
+    public abstract static class Latest<T> extends Command<T> {
+        private final AtomicBoolean mQueued = new AtomicBoolean();
+        private volatile int mValue;
+
+        abstract void run(T target, int value);
+
+        @Override
+        final void run(T target) {
+            // Cleared before the value is read, so a newer one submits the command again.
+            mQueued.set(false);
+            run(target, mValue);
+        }
+    }
+
+    private final T mTarget;
+    private final Executor mThread;
+    private final Runnable mAfterDrain;
+    private final CommandQueue<Command<T>> mCommands;
+    private final Queue<Command<T>> mOverflow = new ConcurrentLinkedQueue<>();
+    // Commands in mOverflow or on their way into it. While there are any, new commands go
+    // there too, behind them.
+    private final AtomicInteger mOverflowing = new AtomicInteger();
+    private final AtomicBoolean mDrainPosted = new AtomicBoolean();
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            // Cleared first, so a command submitted from here on posts another drain.
+            mDrainPosted.set(false);
+            Command<T> command;
+            while ((command = next()) != null) {
+                Telemetry.get().commandDelay.recordSince(command.mQueuedNanos);
+                command.run(mTarget);
+            }
+            mAfterDrain.run();
+        }
+    };
+
+    /**
+     * @param thread     runs the drain on the target's thread
+     * @param afterDrain runs on the target's thread after each drain, e.g. to publish its state
+     */
+    public CommandRunner(T target, int capacity, Executor thread, Runnable afterDrain) {
+        mTarget = target;
+        mThread = thread;
+        mAfterDrain = afterDrain;
+        mCommands = new CommandQueue<>(capacity);
+    }
+
+    /**
+     * Queues {@code command} for the target's thread. Never blocks; safe from any thread.
+     */
+    public void submit(Command<T> command) {
+        command.mQueuedNanos = System.nanoTime();
+        if (mOverflowing.get() > 0 || !mCommands.offer(command)) {
+            mOverflowing.incrementAndGet();
+            mOverflow.add(command);
+            Telemetry.get().commandsOverflowed.increment();
+        }
+        if (!mDrainPosted.getAndSet(true)) {
+            mThread.execute(mDrain);
+        }
+    }
+
+    /**
+     * Has {@code command} carry out {@code value}, queuing it unless it is waiting already.
+     */
+    public void submitLatest(Latest<T> command, int value) {
+        command.mValue = value;
+        if (!command.mQueued.getAndSet(true)) {
+            submit(command);
+        }
+    }
+
+    /**
+     * Returns the next command to run: everything in the queue goes before the overflow,
+     * which only takes commands submitted after those.
+     */
+    private Command<T> next() {
+        Command<T> command = mCommands.poll();
+        if (command != null) {
+            return command;
+        }
+        command = mOverflow.poll();
+        if (command != null) {
+            mOverflowing.decrementAndGet();
+        }
+        return command;
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+/**
+ * Renders audio from a {@link PcmRing} for output: at the playback speed through a
+ * {@link TimeStretcher}, then through each {@link DspStage} in the order they were added.
+ *
+ * Stages can be added and removed from any thread while the audio thread renders; the audio
+ * thread picks up the change at its next block. Rendering itself allocates nothing.
+ *
+ * Every output frame is traced back to the track frame it was stretched from, across seeks and
+ * loop wraps, so stages such as a metronome can place sounds exactly on the track's timeline.
+ * This follows the stretcher sequence by sequence rather than assuming an even stretch, so a
+ * beat's transient and its frame come out together.
+ */
+public final class DspChain {
+
+    /** The most frames one {@link #render} call can produce. */
+    public static final int MAX_BLOCK_FRAMES = 1024;
+
+    // Discontinuities in the input that the output hasn't reached yet, e.g. a loop wrap still
+    // inside the stretcher. Far more than one stretcher buffer can hold.
+    private static final int MAX_SEGMENTS = 16;
+
+    private final int mSampleRate;
+    private final int mChannels;
+    private final TimeStretcher mStretcher;
+    private final short[] mInput;
+    private final Object mStagesLock = new Object();
+    // Copied on every change, so the audio thread can iterate without locking.
+    private volatile DspStage[] mStages = new DspStage[0];
+    private volatile float mSpeed = 1.0f;
+
+    // The rest is the audio thread's.
+    private float mApplied = 1.0f;
+    // Frames taken from the ring, and how far into them the output has got.
+    private long mFed;
+    private double mOutput;
+    // Where in the input taken the stretcher's input starts.
+    private long mStretchBase;
+    private final long[] mSegmentAt = new long[MAX_SEGMENTS];
+    private final long[] mSegmentSource = new long[MAX_SEGMENTS];
+    private int mFirstSegment;
+    private int mSegments;
+    // Set by take() when it hit a flush, for render() and for pollFlushed() respectively.
+    private boolean mRestarted;
+    private boolean mFlushed;
+
+    public DspChain(int sampleRate, int channels) {
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mStretcher = new TimeStretcher(sampleRate, channels, MAX_BLOCK_FRAMES);
+        mInput = new short[MAX_BLOCK_FRAMES * channels];
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannelCount() {
+        return mChannels;
+    }
+
+    /**
+     * Appends {@code stage} to the end of the chain, preparing it for this chain's format.
+     */
+    public void add(DspStage stage) {
+        stage.prepare(mSampleRate, mChannels);
+        synchronized (mStagesLock) {
+            DspStage[] stages = new DspStage[mStages.length + 1];
+            System.arraycopy(mStages, 0, stages, 0, mStages.length);
+            stages[mStages.length] = stage;
+            mStages = stages;
+        }
+    }
+
+    public void remove(DspStage stage) {
+        synchronized (mStagesLock) {
+            DspStage[] stages = mStages;
+            for (int i = 0; i < stages.length; i++) {
+                if (stages[i] == stage) {
+                    DspStage[] fewer = new DspStage[stages.length - 1];
+                    System.arraycopy(stages, 0, fewer, 0, i);
+                    System.arraycopy(stages, i + 1, fewer, i, stages.length - i - 1);
+                    mStages = fewer;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the playback speed, clamped to what the {@link TimeStretcher} supports. Takes
+     * effect at the next block; 1.0 bypasses the stretcher.
+     */
+    public void setSpeed(float speed) {
+        mSpeed = Math.max(TimeStretcher.MIN_SPEED, Math.min(TimeStretcher.MAX_SPEED, speed));
+    }
+
+    public float getSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * Renders up to {@code frames} frames into {@code out}. Called on the audio thread only.
+     *
+     * @return the number of frames rendered, less than asked for if the ring ran dry
+     */
+    public int render(PcmRing ring, short[] out, int frames) {
+        frames = Math.min(frames, MAX_BLOCK_FRAMES);
+        float speed = mSpeed;
+        if (speed != mApplied) {
+            if (mApplied == 1.0f) {
+                // Coming from the direct path; the stretcher holds stale audio.
+                mStretcher.clear();
+                mStretchBase = mFed;
+            } else if (speed == 1.0f) {
+                // Leaving the stretcher; whatever it still holds is skipped.
+                mOutput = mFed;
+            }
+            mStretcher.setSpeed(speed);
+            mApplied = speed;
+        }
+
+        double start = mOutput;
+        double end;
+        int rendered = 0;
+        if (speed == 1.0f) {
+            while (rendered < frames) {
+                mRestarted = false;
+                int count = take(ring, out, rendered * mChannels, frames - rendered);
+                if (mRestarted) {
+                    // What was read before the flush is stale.
+                    System.arraycopy(out, rendered * mChannels, out, 0, count * mChannels);
+                    rendered = 0;
+                    start = 0;
+                }
+                if (count == 0) {
+                    break;
+                }
+                rendered += count;
+            }
+            mOutput = start + rendered;
+            end = mOutput;
+            process(out, 0, rendered, (long) start);
+        } else {
+            while (mStretcher.getAvailableFrames() < frames) {
+                int capacity = Math.min(MAX_BLOCK_FRAMES, mStretcher.getInputCapacity());
+                mRestarted = false;
+                int count = capacity == 0 ? 0 : take(ring, mInput, 0, capacity);
+                if (mRestarted) {
+                    start = 0;
+                }
+                if (count == 0) {
+                    break;
+                }
+                mStretcher.putSamples(mInput, 0, count);
+            }
+            end = start;
+            while (rendered < frames) {
+                int count = Math.min(frames - rendered, mStretcher.getRunFrames());
+                if (count == 0) {
+                    break;
+                }
+                end = mStretchBase + mStretcher.getRunSource();
+                mStretcher.receiveSamples(out, rendered * mChannels, count);
+                process(out, rendered, count, (long) end);
+                rendered += count;
+                end += count;
+            }
+            // The clock moves on evenly; only the stages see where each run was read from.
+            mOutput = start + rendered * (double) speed;
+        }
+        dropPassedSegments(Math.min(mOutput, end));
+        return rendered;
+    }
+
+    /**
+     * Returns whether a flush in the ring was rendered past since the last call, e.g. to drop
+     * audio already queued for output.
+     */
+    public boolean pollFlushed() {
+        boolean flushed = mFlushed;
+        mFlushed = false;
+        return flushed;
+    }
+
+    /**
+     * Returns the track frame just after the last one rendered.
+     */
+    public double getSourceFrame() {
+        return sourceAt(mOutput);
+    }
+
+    /**
+     * Reads from the ring and notes where the input jumps, starting over after a flush.
+     */
+    private int take(PcmRing ring, short[] into, int offset, int frames) {
+        int count = ring.read(into, offset, frames);
+        if (ring.pollFlushed()) {
+            mRestarted = true;
+            mFlushed = true;
+            mStretcher.clear();
+            mFed = 0;
+            mOutput = 0;
+            mStretchBase = 0;
+            mFirstSegment = 0;
+            mSegments = 0;
+            for (DspStage stage : mStages) {
+                stage.reset();
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long source = ring.getSourceFrame() - count;
+        if (mSegments == 0 || sourceAt(mFed) != source) {
+            if (mSegments == MAX_SEGMENTS) {
+                // Never expected; merging the oldest two only blurs positions briefly.
+                mFirstSegment = (mFirstSegment + 1) % MAX_SEGMENTS;
+                mSegments--;
+            }
+            int slot = (mFirstSegment + mSegments) % MAX_SEGMENTS;
+            mSegmentAt[slot] = mFed;
+            mSegmentSource[slot] = source;
+            mSegments++;
+        }
+        mFed += count;
+        return count;
+    }
+
+    /**
+     * Runs the stages over {@code frames} rendered frames from {@code first} on, read one for
+     * one from the input taken at {@code at} onwards, split wherever the source jumps.
+     */
+    private void process(short[] pcm, int first, int frames, long at) {
+        DspStage[] stages = mStages;
+        int done = 0;
+        while (done < frames && stages.length > 0) {
+            int count = frames - done;
+            long next = nextSegmentAfter(at);
+            if (next >= 0) {
+                count = (int) Math.min(count, next - at);
+            }
+            long source = (long) sourceAt(at);
+            for (DspStage stage : stages) {
+                stage.process(pcm, (first + done) * mChannels, count, source);
+            }
+            done += count;
+            at += count;
+        }
+    }
+
+    /**
+     * Returns where the first discontinuity after {@code at} is in the input taken, or -1.
+     */
+    private long nextSegmentAfter(long at) {
+        for (int i = 0; i < mSegments; i++) {
+            long segment = mSegmentAt[(mFirstSegment + i) % MAX_SEGMENTS];
+            if (segment > at) {
+                return segment;
+            }
+        }
+        return -1;
+    }
+
+    private void dropPassedSegments(double at) {
+        while (mSegments > 1 && mSegmentAt[(mFirstSegment + 1) % MAX_SEGMENTS] <= at) {
+            mFirstSegment = (mFirstSegment + 1) % MAX_SEGMENTS;
+            mSegments--;
+        }
+    }
+
+    /**
+     * Maps a position in the input taken from the ring to the track frame it came from.
+     */
+    private double sourceAt(double at) {
+        for (int i = mSegments - 1; i >= 0; i--) {
+            int slot = (mFirstSegment + i) % MAX_SEGMENTS;
+            if (mSegmentAt[slot] <= at) {
+                return mSegmentSource[slot] + (at - mSegmentAt[slot]);
+            }
+        }
+        return mSegments == 0 ? 0 : mSegmentSource[mFirstSegment];
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+/**
+ * One step of a {@link DspChain}, processing interleaved 16-bit PCM in place on the audio
+ * thread. Implementations must not allocate, lock or block in {@link #process}; anything they
+ * need is allocated in {@link #prepare}.
+ */
+public interface DspStage {
+
+    /**
+     * Called before the first block and whenever the format changes, off the audio thread or
+     * on it before processing starts.
+     */
+    void prepare(int sampleRate, int channels);
+
+    /**
+     * Processes one block in place. A block follows the track frame for frame: the chain
+     * splits blocks wherever the source jumps, including between the time stretcher's
+     * sequences, so the next block may repeat or skip a little of the track.
+     *
+     * @param pcm         interleaved samples
+     * @param offset      where the block starts in {@code pcm}, in samples
+     * @param frames      frames in the block
+     * @param sourceFrame the track frame the block starts at
+     */
+    void process(short[] pcm, int offset, int frames, long sourceFrame);
+
+    /**
+     * Forgets any state carried from block to block, e.g. after a seek.
+     */
+    void reset();
+}
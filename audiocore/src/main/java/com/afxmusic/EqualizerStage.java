@@ -0,0 +1,161 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+/**
+ * A three band equalizer: a low shelf, a mid peak and a high shelf, each a biquad from the
+ * RBJ audio EQ cookbook. Gains can be changed from any thread; the audio thread recomputes its
+ * coefficients at the next block. Flat, it passes audio through untouched.
+ */
+public final class EqualizerStage implements DspStage {
+
+    public static final int LOW = 0;
+    public static final int MID = 1;
+    public static final int HIGH = 2;
+    public static final int BANDS = 3;
+
+    public static final float MAX_GAIN_DB = 12;
+
+    private static final double[] FREQUENCIES = {100, 1000, 8000};
+    private static final double SHELF_SLOPE = 1;
+    private static final double PEAK_Q = 0.9;
+
+    // Replaced, never changed, so the audio thread can read it without locking.
+    private volatile float[] mGainsDb = new float[BANDS];
+
+    // The audio thread's.
+    private float[] mApplied;
+    private boolean mFlat = true;
+    private int mSampleRate;
+    private int mChannels;
+    // Normalized coefficients b0, b1, b2, a1, a2 per band.
+    private final double[] mCoefficients = new double[BANDS * 5];
+    // x1, x2, y1, y2 per band and channel.
+    private double[] mState = new double[0];
+
+    /**
+     * Sets the gain of {@code band} in decibels, clamped to +-{@link #MAX_GAIN_DB}.
+     */
+    public synchronized void setGain(int band, float db) {
+        float[] gains = mGainsDb.clone();
+        gains[band] = Math.max(-MAX_GAIN_DB, Math.min(MAX_GAIN_DB, db));
+        mGainsDb = gains;
+    }
+
+    public float getGain(int band) {
+        return mGainsDb[band];
+    }
+
+    @Override
+    public void prepare(int sampleRate, int channels) {
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mState = new double[BANDS * channels * 4];
+        mApplied = null;
+    }
+
+    @Override
+    public void process(short[] pcm, int offset, int frames, long sourceFrame) {
+        float[] gains = mGainsDb;
+        if (gains != mApplied) {
+            updateCoefficients(gains);
+        }
+        if (mFlat) {
+            return;
+        }
+        double[] c = mCoefficients;
+        double[] state = mState;
+        int channels = mChannels;
+        for (int frame = 0; frame < frames; frame++) {
+            for (int channel = 0; channel < channels; channel++) {
+                int index = offset + frame * channels + channel;
+                double x = pcm[index];
+                for (int band = 0; band < BANDS; band++) {
+                    int k = band * 5;
+                    int s = (band * channels + channel) * 4;
+                    double y = c[k] * x + c[k + 1] * state[s] + c[k + 2] * state[s + 1]
+                            - c[k + 3] * state[s + 2] - c[k + 4] * state[s + 3];
+                    state[s + 1] = state[s];
+                    state[s] = x;
+                    state[s + 3] = state[s + 2];
+                    state[s + 2] = y;
+                    x = y;
+                }
+                pcm[index] = x >= Short.MAX_VALUE ? Short.MAX_VALUE
+                        : x <= Short.MIN_VALUE ? Short.MIN_VALUE : (short) x;
+            }
+        }
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < mState.length; i++) {
+            mState[i] = 0;
+        }
+    }
+
+    private void updateCoefficients(float[] gains) {
+        mApplied = gains;
+        boolean flat = true;
+        for (int band = 0; band < BANDS; band++) {
+            flat &= gains[band] == 0;
+            setBand(band, gains[band]);
+        }
+        if (flat && !mFlat) {
+            reset();
+        }
+        mFlat = flat;
+    }
+
+    private void setBand(int band, double db) {
+        double a = Math.pow(10, db / 40);
+        double w0 = 2 * Math.PI * Math.min(FREQUENCIES[band], mSampleRate * 0.45) / mSampleRate;
+        double cos = Math.cos(w0);
+        double sin = Math.sin(w0);
+        double b0;
+        double b1;
+        double b2;
+        double a0;
+        double a1;
+        double a2;
+        if (band == MID) {
+            double alpha = sin / (2 * PEAK_Q);
+            b0 = 1 + alpha * a;
+            b1 = -2 * cos;
+            b2 = 1 - alpha * a;
+            a0 = 1 + alpha / a;
+            a1 = -2 * cos;
+            a2 = 1 - alpha / a;
+        } else {
+            double alpha = sin / 2 * Math.sqrt((a + 1 / a) * (1 / SHELF_SLOPE - 1) + 2);
+            double root = 2 * Math.sqrt(a) * alpha;
+            double sign = band == LOW ? -1 : 1;
+            b0 = a * ((a + 1) + sign * (a - 1) * cos + root);
+            b1 = -2 * sign * a * ((a - 1) + sign * (a + 1) * cos);
+            b2 = a * ((a + 1) + sign * (a - 1) * cos - root);
+            a0 = (a + 1) - sign * (a - 1) * cos + root;
+            a1 = 2 * sign * ((a - 1) - sign * (a + 1) * cos);
+            a2 = (a + 1) - sign * (a - 1) * cos - root;
+        }
+        int k = band * 5;
+        mCoefficients[k] = b0 / a0;
+        mCoefficients[k + 1] = b1 / a0;
+        mCoefficients[k + 2] = b2 / a0;
+        mCoefficients[k + 3] = a1 / a0;
+        mCoefficients[k + 4] = a2 / a0;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+/**
+ * In-place iterative radix-2 FFT of a fixed size.
+ *
+ * Twiddle factors, the bit-reversal table and a Hann window are computed once in the
+ * constructor, so {@link #transform} allocates nothing. Not thread safe.
+ */
+public final class Fft {
+
+    private final int mSize;
+    private final float[] mCos;
+    private final float[] mSin;
+    private final int[] mReverse;
+    private final float[] mWindow;
+
+    /**
+     * @param size a power of two
+     */
+    public Fft(int size) {
+        if (size < 2 || (size & (size - 1)) != 0) {
+            throw new IllegalArgumentException("FFT size must be a power of two: " + size);
+        }
+        mSize = size;
+        mCos = new float[size / 2];
+        mSin = new float[size / 2];
+        for (int i = 0; i < size / 2; i++) {
+            double angle = -2 * Math.PI * i / size;
+            mCos[i] = (float) Math.cos(angle);
+            mSin[i] = (float) Math.sin(angle);
+        }
+        int bits = Integer.numberOfTrailingZeros(size);
+        mReverse = new int[size];
+        for (int i = 0; i < size; i++) {
+            mReverse[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+        mWindow = new float[size];
+        for (int i = 0; i < size; i++) {
+            mWindow[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / (size - 1)));
+        }
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Multiplies {@code re} by a Hann window and zeroes {@code im}, ready for a transform of
+     * real input.
+     */
+    public void window(float[] re, float[] im) {
+        for (int i = 0; i < mSize; i++) {
+            re[i] *= mWindow[i];
+            im[i] = 0;
+        }
+    }
+
+    /**
+     * Transforms {@code re} + i*{@code im} in place.
+     */
+    public void transform(float[] re, float[] im) {
+        int n = mSize;
+        for (int i = 0; i < n; i++) {
+            int j = mReverse[i];
+            if (j > i) {
+                float t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+        for (int half = 1; half < n; half <<= 1) {
+            int step = n / (half << 1);
+            for (int start = 0; start < n; start += half << 1) {
+                for (int k = 0; k < half; k++) {
+                    float wr = mCos[k * step];
+                    float wi = mSin[k * step];
+                    int a = start + k;
+                    int b = a + half;
+                    float xr = re[b] * wr - im[b] * wi;
+                    float xi = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - xr;
+                    im[b] = im[a] - xi;
+                    re[a] += xr;
+                    im[a] += xi;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the magnitudes of the first {@code size / 2} bins into {@code out}.
+     */
+    public void magnitudes(float[] re, float[] im, float[] out) {
+        for (int i = 0; i < mSize / 2; i++) {
+            out[i] = (float) Math.sqrt(re[i] * re[i] + im[i] * im[i]);
+        }
+    }
+}
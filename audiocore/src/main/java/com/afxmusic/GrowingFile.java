@@ -0,0 +1,179 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * A file that is still being downloaded, readable while it grows.
+ *
+ * The download writes through {@link #track(OutputStream)}; the player reads through
+ * {@link #readAt}, which blocks until the requested bytes are on disk. This lets the app
+ * prepare and start playback once the first few seconds of a shared song have arrived while
+ * the rest keeps streaming in underneath. {@code GrowingFileDataSource} hands it to
+ * MediaPlayer.
+ */
+public final class GrowingFile implements Closeable {
+
+    private final RandomAccessFile mFile;
+    private final long mReadyBytes;
+    private final Object mLock = new Object();
+
+    private Runnable mOnReady;
+    private long mWritten;
+    private boolean mComplete;
+    private boolean mFailed;
+    private boolean mClosed;
+
+    /**
+     * @param file       the file the download writes into; must already exist
+     * @param readyBytes how many bytes must be on disk before the player is worth preparing
+     */
+    public GrowingFile(File file, long readyBytes) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        mReadyBytes = readyBytes;
+    }
+
+    /**
+     * Sets a callback run on the downloading thread once enough data is on disk to prepare.
+     */
+    public void setOnReadyListener(Runnable onReady) {
+        mOnReady = onReady;
+    }
+
+    /**
+     * Wraps the stream the download writes to so that readers are woken as data lands.
+     * {@code out} must not buffer, or readers may be told about bytes not yet on disk.
+     */
+    public OutputStream track(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                onWritten(1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                onWritten(len);
+            }
+        };
+    }
+
+    /**
+     * Marks the download as finished; readers will see end of stream at the file's end.
+     */
+    public void onComplete() {
+        boolean becameReady;
+        synchronized (mLock) {
+            becameReady = mWritten < mReadyBytes;
+            mComplete = true;
+            mLock.notifyAll();
+        }
+        if (becameReady) {
+            // A song shorter than the threshold is ready once it is all there.
+            notifyReady();
+        }
+    }
+
+    /**
+     * Marks the download as failed; readers get end of stream past what has arrived.
+     */
+    public void onFailed() {
+        synchronized (mLock) {
+            mFailed = true;
+            mLock.notifyAll();
+        }
+    }
+
+    public boolean isComplete() {
+        synchronized (mLock) {
+            return mComplete;
+        }
+    }
+
+    private void onWritten(int count) {
+        boolean becameReady;
+        synchronized (mLock) {
+            becameReady = mWritten < mReadyBytes && mWritten + count >= mReadyBytes;
+            mWritten += count;
+            mLock.notifyAll();
+        }
+        if (becameReady) {
+            notifyReady();
+        }
+    }
+
+    private void notifyReady() {
+        Runnable onReady = mOnReady;
+        if (onReady != null) {
+            onReady.run();
+        }
+    }
+
+    /**
+     * Reads up to {@code size} bytes at {@code position}, waiting for at least one to arrive.
+     *
+     * @return the number of bytes read, or -1 at the end of a complete or failed download
+     */
+    public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        long available;
+        synchronized (mLock) {
+            while (mWritten <= position && !mComplete && !mFailed && !mClosed) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return -1;
+                }
+            }
+            if (mClosed || mWritten <= position) {
+                return -1;
+            }
+            available = mWritten - position;
+        }
+        synchronized (mFile) {
+            mFile.seek(position);
+            return mFile.read(buffer, offset, (int) Math.min(size, available));
+        }
+    }
+
+    /**
+     * Returns the file's length once the download is complete, else -1.
+     */
+    public long getSize() {
+        synchronized (mLock) {
+            // Unknown until the download is done, which makes the player treat us as a stream.
+            return mComplete ? mWritten : -1;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (mLock) {
+            mClosed = true;
+            mLock.notifyAll();
+        }
+        mFile.close();
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.afxmusic;
+
+/**
+ * The text of a label that is updated often, such as the playback time, kept in a reused
+ * buffer: a fixed prefix and suffix around a time or a number. Setting the same value again,
+ * or a time in the same second, leaves the text alone and reports that nothing changed, so
+ * the caller can skip redrawing. Never allocates after construction.
+ *
+ * Show it with {@code TextView.setText(getChars(), 0, length())}.
+ */
+public final class LabelText {
+
+    private static final int NONE = Integer.MIN_VALUE;
+    private static final int NUMBER_CHARS = 11;
+
+    private final char[] mChars;
+    private final int mPrefixLength;
+    private final String mSuffix;
+    private int mLength;
+    // What the text shows: whole seconds for a time, the value for a number.
+    private boolean mShowsTime;
+    private int mShown = NONE;
+
+    public LabelText(String prefix, String suffix) {
+        mPrefixLength = prefix.length();
+        mSuffix = suffix;
+        mChars = new char[mPrefixLength
+                + Math.max(TimeFormat.MAX_TIME_CHARS, NUMBER_CHARS) + suffix.length()];
+        prefix.getChars(0, mPrefixLength, mChars, 0);
+    }
+
+    /**
+     * Shows {@code milliseconds} as minutes and seconds.
+     *
+     * @return whether the text changed
+     */
+    public boolean setTime(int milliseconds) {
+        int seconds = Math.max(0, milliseconds) / 1000;
+        if (mShowsTime && seconds == mShown) {
+            return false;
+        }
+        mShowsTime = true;
+        mShown = seconds;
+        finish(TimeFormat.formatTime(milliseconds, mChars, mPrefixLength));
+        return true;
+    }
+
+    /**
+     * Shows {@code value} in decimal.
+     *
+     * @return whether the text changed
+     */
+    public boolean setNumber(int value) {
+        if (!mShowsTime && value == mShown) {
+            return false;
+        }
+        mShowsTime = false;
+        mShown = value;
+        int length = 0;
+        if (value < 0) {
+            mChars[mPrefixLength] = '-';
+            length = 1;
+        }
+        // The magnitude of MIN_VALUE doesn't fit an int; nobody shows it.
+        length += TimeFormat.formatInt(Math.abs(value), mChars, mPrefixLength + length);
+        finish(length);
+        return true;
+    }
+
+    /**
+     * Forgets what is shown, so the next set reports a change; for when something else was
+     * written to the label in between.
+     */
+    public void invalidate() {
+        mShown = NONE;
+    }
+
+    private void finish(int valueLength) {
+        int end = mPrefixLength + valueLength;
+        mSuffix.getChars(0, mSuffix.length(), mChars, end);
+        mLength = end + mSuffix.length();
+    }
+
+    public char[] getChars() {
+        return mChars;
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    @Override
+    public String toString() {
+        return new String(mChars, 0, mLength);
+    }
+}
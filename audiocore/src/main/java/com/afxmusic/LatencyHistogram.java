@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram in microseconds, bucketed like HdrHistogram: values below
+ * {@link #SUB_BUCKETS} are exact, and every power of two above that is split into
+ * {@link #SUB_BUCKETS} / 2 linear buckets, so any recorded value is reported within about 3%.
+ *
+ * Recording is a few atomic increments and never allocates; it is safe from any thread,
+ * including the audio thread.
+ */
+public final class LatencyHistogram {
+
+    static final int SUB_BUCKET_BITS = 6;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values are clamped to 2^40 us, about twelve days.
+    static final int MAX_MAGNITUDE = 40;
+
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final int BUCKETS = SUB_BUCKETS + (MAX_MAGNITUDE - SUB_BUCKET_BITS + 1) * HALF;
+
+    private final String mName;
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    public LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Records one value in microseconds. Negative values count as 0.
+     */
+    public void record(long micros) {
+        long value = Math.max(0, Math.min(micros, (1L << MAX_MAGNITUDE) - 1));
+        mCounts.incrementAndGet(bucketOf(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    /**
+     * Records the time elapsed since {@code startNanos}, a {@link System#nanoTime} reading.
+     */
+    public void recordSince(long startNanos) {
+        record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    public long getMean() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mSum.get() / count;
+    }
+
+    /**
+     * Returns the value below which {@code percentile} percent of recorded values fall, as
+     * the upper edge of its bucket capped at the maximum, or 0 if nothing was recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += mCounts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts.get(i);
+            if (seen >= target) {
+                return Math.min(upperEdgeOf(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS + 1;
+        return SUB_BUCKETS + (magnitude - SUB_BUCKET_BITS) * HALF
+                + (int) (value >>> shift) - HALF;
+    }
+
+    static long upperEdgeOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int k = bucket - SUB_BUCKETS;
+        int shift = k / HALF + 1;
+        long sub = HALF + k % HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.afxmusic;
+
+/**
+ * A named section of a track to practice, such as "intro" or "chorus 8-count", in
+ * milliseconds from the start of the track.
+ */
+public final class LoopRegion {
+
+    private final String mName;
+    private final int mStart;
+    private final int mEnd;
+
+    /**
+     * @throws IllegalArgumentException if the region is empty
+     */
+    public LoopRegion(String name, int start, int end) {
+        if (end <= start) {
+            throw new IllegalArgumentException("Empty loop region " + start + ".." + end);
+        }
+        mName = name;
+        mStart = start;
+        mEnd = end;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getStart() {
+        return mStart;
+    }
+
+    public int getEnd() {
+        return mEnd;
+    }
+
+    public boolean contains(int position) {
+        return position >= mStart && position < mEnd;
+    }
+
+    @Override
+    public String toString() {
+        return mName + " " + TimeFormat.convertToTime(mStart) + "-"
+                + TimeFormat.convertToTime(mEnd);
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.afxmusic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * A track's named {@link LoopRegion}s, sorted by start (then end), with an interval index for
+ * finding the region that is playing at a position in O(log n).
+ *
+ * Regions may overlap, e.g. "chorus" inside "verse and chorus"; at a position covered by more
+ * than one, the innermost wins: the one that started last, the shortest of those, and of
+ * regions with the same span the last in sorted order. The index splits the track at every
+ * region boundary into segments that each have one such region, so a lookup is a binary
+ * search over the boundaries.
+ *
+ * Immutable; {@link #with} and {@link #without} return changed copies.
+ */
+public final class LoopRegions {
+
+    public static final LoopRegions EMPTY = new LoopRegions(Collections.<LoopRegion>emptyList());
+
+    static final Comparator<LoopRegion> ORDER = new Comparator<LoopRegion>() {
+        @Override
+        public int compare(LoopRegion a, LoopRegion b) {
+            if (a.getStart() != b.getStart()) {
+                return a.getStart() < b.getStart() ? -1 : 1;
+            }
+            if (a.getEnd() != b.getEnd()) {
+                return a.getEnd() < b.getEnd() ? -1 : 1;
+            }
+            return a.getName().compareTo(b.getName());
+        }
+    };
+
+    private final LoopRegion[] mRegions;
+    // Segment i runs from mBoundaries[i] up to mBoundaries[i + 1] and is covered by
+    // mRegions[mActive[i]], or by none if that is -1.
+    private final int[] mBoundaries;
+    private final int[] mActive;
+
+    public LoopRegions(List<LoopRegion> regions) {
+        mRegions = regions.toArray(new LoopRegion[regions.size()]);
+        Arrays.sort(mRegions, ORDER);
+
+        int[] boundaries = new int[mRegions.length * 2];
+        for (int i = 0; i < mRegions.length; i++) {
+            boundaries[2 * i] = mRegions[i].getStart();
+            boundaries[2 * i + 1] = mRegions[i].getEnd();
+        }
+        Arrays.sort(boundaries);
+        int count = 0;
+        for (int i = 0; i < boundaries.length; i++) {
+            if (count == 0 || boundaries[i] != boundaries[count - 1]) {
+                boundaries[count++] = boundaries[i];
+            }
+        }
+        mBoundaries = Arrays.copyOf(boundaries, count);
+        mActive = new int[count];
+
+        // Sweep the segments left to right, keeping the regions that cover the current one
+        // ordered so the innermost is last.
+        final LoopRegion[] sorted = mRegions;
+        TreeSet<Integer> covering = new TreeSet<>(new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int starts = Integer.compare(sorted[a].getStart(), sorted[b].getStart());
+                if (starts != 0) {
+                    return starts;
+                }
+                int ends = Integer.compare(sorted[b].getEnd(), sorted[a].getEnd());
+                return ends != 0 ? ends : Integer.compare(a, b);
+            }
+        });
+        List<Integer> byEnd = new ArrayList<>();
+        for (int i = 0; i < mRegions.length; i++) {
+            byEnd.add(i);
+        }
+        Collections.sort(byEnd, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(sorted[a].getEnd(), sorted[b].getEnd());
+            }
+        });
+        int nextStart = 0;
+        int nextEnd = 0;
+        for (int segment = 0; segment < count; segment++) {
+            int at = mBoundaries[segment];
+            while (nextEnd < byEnd.size() && sorted[byEnd.get(nextEnd)].getEnd() <= at) {
+                covering.remove(byEnd.get(nextEnd++));
+            }
+            while (nextStart < sorted.length && sorted[nextStart].getStart() <= at) {
+                if (sorted[nextStart].getEnd() > at) {
+                    covering.add(nextStart);
+                }
+                nextStart++;
+            }
+            mActive[segment] = covering.isEmpty() ? -1 : covering.last();
+        }
+    }
+
+    public int size() {
+        return mRegions.length;
+    }
+
+    public boolean isEmpty() {
+        return mRegions.length == 0;
+    }
+
+    /**
+     * Returns the region at {@code index} in sorted order.
+     */
+    public LoopRegion get(int index) {
+        return mRegions[index];
+    }
+
+    public List<LoopRegion> asList() {
+        return Collections.unmodifiableList(Arrays.asList(mRegions));
+    }
+
+    /**
+     * Returns the index of the region called {@code name}, or -1 if there is none.
+     */
+    public int indexOf(String name) {
+        for (int i = 0; i < mRegions.length; i++) {
+            if (mRegions[i].getName().equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index of the innermost region playing at {@code position}, or -1 if the
+     * position is outside every region.
+     */
+    public int indexAt(int position) {
+        int segment = Arrays.binarySearch(mBoundaries, position);
+        if (segment < 0) {
+            segment = -segment - 2;
+        }
+        return segment < 0 ? -1 : mActive[segment];
+    }
+
+    /**
+     * Returns the innermost region playing at {@code position}, or null if there is none.
+     */
+    public LoopRegion regionAt(int position) {
+        int index = indexAt(position);
+        return index < 0 ? null : mRegions[index];
+    }
+
+    /**
+     * Returns a copy with {@code region} added, replacing any region with the same name.
+     */
+    public LoopRegions with(LoopRegion region) {
+        List<LoopRegion> regions = new ArrayList<>(mRegions.length + 1);
+        for (LoopRegion existing : mRegions) {
+            if (!existing.getName().equals(region.getName())) {
+                regions.add(existing);
+            }
+        }
+        regions.add(region);
+        return new LoopRegions(regions);
+    }
+
+    /**
+     * Returns a copy without the region called {@code name}.
+     */
+    public LoopRegions without(String name) {
+        List<LoopRegion> regions = new ArrayList<>(mRegions.length);
+        for (LoopRegion existing : mRegions) {
+            if (!existing.getName().equals(name)) {
+                regions.add(existing);
+            }
+        }
+        return new LoopRegions(regions);
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Mixes a metronome click into the output on every beat of the track's {@link BeatGrid}, and
+ * a count-in on the last beats before a loop wraps back to its start. Clicks are placed by the
+ * track frame the {@link DspChain} traces every output frame back to, so they land on the beat
+ * to the output frame whatever the speed, and follow seeks and loop wraps without drifting.
+ * Where the time stretcher plays a beat twice the click comes the first time, even if that is
+ * the fading end of a crossfade and up to one stretcher step before the beat is heard in full;
+ * where it skips one the click still comes, at the skip.
+ *
+ * The click sounds are synthesized once in {@link #prepare}; mixing one is a copy and add.
+ * They play at the output's own rate, so a slowed-down track still gets short, crisp clicks.
+ * Settings can be changed from any thread.
+ */
+public final class MetronomeStage implements DspStage {
+
+    static final int CLICK_MS = 25;
+    // Beat, bar and count-in clicks, told apart by pitch.
+    private static final double[] CLICK_HZ = {1000, 1500, 2000};
+    private static final int BEAT = 0;
+    private static final int BAR = 1;
+    private static final int COUNT = 2;
+    private static final float CLICK_LEVEL = 0.4f;
+    // The most the time stretcher repeats or skips between sequences, at its extreme speeds;
+    // a longer jump is a seek or a loop wrap.
+    private static final int MAX_STRETCH_JUMP_MS = 250;
+
+    private volatile BeatGrid mBeats;
+    private volatile boolean mClicks;
+    private volatile int mCountIn;
+    // The loop as start << 32 | end in milliseconds, or 0 for none.
+    private final AtomicLong mLoop = new AtomicLong();
+
+    // The audio thread's.
+    private int mSampleRate;
+    private int mChannels;
+    private long mMaxJump;
+    private short[][] mSounds = new short[0][];
+    // The track frame after the last one heard, or -1 after a reset.
+    private long mHeard = -1;
+    // For the block being processed: whether every beat clicks, and the count-in beats.
+    private boolean mSounding;
+    private int mFirstCounted;
+    private int mLastCounted;
+    // The click still playing out from an earlier block, or null, and how far it has got.
+    private short[] mPlaying;
+    private int mPlayed;
+
+    /**
+     * Clicks on the beats of {@code beats}, or on nothing while it is null.
+     */
+    public void setBeats(BeatGrid beats) {
+        mBeats = beats;
+    }
+
+    /**
+     * Turns the click on every beat on or off.
+     */
+    public void setClicks(boolean clicks) {
+        mClicks = clicks;
+    }
+
+    /**
+     * Sets how many beats before each loop wrap get the count-in click, 0 for none.
+     */
+    public void setCountIn(int beats) {
+        mCountIn = Math.max(0, beats);
+    }
+
+    /**
+     * Sets the loop the count-in leads back into, in milliseconds; an end not after the start
+     * means there is none.
+     */
+    public void setLoop(int startMs, int endMs) {
+        mLoop.set(endMs > startMs ? (long) startMs << 32 | endMs : 0);
+    }
+
+    public boolean isActive() {
+        return mBeats != null && (mClicks || mCountIn > 0);
+    }
+
+    @Override
+    public void prepare(int sampleRate, int channels) {
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mMaxJump = toFrame(MAX_STRETCH_JUMP_MS);
+        int frames = sampleRate * CLICK_MS / 1000;
+        short[][] sounds = new short[CLICK_HZ.length][];
+        for (int sound = 0; sound < sounds.length; sound++) {
+            short[] pcm = new short[frames];
+            for (int i = 0; i < frames; i++) {
+                // A sine burst with an exponential decay, gone by the end of the buffer.
+                double envelope = Math.exp(-6.0 * i / frames);
+                pcm[i] = (short) (Short.MAX_VALUE * CLICK_LEVEL * envelope
+                        * Math.sin(2 * Math.PI * CLICK_HZ[sound] * i / sampleRate));
+            }
+            sounds[sound] = pcm;
+        }
+        mSounds = sounds;
+        reset();
+    }
+
+    @Override
+    public void process(short[] pcm, int offset, int frames, long sourceFrame) {
+        long end = sourceFrame + frames;
+        long loop = mLoop.get();
+        long loopStart = toFrame((int) (loop >>> 32));
+        long loopEnd = toFrame((int) loop);
+        // Beats already heard just before a repeat aren't clicked again; ones skipped over are,
+        // including ones the stretcher skipped either side of a loop wrap.
+        long from = sourceFrame;
+        long wrappedFrom = -1;
+        if (mHeard >= 0 && Math.abs(sourceFrame - mHeard) <= mMaxJump) {
+            from = mHeard;
+            mHeard = Math.max(mHeard, end);
+        } else {
+            if (mHeard >= 0 && loop != 0 && mHeard <= loopEnd && loopEnd - mHeard <= mMaxJump
+                    && sourceFrame >= loopStart && sourceFrame - loopStart <= mMaxJump) {
+                wrappedFrom = mHeard;
+                from = loopStart;
+            }
+            mHeard = end;
+        }
+        BeatGrid beats = mBeats;
+        mSounding = mClicks;
+        int countIn = mCountIn;
+        if (beats == null || (!mSounding && countIn == 0)) {
+            mix(pcm, offset, 0, frames);
+            return;
+        }
+        mLastCounted = loop == 0 ? -1 : firstBeatFrom(beats, loopEnd) - 1;
+        // Only beats inside the loop lead into it.
+        mFirstCounted = Math.max(mLastCounted - countIn + 1, firstBeatFrom(beats, loopStart));
+        int mixed = 0;
+        if (wrappedFrom >= 0) {
+            mixed = click(beats, firstBeatFrom(beats, wrappedFrom), mLastCounted + 1,
+                    pcm, offset, frames, loopEnd, mixed);
+        }
+        mixed = click(beats, firstBeatFrom(beats, from), firstBeatFrom(beats, end), pcm, offset,
+                frames, sourceFrame, mixed);
+        mix(pcm, offset, mixed, frames);
+    }
+
+    @Override
+    public void reset() {
+        mPlaying = null;
+        mHeard = -1;
+    }
+
+    /**
+     * Clicks on beats {@code first} up to {@code last} in a block starting at track frame
+     * {@code sourceFrame}, each at its own frame or the start of the block if it was skipped.
+     * A new click cuts off an older one.
+     *
+     * @return how far into the block the clicks have been mixed
+     */
+    private int click(BeatGrid beats, int first, int last, short[] pcm, int offset, int frames,
+            long sourceFrame, int mixed) {
+        for (int i = first; i < last; i++) {
+            int sound;
+            if (i >= mFirstCounted && i <= mLastCounted) {
+                sound = COUNT;
+            } else if (mSounding) {
+                sound = beats.isBar(i) ? BAR : BEAT;
+            } else {
+                continue;
+            }
+            long beat = toFrame(beats.getBeat(i));
+            int at = (int) Math.max(mixed, Math.min(frames - 1, beat - sourceFrame));
+            mix(pcm, offset, mixed, at);
+            mixed = at;
+            mPlaying = mSounds[sound];
+            mPlayed = 0;
+        }
+        return mixed;
+    }
+
+    /**
+     * Adds the playing click, if any, to output frames {@code from} to {@code to} of the block.
+     */
+    private void mix(short[] pcm, int offset, int from, int to) {
+        short[] sound = mPlaying;
+        if (sound == null) {
+            return;
+        }
+        int count = Math.min(to - from, sound.length - mPlayed);
+        int channels = mChannels;
+        for (int i = 0; i < count; i++) {
+            int click = sound[mPlayed + i];
+            int index = offset + (from + i) * channels;
+            for (int channel = 0; channel < channels; channel++) {
+                int mixed = pcm[index + channel] + click;
+                pcm[index + channel] = mixed >= Short.MAX_VALUE ? Short.MAX_VALUE
+                        : mixed <= Short.MIN_VALUE ? Short.MIN_VALUE : (short) mixed;
+            }
+        }
+        mPlayed += count;
+        if (mPlayed == sound.length) {
+            mPlaying = null;
+        }
+    }
+
+    private long toFrame(int milliseconds) {
+        return (long) milliseconds * mSampleRate / 1000;
+    }
+
+    /**
+     * Returns the index of the first beat at or after track frame {@code frame}.
+     */
+    private int firstBeatFrom(BeatGrid beats, long frame) {
+        int low = 0;
+        int high = beats.getBeatCount();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (toFrame(beats.getBeat(middle)) < frame) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.afxmusic;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * On-disk cache of tracks decoded to {@link PcmFile}s, keyed by the track's content hash like
+ * the {@link TrackCache}. PCM is about ten times the size of the MP3 it came from, so it has its
+ * own, separate byte budget and evicts least recently used tracks to stay under it. Recency
+ * survives restarts through the files' modified times.
+ *
+ * Evicting a file that is still mapped is harmless: the mapping stays valid until it is
+ * dropped.
+ */
+public final class PcmCache {
+
+    private static final String SUFFIX = ".pcm";
+
+    private final File mDir;
+    private final long mMaxBytes;
+
+    // Track hash -> size in bytes, least recently used first.
+    private final LinkedHashMap<String, Long> mFiles = new LinkedHashMap<>(16, 0.75f, true);
+    private long mSize;
+
+    /**
+     * @param dir      directory owned by the cache; created if missing
+     * @param maxBytes total size of PCM to keep before evicting
+     */
+    public PcmCache(File dir, long maxBytes) {
+        mDir = dir;
+        mMaxBytes = maxBytes;
+        mDir.mkdirs();
+        load();
+    }
+
+    /**
+     * Returns the decoded track with the given hash, or null on a miss.
+     */
+    public synchronized PcmFile get(String hash) {
+        if (mFiles.get(hash) == null) {
+            return null;
+        }
+        File file = fileOf(hash);
+        PcmFile pcm = null;
+        try {
+            pcm = PcmFile.open(file);
+        } catch (IOException e) {
+            // Treated as a miss below.
+        }
+        if (pcm == null) {
+            remove(hash);
+            file.delete();
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return pcm;
+    }
+
+    /**
+     * Starts writing the decoded track with the given hash. Pass the writer to {@link #put}
+     * once the whole track went through it, or {@link PcmFile.Writer#abort} it.
+     */
+    public PcmFile.Writer newWriter(String hash, int sampleRate, int channels)
+            throws IOException {
+        return new PcmFile.Writer(fileOf(hash), sampleRate, channels);
+    }
+
+    /**
+     * Completes a writer from {@link #newWriter}, evicts older tracks if the cache is over
+     * budget and returns the new track mapped.
+     */
+    public synchronized PcmFile put(String hash, PcmFile.Writer writer) throws IOException {
+        File file = writer.finish();
+        Long previous = mFiles.put(hash, file.length());
+        if (previous != null) {
+            mSize -= previous;
+        }
+        mSize += file.length();
+        trimToSize();
+        PcmFile pcm = PcmFile.open(file);
+        if (pcm == null) {
+            throw new IOException("Could not read back " + file);
+        }
+        return pcm;
+    }
+
+    public synchronized long size() {
+        return mSize;
+    }
+
+    /**
+     * Evicts least recently used tracks until the cache fits its budget, always keeping the
+     * most recent one.
+     */
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Long>> it = mFiles.entrySet().iterator();
+        while (mSize > mMaxBytes && mFiles.size() > 1 && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            fileOf(eldest.getKey()).delete();
+            mSize -= eldest.getValue();
+            it.remove();
+        }
+    }
+
+    private void remove(String hash) {
+        Long size = mFiles.remove(hash);
+        if (size != null) {
+            mSize -= size;
+        }
+    }
+
+    private File fileOf(String hash) {
+        return new File(mDir, hash + SUFFIX);
+    }
+
+    private void load() {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(SUFFIX)) {
+                long size = file.length();
+                mFiles.put(name.substring(0, name.length() - SUFFIX.length()), size);
+                mSize += size;
+            } else if (name.endsWith(".tmp")) {
+                // Left behind by a decode that never finished.
+                file.delete();
+            }
+        }
+    }
+}
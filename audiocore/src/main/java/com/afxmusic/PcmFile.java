@@ -0,0 +1,222 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.afxmusic;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A whole track decoded to 16-bit interleaved PCM and memory-mapped, so any frame can be read
+ * without decoding: seeking is just an index. The pages are only read from disk as playback
+ * touches them.
+ *
+ * Write one with a {@link Writer} fed from the decoder, then {@link #open} it.
+ */
+public final class PcmFile {
+
+    private static final int MAGIC = 0x41465850; // "AFXP"
+    private static final int VERSION = 1;
+    static final int HEADER_BYTES = 16;
+
+    private final int mSampleRate;
+    private final int mChannels;
+    private final int mFrames;
+    private final ShortBuffer mSamples;
+
+    private PcmFile(int sampleRate, int channels, ShortBuffer samples) {
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mFrames = samples.capacity() / channels;
+        mSamples = samples;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannelCount() {
+        return mChannels;
+    }
+
+    public int getFrameCount() {
+        return mFrames;
+    }
+
+    public int getDurationMs() {
+        return (int) ((long) mFrames * 1000 / mSampleRate);
+    }
+
+    /**
+     * Returns a new read-only view of the samples with its own position, for one reader.
+     */
+    public ShortBuffer samples() {
+        return mSamples.duplicate();
+    }
+
+    /**
+     * Copies {@code frames} frames starting at {@code frame} into {@code out}, as far as the
+     * track goes.
+     *
+     * @return the number of frames copied
+     */
+    public int read(int frame, short[] out, int frames) {
+        int count = Math.max(0, Math.min(frames, mFrames - frame));
+        ShortBuffer samples = mSamples.duplicate();
+        samples.position(frame * mChannels);
+        samples.get(out, 0, count * mChannels);
+        return count;
+    }
+
+    /**
+     * Maps a file written by a {@link Writer}, or returns null if it is missing or corrupt.
+     */
+    public static PcmFile open(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            if (map.remaining() < HEADER_BYTES || map.getInt() != MAGIC
+                    || map.getInt() != VERSION) {
+                return null;
+            }
+            int sampleRate = map.getInt();
+            int channels = map.getInt();
+            if (sampleRate <= 0 || channels <= 0 || map.remaining() % (2 * channels) != 0) {
+                return null;
+            }
+            // The mapping stays valid after the channel is closed.
+            return new PcmFile(sampleRate, channels, map.slice()
+                    .order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().asReadOnlyBuffer());
+        } catch (RuntimeException e) {
+            // Truncated or corrupt; it will be decoded again.
+            return null;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Streams decoded PCM to a file. Nothing is visible under the final name until
+     * {@link #finish} succeeds, so an abandoned decode never leaves a partial track behind.
+     */
+    public static final class Writer implements PcmSink {
+        private static final int BUFFER_BYTES = 64 * 1024;
+
+        private final File mFile;
+        private final File mTemp;
+        private final int mChannels;
+        private final FileOutputStream mOut;
+        private final FileChannel mChannel;
+        private final ByteBuffer mBuffer =
+                ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        private final ShortBuffer mShorts = mBuffer.asShortBuffer();
+        private IOException mError;
+
+        public Writer(File file, int sampleRate, int channels) throws IOException {
+            mFile = file;
+            mTemp = new File(file.getPath() + ".tmp");
+            mChannels = channels;
+            mOut = new FileOutputStream(mTemp);
+            mChannel = mOut.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(sampleRate).putInt(channels);
+            header.flip();
+            try {
+                write(header);
+            } catch (IOException e) {
+                abort();
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean onPcm(short[] pcm, int frames) {
+            int offset = 0;
+            int samples = frames * mChannels;
+            try {
+                while (mError == null && offset < samples) {
+                    int count = Math.min(samples - offset, mShorts.remaining());
+                    mShorts.put(pcm, offset, count);
+                    offset += count;
+                    if (!mShorts.hasRemaining()) {
+                        flush();
+                    }
+                }
+            } catch (IOException e) {
+                mError = e;
+            }
+            // A full disk shows up in finish(); decoding goes on for the other sinks.
+            return true;
+        }
+
+        /**
+         * Completes the file and moves it under its final name.
+         */
+        public File finish() throws IOException {
+            try {
+                if (mError != null) {
+                    throw mError;
+                }
+                flush();
+                mOut.close();
+            } catch (IOException e) {
+                abort();
+                throw e;
+            }
+            if (!mTemp.renameTo(mFile)) {
+                mTemp.delete();
+                throw new IOException("Could not save PCM to " + mFile);
+            }
+            return mFile;
+        }
+
+        /**
+         * Throws away what was written so far.
+         */
+        public void abort() {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                // Deleted below either way.
+            }
+            mTemp.delete();
+        }
+
+        private void flush() throws IOException {
+            mBuffer.position(0).limit(mShorts.position() * 2);
+            write(mBuffer);
+            mBuffer.clear();
+            mShorts.clear();
+        }
+
+        private void write(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                mChannel.write(buffer);
+            }
+        }
+    }
+}
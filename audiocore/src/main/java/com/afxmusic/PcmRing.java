@@ -0,0 +1,212 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free ring of interleaved 16-bit PCM between exactly one producer thread, e.g. a
+ * decoder, and one consumer thread, e.g. the audio thread. Neither side ever blocks or
+ * allocates; a full or empty ring just moves fewer frames.
+ *
+ * Besides samples, the producer can {@link #mark} where the next frame it writes comes from in
+ * the track, so the consumer always knows the source frame of what it reads even across loop
+ * wraps. A flushing mark, for a seek, makes the consumer drop everything written before it
+ * instead of playing it out.
+ */
+public final class PcmRing {
+
+    // Marks waiting for the consumer; a seek storm beyond this waits for it to catch up.
+    static final int MAX_MARKS = 64;
+
+    private final short[] mSamples;
+    private final int mChannels;
+    private final int mCapacity;
+    private final int mMask;
+
+    // Frames written and read since creation. Each is advanced by its own side only.
+    private final AtomicLong mWritten = new AtomicLong();
+    private final AtomicLong mRead = new AtomicLong();
+
+    private final long[] mMarkAt = new long[MAX_MARKS];
+    private final long[] mMarkSource = new long[MAX_MARKS];
+    private final boolean[] mMarkFlush = new boolean[MAX_MARKS];
+    private final AtomicLong mMarksAdded = new AtomicLong();
+    private final AtomicLong mMarksTaken = new AtomicLong();
+
+    // The consumer's own state.
+    private long mSourceFrame;
+    private boolean mFlushed;
+
+    /**
+     * @param capacityFrames rounded up to a power of two
+     */
+    public PcmRing(int capacityFrames, int channels) {
+        mCapacity = Integer.highestOneBit(Math.max(1, capacityFrames - 1)) << 1;
+        mMask = mCapacity - 1;
+        mChannels = channels;
+        mSamples = new short[mCapacity * channels];
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public int getChannelCount() {
+        return mChannels;
+    }
+
+    // Producer side.
+
+    /**
+     * Returns how many frames {@link #write} can take right now.
+     */
+    public int getFreeFrames() {
+        return mCapacity - (int) (mWritten.get() - mRead.get());
+    }
+
+    /**
+     * Appends up to {@code frames} frames from {@code pcm}, starting {@code offset} samples in.
+     *
+     * @return the number of frames written, less than asked for if the ring is full
+     */
+    public int write(short[] pcm, int offset, int frames) {
+        long written = mWritten.get();
+        int count = Math.min(frames, mCapacity - (int) (written - mRead.get()));
+        int at = (int) (written & mMask);
+        int first = Math.min(count, mCapacity - at);
+        System.arraycopy(pcm, offset, mSamples, at * mChannels, first * mChannels);
+        System.arraycopy(pcm, offset + first * mChannels, mSamples, 0,
+                (count - first) * mChannels);
+        mWritten.lazySet(written + count);
+        return count;
+    }
+
+    /**
+     * Says that the next frame written is {@code sourceFrame} of the track. With
+     * {@code flush}, everything written before it is dropped unread.
+     *
+     * @return false if too many marks are still pending; try again once the consumer has read
+     */
+    public boolean mark(long sourceFrame, boolean flush) {
+        long added = mMarksAdded.get();
+        if (added - mMarksTaken.get() >= MAX_MARKS) {
+            return false;
+        }
+        int slot = (int) (added & (MAX_MARKS - 1));
+        mMarkAt[slot] = mWritten.get();
+        mMarkSource[slot] = sourceFrame;
+        mMarkFlush[slot] = flush;
+        mMarksAdded.lazySet(added + 1);
+        return true;
+    }
+
+    // Consumer side.
+
+    /**
+     * Returns how many frames are written and not read yet, flushed ones included.
+     */
+    public int getAvailableFrames() {
+        return (int) (mWritten.get() - mRead.get());
+    }
+
+    /**
+     * Reads up to {@code frames} frames into {@code out}, starting {@code offset} samples in.
+     * Applies pending flushes first. A read stops short of the next mark, so the frames of one
+     * read are always contiguous in the track and end just before {@link #getSourceFrame}.
+     *
+     * @return the number of frames read, less than asked for if the ring ran dry or a mark
+     *         came up
+     */
+    public int read(short[] out, int offset, int frames) {
+        skipFlushed();
+        long read = mRead.get();
+        long markAt = applyMarks(read);
+        int count = (int) Math.min(frames, Math.min(mWritten.get(), markAt) - read);
+        int at = (int) (read & mMask);
+        int first = Math.min(count, mCapacity - at);
+        System.arraycopy(mSamples, at * mChannels, out, offset, first * mChannels);
+        System.arraycopy(mSamples, 0, out, offset + first * mChannels,
+                (count - first) * mChannels);
+        mSourceFrame += count;
+        mRead.lazySet(read + count);
+        return count;
+    }
+
+    /**
+     * Drops everything before the newest pending flush, without reading anything.
+     *
+     * @return whether there was a flush
+     */
+    public boolean skipFlushed() {
+        long added = mMarksAdded.get();
+        long taken = mMarksTaken.get();
+        long flush = -1;
+        for (long i = taken; i < added; i++) {
+            if (mMarkFlush[(int) (i & (MAX_MARKS - 1))]) {
+                flush = i;
+            }
+        }
+        if (flush < 0) {
+            return false;
+        }
+        int slot = (int) (flush & (MAX_MARKS - 1));
+        mSourceFrame = mMarkSource[slot];
+        mRead.lazySet(mMarkAt[slot]);
+        mMarksTaken.lazySet(flush + 1);
+        mFlushed = true;
+        return true;
+    }
+
+    /**
+     * Returns whether a flush was applied since the last call, e.g. to drop audio buffered
+     * further down the line.
+     */
+    public boolean pollFlushed() {
+        boolean flushed = mFlushed;
+        mFlushed = false;
+        return flushed;
+    }
+
+    /**
+     * Returns the source frame just after the last one read.
+     */
+    public long getSourceFrame() {
+        return mSourceFrame;
+    }
+
+    /**
+     * Takes every mark at {@code read}.
+     *
+     * @return where the next mark is, or {@link Long#MAX_VALUE}
+     */
+    private long applyMarks(long read) {
+        long added = mMarksAdded.get();
+        long taken = mMarksTaken.get();
+        while (taken < added) {
+            int slot = (int) (taken & (MAX_MARKS - 1));
+            if (mMarkAt[slot] != read) {
+                mMarksTaken.lazySet(taken);
+                return mMarkAt[slot];
+            }
+            mSourceFrame = mMarkSource[slot];
+            taken++;
+        }
+        mMarksTaken.lazySet(taken);
+        return Long.MAX_VALUE;
+    }
+}
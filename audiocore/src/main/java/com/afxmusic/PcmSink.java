@@ -0,0 +1,29 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+/**
+ * Receives decoded PCM, e.g. from {@code PcmDecoder}. The array is reused between calls.
+ */
+public interface PcmSink {
+    /**
+     * @param pcm    interleaved samples
+     * @param frames number of frames (samples per channel) in {@code pcm}
+     * @return false to stop decoding early
+     */
+    boolean onPcm(short[] pcm, int frames);
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The one playback clock, owned by the active PlayerAdapter.
+ *
+ * Instead of asking the native player for its position every tick, the clock remembers a single
+ * anchor (when, where, how fast) and extrapolates from it. It only goes back to the player to
+ * re-anchor every {@link #RESYNC_INTERVAL_MS}, or when the extrapolation runs past the end of the
+ * track. The tick runs only while playing, and there is never more than one of it.
+ *
+ * While a gapless A/B loop is playing the clock wraps its extrapolation at B back to A, exactly
+ * like the audio does, see {@link #setLoop}.
+ *
+ * Subscribed {@link PlaybackInfoListener}s get {@link PlaybackInfoListener#onPositionChanged}
+ * on the clock's thread.
+ */
+public final class PlaybackClock {
+
+    public static final int TICK_INTERVAL_MS = 1000;
+    public static final int RESYNC_INTERVAL_MS = 5000;
+
+    /**
+     * Where the clock re-anchors from. Returns a negative value if there is no position.
+     */
+    public interface PositionSource {
+        int getCurrentPosition();
+    }
+
+    /**
+     * Immutable so readers on any thread see a consistent (time, position, speed) triple.
+     */
+    private static final class Anchor {
+        final long nanos;
+        final int position;
+        final float speed;
+        final boolean running;
+        final int loopStart;
+        final int loopEnd;
+
+        Anchor(long nanos, int position, float speed, boolean running,
+               int loopStart, int loopEnd) {
+            this.nanos = nanos;
+            this.position = position;
+            this.speed = speed;
+            this.running = running;
+            this.loopStart = loopStart;
+            this.loopEnd = loopEnd;
+        }
+
+        Anchor moveTo(long nanos, int position, float speed, boolean running) {
+            return new Anchor(nanos, position, speed, running, loopStart, loopEnd);
+        }
+    }
+
+    private final PositionSource mSource;
+    // Copied on write, so a tick walks it without allocating an iterator.
+    private final Object mListenersLock = new Object();
+    private volatile PlaybackInfoListener[] mListeners = new PlaybackInfoListener[0];
+    private final Runnable mTickTask = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+
+    private volatile Anchor mAnchor = new Anchor(System.nanoTime(), 0, 1.0f, false, 0, 0);
+    private volatile int mDuration = 0;
+    private ScheduledExecutorService mExecutor;
+    private ScheduledFuture<?> mTick;
+    // Only touched on the tick thread, or while no tick is scheduled.
+    private long mLastTickNanos;
+
+    public PlaybackClock(PositionSource source) {
+        mSource = source;
+    }
+
+    public void subscribe(PlaybackInfoListener listener) {
+        synchronized (mListenersLock) {
+            PlaybackInfoListener[] listeners = mListeners;
+            for (PlaybackInfoListener existing : listeners) {
+                if (existing == listener) {
+                    return;
+                }
+            }
+            PlaybackInfoListener[] added = Arrays.copyOf(listeners, listeners.length + 1);
+            added[listeners.length] = listener;
+            mListeners = added;
+        }
+    }
+
+    public void unsubscribe(PlaybackInfoListener listener) {
+        synchronized (mListenersLock) {
+            PlaybackInfoListener[] listeners = mListeners;
+            for (int i = 0; i < listeners.length; i++) {
+                if (listeners[i] == listener) {
+                    PlaybackInfoListener[] removed = new PlaybackInfoListener[listeners.length - 1];
+                    System.arraycopy(listeners, 0, removed, 0, i);
+                    System.arraycopy(listeners, i + 1, removed, i, listeners.length - i - 1);
+                    mListeners = removed;
+                    return;
+                }
+            }
+        }
+    }
+
+    public void setDuration(int duration) {
+        mDuration = duration;
+    }
+
+    /**
+     * Starts extrapolating from {@code position} and starts the tick if it isn't running.
+     */
+    public synchronized void start(int position, float speed) {
+        mAnchor = mAnchor.moveTo(System.nanoTime(), position, speed, true);
+        if (mTick == null) {
+            mLastTickNanos = 0;
+            if (mExecutor == null) {
+                mExecutor = Executors.newSingleThreadScheduledExecutor();
+            }
+            mTick = mExecutor.scheduleAtFixedRate(
+                    mTickTask, 0, TICK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Freezes the clock at {@code position}, stops the tick and reports the final position.
+     */
+    public synchronized void stop(int position) {
+        mAnchor = mAnchor.moveTo(System.nanoTime(), position, mAnchor.speed, false);
+        if (mTick != null) {
+            mTick.cancel(false);
+            mTick = null;
+        }
+        dispatch(position);
+    }
+
+    /**
+     * Re-anchors after a seek and reports the new position right away.
+     */
+    public void seek(int position) {
+        synchronized (this) {
+            Anchor anchor = mAnchor;
+            mAnchor = anchor.moveTo(System.nanoTime(), position, anchor.speed, anchor.running);
+        }
+        dispatch(position);
+    }
+
+    public synchronized void setSpeed(float speed) {
+        long now = System.nanoTime();
+        Anchor anchor = mAnchor;
+        mAnchor = anchor.moveTo(now, extrapolate(anchor, now), speed, anchor.running);
+    }
+
+    /**
+     * Makes the clock wrap from {@code end} back to {@code start}, for audio that loops with
+     * no seek in between. Pass 0, 0 to stop wrapping.
+     */
+    public synchronized void setLoop(int start, int end) {
+        long now = System.nanoTime();
+        Anchor anchor = mAnchor;
+        mAnchor = new Anchor(now, extrapolate(anchor, now), anchor.speed, anchor.running,
+                start, end);
+    }
+
+    public boolean isRunning() {
+        return mAnchor.running;
+    }
+
+    /**
+     * Returns the extrapolated playback position in milliseconds.
+     */
+    public int getPosition() {
+        return extrapolate(mAnchor, System.nanoTime());
+    }
+
+    /**
+     * Stops the tick thread for good.
+     */
+    public synchronized void release() {
+        stop(mAnchor.position);
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+            mExecutor = null;
+        }
+    }
+
+    private static int extrapolate(Anchor anchor, long now) {
+        if (!anchor.running) {
+            return anchor.position;
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(now - anchor.nanos);
+        int position = anchor.position + (int) (elapsedMs * anchor.speed);
+        int loopLength = anchor.loopEnd - anchor.loopStart;
+        if (loopLength > 0 && position >= anchor.loopEnd) {
+            position = anchor.loopStart + (position - anchor.loopStart) % loopLength;
+        }
+        return position;
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+        if (mLastTickNanos != 0) {
+            long late = now - mLastTickNanos - TimeUnit.MILLISECONDS.toNanos(TICK_INTERVAL_MS);
+            Telemetry.get().tickJitter.record(Math.abs(late) / 1000);
+        }
+        mLastTickNanos = now;
+        Anchor anchor = mAnchor;
+        if (!anchor.running) {
+            return;
+        }
+        int position = extrapolate(anchor, now);
+        int duration = mDuration;
+        boolean ended = duration > 0 && position >= duration;
+        if (ended || now - anchor.nanos >= TimeUnit.MILLISECONDS.toNanos(RESYNC_INTERVAL_MS)) {
+            // The player may have wrapped around or drifted; ask it once.
+            int actual = mSource.getCurrentPosition();
+            synchronized (this) {
+                // Don't clobber a seek or pause that happened meanwhile.
+                if (actual >= 0 && mAnchor == anchor) {
+                    if (!ended) {
+                        Telemetry.get().clockDrift.record(Math.abs(position - actual) * 1000L);
+                    }
+                    position = actual;
+                    mAnchor = anchor.moveTo(now, actual, anchor.speed, true);
+                }
+            }
+        }
+        dispatch(position);
+    }
+
+    private void dispatch(int position) {
+        PlaybackInfoListener[] listeners = mListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].onPositionChanged(position);
+        }
+    }
+}
@@ -23,7 +23,8 @@ import java.lang.annotation.RetentionPolicy;
 
 /**
  * Allows {@link MediaPlayerHolder} to report media playback duration and progress updates to
- * the {@link MainActivity}.
+ * the {@link MainActivity}. {@link PlaybackEngine} passes every call but
+ * {@link #onPositionChanged} on to the main thread.
  */
 public abstract class PlaybackInfoListener {
 
@@ -38,6 +39,16 @@ public abstract class PlaybackInfoListener {
         int COMPLETED = 3;
     }
 
+    @IntDef({Load.OPENING, Load.PREPARING, Load.READY, Load.CANCELLED})
+    @Retention(RetentionPolicy.SOURCE)
+    @interface Load {
+
+        int OPENING = 0;
+        int PREPARING = 1;
+        int READY = 2;
+        int CANCELLED = 3;
+    }
+
     public static String convertStateToString(@State int state) {
         String stateString;
         switch (state) {
@@ -71,4 +82,43 @@ public abstract class PlaybackInfoListener {
     void onStateChanged(@State int state) {
     }
 
+    /**
+     * Called on the main thread as the newest track load moves through its stages.
+     */
+    void onLoadProgress(@Load int stage) {
+    }
+
+    /**
+     * Called on the main thread when the newest track load fails. Nothing is loaded after that.
+     */
+    void onLoadFailed(Exception error) {
+    }
+
+    /**
+     * Called on the main thread when a practice queue moves to the song at {@code index},
+     * after that song's speed and loop have been applied.
+     */
+    void onTrackChanged(int index) {
+    }
+
+    /**
+     * Called on the main thread once a track's saved {@link PracticeState} has been applied.
+     */
+    void onPracticeStateRestored(PracticeState state) {
+    }
+
+    /**
+     * Called on the main thread when the loop moves to a named region, whether it was picked
+     * or a chain of regions reached it.
+     */
+    void onLoopRegionChanged(LoopRegion region) {
+    }
+
+    /**
+     * Called on the main thread when the A/B loop is set a step further: {@code end} is -1
+     * while only the start is picked, and both are -1 once the loop is cleared.
+     */
+    void onLoopChanged(int start, int end) {
+    }
+
 }
\ No newline at end of file
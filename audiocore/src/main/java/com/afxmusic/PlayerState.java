@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+/**
+ * An immutable snapshot of a player, published by the one thread that changes it so any other
+ * thread sees the loop, speed and play state together rather than torn halfway through a
+ * change. The position is not part of it; that comes from the {@link PlaybackClock}.
+ */
+public final class PlayerState {
+
+    /** Nothing loaded. */
+    public static final PlayerState EMPTY =
+            new PlayerState(false, false, 0, false, 0, 0, 100, 0, 0, false);
+
+    private final boolean mInitialized;
+    private final boolean mPlaying;
+    private final int mSongLength;
+    private final boolean mLooping;
+    private final int mLoopStart;
+    private final int mLoopEnd;
+    private final int mSpeedPercent;
+    private final int mTrackIndex;
+    private final int mTrackCount;
+    private final boolean mDsp;
+
+    /**
+     * @param loopStart the loop start, or the start picked so far if not {@code looping}
+     * @param trackIndex the song playing from a practice queue, 0 without one
+     * @param trackCount the songs in the practice queue, 0 without one
+     * @param dsp whether the player runs its own DSP chain, with the equalizer and metronome
+     */
+    public PlayerState(boolean initialized, boolean playing, int songLength, boolean looping,
+                       int loopStart, int loopEnd, int speedPercent, int trackIndex,
+                       int trackCount, boolean dsp) {
+        mInitialized = initialized;
+        mPlaying = playing;
+        mSongLength = songLength;
+        mLooping = looping;
+        mLoopStart = loopStart;
+        mLoopEnd = loopEnd;
+        mSpeedPercent = speedPercent;
+        mTrackIndex = trackIndex;
+        mTrackCount = trackCount;
+        mDsp = dsp;
+    }
+
+    public boolean isInitialized() {
+        return mInitialized;
+    }
+
+    public boolean isPlaying() {
+        return mPlaying;
+    }
+
+    public int getSongLength() {
+        return mSongLength;
+    }
+
+    public boolean isLooping() {
+        return mLooping;
+    }
+
+    public int getLoopStart() {
+        return mLoopStart;
+    }
+
+    public int getLoopEnd() {
+        return mLoopEnd;
+    }
+
+    public int getSpeedPercent() {
+        return mSpeedPercent;
+    }
+
+    public float getSpeed() {
+        return mSpeedPercent / 100f;
+    }
+
+    public int getTrackIndex() {
+        return mTrackIndex;
+    }
+
+    public int getTrackCount() {
+        return mTrackCount;
+    }
+
+    public boolean hasNextTrack() {
+        return mTrackIndex + 1 < mTrackCount;
+    }
+
+    public boolean hasPreviousTrack() {
+        return mTrackCount > 0 && mTrackIndex > 0;
+    }
+
+    public boolean hasDsp() {
+        return mDsp;
+    }
+
+    @Override
+    public String toString() {
+        return "PlayerState{initialized=" + mInitialized + ", playing=" + mPlaying
+                + ", length=" + mSongLength + ", loop=" + (mLooping ? mLoopStart + "-" + mLoopEnd
+                : "off") + ", speed=" + mSpeedPercent + "%, track=" + mTrackIndex + "/"
+                + mTrackCount + "}";
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.afxmusic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Everything a user set up while practicing one track: its speed, where they were, the A/B
+ * loop that was on and the named loop regions they saved. Kept per track by the
+ * {@link PracticeStore}.
+ */
+public final class PracticeState {
+
+    private int mSpeedPercent = 100;
+    private int mPosition = 0;
+    private int mLoopStart = 0;
+    private int mLoopEnd = 0;
+    private final List<LoopRegion> mRegions = new ArrayList<>();
+
+    public PracticeState() {
+    }
+
+    public PracticeState(PracticeState other) {
+        mSpeedPercent = other.mSpeedPercent;
+        mPosition = other.mPosition;
+        mLoopStart = other.mLoopStart;
+        mLoopEnd = other.mLoopEnd;
+        mRegions.addAll(other.mRegions);
+    }
+
+    public int getSpeedPercent() {
+        return mSpeedPercent;
+    }
+
+    public void setSpeedPercent(int speedPercent) {
+        mSpeedPercent = speedPercent;
+    }
+
+    /**
+     * Returns the last playback position in milliseconds.
+     */
+    public int getPosition() {
+        return mPosition;
+    }
+
+    public void setPosition(int position) {
+        mPosition = position;
+    }
+
+    public boolean hasLoop() {
+        return mLoopEnd > mLoopStart;
+    }
+
+    public int getLoopStart() {
+        return mLoopStart;
+    }
+
+    public int getLoopEnd() {
+        return mLoopEnd;
+    }
+
+    /**
+     * Sets the A/B loop that is on; an empty range means none.
+     */
+    public void setLoop(int start, int end) {
+        mLoopStart = start;
+        mLoopEnd = end;
+    }
+
+    public List<LoopRegion> getRegions() {
+        return Collections.unmodifiableList(mRegions);
+    }
+
+    public void setRegions(List<LoopRegion> regions) {
+        mRegions.clear();
+        mRegions.addAll(regions);
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.afxmusic;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+/**
+ * Remembers a {@link PracticeState} per track, keyed by the track's content hash like the
+ * {@link TrackCache}.
+ *
+ * All states live in memory, so {@link #get} is a map lookup. On disk they are kept in an
+ * append-only log: every {@link #put} appends the track's whole state as one checksummed
+ * record, and the last record for a hash wins. A record torn by a crash fails its checksum and
+ * is dropped along with anything after it. When the log holds more than
+ * {@link #COMPACT_FACTOR} times the live data it is rewritten with one record per track, and
+ * after a failed write the next put rewrites it too, so no state is only in memory for long.
+ *
+ * Disk writes happen in order on the executor given to the constructor, so callers on the
+ * main thread never wait for them.
+ */
+public final class PracticeStore {
+
+    private static final int MAGIC = 0x41465854; // "AFXT"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 8;
+    static final int COMPACT_FACTOR = 4;
+    // Below this the log is never worth compacting.
+    static final long MIN_COMPACT_BYTES = 64 * 1024;
+
+    private final File mFile;
+    private final Executor mWriter;
+    private final Map<String, PracticeState> mStates = new HashMap<>();
+    // Bytes of the last record per hash, and their total: what a compacted log would hold
+    // besides its header.
+    private final Map<String, Integer> mRecordSizes = new HashMap<>();
+    private long mLiveBytes;
+    // The log's length, header included, once the writes queued so far are done.
+    private long mLogBytes;
+    // Set when a write failed, so the log may be missing a record or end in a torn one.
+    private boolean mRewriteNeeded;
+
+    /**
+     * Reads the log back in; a missing or unreadable log starts empty.
+     *
+     * @param writer runs the disk writes, one at a time and in order
+     */
+    public PracticeStore(File file, Executor writer) {
+        mFile = file;
+        mWriter = writer;
+        load();
+    }
+
+    /**
+     * Returns a copy of the state saved for a track, or null if there is none.
+     */
+    public synchronized PracticeState get(String hash) {
+        PracticeState state = mStates.get(hash);
+        return state == null ? null : new PracticeState(state);
+    }
+
+    /**
+     * Saves a copy of {@code state} as the track's practice state.
+     */
+    public synchronized void put(String hash, PracticeState state) {
+        final PracticeState copy = new PracticeState(state);
+        mStates.put(hash, copy);
+        final byte[] record = encode(hash, copy);
+        Integer previous = mRecordSizes.put(hash, record.length);
+        mLiveBytes += record.length - (previous == null ? 0 : previous);
+        mLogBytes += (mLogBytes == 0 ? HEADER_BYTES : 0) + record.length;
+        final boolean compact = mRewriteNeeded || (mLogBytes > MIN_COMPACT_BYTES
+                && mLogBytes > COMPACT_FACTOR * (HEADER_BYTES + mLiveBytes));
+        final Map<String, PracticeState> snapshot = compact ? copyStates() : null;
+        if (compact) {
+            mLogBytes = HEADER_BYTES + mLiveBytes;
+            mRewriteNeeded = false;
+        }
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (snapshot != null) {
+                        rewrite(snapshot);
+                    } else {
+                        append(record);
+                    }
+                } catch (IOException e) {
+                    // Kept in memory; the next put rewrites the whole log with it.
+                    synchronized (PracticeStore.this) {
+                        mRewriteNeeded = true;
+                    }
+                }
+            }
+        });
+    }
+
+    public synchronized int size() {
+        return mStates.size();
+    }
+
+    private Map<String, PracticeState> copyStates() {
+        Map<String, PracticeState> copy = new HashMap<>();
+        for (Map.Entry<String, PracticeState> entry : mStates.entrySet()) {
+            copy.put(entry.getKey(), new PracticeState(entry.getValue()));
+        }
+        return copy;
+    }
+
+    private void append(byte[] record) throws IOException {
+        boolean fresh = !mFile.exists() || mFile.length() == 0;
+        OutputStream out = new FileOutputStream(mFile, true);
+        try {
+            if (fresh) {
+                out.write(header());
+            }
+            out.write(record);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void rewrite(Map<String, PracticeState> states) throws IOException {
+        File temp = new File(mFile.getPath() + ".tmp");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+        try {
+            out.write(header());
+            for (Map.Entry<String, PracticeState> entry : states.entrySet()) {
+                out.write(encode(entry.getKey(), entry.getValue()));
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(mFile)) {
+            temp.delete();
+            throw new IOException("Could not compact " + mFile);
+        }
+    }
+
+    private static byte[] header() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_BYTES);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Encodes one record: payload length, payload, CRC-32 of the payload.
+     */
+    static byte[] encode(String hash, PracticeState state) {
+        try {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(payload);
+            out.writeUTF(hash);
+            out.writeInt(state.getSpeedPercent());
+            out.writeInt(state.getPosition());
+            out.writeInt(state.getLoopStart());
+            out.writeInt(state.getLoopEnd());
+            List<LoopRegion> regions = state.getRegions();
+            out.writeShort(regions.size());
+            for (LoopRegion region : regions) {
+                out.writeUTF(region.getName());
+                out.writeInt(region.getStart());
+                out.writeInt(region.getEnd());
+            }
+            byte[] body = payload.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(body, 0, body.length);
+
+            ByteArrayOutputStream record = new ByteArrayOutputStream(body.length + 8);
+            DataOutputStream framed = new DataOutputStream(record);
+            framed.writeInt(body.length);
+            framed.write(body);
+            framed.writeInt((int) crc.getValue());
+            return record.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+        long good = 0;
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(mFile)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    mFile.delete();
+                    return;
+                }
+                good = HEADER_BYTES;
+                while (true) {
+                    int length = in.readInt();
+                    if (length <= 0 || length > 1024 * 1024) {
+                        break;
+                    }
+                    byte[] body = new byte[length];
+                    in.readFully(body);
+                    int expected = in.readInt();
+                    CRC32 crc = new CRC32();
+                    crc.update(body, 0, length);
+                    if ((int) crc.getValue() != expected) {
+                        break;
+                    }
+                    decode(body);
+                    good += length + 8;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (EOFException e) {
+            // A torn last record; everything before it is kept.
+        } catch (IOException | RuntimeException e) {
+            // Keep what was read up to the bad record.
+        }
+        if (good < mFile.length()) {
+            truncate(good);
+        }
+        mLogBytes = mFile.exists() ? good : 0;
+    }
+
+    private void decode(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        String hash = in.readUTF();
+        PracticeState state = new PracticeState();
+        state.setSpeedPercent(in.readInt());
+        state.setPosition(in.readInt());
+        int loopStart = in.readInt();
+        state.setLoop(loopStart, in.readInt());
+        int count = in.readUnsignedShort();
+        List<LoopRegion> regions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            int start = in.readInt();
+            regions.add(new LoopRegion(name, start, in.readInt()));
+        }
+        state.setRegions(regions);
+        mStates.put(hash, state);
+        Integer previous = mRecordSizes.put(hash, body.length + 8);
+        mLiveBytes += body.length + 8 - (previous == null ? 0 : previous);
+    }
+
+    /**
+     * Cuts off a torn or corrupt tail so new records are appended after the last good one.
+     */
+    private void truncate(long length) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+            try {
+                raf.setLength(length);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            mFile.delete();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.afxmusic;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Passes a stream of seek targets, e.g. from a finger dragging the seek bar, to one consumer
+ * thread. Only the newest target is ever handed over; the ones the consumer had no time for
+ * are dropped, and it is handed at most one every {@code minIntervalMs}.
+ */
+public final class SeekCoalescer {
+
+    /** Returned by {@link #take} once closed. */
+    public static final int CLOSED = -1;
+
+    private static final int NONE = -1;
+
+    private final long mMinIntervalNanos;
+    private int mTarget = NONE;
+    private long mOfferNanos;
+    private long mTakenOfferNanos;
+    private long mLastTakeNanos;
+    private boolean mClosed;
+
+    public SeekCoalescer(int minIntervalMs) {
+        mMinIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minIntervalMs);
+    }
+
+    /**
+     * Makes {@code position} the target, replacing one that wasn't taken yet.
+     */
+    public synchronized void offer(int position) {
+        mTarget = Math.max(0, position);
+        mOfferNanos = System.nanoTime();
+        notifyAll();
+    }
+
+    /**
+     * Waits for the newest target and the end of the interval since the last one.
+     *
+     * @return the target, or {@link #CLOSED}
+     */
+    public synchronized int take() throws InterruptedException {
+        while (!mClosed) {
+            if (mTarget == NONE) {
+                wait();
+                continue;
+            }
+            long now = System.nanoTime();
+            long early = mLastTakeNanos + mMinIntervalNanos - now;
+            if (mLastTakeNanos != 0 && early > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, early);
+                continue;
+            }
+            int target = mTarget;
+            mTarget = NONE;
+            mTakenOfferNanos = mOfferNanos;
+            mLastTakeNanos = now;
+            return target;
+        }
+        return CLOSED;
+    }
+
+    /**
+     * Returns when the target last returned by {@link #take} was offered, as a
+     * {@link System#nanoTime} reading.
+     */
+    public synchronized long getTakenOfferNanos() {
+        return mTakenOfferNanos;
+    }
+
+    /**
+     * Wakes the consumer and makes every later {@link #take} return {@link #CLOSED}.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+}
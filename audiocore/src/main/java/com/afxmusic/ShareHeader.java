@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The metadata at the start of a binary share payload, the compact alternative to the JSON
+ * response that {@link SharedMusicDecoder} reads. The raw MP3 follows it directly, so nothing
+ * is base64 encoded and the audio can be copied to disk as it arrives.
+ *
+ * <pre>
+ * u32  magic "AFXS"
+ * u8   version, bumped only for incompatible changes
+ * u16  length of the fields below
+ *      s64  audio length in bytes, or -1 if it runs to the end of the response
+ *      s32  loop start ms
+ *      s32  loop end ms, not after the start if there is no loop
+ *      u16  speed in percent
+ *      utf  title, as {@link DataOutputStream#writeUTF}
+ *      ...  fields added later, skipped by older clients
+ * </pre>
+ *
+ * All numbers are big-endian.
+ */
+public final class ShareHeader {
+
+    /** What the client asks for and the server answers with when it speaks the format. */
+    public static final String CONTENT_TYPE = "application/vnd.afxmusic.share";
+
+    static final int MAGIC = 0x41465853;
+    static final int VERSION = 1;
+
+    private final String mTitle;
+    private final int mLoopStart;
+    private final int mLoopEnd;
+    private final int mSpeedPercent;
+    private final long mAudioLength;
+
+    public ShareHeader(String title, int loopStart, int loopEnd, int speedPercent,
+                       long audioLength) {
+        mTitle = title;
+        mLoopStart = loopStart;
+        mLoopEnd = loopEnd;
+        mSpeedPercent = speedPercent;
+        mAudioLength = audioLength;
+    }
+
+    public String getTitle() {
+        return mTitle;
+    }
+
+    public boolean hasLoop() {
+        return mLoopEnd > mLoopStart;
+    }
+
+    public int getLoopStart() {
+        return mLoopStart;
+    }
+
+    public int getLoopEnd() {
+        return mLoopEnd;
+    }
+
+    public int getSpeedPercent() {
+        return mSpeedPercent;
+    }
+
+    /**
+     * Returns the number of audio bytes after the header, or -1 if they run to the end.
+     */
+    public long getAudioLength() {
+        return mAudioLength;
+    }
+
+    /**
+     * Returns the loop and speed the song was shared with, to start practicing from.
+     */
+    public PracticeState toPracticeState() {
+        PracticeState state = new PracticeState();
+        state.setSpeedPercent(mSpeedPercent);
+        if (hasLoop()) {
+            state.setLoop(mLoopStart, mLoopEnd);
+            state.setPosition(mLoopStart);
+        }
+        return state;
+    }
+
+    /**
+     * Reads a header, leaving {@code in} at the first audio byte.
+     *
+     * @throws IOException if reading fails or {@code in} doesn't start with a header this
+     *                     client understands
+     */
+    public static ShareHeader read(InputStream in) throws IOException {
+        // Unbuffered, so nothing past the header is consumed.
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a share payload");
+        }
+        int version = data.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported share payload version " + version);
+        }
+        byte[] fields = new byte[data.readUnsignedShort()];
+        data.readFully(fields);
+        DataInputStream field = new DataInputStream(new ByteArrayInputStream(fields));
+        long audioLength = field.readLong();
+        int loopStart = field.readInt();
+        int loopEnd = field.readInt();
+        int speedPercent = field.readUnsignedShort();
+        String title = field.readUTF();
+        return new ShareHeader(title, loopStart, loopEnd, speedPercent, audioLength);
+    }
+
+    /**
+     * Writes this header, to be followed by {@link #getAudioLength} bytes of audio.
+     */
+    public void write(OutputStream out) throws IOException {
+        ByteArrayOutputStream fields = new ByteArrayOutputStream();
+        DataOutputStream field = new DataOutputStream(fields);
+        field.writeLong(mAudioLength);
+        field.writeInt(mLoopStart);
+        field.writeInt(mLoopEnd);
+        field.writeShort(mSpeedPercent);
+        field.writeUTF(mTitle);
+        field.flush();
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeByte(VERSION);
+        data.writeShort(fields.size());
+        fields.writeTo(data);
+        data.flush();
+    }
+}
@@ -0,0 +1,561 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Fetches the response behind a share link as cheaply as the server allows.
+ *
+ * <ul>
+ * <li>The compact binary payload, see {@link ShareHeader}, is preferred over JSON; the
+ *     server picks one and {@link Body#isBinaryPayload} tells which.
+ * <li>Responses are requested gzipped and stored as received, so byte ranges stay valid.
+ * <li>The body is written to a part file while it is read. An interrupted transfer picks up
+ *     where it stopped with a {@code Range} request, guarded by {@code If-Range} on the
+ *     {@code ETag}, whether the connection dropped mid-read or the app was killed.
+ * <li>Once a link has been read to the end its {@code ETag} is kept, and a later open by a
+ *     caller that still has the result sends {@code If-None-Match}. A 304 costs no body.
+ * <li>Connects and reads time out, and failed requests and server errors are retried with
+ *     exponential backoff and jitter, up to {@link #MAX_ATTEMPTS} times in a row.
+ * </ul>
+ *
+ * State lives in a directory of its own, a {@code .meta} and a {@code .part} file per link,
+ * named after the hash of the URL. Each link can only be open once at a time.
+ */
+public final class ShareLinkResolver {
+
+    public static final int CONNECT_TIMEOUT_MS = 10000;
+    public static final int READ_TIMEOUT_MS = 15000;
+    public static final int MAX_ATTEMPTS = 4;
+    public static final int BACKOFF_MS = 500;
+    private static final int MAX_BACKOFF_MS = 8000;
+
+    private static final String META_SUFFIX = ".meta";
+    private static final String PART_SUFFIX = ".part";
+    private static final String ETAG = "etag";
+    private static final String ENCODING = "encoding";
+    private static final String COMPLETE = "complete";
+    private static final String TYPE = "type";
+    private static final String ACCEPT = ShareHeader.CONTENT_TYPE + ", application/json;q=0.9";
+    private static final String GZIP = "gzip";
+    private static final int BUFFER_SIZE = 8192;
+    // Closing this close to the end reads the rest, so the link counts as complete.
+    private static final int DRAIN_BYTES = 64 * 1024;
+
+    private final File mDir;
+    private final int mConnectTimeoutMs;
+    private final int mReadTimeoutMs;
+    private final int mMaxAttempts;
+    private final int mBackoffMs;
+    private final Random mJitter = new Random();
+    private final Set<String> mOpen = new HashSet<>();
+    private final AtomicLong mBytesTransferred = new AtomicLong();
+
+    /**
+     * @param dir directory owned by the resolver; created if missing
+     */
+    public ShareLinkResolver(File dir) {
+        this(dir, CONNECT_TIMEOUT_MS, READ_TIMEOUT_MS, MAX_ATTEMPTS, BACKOFF_MS);
+    }
+
+    ShareLinkResolver(File dir, int connectTimeoutMs, int readTimeoutMs, int maxAttempts,
+                      int backoffMs) {
+        mDir = dir;
+        mConnectTimeoutMs = connectTimeoutMs;
+        mReadTimeoutMs = readTimeoutMs;
+        mMaxAttempts = maxAttempts;
+        mBackoffMs = backoffMs;
+        mDir.mkdirs();
+    }
+
+    /**
+     * Opens the decompressed response body behind {@code url}. Closing the stream before its
+     * end keeps what was read for the next open to resume from.
+     *
+     * @param revalidate whether the caller still has what the link resolved to last time, in
+     *                   which case an unchanged response isn't sent again
+     * @return the body, or null if {@code revalidate} and the server says it is unchanged
+     * @throws IOException if the link can't be fetched, after retrying
+     */
+    public Body open(String url, boolean revalidate) throws IOException {
+        String key = keyOf(url);
+        synchronized (mOpen) {
+            if (!mOpen.add(key)) {
+                throw new IOException("Already open: " + url);
+            }
+        }
+        boolean opened = false;
+        try {
+            Body body = openBody(url, key, revalidate);
+            opened = body != null;
+            return body;
+        } finally {
+            if (!opened) {
+                release(key);
+            }
+        }
+    }
+
+    /**
+     * Returns how many bytes were received over the network so far, compressed where the
+     * server compressed them.
+     */
+    public long getBytesTransferred() {
+        return mBytesTransferred.get();
+    }
+
+    /**
+     * Drops everything kept for {@code url}, so its next open is a plain request.
+     */
+    public void forget(String url) {
+        String key = keyOf(url);
+        metaFile(key).delete();
+        partFile(key).delete();
+    }
+
+    private Body openBody(String url, String key, boolean revalidate)
+            throws IOException {
+        Properties meta = readMeta(key);
+        File part = partFile(key);
+        String etag = meta.getProperty(ETAG);
+        boolean complete = Boolean.parseBoolean(meta.getProperty(COMPLETE));
+        long from = !complete && etag != null && part.exists() ? part.length() : 0;
+
+        HttpURLConnection connection =
+                connect(url, revalidate && complete ? etag : null, from, etag);
+        int code = connection.getResponseCode();
+        if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            connection.disconnect();
+            Telemetry.get().linksNotModified.increment();
+            return null;
+        }
+        if (code == HttpURLConnection.HTTP_PARTIAL && rangeStart(connection) == from) {
+            Telemetry.get().linkResumes.increment();
+        } else if (code == HttpURLConnection.HTTP_OK) {
+            from = 0;
+            meta = new Properties();
+            if (connection.getHeaderField("ETag") != null) {
+                meta.setProperty(ETAG, connection.getHeaderField("ETag"));
+            }
+            if (GZIP.equalsIgnoreCase(connection.getContentEncoding())) {
+                meta.setProperty(ENCODING, GZIP);
+            }
+            if (connection.getContentType() != null) {
+                meta.setProperty(TYPE, connection.getContentType());
+            }
+        } else if (from > 0 && (code == HttpURLConnection.HTTP_PARTIAL || code == 416)) {
+            // Not the range we asked for, or none left; start over.
+            connection.disconnect();
+            forget(url);
+            return openBody(url, key, revalidate);
+        } else {
+            connection.disconnect();
+            throw new IOException("HTTP " + code + " from " + url);
+        }
+        meta.setProperty(COMPLETE, "false");
+        writeMeta(key, meta);
+
+        InputStream raw = new Transfer(url, key, meta, connection, from);
+        try {
+            return new Body(GZIP.equals(meta.getProperty(ENCODING))
+                    ? new GZIPInputStream(raw) : raw, meta.getProperty(TYPE));
+        } catch (IOException e) {
+            raw.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a GET, retrying failures and server errors with backoff.
+     *
+     * @param ifNoneMatch the ETag to revalidate, or null
+     * @param from        where to resume the body from, or 0 for all of it
+     * @param ifRange     the ETag the resumed part belongs to
+     */
+    private HttpURLConnection connect(String url, String ifNoneMatch, long from, String ifRange)
+            throws IOException {
+        IOException failure = null;
+        for (int attempt = 0; attempt < mMaxAttempts; attempt++) {
+            if (attempt > 0) {
+                Telemetry.get().linkRetries.increment();
+                backOff(attempt);
+            }
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(mConnectTimeoutMs);
+            connection.setReadTimeout(mReadTimeoutMs);
+            // Asking ourselves turns off transparent decompression, so ranges refer to the
+            // bytes as sent.
+            connection.setRequestProperty("Accept-Encoding", GZIP);
+            connection.setRequestProperty("Accept", ACCEPT);
+            if (ifNoneMatch != null) {
+                connection.setRequestProperty("If-None-Match", ifNoneMatch);
+            }
+            if (from > 0) {
+                connection.setRequestProperty("Range", "bytes=" + from + "-");
+                connection.setRequestProperty("If-Range", ifRange);
+            }
+            int code;
+            try {
+                code = connection.getResponseCode();
+            } catch (IOException e) {
+                connection.disconnect();
+                failure = e;
+                continue;
+            }
+            if (code == HttpURLConnection.HTTP_CLIENT_TIMEOUT || code == 429
+                    || code >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                connection.disconnect();
+                failure = new IOException("HTTP " + code + " from " + url);
+                continue;
+            }
+            return connection;
+        }
+        throw failure;
+    }
+
+    private void backOff(int attempt) throws IOException {
+        int delay = Math.min(MAX_BACKOFF_MS, mBackoffMs << Math.min(attempt - 1, 16));
+        try {
+            // Between half and all of the delay, so clients retrying together spread out.
+            Thread.sleep(delay / 2 + mJitter.nextInt(delay / 2 + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while backing off");
+        }
+    }
+
+    private void release(String key) {
+        synchronized (mOpen) {
+            mOpen.remove(key);
+        }
+    }
+
+    /**
+     * Returns where a 206 response starts, from its {@code Content-Range}, or -1.
+     */
+    private static long rangeStart(HttpURLConnection connection) {
+        String range = connection.getHeaderField("Content-Range");
+        if (range == null || !range.startsWith("bytes ")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(range.substring("bytes ".length(), range.indexOf('-')));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the full length of the body a 200 or 206 response belongs to, or -1 if the
+     * server didn't say.
+     */
+    private static long bodyLength(HttpURLConnection connection, long from) {
+        String range = connection.getHeaderField("Content-Range");
+        if (range != null) {
+            int slash = range.indexOf('/');
+            try {
+                return slash < 0 ? -1 : Long.parseLong(range.substring(slash + 1));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        String length = connection.getHeaderField("Content-Length");
+        try {
+            return length == null ? -1 : from + Long.parseLong(length);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private Properties readMeta(String key) {
+        Properties meta = new Properties();
+        File file = metaFile(key);
+        if (file.exists()) {
+            try {
+                InputStream in = new FileInputStream(file);
+                try {
+                    meta.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                // A corrupt meta file just means starting over.
+                meta.clear();
+            }
+        }
+        return meta;
+    }
+
+    private void writeMeta(String key, Properties meta) throws IOException {
+        File file = metaFile(key);
+        File temp = new File(mDir, key + META_SUFFIX + ".tmp");
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            meta.store(out, null);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not write " + file);
+        }
+    }
+
+    private File metaFile(String key) {
+        return new File(mDir, key + META_SUFFIX);
+    }
+
+    private File partFile(String key) {
+        return new File(mDir, key + PART_SUFFIX);
+    }
+
+    private static String keyOf(String url) {
+        MessageDigest digest = TrackCache.newDigest();
+        return TrackCache.toHex(digest.digest(url.getBytes(Charset.forName("UTF-8"))));
+    }
+
+    /**
+     * A response body, decompressed, with the type the server chose for it.
+     */
+    public static final class Body extends FilterInputStream {
+        private final String mContentType;
+
+        Body(InputStream in, String contentType) {
+            super(in);
+            mContentType = contentType;
+        }
+
+        /**
+         * Returns the response's {@code Content-Type}, or null if it had none.
+         */
+        public String getContentType() {
+            return mContentType;
+        }
+
+        /**
+         * Returns whether this is a binary share payload rather than the JSON response.
+         */
+        public boolean isBinaryPayload() {
+            if (mContentType == null) {
+                return false;
+            }
+            int end = mContentType.indexOf(';');
+            String type = (end < 0 ? mContentType : mContentType.substring(0, end)).trim();
+            return type.equalsIgnoreCase(ShareHeader.CONTENT_TYPE);
+        }
+    }
+
+    /**
+     * The raw body: first what an earlier open left in the part file, then the network,
+     * copied into the part file as it goes by. A connection that drops is resumed with a
+     * range request.
+     */
+    private final class Transfer extends InputStream {
+        private final String mUrl;
+        private final String mKey;
+        private final Properties mMeta;
+        private final long mLength;
+        private InputStream mPart;
+        private HttpURLConnection mConnection;
+        private InputStream mNetwork;
+        private OutputStream mCopy;
+        private long mPosition;
+        // Where the last resume started and how many ended before getting past it.
+        private long mResumedAt = -1;
+        private int mStalls;
+        private boolean mDone;
+        private boolean mClosed;
+
+        Transfer(String url, String key, Properties meta, HttpURLConnection connection,
+                 long from) throws IOException {
+            mUrl = url;
+            mKey = key;
+            mMeta = meta;
+            mLength = bodyLength(connection, from);
+            mConnection = connection;
+            try {
+                mNetwork = connection.getInputStream();
+                if (from > 0) {
+                    mPart = new FileInputStream(partFile(key));
+                }
+                mCopy = new FileOutputStream(partFile(key), from > 0);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (mClosed) {
+                throw new IOException("Closed");
+            }
+            if (count == 0) {
+                return 0;
+            }
+            if (mPart != null) {
+                int read = mPart.read(buffer, offset, count);
+                if (read > 0) {
+                    mPosition += read;
+                    return read;
+                }
+                mPart.close();
+                mPart = null;
+            }
+            while (!mDone) {
+                int read;
+                try {
+                    read = mNetwork.read(buffer, offset, Math.min(count, BUFFER_SIZE));
+                } catch (IOException e) {
+                    resume();
+                    continue;
+                }
+                if (read < 0) {
+                    if (mLength >= 0 && mPosition < mLength) {
+                        resume();
+                        continue;
+                    }
+                    finish();
+                    break;
+                }
+                mBytesTransferred.addAndGet(read);
+                mCopy.write(buffer, offset, read);
+                mPosition += read;
+                if (mPosition == mLength) {
+                    // Callers may stop reading at the end of what they need, short of -1.
+                    finish();
+                }
+                return read;
+            }
+            return -1;
+        }
+
+        private void resume() throws IOException {
+            disconnect();
+            mStalls = mPosition == mResumedAt ? mStalls + 1 : 0;
+            mResumedAt = mPosition;
+            if (mStalls >= mMaxAttempts) {
+                throw new IOException("No progress resuming " + mUrl + " at " + mPosition);
+            }
+            String etag = mMeta.getProperty(ETAG);
+            if (etag == null) {
+                // Nothing to tell the server which body the bytes so far came from, and a
+                // range of a changed one spliced on would be corrupt.
+                mCopy.close();
+                forget(mUrl);
+                throw new IOException("No ETag to resume " + mUrl + " at " + mPosition);
+            }
+            HttpURLConnection connection = connect(mUrl, null, mPosition, etag);
+            mConnection = connection;
+            int code = connection.getResponseCode();
+            if (code != HttpURLConnection.HTTP_PARTIAL || rangeStart(connection) != mPosition) {
+                // The link changed under us; what we have is no good.
+                disconnect();
+                mCopy.close();
+                forget(mUrl);
+                throw new IOException("HTTP " + code + " resuming " + mUrl + " at " + mPosition);
+            }
+            Telemetry.get().linkResumes.increment();
+            mNetwork = connection.getInputStream();
+        }
+
+        private void drain() throws IOException {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (read(buffer, 0, buffer.length) >= 0) {
+                // Copied into the part file by read.
+            }
+        }
+
+        private void finish() throws IOException {
+            mDone = true;
+            disconnect();
+            mCopy.close();
+            mMeta.setProperty(COMPLETE, "true");
+            writeMeta(mKey, mMeta);
+            // The caller keeps what it made of the body; only the ETag is needed from now on.
+            partFile(mKey).delete();
+        }
+
+        private void disconnect() {
+            if (mNetwork != null) {
+                try {
+                    mNetwork.close();
+                } catch (IOException e) {
+                    // Only ever closed to be dropped or replaced; what was read is in the part
+                    // file already, and nothing more is read from it.
+                }
+                mNetwork = null;
+            }
+            if (mConnection != null) {
+                mConnection.disconnect();
+                mConnection = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            try {
+                if (!mDone && mLength >= 0
+                        && mLength - mPosition <= DRAIN_BYTES) {
+                    drain();
+                }
+            } catch (IOException e) {
+                // What was drained is in the part file and the link is still incomplete, so
+                // the next open resumes from there.
+            }
+            mClosed = true;
+            try {
+                disconnect();
+                if (mPart != null) {
+                    mPart.close();
+                }
+                if (mCopy != null) {
+                    mCopy.close();
+                }
+            } finally {
+                release(mKey);
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Streams the audio out of a binary share payload, see {@link ShareHeader}: the header is
+ * read, then the MP3 bytes are copied through one fixed buffer as they arrive.
+ *
+ * Not thread safe; an instance may be reused for several payloads one after another.
+ */
+public final class SharePayloadDecoder {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private ShareHeader mHeader;
+
+    /**
+     * Reads a payload from {@code in} and writes its audio to {@code out}. Neither stream is
+     * closed.
+     *
+     * @return the number of audio bytes written
+     * @throws IOException if reading or writing fails, the header is bad, or the payload ends
+     *                     before the audio length in its header
+     */
+    public long decode(InputStream in, OutputStream out) throws IOException {
+        mHeader = null;
+        ShareHeader header = ShareHeader.read(in);
+        mHeader = header;
+        long length = header.getAudioLength();
+        long copied = 0;
+        while (length < 0 || copied < length) {
+            int count = length < 0
+                    ? mBuffer.length : (int) Math.min(mBuffer.length, length - copied);
+            int read = in.read(mBuffer, 0, count);
+            if (read < 0) {
+                if (length >= 0) {
+                    throw new EOFException("Share payload ended after " + copied + " of "
+                            + length + " audio bytes");
+                }
+                break;
+            }
+            out.write(mBuffer, 0, read);
+            copied += read;
+        }
+        return copied;
+    }
+
+    /**
+     * Returns the header of the last payload decoded, or null if there is none.
+     */
+    public ShareHeader getHeader() {
+        return mHeader;
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Streams the audio out of a slow.afx.dance share response without holding it in memory.
+ *
+ * The response is JSON whose {@code music} field is a {@code data:audio/mp3;base64,...} URI.
+ * Instead of reading the whole body into a String and decoding it in one go, this scans the
+ * JSON as it arrives, skips the data URI prefix, and decodes the base64 payload in fixed-size
+ * chunks straight into the given {@link OutputStream}. Peak memory is two small buffers no
+ * matter how long the track is.
+ *
+ * Not thread safe; an instance may be reused for several responses one after another.
+ */
+public final class SharedMusicDecoder {
+
+    public static final String MUSIC_FIELD = "music";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    // Longest data URI prefix we are willing to skip, e.g. "data:audio/mp3;base64,".
+    private static final int MAX_PREFIX_LENGTH = 128;
+
+    // Longest key we bother remembering; anything longer can't be "music".
+    private static final int MAX_KEY_LENGTH = 32;
+
+    private static final byte SKIP = -1;
+    private static final byte[] DECODE_TABLE = new byte[256];
+
+    static {
+        for (int i = 0; i < DECODE_TABLE.length; i++) {
+            DECODE_TABLE[i] = SKIP;
+        }
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            DECODE_TABLE[alphabet.charAt(i)] = (byte) i;
+        }
+        // Accept the URL-safe alphabet too.
+        DECODE_TABLE['-'] = 62;
+        DECODE_TABLE['_'] = 63;
+    }
+
+    private final byte[] mIn = new byte[BUFFER_SIZE];
+    private final byte[] mOut = new byte[BUFFER_SIZE];
+    private final byte[] mPrefix = new byte[MAX_PREFIX_LENGTH];
+    private final byte[] mKey = new byte[MAX_KEY_LENGTH];
+
+    private InputStream mStream;
+    private int mPos;
+    private int mLimit;
+
+    /**
+     * Reads a share response from {@code in} and writes the decoded audio of its
+     * {@code music} field to {@code out}. Neither stream is closed.
+     *
+     * @return the number of audio bytes written
+     * @throws IOException if reading or writing fails, or the response has no music field
+     */
+    public long decode(InputStream in, OutputStream out) throws IOException {
+        mStream = in;
+        mPos = 0;
+        mLimit = 0;
+        try {
+            if (!seekToMusicValue()) {
+                throw new IOException("No \"" + MUSIC_FIELD + "\" field in share response");
+            }
+            return decodeValue(out);
+        } finally {
+            mStream = null;
+        }
+    }
+
+    /**
+     * Walks the JSON until the opening quote of the music value has been consumed.
+     */
+    private boolean seekToMusicValue() throws IOException {
+        int keyLength = -1;
+        int c;
+        while ((c = read()) >= 0) {
+            if (c == '"') {
+                keyLength = readString();
+            } else if (c == ':') {
+                if (keyLength == MUSIC_FIELD.length() && isMusicKey()) {
+                    c = skipWhitespace();
+                    if (c == '"') {
+                        return true;
+                    }
+                }
+                keyLength = -1;
+            } else if (c > ' ') {
+                keyLength = -1;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Consumes a JSON string whose opening quote has been read, remembering its first bytes.
+     *
+     * @return the string's length, or -1 if it is too long to be a key of interest
+     */
+    private int readString() throws IOException {
+        int length = 0;
+        int c;
+        while ((c = read()) != '"') {
+            if (c < 0) {
+                throw new EOFException("Unterminated string in share response");
+            }
+            if (c == '\\') {
+                c = read();
+            }
+            if (length >= 0 && length < MAX_KEY_LENGTH) {
+                mKey[length++] = (byte) c;
+            } else {
+                length = -1;
+            }
+        }
+        return length;
+    }
+
+    private boolean isMusicKey() {
+        for (int i = 0; i < MUSIC_FIELD.length(); i++) {
+            if (mKey[i] != MUSIC_FIELD.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int skipWhitespace() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c >= 0 && c <= ' ');
+        return c;
+    }
+
+    /**
+     * Decodes the music string, whose opening quote has been read, up to its closing quote.
+     */
+    private long decodeValue(OutputStream out) throws IOException {
+        // Skip a leading data URI prefix. If there is no comma early on, the value is bare
+        // base64 and the bytes we looked at are part of the payload.
+        int prefixLength = 0;
+        int c = readValueChar();
+        while (c >= 0 && c != ',' && prefixLength < MAX_PREFIX_LENGTH) {
+            mPrefix[prefixLength++] = (byte) c;
+            c = readValueChar();
+        }
+        boolean hadPrefix = c == ',';
+        int pending = c;
+
+        int accumulator = 0;
+        int bits = 0;
+        int outPos = 0;
+        long total = 0;
+        int replay = hadPrefix ? prefixLength : 0;
+        while (true) {
+            if (replay < prefixLength) {
+                c = mPrefix[replay++];
+            } else if (replay == prefixLength && !hadPrefix) {
+                // The char that ended the prefix scan still has to be decoded.
+                c = pending;
+                replay++;
+            } else {
+                c = readValueChar();
+            }
+            if (c < 0) {
+                break;
+            }
+            byte value = DECODE_TABLE[c & 0xff];
+            if (value == SKIP) {
+                // Whitespace, line breaks and '=' padding carry no data.
+                continue;
+            }
+            accumulator = (accumulator << 6) | value;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                mOut[outPos++] = (byte) (accumulator >> bits);
+                accumulator &= (1 << bits) - 1;
+                if (outPos == mOut.length) {
+                    out.write(mOut, 0, outPos);
+                    total += outPos;
+                    outPos = 0;
+                }
+            }
+        }
+        if (outPos > 0) {
+            out.write(mOut, 0, outPos);
+            total += outPos;
+        }
+        return total;
+    }
+
+    /**
+     * Reads the next character of a JSON string value, undoing escapes.
+     *
+     * @return the character, or -1 at the closing quote
+     */
+    private int readValueChar() throws IOException {
+        int c = read();
+        if (c < 0) {
+            throw new EOFException("Share response ended inside the music field");
+        }
+        if (c == '"') {
+            return -1;
+        }
+        if (c == '\\') {
+            c = read();
+            switch (c) {
+                case 'u':
+                    // Not expected inside base64; drop the escape entirely.
+                    for (int i = 0; i < 4; i++) {
+                        read();
+                    }
+                    return ' ';
+                case 'n':
+                case 'r':
+                case 't':
+                    return ' ';
+                default:
+                    // \/ and friends stand for themselves.
+                    return c;
+            }
+        }
+        return c;
+    }
+
+    private int read() throws IOException {
+        if (mPos == mLimit) {
+            mLimit = mStream.read(mIn, 0, mIn.length);
+            mPos = 0;
+            if (mLimit <= 0) {
+                mLimit = 0;
+                return -1;
+            }
+        }
+        return mIn[mPos++] & 0xff;
+    }
+}
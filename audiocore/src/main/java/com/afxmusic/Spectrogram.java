@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Band levels of a whole track over time, one byte per band per frame, as produced by
+ * {@link SpectrumAnalyzer} and drawn by {@link SpectrumView}.
+ */
+public final class Spectrogram {
+
+    private static final int MAGIC = 0x41465853; // "AFXS"
+    private static final int VERSION = 1;
+
+    private final float mFrameRate;
+    private final int mBands;
+    private final byte[] mLevels;
+
+    Spectrogram(float frameRate, int bands, byte[] levels) {
+        mFrameRate = frameRate;
+        mBands = bands;
+        mLevels = levels;
+    }
+
+    public int getBandCount() {
+        return mBands;
+    }
+
+    public int getFrameCount() {
+        return mLevels.length / mBands;
+    }
+
+    /**
+     * Fills {@code out} with the band levels, 0 to 1, at {@code positionMs}, interpolating
+     * between neighbouring frames.
+     */
+    public void getLevels(int positionMs, float[] out) {
+        int frames = getFrameCount();
+        float frame = positionMs * mFrameRate / 1000f;
+        if (frames == 0 || frame < 0 || frame >= frames) {
+            for (int band = 0; band < mBands; band++) {
+                out[band] = 0;
+            }
+            return;
+        }
+        int first = (int) frame;
+        int second = Math.min(first + 1, frames - 1);
+        float fraction = frame - first;
+        for (int band = 0; band < mBands; band++) {
+            int a = mLevels[first * mBands + band] & 0xff;
+            int b = mLevels[second * mBands + band] & 0xff;
+            out[band] = (a + (b - a) * fraction) / 255f;
+        }
+    }
+
+    /**
+     * Writes the spectrogram to {@code file}, replacing it atomically.
+     */
+    public void save(File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(16 + mLevels.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putFloat(mFrameRate).putInt(mBands);
+        buffer.put(mLevels);
+
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(buffer.array());
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not save spectrogram to " + file);
+        }
+    }
+
+    /**
+     * Maps a file written by {@link #save} back in.
+     *
+     * @return the spectrogram, or null if the file is missing or not one we understand
+     */
+    public static Spectrogram load(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            if (map.remaining() < 16 || map.getInt() != MAGIC || map.getInt() != VERSION) {
+                return null;
+            }
+            float frameRate = map.getFloat();
+            int bands = map.getInt();
+            if (bands <= 0 || map.remaining() % bands != 0) {
+                return null;
+            }
+            byte[] levels = new byte[map.remaining()];
+            map.get(levels);
+            return new Spectrogram(frameRate, bands, levels);
+        } catch (RuntimeException e) {
+            // Truncated or corrupt; it will be rebuilt.
+            return null;
+        } finally {
+            raf.close();
+        }
+    }
+}
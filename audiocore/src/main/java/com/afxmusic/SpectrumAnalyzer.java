@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+/**
+ * Turns decoded PCM into a {@link Spectrogram}: a Hann-windowed FFT every
+ * 1 / {@link #FRAMES_PER_SECOND} seconds, with the bins gathered into {@link #BANDS}
+ * logarithmically spaced bands.
+ *
+ * All buffers are allocated up front; nothing is allocated per frame.
+ */
+public final class SpectrumAnalyzer implements PcmSink {
+
+    public static final int FFT_SIZE = 2048;
+    public static final int FRAMES_PER_SECOND = 40;
+    public static final int BANDS = 24;
+
+    static final float MIN_FREQUENCY = 50;
+    static final float MAX_FREQUENCY = 16000;
+    // Band levels from FLOOR_DB to 0 dB (a full-scale sine) map onto 0..255.
+    static final float FLOOR_DB = -72;
+
+    private final int mChannels;
+    private final int mHop;
+    private final float mFrameRate;
+    private final int[] mBandEdges = new int[BANDS + 1];
+
+    private final Fft mFft = new Fft(FFT_SIZE);
+    private final float[] mRing = new float[FFT_SIZE];
+    private final float[] mRe = new float[FFT_SIZE];
+    private final float[] mIm = new float[FFT_SIZE];
+    private int mRingPosition;
+    private int mHopFill;
+
+    private byte[] mLevels;
+    private int mFrames;
+
+    /**
+     * @param expectedFrames a guess at the track length, to size the output up front
+     */
+    public SpectrumAnalyzer(int sampleRate, int channels, long expectedFrames) {
+        mChannels = channels;
+        mHop = Math.max(1, Math.round((float) sampleRate / FRAMES_PER_SECOND));
+        mFrameRate = (float) sampleRate / mHop;
+        mLevels = new byte[(int) Math.max(16, expectedFrames / mHop + 1) * BANDS];
+
+        // Every band gets at least one bin of its own.
+        float top = Math.min(MAX_FREQUENCY, sampleRate / 2f);
+        int previous = 0;
+        for (int band = 0; band <= BANDS; band++) {
+            double frequency = MIN_FREQUENCY * Math.pow(top / MIN_FREQUENCY, (double) band / BANDS);
+            int bin = (int) Math.round(frequency * FFT_SIZE / sampleRate);
+            bin = Math.min(FFT_SIZE / 2 - (BANDS - band), Math.max(bin, previous + 1));
+            mBandEdges[band] = bin;
+            previous = bin;
+        }
+    }
+
+    @Override
+    public boolean onPcm(short[] pcm, int frames) {
+        int channels = mChannels;
+        float scale = 1f / (channels * Short.MAX_VALUE);
+        for (int frame = 0; frame < frames; frame++) {
+            int sum = 0;
+            for (int c = 0; c < channels; c++) {
+                sum += pcm[frame * channels + c];
+            }
+            mRing[mRingPosition] = sum * scale;
+            mRingPosition = (mRingPosition + 1) & (FFT_SIZE - 1);
+            if (++mHopFill == mHop) {
+                mHopFill = 0;
+                analyzeFrame();
+            }
+        }
+        return true;
+    }
+
+    private void analyzeFrame() {
+        int head = FFT_SIZE - mRingPosition;
+        System.arraycopy(mRing, mRingPosition, mRe, 0, head);
+        System.arraycopy(mRing, 0, mRe, head, mRingPosition);
+        mFft.window(mRe, mIm);
+        mFft.transform(mRe, mIm);
+
+        if ((mFrames + 1) * BANDS > mLevels.length) {
+            byte[] grown = new byte[mLevels.length * 2];
+            System.arraycopy(mLevels, 0, grown, 0, mFrames * BANDS);
+            mLevels = grown;
+        }
+        // A full-scale sine peaks at FFT_SIZE / 4 through a Hann window.
+        float reference = (FFT_SIZE / 4f) * (FFT_SIZE / 4f);
+        int offset = mFrames * BANDS;
+        for (int band = 0; band < BANDS; band++) {
+            float power = 0;
+            for (int bin = mBandEdges[band]; bin < mBandEdges[band + 1]; bin++) {
+                float binPower = mRe[bin] * mRe[bin] + mIm[bin] * mIm[bin];
+                if (binPower > power) {
+                    power = binPower;
+                }
+            }
+            float db = power > 0 ? 10 * (float) Math.log10(power / reference) : FLOOR_DB;
+            float level = Math.max(0, Math.min(1, 1 - db / FLOOR_DB));
+            mLevels[offset + band] = (byte) Math.round(level * 255);
+        }
+        mFrames++;
+    }
+
+    public Spectrogram finish() {
+        byte[] levels = new byte[mFrames * BANDS];
+        System.arraycopy(mLevels, 0, levels, 0, levels.length);
+        return new Spectrogram(mFrameRate, BANDS, levels);
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Process-wide playback counters and latency histograms, so "the loop is late" or "the link
+ * took forever" can be answered with numbers. Everything is lock-free and safe to record from
+ * any thread.
+ *
+ * {@link #snapshot()} captures the current values; {@link Snapshot#toString()} is the dump
+ * format shown by the debug overlay, and {@link Snapshot#parse} reads it back.
+ */
+public final class Telemetry {
+
+    /**
+     * A named, lock-free event counter.
+     */
+    public static final class Counter {
+        private final String mName;
+        private final AtomicLong mValue = new AtomicLong();
+
+        Counter(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public void increment() {
+            mValue.incrementAndGet();
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+    }
+
+    private static final Telemetry sInstance = new Telemetry();
+
+    public static Telemetry get() {
+        return sInstance;
+    }
+
+    // Declared first; the metric fields below register themselves in order.
+    private final List<LatencyHistogram> mHistograms = new ArrayList<>();
+    private final List<Counter> mCounters = new ArrayList<>();
+
+    /** Process start to the first frame of the main screen, on a cold start. */
+    public final LatencyHistogram coldStart = histogram("cold_start");
+    /** Shared link opened to the whole track on disk. */
+    public final LatencyHistogram download = histogram("download");
+    /** Decoding and analyzing a whole track in the background. */
+    public final LatencyHistogram decode = histogram("decode");
+    /** Decoding an A/B region for gapless looping. */
+    public final LatencyHistogram loopDecode = histogram("loop_decode");
+    /** MediaPlayer prepare, sync or async. */
+    public final LatencyHistogram prepare = histogram("prepare");
+    /** User opened a link or pressed play to the first audible output. */
+    public final LatencyHistogram firstAudio = histogram("first_audio");
+    /** Seek while playing to audio playing from the new position. */
+    public final LatencyHistogram seekToAudible = histogram("seek_to_audible");
+    /** Seek bar dragged to a preview grain from there handed to the audio output. */
+    public final LatencyHistogram scrubToAudible = histogram("scrub_to_audible");
+    /** How far past loop end playback ran before the seek back to loop start. */
+    public final LatencyHistogram loopOvershoot = histogram("loop_overshoot");
+    /** Clock extrapolation error found on resync. */
+    public final LatencyHistogram clockDrift = histogram("clock_drift");
+    /** Deviation of position ticks from their schedule. */
+    public final LatencyHistogram tickJitter = histogram("tick_jitter");
+    /** Player command given to carried out on the playback engine's thread. */
+    public final LatencyHistogram commandDelay = histogram("command_delay");
+
+    public final Counter downloads = counter("downloads");
+    public final Counter cacheHits = counter("cache_hits");
+    public final Counter linksNotModified = counter("links_not_modified");
+    public final Counter linkResumes = counter("link_resumes");
+    public final Counter linkRetries = counter("link_retries");
+    public final Counter loads = counter("loads");
+    public final Counter seeks = counter("seeks");
+    public final Counter loopWraps = counter("loop_wraps");
+    public final Counter downloadErrors = counter("download_errors");
+    public final Counter loadErrors = counter("load_errors");
+    public final Counter prepareErrors = counter("prepare_errors");
+    public final Counter playbackErrors = counter("playback_errors");
+    public final Counter decodeErrors = counter("decode_errors");
+    /** Player commands that found the engine's queue full and waited behind it. */
+    public final Counter commandsOverflowed = counter("commands_overflowed");
+
+    private final AtomicLong mRequestNanos = new AtomicLong();
+    private final AtomicReference<String> mLastError = new AtomicReference<>();
+
+    private Telemetry() {
+    }
+
+    private LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = new LatencyHistogram(name);
+        mHistograms.add(histogram);
+        return histogram;
+    }
+
+    private Counter counter(String name) {
+        Counter counter = new Counter(name);
+        mCounters.add(counter);
+        return counter;
+    }
+
+    /**
+     * Counts a swallowed exception against {@code counter} and remembers it as the last error.
+     */
+    public void error(Counter counter, Throwable e) {
+        counter.increment();
+        mLastError.set(counter.getName() + ": " + e);
+    }
+
+    /**
+     * Marks the moment the user asked for sound; {@link #firstAudioPlayed} measures from
+     * here.
+     */
+    public void markRequest() {
+        mRequestNanos.set(System.nanoTime());
+    }
+
+    /**
+     * Records {@link #firstAudio} for the latest request, once.
+     */
+    public void firstAudioPlayed() {
+        long start = mRequestNanos.getAndSet(0);
+        if (start != 0) {
+            firstAudio.recordSince(start);
+        }
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+        for (Counter counter : mCounters) {
+            counter.mValue.set(0);
+        }
+        mRequestNanos.set(0);
+        mLastError.set(null);
+    }
+
+    public Snapshot snapshot() {
+        Map<String, Long> counters = new LinkedHashMap<>();
+        for (Counter counter : mCounters) {
+            counters.put(counter.getName(), counter.get());
+        }
+        Map<String, long[]> histograms = new LinkedHashMap<>();
+        for (LatencyHistogram histogram : mHistograms) {
+            histograms.put(histogram.getName(), new long[] {
+                    histogram.getCount(),
+                    histogram.getValueAtPercentile(50),
+                    histogram.getValueAtPercentile(90),
+                    histogram.getValueAtPercentile(99),
+                    histogram.getMax(),
+            });
+        }
+        return new Snapshot(counters, histograms, mLastError.get());
+    }
+
+    /**
+     * Immutable copy of every metric at one moment. Latencies are in microseconds.
+     *
+     * The text form is one metric per line, in a fixed order:
+     * <pre>
+     * counter loads 3
+     * histogram prepare count=3 p50=41983 p90=51234 p99=51234 max=51234
+     * error prepare_errors: java.io.IOException: Prepare failed.
+     * </pre>
+     */
+    public static final class Snapshot {
+        private static final int COUNT = 0;
+        private static final int P50 = 1;
+        private static final int P90 = 2;
+        private static final int P99 = 3;
+        private static final int MAX = 4;
+
+        private final Map<String, Long> mCounters;
+        private final Map<String, long[]> mHistograms;
+        private final String mLastError;
+
+        Snapshot(Map<String, Long> counters, Map<String, long[]> histograms, String lastError) {
+            mCounters = Collections.unmodifiableMap(counters);
+            mHistograms = Collections.unmodifiableMap(histograms);
+            mLastError = lastError;
+        }
+
+        public long getCounter(String name) {
+            Long value = mCounters.get(name);
+            return value == null ? 0 : value;
+        }
+
+        public long getCount(String histogram) {
+            return field(histogram, COUNT);
+        }
+
+        public long getP50(String histogram) {
+            return field(histogram, P50);
+        }
+
+        public long getP90(String histogram) {
+            return field(histogram, P90);
+        }
+
+        public long getP99(String histogram) {
+            return field(histogram, P99);
+        }
+
+        public long getMax(String histogram) {
+            return field(histogram, MAX);
+        }
+
+        /**
+         * Returns the last swallowed error, or null if there was none.
+         */
+        public String getLastError() {
+            return mLastError;
+        }
+
+        private long field(String histogram, int field) {
+            long[] values = mHistograms.get(histogram);
+            return values == null ? 0 : values[field];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder();
+            for (Map.Entry<String, Long> counter : mCounters.entrySet()) {
+                out.append("counter ").append(counter.getKey()).append(' ')
+                        .append(counter.getValue()).append('\n');
+            }
+            for (Map.Entry<String, long[]> histogram : mHistograms.entrySet()) {
+                long[] values = histogram.getValue();
+                out.append("histogram ").append(histogram.getKey())
+                        .append(" count=").append(values[COUNT])
+                        .append(" p50=").append(values[P50])
+                        .append(" p90=").append(values[P90])
+                        .append(" p99=").append(values[P99])
+                        .append(" max=").append(values[MAX]).append('\n');
+            }
+            if (mLastError != null) {
+                out.append("error ").append(mLastError).append('\n');
+            }
+            return out.toString();
+        }
+
+        /**
+         * Reads back the output of {@link #toString()}.
+         *
+         * @throws IllegalArgumentException if a line is malformed
+         */
+        public static Snapshot parse(String dump) {
+            Map<String, Long> counters = new LinkedHashMap<>();
+            Map<String, long[]> histograms = new LinkedHashMap<>();
+            String lastError = null;
+            for (String line : dump.split("\n")) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (line.startsWith("error ")) {
+                    lastError = line.substring("error ".length());
+                    continue;
+                }
+                String[] parts = line.split(" ");
+                try {
+                    if (parts[0].equals("counter")) {
+                        counters.put(parts[1], Long.parseLong(parts[2]));
+                    } else if (parts[0].equals("histogram")) {
+                        long[] values = new long[5];
+                        for (int i = 0; i < values.length; i++) {
+                            String part = parts[i + 2];
+                            values[i] = Long.parseLong(part.substring(part.indexOf('=') + 1));
+                        }
+                        histograms.put(parts[1], values);
+                    } else {
+                        throw new IllegalArgumentException("Unknown telemetry line: " + line);
+                    }
+                } catch (IndexOutOfBoundsException | NumberFormatException e) {
+                    throw new IllegalArgumentException("Malformed telemetry line: " + line, e);
+                }
+            }
+            return new Snapshot(counters, histograms, lastError);
+        }
+    }
+}
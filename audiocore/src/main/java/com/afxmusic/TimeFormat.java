@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+/**
+ * Formats playback positions for display.
+ */
+public final class TimeFormat {
+
+    /** The most characters {@link #formatTime} writes, for the longest int of milliseconds. */
+    public static final int MAX_TIME_CHARS = 8;
+
+    private TimeFormat() {
+    }
+
+    /**
+     * Returns {@code milliseconds} as minutes and seconds, e.g. "3:07".
+     */
+    public static String convertToTime(int milliseconds) {
+        char[] chars = new char[MAX_TIME_CHARS];
+        return new String(chars, 0, formatTime(milliseconds, chars, 0));
+    }
+
+    /**
+     * Splits {@code milliseconds} into whole minutes and the seconds into the minute,
+     * fraction included: 187400 is {3, 7.4}. Negative times are 0.
+     */
+    public static double[] minutesAndSeconds(int milliseconds) {
+        int clamped = Math.max(0, milliseconds);
+        return new double[] {clamped / 60000, (clamped % 60000) / 1000.0};
+    }
+
+    /**
+     * Writes {@code milliseconds} as minutes and seconds, e.g. "3:07", into {@code out} at
+     * {@code offset} without allocating. Negative times are written as 0:00.
+     *
+     * @return the number of characters written, at most {@link #MAX_TIME_CHARS}
+     */
+    public static int formatTime(int milliseconds, char[] out, int offset) {
+        int totalSeconds = Math.max(0, milliseconds) / 1000;
+        int minutes = totalSeconds / 60;
+        int seconds = totalSeconds % 60;
+        int end = offset + formatInt(minutes, out, offset);
+        out[end++] = ':';
+        out[end++] = (char) ('0' + seconds / 10);
+        out[end++] = (char) ('0' + seconds % 10);
+        return end - offset;
+    }
+
+    /**
+     * Writes the non-negative {@code value} in decimal into {@code out} at {@code offset}
+     * without allocating.
+     *
+     * @return the number of characters written, at most 10
+     */
+    public static int formatInt(int value, char[] out, int offset) {
+        int digits = 1;
+        for (int rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            out[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return digits;
+    }
+}
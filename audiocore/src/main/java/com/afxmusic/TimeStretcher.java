@@ -0,0 +1,341 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+/**
+ * Pitch-preserving time-stretcher for interleaved 16-bit PCM, using WSOLA (waveform similarity
+ * overlap-add).
+ *
+ * The input is cut into overlapping sequences that are spaced {@code speed} times further apart
+ * than they are laid down in the output. Each new sequence is nudged within a small seek window
+ * to the offset whose start best matches the tail of the previous one, and the two are
+ * crossfaded, so the waveform stays continuous and the pitch is untouched.
+ *
+ * Within a sequence the output follows the input frame for frame, so the output as a whole is
+ * not a uniform stretch: at slow speeds some input is heard twice, at fast speeds some is
+ * skipped. {@link #getRunSource} and {@link #getRunFrames} tell exactly where the output
+ * about to be received was read from.
+ *
+ * All buffers are allocated up front for the full {@link #MIN_SPEED}..{@link #MAX_SPEED} range;
+ * nothing is allocated per block, so it is safe to run on an audio thread. Pure Java and not
+ * thread safe.
+ */
+public final class TimeStretcher {
+
+    public static final float MIN_SPEED = 0.25f;
+    public static final float MAX_SPEED = 2.5f;
+
+    private static final int OVERLAP_MS = 8;
+    // Slow speeds get longer sequences and a wider search, which smears transients less.
+    private static final int MAX_SEQUENCE_MS = 90;
+    private static final int MIN_SEQUENCE_MS = 40;
+    private static final int MAX_SEEK_MS = 20;
+    private static final int MIN_SEEK_MS = 15;
+    // The seek window is scanned at this stride first, then refined around the best match.
+    private static final int COARSE_STRIDE = 4;
+    // Sequences waiting in the output buffer; it holds two of the longest, so a few more than
+    // the shortest can fill it.
+    private static final int MAX_RUNS = 16;
+
+    private final int mSampleRate;
+    private final int mChannels;
+    private final int mOverlap;
+
+    private final float[] mInput;
+    private final float[] mOutput;
+    private final float[] mMid;
+    private int mInputStart;
+    private int mInputFrames;
+    private int mOutputStart;
+    private int mOutputFrames;
+    private boolean mHaveMid;
+
+    private float mSpeed = 1.0f;
+    private int mSequence;
+    private int mSeek;
+    private double mSkipRemainder;
+
+    // Input frames dropped and output frames emitted and received since the last clear, and
+    // where in the output each pending sequence starts and in the input it was read from.
+    private long mTaken;
+    private long mEmitted;
+    private long mReceived;
+    private final long[] mRunOutput = new long[MAX_RUNS];
+    private final long[] mRunInput = new long[MAX_RUNS];
+    private int mFirstRun;
+    private int mRuns;
+
+    /**
+     * @param maxPutFrames the most frames that will be passed to one {@link #putSamples} call
+     */
+    public TimeStretcher(int sampleRate, int channels, int maxPutFrames) {
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mOverlap = msToFrames(OVERLAP_MS);
+        int maxSequence = msToFrames(MAX_SEQUENCE_MS);
+        int maxSeek = msToFrames(MAX_SEEK_MS);
+        int maxSkip = (int) Math.ceil(MAX_SPEED * maxSequence);
+        mInput = new float[(Math.max(maxSeek + maxSequence, maxSkip) + maxPutFrames) * channels];
+        mOutput = new float[maxSequence * 2 * channels];
+        mMid = new float[mOverlap * channels];
+        setSpeed(1.0f);
+    }
+
+    /**
+     * Sets the playback speed, clamped to {@link #MIN_SPEED}..{@link #MAX_SPEED}. 0.5 plays at
+     * half speed (twice as many frames out as in), 2.0 at double speed.
+     */
+    public void setSpeed(float speed) {
+        mSpeed = Math.max(MIN_SPEED, Math.min(MAX_SPEED, speed));
+        float t = (Math.max(0.5f, Math.min(2.0f, mSpeed)) - 0.5f) / 1.5f;
+        mSequence = msToFrames(MAX_SEQUENCE_MS + t * (MIN_SEQUENCE_MS - MAX_SEQUENCE_MS));
+        mSeek = msToFrames(MAX_SEEK_MS + t * (MIN_SEEK_MS - MAX_SEEK_MS));
+    }
+
+    public float getSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * Returns how many frames {@link #putSamples} can take right now.
+     */
+    public int getInputCapacity() {
+        return mInput.length / mChannels - mInputFrames;
+    }
+
+    /**
+     * Returns how many stretched frames are ready for {@link #receiveSamples}.
+     */
+    public int getAvailableFrames() {
+        return mOutputFrames;
+    }
+
+    /**
+     * Returns the input frame, counted from the last {@link #clear}, that the next frame
+     * received was read from. The frames after it follow on one for one for
+     * {@link #getRunFrames} frames.
+     */
+    public long getRunSource() {
+        dropReceivedRuns();
+        if (mRuns == 0) {
+            return mTaken;
+        }
+        int slot = mFirstRun;
+        return mRunInput[slot] + (mReceived - mRunOutput[slot]);
+    }
+
+    /**
+     * Returns how many frames can be received before the input they were read from jumps.
+     */
+    public int getRunFrames() {
+        dropReceivedRuns();
+        if (mRuns < 2) {
+            return mOutputFrames;
+        }
+        long next = mRunOutput[(mFirstRun + 1) % MAX_RUNS];
+        return (int) Math.min(mOutputFrames, next - mReceived);
+    }
+
+    /**
+     * Appends input frames and stretches as much as the output buffer has room for.
+     *
+     * @throws IllegalArgumentException if {@code frames} exceeds {@link #getInputCapacity}
+     */
+    public void putSamples(short[] in, int offset, int frames) {
+        if (frames > getInputCapacity()) {
+            throw new IllegalArgumentException("Input buffer full");
+        }
+        compactInput();
+        int base = (mInputStart + mInputFrames) * mChannels;
+        int samples = frames * mChannels;
+        for (int i = 0; i < samples; i++) {
+            mInput[base + i] = in[offset + i];
+        }
+        mInputFrames += frames;
+        process();
+    }
+
+    /**
+     * Moves up to {@code maxFrames} stretched frames into {@code out}.
+     *
+     * @return the number of frames written
+     */
+    public int receiveSamples(short[] out, int offset, int maxFrames) {
+        int frames = Math.min(maxFrames, mOutputFrames);
+        int base = mOutputStart * mChannels;
+        int samples = frames * mChannels;
+        for (int i = 0; i < samples; i++) {
+            float v = mOutput[base + i];
+            out[offset + i] = v >= Short.MAX_VALUE ? Short.MAX_VALUE
+                    : v <= Short.MIN_VALUE ? Short.MIN_VALUE : (short) v;
+        }
+        mOutputStart += frames;
+        mOutputFrames -= frames;
+        mReceived += frames;
+        if (mOutputFrames == 0) {
+            mOutputStart = 0;
+        }
+        process();
+        return frames;
+    }
+
+    /**
+     * Drops all buffered audio, e.g. after a seek.
+     */
+    public void clear() {
+        mInputStart = 0;
+        mInputFrames = 0;
+        mOutputStart = 0;
+        mOutputFrames = 0;
+        mHaveMid = false;
+        mSkipRemainder = 0;
+        mTaken = 0;
+        mEmitted = 0;
+        mReceived = 0;
+        mFirstRun = 0;
+        mRuns = 0;
+    }
+
+    private void process() {
+        int outputCapacity = mOutput.length / mChannels;
+        while (true) {
+            int skip = (int) (mSpeed * (mSequence - mOverlap) + mSkipRemainder);
+            int needed = Math.max(mSeek + mSequence, skip);
+            if (mInputFrames < needed) {
+                return;
+            }
+            if (mOutputStart + mOutputFrames + mSequence > outputCapacity) {
+                if (mOutputStart == 0) {
+                    return;
+                }
+                System.arraycopy(mOutput, mOutputStart * mChannels, mOutput, 0,
+                        mOutputFrames * mChannels);
+                mOutputStart = 0;
+                continue;
+            }
+            processSequence();
+            mSkipRemainder += mSpeed * (mSequence - mOverlap) - skip;
+            mInputStart += skip;
+            mInputFrames -= skip;
+            mTaken += skip;
+        }
+    }
+
+    /**
+     * Emits one sequence: a crossfade from the previous tail, then the body, keeping the new
+     * tail for next time.
+     */
+    private void processSequence() {
+        int ch = mChannels;
+        int offset = mHaveMid ? findBestOffset() : 0;
+        // The first half of the crossfade counts as the previous sequence's and the second as
+        // this one's: a transient is heard from where it is at least half as loud as it was.
+        int run = mHaveMid ? mOverlap / 2 : 0;
+        int in = (mInputStart + offset) * ch;
+        int out = (mOutputStart + mOutputFrames) * ch;
+
+        if (mHaveMid) {
+            for (int i = 0; i < mOverlap; i++) {
+                float fadeIn = (float) i / mOverlap;
+                for (int c = 0; c < ch; c++) {
+                    int s = i * ch + c;
+                    mOutput[out + s] = mMid[s] * (1 - fadeIn) + mInput[in + s] * fadeIn;
+                }
+            }
+        } else {
+            System.arraycopy(mInput, in, mOutput, out, mOverlap * ch);
+        }
+        int body = mSequence - 2 * mOverlap;
+        System.arraycopy(mInput, in + mOverlap * ch, mOutput, out + mOverlap * ch, body * ch);
+        System.arraycopy(mInput, in + (mSequence - mOverlap) * ch, mMid, 0, mOverlap * ch);
+        mHaveMid = true;
+        mOutputFrames += mSequence - mOverlap;
+
+        dropReceivedRuns();
+        if (mRuns == MAX_RUNS) {
+            // Never expected; the oldest run is then heard as part of the next.
+            mFirstRun = (mFirstRun + 1) % MAX_RUNS;
+            mRuns--;
+        }
+        int slot = (mFirstRun + mRuns) % MAX_RUNS;
+        mRunOutput[slot] = mEmitted + run;
+        mRunInput[slot] = mTaken + offset + run;
+        mRuns++;
+        mEmitted += mSequence - mOverlap;
+    }
+
+    private void dropReceivedRuns() {
+        while (mRuns > 1 && mRunOutput[(mFirstRun + 1) % MAX_RUNS] <= mReceived) {
+            mFirstRun = (mFirstRun + 1) % MAX_RUNS;
+            mRuns--;
+        }
+    }
+
+    /**
+     * Finds the offset in the seek window whose start correlates best with the saved tail.
+     * Scans coarsely first, then every frame around the coarse winner.
+     */
+    private int findBestOffset() {
+        int best = 0;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (int offset = 0; offset < mSeek; offset += COARSE_STRIDE) {
+            double score = correlate(offset);
+            if (score > bestScore) {
+                bestScore = score;
+                best = offset;
+            }
+        }
+        int from = Math.max(0, best - COARSE_STRIDE + 1);
+        int to = Math.min(mSeek - 1, best + COARSE_STRIDE - 1);
+        for (int offset = from; offset <= to; offset++) {
+            if (offset == best) {
+                continue;
+            }
+            double score = correlate(offset);
+            if (score > bestScore) {
+                bestScore = score;
+                best = offset;
+            }
+        }
+        return best;
+    }
+
+    private double correlate(int offset) {
+        int base = (mInputStart + offset) * mChannels;
+        int samples = mOverlap * mChannels;
+        double dot = 0;
+        double energy = 0;
+        for (int i = 0; i < samples; i++) {
+            float x = mInput[base + i];
+            dot += mMid[i] * x;
+            energy += x * x;
+        }
+        return dot / Math.sqrt(energy + 1e-9);
+    }
+
+    private void compactInput() {
+        if (mInputStart == 0) {
+            return;
+        }
+        System.arraycopy(mInput, mInputStart * mChannels, mInput, 0, mInputFrames * mChannels);
+        mInputStart = 0;
+    }
+
+    private int msToFrames(float milliseconds) {
+        return (int) (mSampleRate * milliseconds / 1000);
+    }
+}
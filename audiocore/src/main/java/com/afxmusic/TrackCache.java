@@ -0,0 +1,313 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Persistent on-disk cache of shared tracks.
+ *
+ * Tracks are stored once under the hash of their decoded audio, so two links to the same song
+ * share a file. A small index maps each share URL to the hash it resolved to, which lets a
+ * repeat open skip the network entirely. The cache is kept under a byte budget by evicting the
+ * least recently used tracks; recency survives restarts through the files' modified times.
+ *
+ * Data derived from a track, such as its waveform, lives next to it as a sidecar file named
+ * after the same hash, see {@link #getSidecar}, and is evicted together with it.
+ *
+ * All methods are synchronized so the cache can be used from background download tasks.
+ */
+public final class TrackCache {
+
+    public static final String HASH_ALGORITHM = "SHA-1";
+
+    private static final String TRACK_SUFFIX = ".mp3";
+    private static final String URL_INDEX = "urls.txt";
+    private static final String TEMP_PREFIX = "download";
+
+    private final File mDir;
+    private final long mMaxBytes;
+
+    // Track hash -> size in bytes, least recently used first.
+    private final LinkedHashMap<String, Long> mTracks = new LinkedHashMap<>(16, 0.75f, true);
+    private final HashMap<String, String> mUrls = new HashMap<>();
+    private long mSize;
+
+    /**
+     * @param dir      directory owned by the cache; created if missing
+     * @param maxBytes total size of cached tracks to keep before evicting
+     */
+    public TrackCache(File dir, long maxBytes) {
+        mDir = dir;
+        mMaxBytes = maxBytes;
+        mDir.mkdirs();
+        load();
+    }
+
+    /**
+     * Returns the cached track a share URL resolved to before, or null on a miss.
+     */
+    public synchronized File get(String url) {
+        String hash = mUrls.get(url);
+        return hash == null ? null : getByHash(hash);
+    }
+
+    /**
+     * Returns the cached track with the given content hash, or null on a miss.
+     */
+    public synchronized File getByHash(String hash) {
+        if (mTracks.get(hash) == null) {
+            return null;
+        }
+        File track = trackFile(hash);
+        if (!track.exists()) {
+            remove(hash);
+            return null;
+        }
+        track.setLastModified(System.currentTimeMillis());
+        return track;
+    }
+
+    /**
+     * Creates an empty file inside the cache directory to download into. Pass it to
+     * {@link #put} once complete, or delete it on failure.
+     */
+    public File createTempFile() throws IOException {
+        return File.createTempFile(TEMP_PREFIX, ".tmp", mDir);
+    }
+
+    /**
+     * Moves a finished download into the cache and records which URL it came from.
+     *
+     * @param url       the share URL, or null if the track wasn't shared by link
+     * @param download  a file created by {@link #createTempFile}
+     * @param hash      the content hash of the file, see {@link #newDigest}
+     * @return the cached track file
+     */
+    public synchronized File put(String url, File download, String hash) throws IOException {
+        File track = trackFile(hash);
+        if (mTracks.containsKey(hash) && track.exists()) {
+            // Same audio arrived under another link.
+            download.delete();
+        } else if (!download.renameTo(track)) {
+            download.delete();
+            throw new IOException("Could not move " + download + " into the track cache");
+        } else {
+            Long previous = mTracks.put(hash, track.length());
+            if (previous != null) {
+                mSize -= previous;
+            }
+            mSize += track.length();
+        }
+        track.setLastModified(System.currentTimeMillis());
+        // Mark as most recently used so the trim below can't evict it.
+        mTracks.get(hash);
+        if (url != null) {
+            mUrls.put(url, hash);
+        }
+        trimToSize();
+        saveUrls();
+        return track;
+    }
+
+    /**
+     * Returns where to keep data derived from the track with the given hash. The file may not
+     * exist yet.
+     */
+    public File getSidecar(String hash, String suffix) {
+        return new File(mDir, hash + suffix);
+    }
+
+    public synchronized long size() {
+        return mSize;
+    }
+
+    /**
+     * Evicts least recently used tracks until the cache fits its budget. The most recently
+     * used track is always kept, even if it is bigger than the whole budget on its own.
+     */
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Long>> it = mTracks.entrySet().iterator();
+        while (mSize > mMaxBytes && mTracks.size() > 1 && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            deleteFiles(eldest.getKey());
+            mSize -= eldest.getValue();
+            it.remove();
+            mUrls.values().removeAll(Collections.singleton(eldest.getKey()));
+        }
+    }
+
+    private void remove(String hash) {
+        Long size = mTracks.remove(hash);
+        if (size != null) {
+            mSize -= size;
+        }
+        mUrls.values().removeAll(Collections.singleton(hash));
+        saveUrls();
+    }
+
+    /**
+     * Deletes a track and its sidecars.
+     */
+    private void deleteFiles(String hash) {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        String prefix = hash + ".";
+        for (File file : files) {
+            if (file.getName().startsWith(prefix)) {
+                file.delete();
+            }
+        }
+    }
+
+    private File trackFile(String hash) {
+        return new File(mDir, hash + TRACK_SUFFIX);
+    }
+
+    private void load() {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(TRACK_SUFFIX)) {
+                long size = file.length();
+                mTracks.put(name.substring(0, name.length() - TRACK_SUFFIX.length()), size);
+                mSize += size;
+            } else if (name.startsWith(TEMP_PREFIX)) {
+                // Left behind by a download that never finished.
+                file.delete();
+            }
+        }
+
+        File index = new File(mDir, URL_INDEX);
+        if (!index.exists()) {
+            return;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(index), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int tab = line.lastIndexOf('\t');
+                    if (tab > 0 && mTracks.containsKey(line.substring(tab + 1))) {
+                        mUrls.put(line.substring(0, tab), line.substring(tab + 1));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            // A lost index only costs a re-download.
+            mUrls.clear();
+        }
+    }
+
+    private void saveUrls() {
+        File index = new File(mDir, URL_INDEX);
+        File temp = new File(mDir, URL_INDEX + ".new");
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+            try {
+                for (Map.Entry<String, String> entry : mUrls.entrySet()) {
+                    writer.write(entry.getKey());
+                    writer.write('\t');
+                    writer.write(entry.getValue());
+                    writer.write('\n');
+                }
+            } finally {
+                writer.close();
+            }
+            temp.renameTo(index);
+        } catch (IOException e) {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Returns a digest to feed the decoded audio through while it is written to disk.
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Hashes a whole stream, closing it, e.g. to identify a track picked from storage.
+     */
+    public static String hash(InputStream in) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[8192];
+        try {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Returns the content hash of a file returned by this cache.
+     */
+    public static String hashOf(File track) {
+        String name = track.getName();
+        return name.endsWith(TRACK_SUFFIX)
+                ? name.substring(0, name.length() - TRACK_SUFFIX.length()) : name;
+    }
+
+    public static String toHex(byte[] digest) {
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[2 * i] = Character.forDigit((digest[i] >> 4) & 0xf, 16);
+            hex[2 * i + 1] = Character.forDigit(digest[i] & 0xf, 16);
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Min/max/RMS peaks of a whole track at several zoom levels, for drawing a waveform behind the
+ * seek bar.
+ *
+ * Level 0 has one bucket per {@link #BASE_BUCKET_FRAMES} frames; each following level merges
+ * {@link #LEVEL_FACTOR} buckets of the one before. Peaks are stored as plain short arrays, and
+ * the whole structure can be saved next to the cached track and mapped back in on the next
+ * open without decoding again.
+ */
+public final class WaveformOverview {
+
+    public static final int BASE_BUCKET_FRAMES = 256;
+    public static final int LEVEL_FACTOR = 4;
+    public static final int LEVELS = 5;
+
+    private static final int MAGIC = 0x41465857; // "AFXW"
+    private static final int VERSION = 1;
+
+    private final int mSampleRate;
+    private final short[][] mMin;
+    private final short[][] mMax;
+    private final short[][] mRms;
+    private final int[] mCounts;
+
+    private WaveformOverview(int sampleRate, short[][] min, short[][] max, short[][] rms,
+                             int[] counts) {
+        mSampleRate = sampleRate;
+        mMin = min;
+        mMax = max;
+        mRms = rms;
+        mCounts = counts;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getLevelCount() {
+        return mCounts.length;
+    }
+
+    public int getBucketCount(int level) {
+        return mCounts[level];
+    }
+
+    public static int getBucketFrames(int level) {
+        int frames = BASE_BUCKET_FRAMES;
+        for (int i = 0; i < level; i++) {
+            frames *= LEVEL_FACTOR;
+        }
+        return frames;
+    }
+
+    public short getMin(int level, int bucket) {
+        return mMin[level][bucket];
+    }
+
+    public short getMax(int level, int bucket) {
+        return mMax[level][bucket];
+    }
+
+    public short getRms(int level, int bucket) {
+        return mRms[level][bucket];
+    }
+
+    /**
+     * Returns the coarsest level that still has at least {@code buckets} buckets, so a view
+     * {@code buckets} pixels wide reads as few peaks as possible.
+     */
+    public int levelFor(int buckets) {
+        for (int level = mCounts.length - 1; level > 0; level--) {
+            if (mCounts[level] >= buckets) {
+                return level;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Accumulates level 0 from decoded PCM, downmixing channels, then derives the rest.
+     */
+    public static final class Builder implements PcmSink {
+        private final int mSampleRate;
+        private final int mChannels;
+        private short[] mMin;
+        private short[] mMax;
+        private short[] mRms;
+        private int mCount;
+
+        private int mFramesInBucket;
+        private int mBucketMin = Short.MAX_VALUE;
+        private int mBucketMax = Short.MIN_VALUE;
+        private long mBucketSquares;
+
+        /**
+         * @param expectedFrames a guess at the track length, to size the arrays up front
+         */
+        public Builder(int sampleRate, int channels, long expectedFrames) {
+            mSampleRate = sampleRate;
+            mChannels = channels;
+            int buckets = (int) Math.max(16, expectedFrames / BASE_BUCKET_FRAMES + 1);
+            mMin = new short[buckets];
+            mMax = new short[buckets];
+            mRms = new short[buckets];
+        }
+
+        @Override
+        public boolean onPcm(short[] pcm, int frames) {
+            int channels = mChannels;
+            for (int frame = 0; frame < frames; frame++) {
+                int sum = 0;
+                for (int c = 0; c < channels; c++) {
+                    sum += pcm[frame * channels + c];
+                }
+                int sample = sum / channels;
+                if (sample < mBucketMin) {
+                    mBucketMin = sample;
+                }
+                if (sample > mBucketMax) {
+                    mBucketMax = sample;
+                }
+                mBucketSquares += (long) sample * sample;
+                if (++mFramesInBucket == BASE_BUCKET_FRAMES) {
+                    closeBucket();
+                }
+            }
+            return true;
+        }
+
+        public WaveformOverview build() {
+            if (mFramesInBucket > 0) {
+                closeBucket();
+            }
+            short[][] min = new short[LEVELS][];
+            short[][] max = new short[LEVELS][];
+            short[][] rms = new short[LEVELS][];
+            int[] counts = new int[LEVELS];
+            min[0] = trim(mMin, mCount);
+            max[0] = trim(mMax, mCount);
+            rms[0] = trim(mRms, mCount);
+            counts[0] = mCount;
+            for (int level = 1; level < LEVELS; level++) {
+                int count = (counts[level - 1] + LEVEL_FACTOR - 1) / LEVEL_FACTOR;
+                min[level] = new short[count];
+                max[level] = new short[count];
+                rms[level] = new short[count];
+                counts[level] = count;
+                for (int bucket = 0; bucket < count; bucket++) {
+                    int lo = Short.MAX_VALUE;
+                    int hi = Short.MIN_VALUE;
+                    long squares = 0;
+                    int from = bucket * LEVEL_FACTOR;
+                    int to = Math.min(from + LEVEL_FACTOR, counts[level - 1]);
+                    for (int i = from; i < to; i++) {
+                        lo = Math.min(lo, min[level - 1][i]);
+                        hi = Math.max(hi, max[level - 1][i]);
+                        squares += (long) rms[level - 1][i] * rms[level - 1][i];
+                    }
+                    min[level][bucket] = (short) lo;
+                    max[level][bucket] = (short) hi;
+                    rms[level][bucket] = (short) Math.sqrt((double) squares / (to - from));
+                }
+            }
+            return new WaveformOverview(mSampleRate, min, max, rms, counts);
+        }
+
+        private void closeBucket() {
+            if (mCount == mMin.length) {
+                mMin = grow(mMin);
+                mMax = grow(mMax);
+                mRms = grow(mRms);
+            }
+            mMin[mCount] = (short) mBucketMin;
+            mMax[mCount] = (short) mBucketMax;
+            mRms[mCount] = (short) Math.sqrt((double) mBucketSquares / mFramesInBucket);
+            mCount++;
+            mFramesInBucket = 0;
+            mBucketMin = Short.MAX_VALUE;
+            mBucketMax = Short.MIN_VALUE;
+            mBucketSquares = 0;
+        }
+
+        private static short[] grow(short[] array) {
+            short[] grown = new short[array.length * 2];
+            System.arraycopy(array, 0, grown, 0, array.length);
+            return grown;
+        }
+
+        private static short[] trim(short[] array, int length) {
+            short[] trimmed = new short[length];
+            System.arraycopy(array, 0, trimmed, 0, length);
+            return trimmed;
+        }
+    }
+
+    /**
+     * Writes the overview to {@code file}, replacing it atomically.
+     */
+    public void save(File file) throws IOException {
+        int bytes = 4 * (3 + mCounts.length);
+        for (int count : mCounts) {
+            bytes += 3 * 2 * count;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(mSampleRate);
+        for (int count : mCounts) {
+            buffer.putInt(count);
+        }
+        for (int level = 0; level < mCounts.length; level++) {
+            ShortBuffer shorts = buffer.asShortBuffer();
+            shorts.put(mMin[level]).put(mMax[level]).put(mRms[level]);
+            buffer.position(buffer.position() + 3 * 2 * mCounts[level]);
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(buffer.array());
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not save waveform to " + file);
+        }
+    }
+
+    /**
+     * Maps a file written by {@link #save} back in.
+     *
+     * @return the overview, or null if the file is missing or not a waveform we understand
+     */
+    public static WaveformOverview load(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            if (map.remaining() < 12 || map.getInt() != MAGIC || map.getInt() != VERSION) {
+                return null;
+            }
+            int sampleRate = map.getInt();
+            int[] counts = new int[LEVELS];
+            for (int level = 0; level < LEVELS; level++) {
+                counts[level] = map.getInt();
+            }
+            short[][] min = new short[LEVELS][];
+            short[][] max = new short[LEVELS][];
+            short[][] rms = new short[LEVELS][];
+            for (int level = 0; level < LEVELS; level++) {
+                ShortBuffer shorts = map.asShortBuffer();
+                min[level] = new short[counts[level]];
+                max[level] = new short[counts[level]];
+                rms[level] = new short[counts[level]];
+                shorts.get(min[level]).get(max[level]).get(rms[level]);
+                map.position(map.position() + 3 * 2 * counts[level]);
+            }
+            return new WaveformOverview(sampleRate, min, max, rms, counts);
+        } catch (RuntimeException e) {
+            // Truncated or corrupt; it will be rebuilt.
+            return null;
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.afxmusic;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Snapping loop points to a beat grid, and the grid's file round trip.
+ */
+public class BeatGridTest {
+
+    // Beats every 500 ms from 100 ms on; the bars start at beat 1, so at 600, 2600, 4600...
+    private static final int[] BEATS = {100, 600, 1100, 1600, 2100, 2600, 3100, 3600, 4100,
+            4600, 5100};
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final BeatGrid mGrid = new BeatGrid(120, BEATS, 1);
+
+    @Test
+    public void barsCountFromTheDownbeat() {
+        assertTrue(mGrid.isBar(1));
+        assertTrue(mGrid.isBar(5));
+        assertTrue(mGrid.isBar(9));
+        assertFalse(mGrid.isBar(0));
+        assertFalse(mGrid.isBar(4));
+    }
+
+    @Test
+    public void snapsToTheNearestBeatOrBar() {
+        assertEquals(1234, mGrid.snap(1234, BeatGrid.SNAP_NONE));
+        assertEquals(1100, mGrid.snap(1234, BeatGrid.SNAP_BEAT));
+        assertEquals(1100, mGrid.snap(1350, BeatGrid.SNAP_BEAT));
+        assertEquals(1600, mGrid.snap(1351, BeatGrid.SNAP_BEAT));
+        assertEquals(100, mGrid.snap(-50, BeatGrid.SNAP_BEAT));
+        assertEquals(5100, mGrid.snap(90000, BeatGrid.SNAP_BEAT));
+
+        assertEquals(600, mGrid.snap(1600, BeatGrid.SNAP_BAR));
+        assertEquals(2600, mGrid.snap(1601, BeatGrid.SNAP_BAR));
+        // Before the first bar line and past the last one there is only one to go to.
+        assertEquals(600, mGrid.snap(0, BeatGrid.SNAP_BAR));
+        assertEquals(4600, mGrid.snap(90000, BeatGrid.SNAP_BAR));
+    }
+
+    @Test
+    public void nextFindsTheFollowingBeatOrBar() {
+        assertEquals(1600, mGrid.next(1100, BeatGrid.SNAP_BEAT));
+        assertEquals(1100, mGrid.next(1099, BeatGrid.SNAP_BEAT));
+        assertEquals(2600, mGrid.next(600, BeatGrid.SNAP_BAR));
+        assertEquals(777, mGrid.next(777, BeatGrid.SNAP_NONE));
+        // Nothing after the last one.
+        assertEquals(5100, mGrid.next(5100, BeatGrid.SNAP_BEAT));
+        assertEquals(4700, mGrid.next(4700, BeatGrid.SNAP_BAR));
+    }
+
+    @Test
+    public void anEmptyGridLeavesTimesAlone() {
+        BeatGrid empty = new BeatGrid(0, new int[0], 0);
+        assertEquals(1234, empty.snap(1234, BeatGrid.SNAP_BEAT));
+        assertEquals(1234, empty.snap(1234, BeatGrid.SNAP_BAR));
+        assertEquals(1234, empty.next(1234, BeatGrid.SNAP_BAR));
+    }
+
+    @Test
+    public void savedGridsLoadTheSame() throws IOException {
+        File file = new File(mFolder.getRoot(), "beats");
+        mGrid.save(file);
+        BeatGrid loaded = BeatGrid.load(file);
+
+        assertEquals(120, loaded.getBpm(), 0);
+        assertEquals(1, loaded.getDownbeat());
+        assertEquals(BEATS.length, loaded.getBeatCount());
+        for (int i = 0; i < BEATS.length; i++) {
+            assertEquals(BEATS[i], loaded.getBeat(i));
+        }
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void missingOrForeignFilesLoadAsNothing() throws IOException {
+        File file = new File(mFolder.getRoot(), "beats");
+        assertNull(BeatGrid.load(file));
+
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("not a beat grid at all".getBytes("UTF-8"));
+        out.close();
+        assertNull(BeatGrid.load(file));
+
+        // Cut off halfway through the beats.
+        mGrid.save(file);
+        byte[] whole = Files.readAllBytes(file.toPath());
+        out = new FileOutputStream(file);
+        out.write(whole, 0, whole.length - 10);
+        out.close();
+        assertNull(BeatGrid.load(file));
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.afxmusic;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Beat tracking on synthesized click tracks, where the tempo, every beat and the bar lines
+ * are known exactly.
+ */
+public class BeatTrackerTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int CHANNELS = 2;
+    private static final int BLOCK_FRAMES = 4096;
+    private static final int TRACK_MS = 30000;
+    // The first click; the tracker needs a little audio before one to see it as an onset.
+    private static final int FIRST_MS = 250;
+    // Half an analysis hop either side, and the resolution of the onset envelope.
+    private static final int TOLERANCE_MS = 25;
+
+    @Test
+    public void findsTheTempoBeatsAndBars() {
+        // Up to where the tempo prior starts to prefer half time.
+        for (float bpm : new float[] {70, 100, 128, 150, 165}) {
+            float beatMs = 60000 / bpm;
+            BeatGrid grid = track(clicks(beatMs), TRACK_MS);
+
+            assertEquals(bpm + " bpm", bpm, grid.getBpm(), 2);
+            // The first beat has nothing before it to line up with and may come early.
+            int found = 1;
+            for (int i = 1; i < grid.getBeatCount(); i++) {
+                int beat = grid.getBeat(i);
+                long click = Math.round((beat - FIRST_MS) / beatMs);
+                double clickMs = FIRST_MS + click * beatMs;
+                assertEquals(bpm + " bpm, beat " + i, clickMs, beat, TOLERANCE_MS);
+                // Every fourth click is the loud one that starts a bar.
+                assertEquals(bpm + " bpm, beat " + i, click % BeatGrid.BEATS_PER_BAR == 0,
+                        grid.isBar(i));
+                found++;
+            }
+            int clicks = (int) ((TRACK_MS - FIRST_MS) / beatMs);
+            assertTrue(bpm + " bpm: " + found + " of " + clicks, found >= clicks - 2);
+        }
+    }
+
+    @Test
+    public void silenceAndShortTracksHaveNoBeats() {
+        assertEquals(0, track(new short[TRACK_MS * SAMPLE_RATE / 1000 * CHANNELS], TRACK_MS)
+                .getBeatCount());
+        short[] clicks = clicks(500);
+        short[] second = new short[SAMPLE_RATE * CHANNELS];
+        System.arraycopy(clicks, 0, second, 0, second.length);
+        BeatGrid grid = track(second, 1000);
+        assertEquals(0, grid.getBeatCount());
+        assertEquals(0, grid.getBpm(), 0);
+    }
+
+    @Test
+    public void fftPutsASineInItsBin() {
+        Fft fft = new Fft(BeatTracker.FFT_SIZE);
+        float[] re = new float[fft.getSize()];
+        float[] im = new float[fft.getSize()];
+        float[] magnitudes = new float[fft.getSize() / 2];
+        int bin = 37;
+        for (int i = 0; i < re.length; i++) {
+            re[i] = (float) Math.sin(2 * Math.PI * bin * i / re.length);
+        }
+        fft.transform(re, im);
+        fft.magnitudes(re, im, magnitudes);
+
+        assertEquals(fft.getSize() / 2, magnitudes[bin], 1e-3);
+        for (int i = 0; i < magnitudes.length; i++) {
+            if (i != bin) {
+                assertEquals("Bin " + i, 0, magnitudes[i], 1e-3);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fftSizeMustBeAPowerOfTwo() {
+        new Fft(500);
+    }
+
+    /**
+     * A click track: a short decaying noise burst on every beat, louder on every fourth.
+     */
+    private static short[] clicks(float beatMs) {
+        int frames = TRACK_MS * SAMPLE_RATE / 1000;
+        short[] pcm = new short[frames * CHANNELS];
+        int burst = SAMPLE_RATE / 50;
+        Random noise = new Random(1);
+        for (int beat = 0; ; beat++) {
+            int start = (int) ((FIRST_MS + beat * beatMs) * SAMPLE_RATE / 1000);
+            if (start + burst > frames) {
+                break;
+            }
+            double level = beat % BeatGrid.BEATS_PER_BAR == 0 ? 20000 : 8000;
+            for (int i = 0; i < burst; i++) {
+                short sample = (short) (level * Math.exp(-5.0 * i / burst)
+                        * (noise.nextDouble() * 2 - 1));
+                for (int c = 0; c < CHANNELS; c++) {
+                    pcm[(start + i) * CHANNELS + c] = sample;
+                }
+            }
+        }
+        return pcm;
+    }
+
+    private static BeatGrid track(short[] pcm, int trackMs) {
+        int frames = pcm.length / CHANNELS;
+        BeatTracker tracker = new BeatTracker(SAMPLE_RATE, CHANNELS,
+                (long) trackMs * SAMPLE_RATE / 1000);
+        // Like a decoder, one reused buffer at a time.
+        short[] block = new short[BLOCK_FRAMES * CHANNELS];
+        for (int at = 0; at < frames; at += BLOCK_FRAMES) {
+            int count = Math.min(BLOCK_FRAMES, frames - at);
+            System.arraycopy(pcm, at * CHANNELS, block, 0, count * CHANNELS);
+            assertTrue(tracker.onPcm(block, count));
+        }
+        return tracker.finish();
+    }
+}
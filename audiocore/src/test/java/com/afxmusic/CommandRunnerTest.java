@@ -0,0 +1,276 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.afxmusic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The playback engine's command path under load: producer threads submit numbered commands to
+ * a {@link CommandRunner} whose target lives on one engine thread, which publishes a snapshot
+ * after every drain while another thread reads it. Every command must arrive, each producer's
+ * in the order it sent them, and every snapshot must add up.
+ */
+public class CommandRunnerTest {
+
+    private static final int PRODUCERS = 4;
+    private static final int COMMANDS = 20000;
+    // Small, so the stalls below fill it and the overflow gets used.
+    private static final int CAPACITY = 8;
+    private static final int STALL_EVERY = 5000;
+    private static final long TIMEOUT_MS = 30000;
+
+    /**
+     * What the engine thread has seen, copied whole into each snapshot.
+     */
+    private static final class Target {
+        final long[] mLast = new long[PRODUCERS];
+        long mRun;
+        int mOutOfOrder;
+        int mScrubbed = -1;
+        int mScrubsBackwards;
+        int mScrubRuns;
+
+        Target() {
+            Arrays.fill(mLast, -1);
+        }
+    }
+
+    private static final class Snapshot {
+        final long[] mLast;
+        final long mRun;
+
+        Snapshot(Target target) {
+            mLast = target.mLast.clone();
+            mRun = target.mRun;
+        }
+    }
+
+    private final Telemetry mTelemetry = Telemetry.get();
+    private final Target mTarget = new Target();
+    private volatile Snapshot mSnapshot = new Snapshot(mTarget);
+    private ExecutorService mEngine;
+    private ExecutorService mThreads;
+    private CommandRunner<Target> mRunner;
+
+    @Before
+    public void setUp() {
+        mTelemetry.reset();
+        mEngine = Executors.newSingleThreadExecutor();
+        mThreads = Executors.newCachedThreadPool();
+        mRunner = new CommandRunner<>(mTarget, CAPACITY, mEngine, new Runnable() {
+            @Override
+            public void run() {
+                mSnapshot = new Snapshot(mTarget);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mThreads.shutdownNow();
+        mEngine.shutdownNow();
+    }
+
+    @Test
+    public void everyCommandArrivesInItsProducersOrder() throws Exception {
+        List<Future<?>> producers = new ArrayList<>();
+        for (int p = 0; p < PRODUCERS; p++) {
+            final int producer = p;
+            producers.add(mThreads.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < COMMANDS; i++) {
+                        mRunner.submit(new Numbered(producer, i));
+                    }
+                }
+            }));
+        }
+        Future<Integer> reader = mThreads.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                // Counts snapshots that don't add up or go back in time.
+                int bad = 0;
+                long lastRun = 0;
+                while (lastRun < PRODUCERS * COMMANDS && !Thread.interrupted()) {
+                    Snapshot snapshot = mSnapshot;
+                    long sum = 0;
+                    for (long last : snapshot.mLast) {
+                        sum += last + 1;
+                    }
+                    if (sum != snapshot.mRun || snapshot.mRun < lastRun) {
+                        bad++;
+                    }
+                    lastRun = snapshot.mRun;
+                }
+                return bad;
+            }
+        });
+        for (Future<?> producer : producers) {
+            producer.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+
+        assertEquals("Torn or stale snapshots", 0,
+                (int) reader.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        Snapshot last = mSnapshot;
+        long[] all = new long[PRODUCERS];
+        Arrays.fill(all, COMMANDS - 1);
+        assertArrayEquals(all, last.mLast);
+        assertEquals(PRODUCERS * COMMANDS, last.mRun);
+        assertEquals(0, onEngine(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return mTarget.mOutOfOrder;
+            }
+        }).intValue());
+        assertTrue("Overflow never used", mTelemetry.commandsOverflowed.get() > 0);
+    }
+
+    @Test
+    public void aFullQueueOverflowsInOrderInsteadOfDropping() throws Exception {
+        final CountDownLatch stuck = new CountDownLatch(1);
+        mEngine.execute(new Runnable() {
+            @Override
+            public void run() {
+                await(stuck);
+            }
+        });
+        for (int i = 0; i < CAPACITY * 4; i++) {
+            mRunner.submit(new Numbered(0, i));
+        }
+        assertEquals(CAPACITY * 3, mTelemetry.commandsOverflowed.get());
+        stuck.countDown();
+
+        assertEquals(CAPACITY * 4 - 1, onEngine(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return mTarget.mLast[0];
+            }
+        }).longValue());
+        assertEquals(0, mTarget.mOutOfOrder);
+        assertEquals(CAPACITY * 4, mSnapshot.mRun);
+    }
+
+    @Test
+    public void scrubsKeepOnlyTheLatestPositionAndStayInOrder() throws Exception {
+        final int positions = 50000;
+        final CommandRunner.Latest<Target> scrub = new CommandRunner.Latest<Target>() {
+            @Override
+            void run(Target target, int position) {
+                if (position < target.mScrubbed) {
+                    target.mScrubsBackwards++;
+                }
+                target.mScrubbed = position;
+                target.mScrubRuns++;
+            }
+        };
+        final int[] endedAt = {-1};
+        mThreads.submit(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i <= positions; i++) {
+                    mRunner.submitLatest(scrub, i);
+                }
+                mRunner.submit(new CommandRunner.Command<Target>() {
+                    @Override
+                    void run(Target target) {
+                        endedAt[0] = target.mScrubbed;
+                    }
+                });
+            }
+        }).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        int runs = onEngine(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                assertEquals("The end ran before the last position", positions, endedAt[0]);
+                assertEquals(0, mTarget.mScrubsBackwards);
+                return mTarget.mScrubRuns;
+            }
+        });
+        assertTrue(runs + " runs", runs >= 1 && runs <= positions + 1);
+        // However many positions a drag sends, it never holds more than one queue slot.
+        assertEquals(0, mTelemetry.commandsOverflowed.get());
+    }
+
+    /**
+     * Command {@code number} of {@code producer}; checks it comes right after the one before.
+     */
+    private static final class Numbered extends CommandRunner.Command<Target> {
+        private final int mProducer;
+        private final int mNumber;
+
+        Numbered(int producer, int number) {
+            mProducer = producer;
+            mNumber = number;
+        }
+
+        @Override
+        void run(Target target) {
+            if (mNumber != target.mLast[mProducer] + 1) {
+                target.mOutOfOrder++;
+            }
+            target.mLast[mProducer] = mNumber;
+            target.mRun++;
+            if (target.mRun % STALL_EVERY == 0) {
+                // Like a player stuck in prepare for a moment.
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs {@code task} on the engine thread after everything submitted so far.
+     */
+    private <V> V onEngine(final Callable<V> task) throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        mRunner.submit(new CommandRunner.Command<Target>() {
+            @Override
+            void run(Target target) {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        return mEngine.submit(task).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.afxmusic;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Rendering from the ring through the time stretcher and the stages: what the stages are
+ * handed, in what order, and which track frame each block is traced back to.
+ */
+public class DspChainTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int CHANNELS = 2;
+    private static final int BLOCK_FRAMES = 256;
+
+    /**
+     * Checks that every block it gets is numbered from the source frame it is told, as the test
+     * tracks are, and counts blocks and resets.
+     */
+    private static final class Checker implements DspStage {
+        int mBlocks;
+        int mWrong;
+        int mResets;
+        long mLastSource = -1;
+
+        @Override
+        public void prepare(int sampleRate, int channels) {
+        }
+
+        @Override
+        public void process(short[] pcm, int offset, int frames, long sourceFrame) {
+            mBlocks++;
+            for (int i = 0; i < frames * CHANNELS; i++) {
+                if (pcm[offset + i] != (short) (sourceFrame + i / CHANNELS)) {
+                    mWrong++;
+                }
+            }
+            mLastSource = sourceFrame + frames;
+        }
+
+        @Override
+        public void reset() {
+            mResets++;
+        }
+    }
+
+    /**
+     * Adds {@code mAdd} to every sample, to tell the order stages run in.
+     */
+    private static final class Offset implements DspStage {
+        final int mAdd;
+
+        Offset(int add) {
+            mAdd = add;
+        }
+
+        @Override
+        public void prepare(int sampleRate, int channels) {
+        }
+
+        @Override
+        public void process(short[] pcm, int offset, int frames, long sourceFrame) {
+            for (int i = 0; i < frames * CHANNELS; i++) {
+                pcm[offset + i] = (short) (pcm[offset + i] * 2 + mAdd);
+            }
+        }
+
+        @Override
+        public void reset() {
+        }
+    }
+
+    @Test
+    public void atNormalSpeedBlocksAreSplitAtLoopWraps() {
+        DspChain chain = new DspChain(SAMPLE_RATE, CHANNELS);
+        Checker checker = new Checker();
+        chain.add(checker);
+        PcmRing ring = new PcmRing(4096, CHANNELS);
+        ring.mark(1000, false);
+        ring.write(frames(1000, 300), 0, 300);
+        // The loop wraps back to 500 in the middle of a block.
+        ring.mark(500, false);
+        ring.write(frames(500, 300), 0, 300);
+
+        short[] out = new short[BLOCK_FRAMES * CHANNELS];
+        int rendered = 0;
+        for (int count; (count = chain.render(ring, out, BLOCK_FRAMES)) > 0; ) {
+            rendered += count;
+        }
+
+        assertEquals(600, rendered);
+        assertEquals(0, checker.mWrong);
+        // Two whole blocks and the rest, one of them split at the wrap.
+        assertEquals(4, checker.mBlocks);
+        assertEquals(800, checker.mLastSource);
+        assertEquals(800, chain.getSourceFrame(), 0);
+    }
+
+    @Test
+    public void stagesRunInTheOrderAddedAndCanBeRemoved() {
+        DspChain chain = new DspChain(SAMPLE_RATE, CHANNELS);
+        Offset first = new Offset(1);
+        Offset second = new Offset(3);
+        chain.add(first);
+        chain.add(second);
+        PcmRing ring = new PcmRing(1024, CHANNELS);
+        ring.write(frames(10, 2), 0, 2);
+        short[] out = new short[2 * CHANNELS];
+        chain.render(ring, out, 2);
+        // (10 * 2 + 1) * 2 + 3
+        assertEquals(45, out[0]);
+
+        chain.remove(first);
+        ring.write(frames(10, 2), 0, 2);
+        chain.render(ring, out, 2);
+        assertEquals(23, out[0]);
+    }
+
+    @Test
+    public void aSeekFlushesAndResetsTheStages() {
+        DspChain chain = new DspChain(SAMPLE_RATE, CHANNELS);
+        Checker checker = new Checker();
+        chain.add(checker);
+        PcmRing ring = new PcmRing(4096, CHANNELS);
+        ring.write(frames(0, 1000), 0, 1000);
+        short[] out = new short[BLOCK_FRAMES * CHANNELS];
+        chain.render(ring, out, BLOCK_FRAMES);
+        assertFalse(chain.pollFlushed());
+
+        ring.mark(20000, true);
+        ring.write(frames(20000, 1000), 0, 1000);
+        assertEquals(BLOCK_FRAMES, chain.render(ring, out, BLOCK_FRAMES));
+
+        assertTrue(chain.pollFlushed());
+        assertEquals(1, checker.mResets);
+        assertEquals(0, checker.mWrong);
+        assertEquals(20000 + BLOCK_FRAMES, chain.getSourceFrame(), 0);
+    }
+
+    @Test
+    public void stretchedTheClockMovesAtTheSpeed() {
+        for (float speed : new float[] {0.5f, 1.5f}) {
+            DspChain chain = new DspChain(SAMPLE_RATE, CHANNELS);
+            chain.setSpeed(speed);
+            Checker checker = new Checker();
+            chain.add(checker);
+            PcmRing ring = new PcmRing(SAMPLE_RATE, CHANNELS);
+            ring.mark(5000, false);
+            short[] track = frames(0, 60000);
+            short[] out = new short[BLOCK_FRAMES * CHANNELS];
+            int written = 5000;
+            long rendered = 0;
+            while (rendered < SAMPLE_RATE / 2) {
+                written += ring.write(track, written * CHANNELS,
+                        Math.min(ring.getFreeFrames(), track.length / CHANNELS - written));
+                int count = chain.render(ring, out, BLOCK_FRAMES);
+                assertTrue(speed + "x ran dry", count > 0);
+                rendered += count;
+            }
+
+            assertEquals(speed + "x", 5000 + rendered * speed, chain.getSourceFrame(), 1);
+            // Blocks are traced to within a stretcher sequence of the clock.
+            assertEquals(speed + "x", chain.getSourceFrame(), checker.mLastSource,
+                    SAMPLE_RATE / 10);
+        }
+        assertEquals(TimeStretcher.MAX_SPEED, clamped(10f), 0);
+        assertEquals(TimeStretcher.MIN_SPEED, clamped(0f), 0);
+    }
+
+    private static float clamped(float speed) {
+        DspChain chain = new DspChain(SAMPLE_RATE, CHANNELS);
+        chain.setSpeed(speed);
+        return chain.getSpeed();
+    }
+
+    /**
+     * Returns {@code count} frames numbered from {@code first}.
+     */
+    private static short[] frames(int first, int count) {
+        short[] pcm = new short[count * CHANNELS];
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] = (short) (first + i / CHANNELS);
+        }
+        return pcm;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.afxmusic;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The three band equalizer's response, measured on sines well inside each band.
+ */
+public class EqualizerStageTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int CHANNELS = 2;
+    private static final int LEVEL = 2000;
+    // 12 dB either way, as a ratio of amplitudes.
+    private static final double BOOST = Math.pow(10, 12 / 20.0);
+
+    @Test
+    public void flatPassesAudioThroughUntouched() {
+        EqualizerStage equalizer = new EqualizerStage();
+        equalizer.prepare(SAMPLE_RATE, CHANNELS);
+        short[] pcm = sine(1000);
+        short[] original = pcm.clone();
+        equalizer.process(pcm, 0, pcm.length / CHANNELS, 0);
+        assertArrayEquals(original, pcm);
+    }
+
+    @Test
+    public void eachBandMovesOnlyItsOwnFrequencies() {
+        assertEquals(BOOST, gain(EqualizerStage.LOW, 12, 30), 0.1 * BOOST);
+        assertEquals(1, gain(EqualizerStage.LOW, 12, 5000), 0.05);
+        assertEquals(1 / BOOST, gain(EqualizerStage.MID, -12, 1000), 0.1 / BOOST);
+        assertEquals(1, gain(EqualizerStage.MID, -12, 20), 0.05);
+        assertEquals(BOOST, gain(EqualizerStage.HIGH, 12, 16000), 0.1 * BOOST);
+        assertEquals(1, gain(EqualizerStage.HIGH, 12, 100), 0.05);
+    }
+
+    @Test
+    public void gainsAreClamped() {
+        EqualizerStage equalizer = new EqualizerStage();
+        equalizer.setGain(EqualizerStage.MID, 40);
+        assertEquals(EqualizerStage.MAX_GAIN_DB, equalizer.getGain(EqualizerStage.MID), 0);
+        equalizer.setGain(EqualizerStage.MID, -40);
+        assertEquals(-EqualizerStage.MAX_GAIN_DB, equalizer.getGain(EqualizerStage.MID), 0);
+    }
+
+    /**
+     * Returns how much {@code band} set to {@code db} changes the amplitude of a sine at
+     * {@code hz}, once the filters have settled.
+     */
+    private static double gain(int band, float db, double hz) {
+        EqualizerStage equalizer = new EqualizerStage();
+        equalizer.prepare(SAMPLE_RATE, CHANNELS);
+        equalizer.setGain(band, db);
+        short[] pcm = sine(hz);
+        // In blocks, as the chain would, which also carries the filter state across them.
+        for (int at = 0; at < pcm.length / CHANNELS; at += 512) {
+            equalizer.process(pcm, at * CHANNELS, Math.min(512, pcm.length / CHANNELS - at), at);
+        }
+        int peak = 0;
+        for (int i = pcm.length / 2; i < pcm.length; i++) {
+            peak = Math.max(peak, Math.abs(pcm[i]));
+        }
+        return peak / (double) LEVEL;
+    }
+
+    /**
+     * One second of a sine at {@code hz}.
+     */
+    private static short[] sine(double hz) {
+        short[] pcm = new short[SAMPLE_RATE * CHANNELS];
+        for (int i = 0; i < SAMPLE_RATE; i++) {
+            short sample = (short) Math.round(LEVEL * Math.sin(2 * Math.PI * hz * i / SAMPLE_RATE));
+            for (int c = 0; c < CHANNELS; c++) {
+                pcm[i * CHANNELS + c] = sample;
+            }
+        }
+        return pcm;
+    }
+}
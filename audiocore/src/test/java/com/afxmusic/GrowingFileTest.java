@@ -0,0 +1,271 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Progressive playback of a song still downloading: a local HTTP server sends it a chunk at a
+ * time when the test says so, a download thread writes it through {@link GrowingFile#track},
+ * and a player thread reads it as MediaPlayer would.
+ */
+public class GrowingFileTest {
+
+    private static final int CHUNK = 16 * 1024;
+    private static final int CHUNKS = 8;
+    private static final int READY_BYTES = 2 * CHUNK;
+    // How long a read is given to prove it is blocked, and how long anything may take at most.
+    private static final long BLOCKED_MS = 200;
+    private static final long TIMEOUT_MS = 10000;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final byte[] mSong = new byte[CHUNK * CHUNKS];
+    // One permit per chunk the server may send.
+    private final Semaphore mChunks = new Semaphore(0);
+    private volatile boolean mDropConnection;
+    private HttpServer mServer;
+    private ExecutorService mThreads;
+
+    @Before
+    public void setUp() throws IOException {
+        for (int i = 0; i < mSong.length; i++) {
+            mSong[i] = (byte) (i * 31 + i / 251);
+        }
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/song", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                // Chunked, so the length isn't known up front, as with a share link.
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream body = exchange.getResponseBody();
+                try {
+                    for (int i = 0; i < CHUNKS; i++) {
+                        if (!mChunks.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                            break;
+                        }
+                        if (mDropConnection) {
+                            // Without the terminating chunk the client sees a broken stream.
+                            exchange.getHttpContext().getServer().stop(0);
+                            return;
+                        }
+                        body.write(mSong, i * CHUNK, CHUNK);
+                        body.flush();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                body.close();
+            }
+        });
+        mServer.start();
+        mThreads = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        mThreads.shutdownNow();
+        mServer.stop(0);
+    }
+
+    @Test
+    public void readsBlockUntilTheDownloadCatchesUp() throws Exception {
+        File file = mFolder.newFile("song.mp3");
+        final GrowingFile growing = new GrowingFile(file, READY_BYTES);
+        final CountDownLatch ready = new CountDownLatch(1);
+        growing.setOnReadyListener(new Runnable() {
+            @Override
+            public void run() {
+                ready.countDown();
+            }
+        });
+        Future<Void> download = download(growing, file);
+
+        mChunks.release(1);
+        assertFalse("Ready after one chunk", ready.await(BLOCKED_MS, TimeUnit.MILLISECONDS));
+        mChunks.release(1);
+        assertTrue("Not ready after two chunks", ready.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals("Size known before the end", -1, growing.getSize());
+
+        // Already there: returns straight away.
+        byte[] start = new byte[CHUNK];
+        assertEquals(CHUNK, growing.readAt(0, start, 0, CHUNK));
+        assertArrayEquals(Arrays.copyOfRange(mSong, 0, CHUNK), start);
+
+        // Not there yet: waits for the chunk, then returns it.
+        final byte[] later = new byte[CHUNK];
+        Future<Integer> read = mThreads.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws IOException {
+                return growing.readAt(3 * CHUNK, later, 0, CHUNK);
+            }
+        });
+        assertBlocked(read);
+        mChunks.release(1);
+        assertBlocked(read);
+        mChunks.release(1);
+        int count = read.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertTrue("Nothing read", count > 0);
+        assertArrayEquals(Arrays.copyOfRange(mSong, 3 * CHUNK, 3 * CHUNK + count),
+                Arrays.copyOf(later, count));
+
+        mChunks.release(CHUNKS);
+        download.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertTrue(growing.isComplete());
+        assertEquals(mSong.length, growing.getSize());
+        assertEquals(-1, growing.readAt(mSong.length, later, 0, CHUNK));
+        growing.close();
+    }
+
+    @Test
+    public void playerReadsTheWholeSongWhileItDownloads() throws Exception {
+        File file = mFolder.newFile("song.mp3");
+        final GrowingFile growing = new GrowingFile(file, READY_BYTES);
+        Future<Void> download = download(growing, file);
+        Future<byte[]> played = mThreads.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                ByteArrayOutputStream heard = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                long position = 0;
+                int count;
+                while ((count = growing.readAt(position, buffer, 0, buffer.length)) >= 0) {
+                    heard.write(buffer, 0, count);
+                    position += count;
+                }
+                return heard.toByteArray();
+            }
+        });
+        for (int i = 0; i < CHUNKS; i++) {
+            assertBlocked(played);
+            mChunks.release(1);
+        }
+        download.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertArrayEquals(mSong, played.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(mSong.length, growing.getSize());
+        growing.close();
+    }
+
+    @Test
+    public void failedDownloadEndsTheStreamWhereItStopped() throws Exception {
+        File file = mFolder.newFile("song.mp3");
+        final GrowingFile growing = new GrowingFile(file, READY_BYTES);
+        Future<Void> download = download(growing, file);
+        mChunks.release(2);
+        final byte[] buffer = new byte[CHUNK];
+        Future<Integer> read = mThreads.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws IOException {
+                return growing.readAt(5 * CHUNK, buffer, 0, CHUNK);
+            }
+        });
+        assertBlocked(read);
+        mDropConnection = true;
+        mChunks.release(1);
+        try {
+            download.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            fail("The download should have failed");
+        } catch (ExecutionException expected) {
+            // The broken stream, rethrown by the download thread.
+        }
+        assertEquals(-1, (int) read.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertFalse(growing.isComplete());
+        assertEquals(-1, growing.getSize());
+        assertEquals(CHUNK, growing.readAt(CHUNK, buffer, 0, CHUNK));
+        growing.close();
+    }
+
+    /**
+     * Downloads the song into {@code file} the way the app does, completing or failing
+     * {@code growing}.
+     */
+    private Future<Void> download(final GrowingFile growing, final File file) {
+        return mThreads.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                URL url = new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + "/song");
+                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                try {
+                    InputStream in = connection.getInputStream();
+                    OutputStream out = growing.track(new FileOutputStream(file));
+                    try {
+                        byte[] buffer = new byte[4096];
+                        int count;
+                        while ((count = in.read(buffer)) >= 0) {
+                            out.write(buffer, 0, count);
+                        }
+                    } finally {
+                        out.close();
+                        in.close();
+                    }
+                    growing.onComplete();
+                } catch (IOException e) {
+                    growing.onFailed();
+                    throw e;
+                } finally {
+                    connection.disconnect();
+                }
+                return null;
+            }
+        });
+    }
+
+    private static void assertBlocked(Future<?> future) throws Exception {
+        try {
+            future.get(BLOCKED_MS, TimeUnit.MILLISECONDS);
+            fail("Returned before the data arrived");
+        } catch (TimeoutException expected) {
+            // Still waiting, as it should be.
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.afxmusic;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * The labels redrawn on every clock tick: what they show, and that updating them allocates
+ * nothing, measured with the JVM's per-thread allocation counter.
+ */
+public class LabelTextTest {
+
+    private static final int UPDATES = 100000;
+
+    @Test
+    public void formatsTimesAndNumbers() {
+        assertEquals("0:00", TimeFormat.convertToTime(-5));
+        assertEquals("0:59", TimeFormat.convertToTime(59999));
+        assertEquals("3:07", TimeFormat.convertToTime(187000));
+        assertEquals("35791:23", TimeFormat.convertToTime(Integer.MAX_VALUE));
+        assertArrayEquals(new double[] {3, 7.4}, TimeFormat.minutesAndSeconds(187400), 1e-9);
+        assertArrayEquals(new double[] {0, 0}, TimeFormat.minutesAndSeconds(-5), 0);
+
+        LabelText label = new LabelText("Loop Start: ", "");
+        assertTrue(label.setTime(187400));
+        assertEquals("Loop Start: 3:07", label.toString());
+        LabelText speed = new LabelText("Current Speed: ", "%");
+        assertTrue(speed.setNumber(-75));
+        assertEquals("Current Speed: -75%", speed.toString());
+        assertTrue(speed.setNumber(Integer.MAX_VALUE));
+        assertEquals("Current Speed: 2147483647%", speed.toString());
+    }
+
+    @Test
+    public void reportsOnlyChanges() {
+        LabelText label = new LabelText("", "/");
+        assertTrue(label.setTime(1000));
+        assertFalse(label.setTime(1999));
+        assertTrue(label.setTime(2000));
+        assertTrue(label.setNumber(2));
+        assertFalse(label.setNumber(2));
+        assertTrue(label.setTime(2000));
+        label.invalidate();
+        assertTrue(label.setTime(2000));
+    }
+
+    @Test
+    public void updatesAllocateNothing() {
+        final LabelText time = new LabelText("", "/");
+        final LabelText speed = new LabelText("Current Speed: ", "%");
+        final char[] chars = new char[TimeFormat.MAX_TIME_CHARS];
+        Runnable updates = new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < UPDATES; i++) {
+                    time.setTime(i * 1000);
+                    speed.setNumber(i % 400);
+                    TimeFormat.formatTime(i * 7919, chars, 0);
+                }
+            }
+        };
+        Runnable nothing = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        // Once interpreted and once compiled, so neither mode hides an allocation.
+        updates.run();
+        updates.run();
+
+        long overhead = allocatedBytes(nothing);
+        assertEquals(overhead, allocatedBytes(updates));
+    }
+
+    /**
+     * Returns the bytes the current thread allocates while running {@code runnable}.
+     */
+    private static long allocatedBytes(Runnable runnable) {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        runnable.run();
+        return threads.getThreadAllocatedBytes(thread) - before;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.afxmusic;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Finding the region that is playing at a position, with regions nested, overlapping and
+ * apart, against a plain scan of every region.
+ */
+public class LoopRegionsTest {
+
+    private static final LoopRegion INTRO = new LoopRegion("intro", 0, 8000);
+    private static final LoopRegion VERSE = new LoopRegion("verse and chorus", 10000, 40000);
+    private static final LoopRegion CHORUS = new LoopRegion("chorus", 25000, 40000);
+    private static final LoopRegion BRIDGE = new LoopRegion("bridge", 35000, 50000);
+
+    private final LoopRegions mRegions =
+            new LoopRegions(Arrays.asList(BRIDGE, CHORUS, INTRO, VERSE));
+
+    @Test
+    public void regionsAreSortedByStart() {
+        assertEquals(Arrays.asList(INTRO, VERSE, CHORUS, BRIDGE), mRegions.asList());
+        assertEquals(2, mRegions.indexOf("chorus"));
+        assertEquals(-1, mRegions.indexOf("outro"));
+    }
+
+    @Test
+    public void theInnermostRegionPlays() {
+        // Starts count, ends don't.
+        assertEquals(INTRO, mRegions.regionAt(0));
+        assertEquals(INTRO, mRegions.regionAt(7999));
+        assertNull(mRegions.regionAt(8000));
+        assertNull(mRegions.regionAt(-1));
+        assertEquals(VERSE, mRegions.regionAt(10000));
+        // Nested: the chorus inside the verse.
+        assertEquals(CHORUS, mRegions.regionAt(25000));
+        // Overlapping: the one that started last.
+        assertEquals(BRIDGE, mRegions.regionAt(35000));
+        assertEquals(BRIDGE, mRegions.regionAt(45000));
+        assertNull(mRegions.regionAt(50000));
+        assertEquals(-1, LoopRegions.EMPTY.indexAt(1000));
+    }
+
+    @Test
+    public void ofTwoStartingTogetherTheShorterPlays() {
+        LoopRegion bar = new LoopRegion("first bar", 10000, 12000);
+        LoopRegions regions = mRegions.with(bar);
+
+        assertEquals(bar, regions.regionAt(11999));
+        assertEquals(VERSE, regions.regionAt(12000));
+    }
+
+    @Test
+    public void withReplacesByNameAndWithoutRemoves() {
+        LoopRegion longer = new LoopRegion("intro", 0, 9000);
+        LoopRegions regions = mRegions.with(longer);
+        assertEquals(4, regions.size());
+        assertEquals(longer, regions.regionAt(8500));
+
+        regions = regions.without("chorus");
+        assertEquals(3, regions.size());
+        assertEquals(VERSE, regions.regionAt(30000));
+        // Unchanged copies are made, never the original changed.
+        assertEquals(CHORUS, mRegions.regionAt(30000));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyRegionsAreRefused() {
+        new LoopRegion("nothing", 5000, 5000);
+    }
+
+    @Test
+    public void indexAtMatchesAScanOfEveryRegion() {
+        Random random = new Random(7);
+        for (int round = 0; round < 200; round++) {
+            List<LoopRegion> list = new ArrayList<>();
+            int count = random.nextInt(12);
+            for (int i = 0; i < count; i++) {
+                // Coarse positions, so regions often share a start or an end.
+                int start = random.nextInt(20) * 500;
+                int end = start + (1 + random.nextInt(10)) * 500;
+                list.add(new LoopRegion("region " + i, start, end));
+            }
+            LoopRegions regions = new LoopRegions(list);
+            for (int position = -250; position <= 16000; position += 250) {
+                assertEquals("Round " + round + " at " + position,
+                        scan(regions, position), regions.indexAt(position));
+            }
+        }
+    }
+
+    /**
+     * The innermost region at {@code position} the slow way: the latest start, then the
+     * earliest end, then the last of the same span.
+     */
+    private static int scan(LoopRegions regions, int position) {
+        int found = -1;
+        for (int i = 0; i < regions.size(); i++) {
+            LoopRegion region = regions.get(i);
+            if (!region.contains(position)) {
+                continue;
+            }
+            LoopRegion best = found < 0 ? null : regions.get(found);
+            if (best == null || region.getStart() > best.getStart()
+                    || (region.getStart() == best.getStart()
+                    && region.getEnd() <= best.getEnd())) {
+                found = i;
+            }
+        }
+        return found;
+    }
+}
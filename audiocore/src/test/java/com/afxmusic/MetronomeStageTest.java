@@ -0,0 +1,207 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.afxmusic;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Where {@link MetronomeStage}'s clicks land in rendered PCM. A looped track of short bursts,
+ * one per beat, plays through two {@link DspChain}s in lockstep, one with the metronome and one
+ * without. The second shows where each burst comes out of the time stretcher and the difference
+ * between the two where each click starts.
+ */
+public class MetronomeStageTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int CHANNELS = 2;
+    private static final int BLOCK_FRAMES = 512;
+    private static final int RING_FRAMES = 32768;
+    private static final int BEAT_MS = 400;
+    private static final int LOOP_START_MS = 1000;
+    private static final int LOOP_END_MS = 5000;
+    private static final int TRACK_MS = 6000;
+    private static final int BURST_LEVEL = 20000;
+    // A burst or click is a new one after this much quiet; a burst starts where it is half as
+    // loud as in the track, as it may come fading in or out of a crossfade.
+    private static final int GAP_MS = 100;
+    private static final int ONSET_LEVEL = BURST_LEVEL / 2;
+    // Beats to play through, whatever the speed: enough for a few to meet a crossfade.
+    private static final int BEATS = 300;
+
+    @Test
+    public void clicksLandOnTheBeatAtNormalSpeed() {
+        Clicks clicks = render(1.0f);
+
+        assertEquals(0, clicks.mMissed);
+        assertEquals(0, clicks.mUnheard);
+        assertTrue(clicks.mCount + " clicks", clicks.mCount >= BEATS - 1);
+        // To the frame: a click shows from its second frame, a burst reaches half level on its
+        // third, and nothing else comes between them.
+        assertEquals(1, clicks.mWorst);
+    }
+
+    @Test
+    public void clicksLandOnTheBeatSpedUp() {
+        for (float speed : new float[] {1.5f, 2.0f}) {
+            Clicks clicks = render(speed);
+
+            assertEquals(speed + "x", 0, clicks.mMissed);
+            // Beats the stretcher skips still click, at the skip.
+            assertTrue(speed + "x: " + clicks.mCount + " + " + clicks.mUnheard,
+                    clicks.mCount + clicks.mUnheard >= BEATS - 1);
+            assertTrue(speed + "x: " + clicks.mWorst, clicks.mWorst <= toFrames(2));
+        }
+    }
+
+    @Test
+    public void slowedDownAClickIsAtMostOneSequenceStepOff() {
+        for (float speed : new float[] {0.25f, 0.6f, 0.8f}) {
+            Clicks clicks = render(speed);
+
+            assertEquals(speed + "x", 0, clicks.mMissed);
+            assertEquals(speed + "x", 0, clicks.mUnheard);
+            // A beat at the middle of a crossfade is heard twice, fading out and then in full,
+            // and the click goes with the first. The two are one step of the stretcher apart:
+            // (1 - speed) of a sequence less its overlap, give or take the seek window.
+            assertTrue(speed + "x: " + clicks.mWorst, clicks.mWorst <= toFrames(90));
+            assertTrue(speed + "x: " + clicks.mDrifted + " of " + clicks.mCount,
+                    clicks.mDrifted * 100 <= clicks.mCount);
+        }
+    }
+
+    /**
+     * What the onset detector found, in output frames.
+     */
+    private static final class Clicks {
+        int mCount;
+        int mMissed;
+        int mUnheard;
+        int mDrifted;
+        long mWorst;
+    }
+
+    private static Clicks render(float speed) {
+        int frames = toFrames(TRACK_MS);
+        short[] track = new short[frames * CHANNELS];
+        int[] beats = new int[TRACK_MS / BEAT_MS];
+        int burst = toFrames(3) / 2;
+        for (int i = 0; i < beats.length; i++) {
+            beats[i] = i * BEAT_MS;
+            int start = toFrames(beats[i]);
+            for (int k = 0; k < burst; k++) {
+                short sample = (short) (BURST_LEVEL
+                        * Math.sin(2 * Math.PI * 3000 * k / SAMPLE_RATE));
+                for (int c = 0; c < CHANNELS; c++) {
+                    track[(start + k) * CHANNELS + c] = sample;
+                }
+            }
+        }
+        MetronomeStage metronome = new MetronomeStage();
+        metronome.setBeats(new BeatGrid(60000f / BEAT_MS, beats, 0));
+        metronome.setClicks(true);
+        metronome.setCountIn(BeatGrid.BEATS_PER_BAR);
+        metronome.setLoop(LOOP_START_MS, LOOP_END_MS);
+        DspChain plain = new DspChain(SAMPLE_RATE, CHANNELS);
+        DspChain clicked = new DspChain(SAMPLE_RATE, CHANNELS);
+        plain.setSpeed(speed);
+        clicked.setSpeed(speed);
+        clicked.add(metronome);
+        PcmRing plainRing = new PcmRing(RING_FRAMES, CHANNELS);
+        PcmRing clickRing = new PcmRing(RING_FRAMES, CHANNELS);
+        int loopStart = toFrames(LOOP_START_MS);
+        int loopEnd = toFrames(LOOP_END_MS);
+        plainRing.mark(loopStart, false);
+        clickRing.mark(loopStart, false);
+
+        Clicks clicks = new Clicks();
+        short[] plainOut = new short[BLOCK_FRAMES * CHANNELS];
+        short[] clickOut = new short[BLOCK_FRAMES * CHANNELS];
+        int gap = toFrames(GAP_MS);
+        int drift = toFrames(2);
+        int cursor = loopStart;
+        long lastLoud = -gap;
+        long lastClick = -gap;
+        long onset = -1;
+        long click = -1;
+        for (long frame = 0; frame < toFrames((int) (BEATS * BEAT_MS / speed)); ) {
+            while (plainRing.getFreeFrames() >= BLOCK_FRAMES) {
+                int count = Math.min(BLOCK_FRAMES, loopEnd - cursor);
+                plainRing.write(track, cursor * CHANNELS, count);
+                clickRing.write(track, cursor * CHANNELS, count);
+                cursor += count;
+                if (cursor >= loopEnd) {
+                    plainRing.mark(loopStart, false);
+                    clickRing.mark(loopStart, false);
+                    cursor = loopStart;
+                }
+            }
+            int rendered = plain.render(plainRing, plainOut, BLOCK_FRAMES);
+            assertEquals(rendered, clicked.render(clickRing, clickOut, BLOCK_FRAMES));
+            for (int i = 0; i < rendered; i++, frame++) {
+                int level = plainOut[i * CHANNELS];
+                boolean found = false;
+                if (Math.abs(level) >= ONSET_LEVEL) {
+                    if (frame - lastLoud >= gap) {
+                        if (onset >= 0) {
+                            clicks.mMissed++;
+                        }
+                        onset = frame;
+                        found = true;
+                    }
+                    lastLoud = frame;
+                }
+                if (clickOut[i * CHANNELS] != level) {
+                    if (frame - lastClick >= gap) {
+                        if (click >= 0) {
+                            clicks.mUnheard++;
+                        }
+                        click = frame;
+                        found = true;
+                    }
+                    lastClick = frame;
+                }
+                if (!found || onset < 0 || click < 0) {
+                    continue;
+                }
+                // Pair the newest burst and click, or give up on the older of the two.
+                long distance = Math.abs(click - onset);
+                if (distance < gap) {
+                    clicks.mCount++;
+                    clicks.mWorst = Math.max(clicks.mWorst, distance);
+                    if (distance > drift) {
+                        clicks.mDrifted++;
+                    }
+                    onset = -1;
+                    click = -1;
+                } else if (onset < click) {
+                    clicks.mMissed++;
+                    onset = -1;
+                } else {
+                    clicks.mUnheard++;
+                    click = -1;
+                }
+            }
+        }
+        return clicks;
+    }
+
+    private static int toFrames(int milliseconds) {
+        return (int) ((long) milliseconds * SAMPLE_RATE / 1000);
+    }
+}
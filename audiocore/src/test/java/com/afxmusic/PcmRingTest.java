@@ -0,0 +1,181 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.afxmusic;
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The ring between the decoder and the audio thread. Every test track has each frame's
+ * samples equal to its own frame number, so a read shows exactly where it came from.
+ */
+public class PcmRingTest {
+
+    private static final int CHANNELS = 2;
+
+    @Test
+    public void capacityIsAPowerOfTwo() {
+        assertEquals(1024, new PcmRing(1000, CHANNELS).getCapacity());
+        assertEquals(1024, new PcmRing(1024, CHANNELS).getCapacity());
+        assertEquals(2048, new PcmRing(1025, CHANNELS).getCapacity());
+    }
+
+    @Test
+    public void aFullRingTakesLessAndAnEmptyOneGivesLess() {
+        PcmRing ring = new PcmRing(16, CHANNELS);
+        assertEquals(16, ring.write(frames(0, 20), 0, 20));
+        assertEquals(0, ring.getFreeFrames());
+
+        short[] out = new short[20 * CHANNELS];
+        assertEquals(10, ring.read(out, 0, 10));
+        assertFrames(out, 0, 0, 10);
+        // Wraps around the end of the buffer.
+        assertEquals(10, ring.write(frames(16, 10), 0, 10));
+        assertEquals(16, ring.read(out, 0, 20));
+        assertFrames(out, 0, 10, 16);
+        assertEquals(0, ring.read(out, 0, 20));
+        assertEquals(26, ring.getSourceFrame());
+    }
+
+    @Test
+    public void readsStopAtMarksAndFollowThem() {
+        PcmRing ring = new PcmRing(64, CHANNELS);
+        assertTrue(ring.mark(100, false));
+        ring.write(frames(100, 10), 0, 10);
+        // A loop wrap back to 50.
+        assertTrue(ring.mark(50, false));
+        ring.write(frames(50, 10), 0, 10);
+
+        short[] out = new short[20 * CHANNELS];
+        assertEquals(10, ring.read(out, 0, 20));
+        assertFrames(out, 0, 100, 10);
+        assertEquals(110, ring.getSourceFrame());
+        assertEquals(10, ring.read(out, 0, 20));
+        assertFrames(out, 0, 50, 10);
+        assertEquals(60, ring.getSourceFrame());
+        assertFalse(ring.pollFlushed());
+    }
+
+    @Test
+    public void aFlushDropsWhatCameBefore() {
+        PcmRing ring = new PcmRing(64, CHANNELS);
+        ring.write(frames(0, 30), 0, 30);
+        // A seek to 1000.
+        assertTrue(ring.mark(1000, true));
+        ring.write(frames(1000, 10), 0, 10);
+
+        short[] out = new short[40 * CHANNELS];
+        assertEquals(10, ring.read(out, 0, 40));
+        assertFrames(out, 0, 1000, 10);
+        assertTrue(ring.pollFlushed());
+        assertFalse(ring.pollFlushed());
+    }
+
+    @Test
+    public void tooManyPendingMarksAreRefused() {
+        PcmRing ring = new PcmRing(64, CHANNELS);
+        for (int i = 0; i < PcmRing.MAX_MARKS; i++) {
+            assertTrue(ring.mark(i, false));
+        }
+        assertFalse(ring.mark(0, false));
+        ring.read(new short[CHANNELS], 0, 1);
+        assertTrue(ring.mark(0, false));
+    }
+
+    @Test
+    public void aDecoderAndAnAudioThreadNeverSeeATornFrame() throws Exception {
+        final PcmRing ring = new PcmRing(256, CHANNELS);
+        final int loopStart = 1000;
+        final int loopEnd = 9000;
+        final int passes = 50;
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> decoder = threads.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    short[] track = frames(0, loopEnd);
+                    for (int pass = 0; pass < passes; pass++) {
+                        while (!ring.mark(loopStart, false)) {
+                            Thread.yield();
+                        }
+                        for (int at = loopStart; at < loopEnd; ) {
+                            int count = ring.write(track, at * CHANNELS,
+                                    Math.min(100, loopEnd - at));
+                            if (count == 0) {
+                                Thread.yield();
+                            }
+                            at += count;
+                        }
+                    }
+                    return null;
+                }
+            });
+            Future<Integer> player = threads.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    // Counts frames that don't match the source frame the ring reports.
+                    int wrong = 0;
+                    long frames = 0;
+                    short[] out = new short[64 * CHANNELS];
+                    while (frames < (long) passes * (loopEnd - loopStart)) {
+                        int count = ring.read(out, 0, 64);
+                        if (count == 0) {
+                            Thread.yield();
+                        }
+                        long first = ring.getSourceFrame() - count;
+                        for (int i = 0; i < count * CHANNELS; i++) {
+                            if (out[i] != first + i / CHANNELS) {
+                                wrong++;
+                            }
+                        }
+                        frames += count;
+                    }
+                    return wrong;
+                }
+            });
+            decoder.get(30, TimeUnit.SECONDS);
+            assertEquals(0, (int) player.get(30, TimeUnit.SECONDS));
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns {@code count} frames numbered from {@code first}.
+     */
+    private static short[] frames(int first, int count) {
+        short[] pcm = new short[count * CHANNELS];
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] = (short) (first + i / CHANNELS);
+        }
+        return pcm;
+    }
+
+    private static void assertFrames(short[] pcm, int offset, int first, int count) {
+        for (int i = 0; i < count * CHANNELS; i++) {
+            assertEquals("Sample " + i, first + i / CHANNELS, pcm[offset + i]);
+        }
+    }
+}
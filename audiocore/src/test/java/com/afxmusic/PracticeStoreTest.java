@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The practice log on disk: what is put comes back in a new store, a failed write is made
+ * good by the next put, and the log stays compact.
+ */
+public class PracticeStoreTest {
+
+    // Writes as soon as they are queued, so the file can be checked right after a put.
+    private static final Executor NOW = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = new File(mFolder.getRoot(), "practice.log");
+    }
+
+    @Test
+    public void statesComeBackAfterARestart() {
+        PracticeStore store = new PracticeStore(mFile, NOW);
+        store.put("a", state(80, 1000));
+        store.put("b", state(60, 2000));
+        store.put("a", state(90, 3000));
+
+        PracticeStore reopened = new PracticeStore(mFile, NOW);
+        assertEquals(2, reopened.size());
+        assertState(reopened.get("a"), 90, 3000);
+        assertState(reopened.get("b"), 60, 2000);
+    }
+
+    @Test
+    public void putAfterAFailedAppendRewritesTheLog() throws IOException {
+        PracticeStore store = new PracticeStore(mFile, NOW);
+        store.put("a", state(80, 1000));
+
+        // Make the next append fail: the log's path is briefly a directory.
+        File aside = new File(mFolder.getRoot(), "aside.log");
+        assertTrue(mFile.renameTo(aside));
+        assertTrue(mFile.mkdir());
+        store.put("lost", state(70, 5000));
+        assertTrue(mFile.delete());
+        assertTrue(aside.renameTo(mFile));
+
+        store.put("b", state(60, 2000));
+
+        PracticeStore reopened = new PracticeStore(mFile, NOW);
+        assertEquals(3, reopened.size());
+        assertState(reopened.get("a"), 80, 1000);
+        assertState(reopened.get("lost"), 70, 5000);
+        assertState(reopened.get("b"), 60, 2000);
+    }
+
+    @Test
+    public void logStaysCompactAcrossRestarts() {
+        long record = PracticeStore.encode("a", state(100, 0)).length;
+        PracticeStore store = new PracticeStore(mFile, NOW);
+        for (int i = 0; i < 20000; i++) {
+            store.put("a", state(100, i % 10));
+            if (i == 10000) {
+                // Reopening counts the log as it is on disk, header included.
+                store = new PracticeStore(mFile, NOW);
+            }
+        }
+        assertTrue("Log grew to " + mFile.length(),
+                mFile.length() <= PracticeStore.MIN_COMPACT_BYTES + record);
+        assertState(new PracticeStore(mFile, NOW).get("a"), 100, 19999 % 10);
+    }
+
+    private static PracticeState state(int speedPercent, int position) {
+        PracticeState state = new PracticeState();
+        state.setSpeedPercent(speedPercent);
+        state.setPosition(position);
+        return state;
+    }
+
+    private static void assertState(PracticeState state, int speedPercent, int position) {
+        assertNotNull(state);
+        assertEquals(speedPercent, state.getSpeedPercent());
+        assertEquals(position, state.getPosition());
+    }
+}
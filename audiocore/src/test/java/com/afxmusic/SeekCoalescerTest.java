@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.afxmusic;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Seek targets from a dragging finger handed to a consumer thread: only the newest, no more
+ * often than the interval, and nothing after closing.
+ */
+public class SeekCoalescerTest {
+
+    private static final int INTERVAL_MS = 20;
+    private static final long TIMEOUT_MS = 10000;
+
+    private final SeekCoalescer mSeeks = new SeekCoalescer(INTERVAL_MS);
+    private final ExecutorService mConsumer = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() {
+        mConsumer.shutdownNow();
+    }
+
+    @Test
+    public void onlyTheNewestTargetIsTaken() throws InterruptedException {
+        long before = System.nanoTime();
+        mSeeks.offer(1000);
+        mSeeks.offer(2000);
+        mSeeks.offer(-5);
+        mSeeks.offer(3000);
+        long after = System.nanoTime();
+
+        assertEquals(3000, mSeeks.take());
+        long offered = mSeeks.getTakenOfferNanos();
+        assertTrue(offered >= before && offered <= after);
+        // Negative positions are the start of the track.
+        mSeeks.offer(-5);
+        assertEquals(0, mSeeks.take());
+    }
+
+    @Test
+    public void takesWaitForAnOfferAndTheInterval() throws Exception {
+        mSeeks.offer(1000);
+        long taken = System.nanoTime();
+        assertEquals(1000, mSeeks.take());
+
+        Future<Integer> next = mConsumer.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws InterruptedException {
+                return mSeeks.take();
+            }
+        });
+        Thread.sleep(5);
+        assertFalse(next.isDone());
+        mSeeks.offer(2000);
+
+        assertEquals(2000, (int) next.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        long waitedMs = (System.nanoTime() - taken) / 1000000;
+        assertTrue("Took again after " + waitedMs + " ms", waitedMs >= INTERVAL_MS);
+    }
+
+    @Test
+    public void closingWakesTheConsumerForGood() throws Exception {
+        Future<Integer> waiting = mConsumer.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws InterruptedException {
+                return mSeeks.take();
+            }
+        });
+        Thread.sleep(5);
+        mSeeks.close();
+
+        assertEquals(SeekCoalescer.CLOSED, (int) waiting.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        mSeeks.offer(1000);
+        assertEquals(SeekCoalescer.CLOSED, mSeeks.take());
+    }
+
+    @Test
+    public void aFastDragIsThinnedButEndsWhereTheFingerStopped() throws Exception {
+        final int last = 200000;
+        Future<int[]> consumer = mConsumer.submit(new Callable<int[]>() {
+            @Override
+            public int[] call() throws InterruptedException {
+                // Counts takes and ones that went backwards.
+                int[] counts = new int[2];
+                int previous = -1;
+                for (int target = 0; target != last; previous = target) {
+                    target = mSeeks.take();
+                    counts[0]++;
+                    if (target <= previous) {
+                        counts[1]++;
+                    }
+                }
+                return counts;
+            }
+        });
+        long start = System.nanoTime();
+        for (int i = 0; i <= last; i++) {
+            mSeeks.offer(i);
+        }
+        int[] counts = consumer.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+        assertEquals(0, counts[1]);
+        assertTrue(counts[0] + " takes in " + elapsedMs + " ms",
+                counts[0] <= elapsedMs / INTERVAL_MS + 1);
+    }
+}
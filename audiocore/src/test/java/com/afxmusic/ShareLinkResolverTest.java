@@ -0,0 +1,292 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.afxmusic;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Share link transfers against a local HTTP server that honors {@code Range},
+ * {@code If-Range} and {@code If-None-Match} like the real one, and can drop a response
+ * halfway or fail a few requests first.
+ */
+public class ShareLinkResolverTest {
+
+    // Well past what close() drains, so closing early really leaves a part file behind.
+    private static final int SONG_BYTES = 256 * 1024;
+    private static final int BACKOFF_MS = 40;
+    private static final String TYPE = ShareHeader.CONTENT_TYPE;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final Telemetry mTelemetry = Telemetry.get();
+    // The requests the server got, one "Range|If-Range|If-None-Match" line each.
+    private final List<String> mRequests = Collections.synchronizedList(new ArrayList<String>());
+    private volatile byte[] mBody;
+    // Sent with every body, or null for none.
+    private volatile String mEtag = "\"v1\"";
+    private volatile boolean mGzip;
+    private volatile int mFailures;
+    // Bytes the next response sends before the connection drops, or -1.
+    private volatile int mDropAfter = -1;
+    private HttpServer mServer;
+    private String mUrl;
+    private ShareLinkResolver mResolver;
+
+    @Before
+    public void setUp() throws IOException {
+        mTelemetry.reset();
+        mBody = song(1);
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/share", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/share?id=1";
+        mResolver = new ShareLinkResolver(mFolder.newFolder("links"), 2000, 2000, 4, BACKOFF_MS);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    @Test
+    public void dropsMidTransferAreResumedWithIfRange() throws IOException {
+        mDropAfter = SONG_BYTES / 3;
+        ShareLinkResolver.Body body = mResolver.open(mUrl, false);
+        assertTrue(body.isBinaryPayload());
+        assertArrayEquals(mBody, readAll(body));
+
+        assertEquals(2, mRequests.size());
+        assertEquals("|-|-", mRequests.get(0));
+        assertEquals("bytes=" + SONG_BYTES / 3 + "-|\"v1\"|-", mRequests.get(1));
+        assertEquals(1, mTelemetry.linkResumes.get());
+        assertEquals(SONG_BYTES, mResolver.getBytesTransferred());
+    }
+
+    @Test
+    public void anEarlyCloseIsResumedByTheNextOpen() throws IOException {
+        ShareLinkResolver.Body body = mResolver.open(mUrl, false);
+        byte[] start = new byte[SONG_BYTES / 4];
+        readFully(body, start);
+        body.close();
+
+        // The whole body again, the start of it from the part file.
+        assertArrayEquals(mBody, readAll(mResolver.open(mUrl, false)));
+        assertEquals("bytes=" + start.length + "-|\"v1\"|-", mRequests.get(1));
+        assertEquals(1, mTelemetry.linkResumes.get());
+        assertEquals(SONG_BYTES, mResolver.getBytesTransferred());
+    }
+
+    @Test
+    public void aChangedLinkStartsOverInsteadOfResuming() throws IOException {
+        ShareLinkResolver.Body body = mResolver.open(mUrl, false);
+        readFully(body, new byte[SONG_BYTES / 4]);
+        body.close();
+
+        // If-Range no longer matches, so the server sends all of the new version.
+        mBody = song(2);
+        mEtag = "\"v2\"";
+        assertArrayEquals(mBody, readAll(mResolver.open(mUrl, false)));
+        assertEquals(0, mTelemetry.linkResumes.get());
+    }
+
+    @Test
+    public void aDropWithoutAnEtagFailsInsteadOfResumingUnguarded() throws IOException {
+        mEtag = null;
+        mDropAfter = SONG_BYTES / 3;
+        ShareLinkResolver.Body body = mResolver.open(mUrl, false);
+        try {
+            readAll(body);
+            fail("Resumed a body nothing could match the first part to");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("No ETag"));
+        }
+        body.close();
+        assertEquals(1, mRequests.size());
+        assertEquals(0, mTelemetry.linkResumes.get());
+
+        // Nothing was kept, so the next open asks for all of it.
+        assertArrayEquals(mBody, readAll(mResolver.open(mUrl, false)));
+        assertEquals("|-|-", mRequests.get(1));
+    }
+
+    @Test
+    public void anUnchangedLinkCostsA304() throws IOException {
+        readAll(mResolver.open(mUrl, false));
+        long transferred = mResolver.getBytesTransferred();
+
+        assertNull(mResolver.open(mUrl, true));
+        assertEquals("|-|\"v1\"", mRequests.get(1));
+        assertEquals(transferred, mResolver.getBytesTransferred());
+        assertEquals(1, mTelemetry.linksNotModified.get());
+
+        // A caller without the result gets the body again.
+        assertArrayEquals(mBody, readAll(mResolver.open(mUrl, false)));
+        assertEquals("|-|-", mRequests.get(2));
+    }
+
+    @Test
+    public void serverErrorsAreRetriedWithBackoff() throws IOException {
+        mFailures = 2;
+        long start = System.nanoTime();
+        assertArrayEquals(mBody, readAll(mResolver.open(mUrl, false)));
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+        assertEquals(3, mRequests.size());
+        assertEquals(2, mTelemetry.linkRetries.get());
+        // At least half of each delay: BACKOFF_MS, then twice that.
+        assertTrue("Retried after " + elapsedMs + " ms", elapsedMs >= 3 * BACKOFF_MS / 2);
+    }
+
+    @Test
+    public void retriesGiveUpAfterMaxAttempts() {
+        mFailures = 10;
+        try {
+            mResolver.open(mUrl, false);
+            fail("Opened a link that always fails");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("HTTP 503"));
+        }
+        assertEquals(4, mRequests.size());
+        assertEquals(3, mTelemetry.linkRetries.get());
+    }
+
+    @Test
+    public void gzippedBodiesAreStoredAsSentAndResumedInThoseBytes() throws IOException {
+        byte[] plain = mBody;
+        ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(zipped);
+        gzip.write(plain);
+        gzip.close();
+        mBody = zipped.toByteArray();
+        mGzip = true;
+        mDropAfter = mBody.length / 2;
+
+        assertArrayEquals(plain, readAll(mResolver.open(mUrl, false)));
+        assertEquals("bytes=" + mBody.length / 2 + "-|\"v1\"|-", mRequests.get(1));
+        assertEquals(mBody.length, mResolver.getBytesTransferred());
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        mRequests.add((range == null ? "" : range) + "|" + (ifRange == null ? "-" : ifRange)
+                + "|" + (ifNoneMatch == null ? "-" : ifNoneMatch));
+        exchange.getRequestBody().close();
+        if (mFailures > 0) {
+            mFailures--;
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+            return;
+        }
+        String etag = mEtag;
+        if (etag != null && etag.equals(ifNoneMatch)) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+        byte[] body = mBody;
+        int from = 0;
+        if (range != null && (ifRange == null || ifRange.equals(etag))) {
+            from = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+            exchange.getResponseHeaders().set("Content-Range",
+                    "bytes " + from + "-" + (body.length - 1) + "/" + body.length);
+        }
+        if (etag != null) {
+            exchange.getResponseHeaders().set("ETag", etag);
+        }
+        exchange.getResponseHeaders().set("Content-Type", TYPE);
+        if (mGzip) {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(from > 0 ? 206 : 200, body.length - from);
+        OutputStream out = exchange.getResponseBody();
+        int drop = mDropAfter;
+        mDropAfter = -1;
+        if (drop >= 0) {
+            out.write(body, from, drop);
+            out.flush();
+            // Leaving the handler with an exception makes the server close the connection.
+            throw new IOException("Dropped on purpose");
+        }
+        out.write(body, from, body.length - from);
+        out.close();
+    }
+
+    private static byte[] song(int version) {
+        byte[] song = new byte[SONG_BYTES];
+        for (int i = 0; i < song.length; i++) {
+            song[i] = (byte) (i * 31 + i / 509 + version * 7);
+        }
+        return song;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        try {
+            while ((count = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    private static void readFully(InputStream in, byte[] into) throws IOException {
+        int done = 0;
+        while (done < into.length) {
+            int count = in.read(into, done, into.length - done);
+            if (count < 0) {
+                throw new IOException("Ended at " + done);
+            }
+            done += count;
+        }
+    }
+}
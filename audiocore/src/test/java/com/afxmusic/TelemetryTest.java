@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afxmusic;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The snapshot format the debug overlay shows and bug reports carry: what goes in comes back
+ * out of {@link Telemetry.Snapshot#parse}, and the figures in it are the ones recorded.
+ */
+public class TelemetryTest {
+
+    private final Telemetry mTelemetry = Telemetry.get();
+
+    @Before
+    public void setUp() {
+        mTelemetry.reset();
+    }
+
+    @Test
+    public void snapshotSurvivesARoundTrip() {
+        mTelemetry.loads.increment();
+        mTelemetry.loads.increment();
+        mTelemetry.seeks.increment();
+        for (int i = 1; i <= 100; i++) {
+            mTelemetry.prepare.record(i * 1000);
+        }
+        mTelemetry.loopOvershoot.record(0);
+        mTelemetry.error(mTelemetry.prepareErrors, new IOException("Prepare failed."));
+
+        Telemetry.Snapshot snapshot = mTelemetry.snapshot();
+        String dump = snapshot.toString();
+        Telemetry.Snapshot parsed = Telemetry.Snapshot.parse(dump);
+
+        assertEquals(dump, parsed.toString());
+        assertEquals(2, parsed.getCounter("loads"));
+        assertEquals(1, parsed.getCounter("seeks"));
+        assertEquals(1, parsed.getCounter("prepare_errors"));
+        assertEquals(0, parsed.getCounter("downloads"));
+        assertEquals(100, parsed.getCount("prepare"));
+        assertEquals(100000, parsed.getMax("prepare"));
+        assertEquals(1, parsed.getCount("loop_overshoot"));
+        assertEquals(0, parsed.getMax("loop_overshoot"));
+        assertEquals("prepare_errors: java.io.IOException: Prepare failed.",
+                parsed.getLastError());
+        for (String histogram : new String[] {"prepare", "loop_overshoot", "download"}) {
+            assertEquals(snapshot.getP50(histogram), parsed.getP50(histogram));
+            assertEquals(snapshot.getP90(histogram), parsed.getP90(histogram));
+            assertEquals(snapshot.getP99(histogram), parsed.getP99(histogram));
+        }
+    }
+
+    @Test
+    public void everyMetricIsInTheDump() {
+        String dump = mTelemetry.snapshot().toString();
+        for (String name : new String[] {"download", "decode", "prepare", "first_audio",
+                "seek_to_audible", "loop_overshoot", "command_delay"}) {
+            assertTrue(name, dump.contains("histogram " + name + " count=0 "));
+        }
+        assertTrue(dump.contains("counter loop_wraps 0\n"));
+        assertTrue(dump.contains("counter commands_overflowed 0\n"));
+        assertNull(Telemetry.Snapshot.parse(dump).getLastError());
+    }
+
+    @Test
+    public void percentilesAreWithinThreePercent() {
+        for (int i = 1; i <= 1000; i++) {
+            mTelemetry.seekToAudible.record(i * 97);
+        }
+        Telemetry.Snapshot snapshot = mTelemetry.snapshot();
+        assertWithin(50 * 970, snapshot.getP50("seek_to_audible"));
+        assertWithin(90 * 970, snapshot.getP90("seek_to_audible"));
+        assertWithin(99 * 970, snapshot.getP99("seek_to_audible"));
+        assertEquals(97000, snapshot.getMax("seek_to_audible"));
+    }
+
+    @Test
+    public void countsFromManyThreadsAddUp() throws InterruptedException {
+        final int threads = 4;
+        final int each = 25000;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < each; i++) {
+                        mTelemetry.loopWraps.increment();
+                        mTelemetry.tickJitter.record(i);
+                    }
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        Telemetry.Snapshot snapshot = Telemetry.Snapshot.parse(mTelemetry.snapshot().toString());
+        assertEquals(threads * each, snapshot.getCounter("loop_wraps"));
+        assertEquals(threads * each, snapshot.getCount("tick_jitter"));
+        assertEquals(each - 1, snapshot.getMax("tick_jitter"));
+    }
+
+    @Test
+    public void parseRejectsMalformedLines() {
+        for (String dump : new String[] {"counter loads\n", "counter loads many\n",
+                "histogram prepare count=1 p50=2\n", "gauge loads 1\n"}) {
+            try {
+                Telemetry.Snapshot.parse(dump);
+                fail("Parsed " + dump);
+            } catch (IllegalArgumentException expected) {
+                // As documented.
+            }
+        }
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("Expected about " + expected + " but was " + actual,
+                Math.abs(actual - expected) <= expected * 0.03);
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.afxmusic;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * What the WSOLA time stretcher makes of a sine: how long it comes out at each speed, that its
+ * pitch stays put, that changing speed mid-stream doesn't click, and that stretching a block
+ * allocates nothing.
+ */
+public class TimeStretcherTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int CHANNELS = 2;
+    private static final int BLOCK_FRAMES = 512;
+    private static final double HZ = 441;
+    private static final int LEVEL = 10000;
+    private static final int INPUT_MS = 4000;
+    // What the stretcher may still hold when the input runs out: a sequence and its seek
+    // window, or a skip at the fastest speed.
+    private static final int HELD_MS = 250;
+
+    @Test
+    public void outputLengthFollowsTheSpeed() {
+        short[] input = sine(INPUT_MS);
+        int inputFrames = input.length / CHANNELS;
+        for (float speed : new float[] {0.25f, 0.5f, 0.8f, 1.0f, 1.5f, 2.0f, 2.5f}) {
+            int frames = stretch(input, speed, -1).length / CHANNELS;
+
+            double consumed = frames * speed;
+            assertTrue(speed + "x: " + frames + " frames", consumed <= inputFrames
+                    && consumed >= inputFrames - toFrames(HELD_MS) * (double) Math.max(1, speed));
+        }
+    }
+
+    @Test
+    public void pitchStaysTheSame() {
+        short[] input = sine(INPUT_MS);
+        for (float speed : new float[] {0.5f, 2.0f}) {
+            short[] output = stretch(input, speed, -1);
+
+            double hz = frequency(output);
+            assertEquals(speed + "x", HZ, hz, HZ / 100);
+        }
+    }
+
+    @Test
+    public void speedChangesDontClick() {
+        short[] output = stretch(sine(INPUT_MS), 1.0f, 100);
+
+        // The steepest a sine this loud and high gets, with some room for the crossfades.
+        double steepest = LEVEL * 2 * Math.PI * HZ / SAMPLE_RATE;
+        int jump = 0;
+        for (int i = CHANNELS; i < output.length; i++) {
+            jump = Math.max(jump, Math.abs(output[i] - output[i - CHANNELS]));
+        }
+        assertTrue("Jumped by " + jump, jump <= 1.5 * steepest);
+        // Faded down at the joins at worst, never cut out.
+        assertTrue(peak(output) >= LEVEL * 9 / 10);
+    }
+
+    @Test
+    public void stretchingAllocatesNothing() {
+        final short[] input = sine(1000);
+        final short[] out = new short[BLOCK_FRAMES * CHANNELS];
+        final TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, CHANNELS, BLOCK_FRAMES);
+        Runnable blocks = new Runnable() {
+            @Override
+            public void run() {
+                for (int pass = 0; pass < 20; pass++) {
+                    stretcher.setSpeed(pass % 2 == 0 ? 0.5f : 2.0f);
+                    for (int at = 0; at + BLOCK_FRAMES <= input.length / CHANNELS; ) {
+                        if (stretcher.getInputCapacity() >= BLOCK_FRAMES) {
+                            stretcher.putSamples(input, at * CHANNELS, BLOCK_FRAMES);
+                            at += BLOCK_FRAMES;
+                        }
+                        stretcher.getRunSource();
+                        stretcher.getRunFrames();
+                        stretcher.receiveSamples(out, 0, BLOCK_FRAMES);
+                    }
+                }
+            }
+        };
+        Runnable nothing = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        // Once interpreted and once compiled, so neither mode hides an allocation.
+        blocks.run();
+        blocks.run();
+
+        long overhead = allocatedBytes(nothing);
+        assertEquals(overhead, allocatedBytes(blocks));
+    }
+
+    /**
+     * Stretches all of {@code input} a block at a time and returns what comes out. With
+     * {@code switchMs} of 0 or more the speed goes back and forth between 0.5 and 2 that often.
+     */
+    private static short[] stretch(short[] input, float speed, int switchMs) {
+        TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, CHANNELS, BLOCK_FRAMES);
+        stretcher.setSpeed(speed);
+        int inputFrames = input.length / CHANNELS;
+        short[] output = new short[(int) (inputFrames / TimeStretcher.MIN_SPEED + 1) * CHANNELS];
+        int written = 0;
+        int at = 0;
+        long nextSwitch = switchMs < 0 ? Long.MAX_VALUE : toFrames(switchMs);
+        while (at < inputFrames) {
+            int frames = Math.min(BLOCK_FRAMES,
+                    Math.min(inputFrames - at, stretcher.getInputCapacity()));
+            stretcher.putSamples(input, at * CHANNELS, frames);
+            at += frames;
+            written += stretcher.receiveSamples(output, written * CHANNELS,
+                    output.length / CHANNELS - written);
+            if (written >= nextSwitch) {
+                stretcher.setSpeed(stretcher.getSpeed() == 0.5f ? 2.0f : 0.5f);
+                nextSwitch += toFrames(switchMs);
+            }
+        }
+        short[] result = new short[written * CHANNELS];
+        System.arraycopy(output, 0, result, 0, result.length);
+        return result;
+    }
+
+    private static short[] sine(int milliseconds) {
+        short[] pcm = new short[toFrames(milliseconds) * CHANNELS];
+        for (int i = 0; i < pcm.length / CHANNELS; i++) {
+            short sample = (short) (LEVEL * Math.sin(2 * Math.PI * HZ * i / SAMPLE_RATE));
+            for (int c = 0; c < CHANNELS; c++) {
+                pcm[i * CHANNELS + c] = sample;
+            }
+        }
+        return pcm;
+    }
+
+    /**
+     * Returns the frequency of the first channel from its rising zero crossings.
+     */
+    private static double frequency(short[] pcm) {
+        int first = -1;
+        int last = -1;
+        int crossings = 0;
+        for (int i = 1; i < pcm.length / CHANNELS; i++) {
+            if (pcm[(i - 1) * CHANNELS] < 0 && pcm[i * CHANNELS] >= 0) {
+                if (first < 0) {
+                    first = i;
+                } else {
+                    crossings++;
+                }
+                last = i;
+            }
+        }
+        return crossings * (double) SAMPLE_RATE / (last - first);
+    }
+
+    private static int peak(short[] pcm) {
+        int peak = 0;
+        for (short sample : pcm) {
+            peak = Math.max(peak, Math.abs(sample));
+        }
+        return peak;
+    }
+
+    private static int toFrames(int milliseconds) {
+        return milliseconds * SAMPLE_RATE / 1000;
+    }
+
+    /**
+     * Returns the bytes the current thread allocates while running {@code runnable}.
+     */
+    private static long allocatedBytes(Runnable runnable) {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        runnable.run();
+        return threads.getThreadAllocatedBytes(thread) - before;
+    }
+}
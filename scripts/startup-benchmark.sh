@@ -0,0 +1,64 @@
+#!/bin/sh
+#
+# Copyright 2017 Google Inc. All rights reserved.
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# Cold-starts the app on the connected device RUNS times and reports the time to the first
+# frame as measured by the activity manager. Fails if the median is over BUDGET_MS, so a
+# startup regression is caught before it ships.
+#
+#     ./gradlew :app:installDebug && scripts/startup-benchmark.sh [RUNS] [BUDGET_MS]
+#
+# Compare medians from the same device only. The app keeps its own measurement of every cold
+# start in the telemetry overlay (cold_start).
+
+set -e
+
+PACKAGE=dance.afx.music
+ACTIVITY=com.afxmusic.MainActivity
+RUNS=${1:-15}
+BUDGET_MS=${2:-1000}
+
+adb wait-for-device
+# The first launch after an install also compiles and extracts; leave it out.
+adb shell am force-stop $PACKAGE
+adb shell am start-activity -W -n $PACKAGE/$ACTIVITY > /dev/null
+
+TIMES=$(
+    i=0
+    while [ $i -lt "$RUNS" ]; do
+        adb shell am force-stop $PACKAGE
+        sleep 1
+        adb shell am start-activity -W -n $PACKAGE/$ACTIVITY | tr -d '\r' |
+                awk '/^TotalTime:/ { print $2 }'
+        i=$((i + 1))
+    done | sort -n
+)
+
+echo "$TIMES" | awk -v budget="$BUDGET_MS" '
+    { times[NR] = $1 }
+    END {
+        if (NR == 0) {
+            print "No launches measured"
+            exit 1
+        }
+        median = times[int((NR + 1) / 2)]
+        p90 = times[int(NR * 0.9 + 0.5) > 0 ? int(NR * 0.9 + 0.5) : 1]
+        printf "cold start over %d runs: median=%dms p90=%dms max=%dms budget=%dms\n",
+                NR, median, p90, times[NR], budget
+        if (median > budget) {
+            print "Median cold start is over budget"
+            exit 1
+        }
+    }'